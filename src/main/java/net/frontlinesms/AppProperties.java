@@ -48,10 +48,130 @@ public final class AppProperties extends UserHomeFilePropertySet {
 	public static final String KEY_SMS_COST_RECEIVED_MESSAGES = "sms.cost.received.messages";
 	/** Property key (String) indicating the country the user is currently in */
 	public static final String KEY_USER_COUNTRY = "user.country";
+	/** Property key (int) indicating the number of threads used to process incoming messages */
+	public static final String KEY_INCOMING_MESSAGE_PROCESSOR_THREADS = "incoming.processor.threads";
+	/** Property key (int) indicating the maximum number of incoming messages saved in a single transaction */
+	public static final String KEY_INCOMING_MESSAGE_BATCH_SIZE = "incoming.batch.size";
+	/** Property key (int) indicating the time, in millis, to wait for more incoming messages before saving a batch */
+	public static final String KEY_INCOMING_MESSAGE_BATCH_WINDOW = "incoming.batch.window";
+	/** Property key (int) indicating the time, in millis, to wait before retrying an incoming message which failed to be processed */
+	public static final String KEY_INCOMING_RETRY_DELAY = "incoming.retry.delay";
+	/** Property key (int) indicating the maximum time, in millis, to wait before retrying an incoming message */
+	public static final String KEY_INCOMING_RETRY_MAX_DELAY = "incoming.retry.max.delay";
+	/** Property key (int) indicating the number of times processing an incoming message may fail before it is dead-lettered */
+	public static final String KEY_INCOMING_RETRY_MAX_ATTEMPTS = "incoming.retry.max.attempts";
+	/** Property key (int) indicating the size, in bytes, of each segment of the incoming message journal, or 0 to disable the journal */
+	public static final String KEY_INCOMING_JOURNAL_SIZE = "incoming.journal.size";
+	/** Property key (int) indicating the time, in millis, between forcing the incoming message journal to disk */
+	public static final String KEY_INCOMING_JOURNAL_SYNC_INTERVAL = "incoming.journal.sync.interval";
+	/** Property key (int) indicating the time, in millis, to wait for a delivery report before a sent message's delivery is marked unknown */
+	public static final String KEY_DELIVERY_REPORT_TIMEOUT = "delivery.report.timeout";
+	/** Property key (int) indicating the maximum time, in millis, that an outgoing message's status change waits before it is written to the database */
+	public static final String KEY_MESSAGE_STATUS_FLUSH_INTERVAL = "message.status.flush.interval";
+	/** Property key (int) indicating the number of unsent messages loaded at a time when they are re-queued at startup */
+	public static final String KEY_OUTBOX_RECOVERY_BATCH_SIZE = "outbox.recovery.batch.size";
+	/** Property key (int) indicating the number of recipients loaded at a time when a message is sent to a group */
+	public static final String KEY_CAMPAIGN_BATCH_SIZE = "campaign.batch.size";
+	/** Property key (int) indicating the time, in millis, to wait before retrying an outgoing message which failed to send */
+	public static final String KEY_OUTGOING_RETRY_DELAY = "outgoing.retry.delay";
+	/** Property key (int) indicating the maximum time, in millis, to wait before retrying an outgoing message */
+	public static final String KEY_OUTGOING_RETRY_MAX_DELAY = "outgoing.retry.max.delay";
+	/** Property key (int) indicating the maximum percentage by which the delay before retrying an outgoing message is randomly reduced */
+	public static final String KEY_OUTGOING_RETRY_JITTER = "outgoing.retry.jitter";
+	/** Property key (String) indicating whether or not an outgoing message which failed to send should be retried on a different device */
+	public static final String KEY_OUTGOING_RETRY_OTHER_DEVICE = "outgoing.retry.other.device";
+	/** Property key (int) indicating the time, in millis, after which a modem which has not sent its waiting messages is treated as stalled, and its messages are given to other modems */
+	public static final String KEY_MODEM_STALL_TIMEOUT = "modem.stall.timeout";
+	/** Property key (String) indicating whether or not characters which are expensive to send are replaced in outgoing messages when that reduces the number of SMS parts */
+	public static final String KEY_OUTGOING_TRANSLITERATE = "outgoing.transliterate";
+	/** Property key (String) indicating whether or not the outbox is shared with other FrontlineSMS instances using the same database */
+	public static final String KEY_OUTBOX_SHARED = "outbox.shared";
+	/** Property key (String) indicating the id of this instance when the outbox is shared, which must be different for each instance */
+	public static final String KEY_OUTBOX_INSTANCE_ID = "outbox.instance.id";
+	/** Property key (int) indicating the time, in millis, after which an instance's claim on a message in a shared outbox expires unless it is renewed */
+	public static final String KEY_OUTBOX_LEASE_DURATION = "outbox.lease.duration";
+	/** Property key (int) indicating the maximum number of messages claimed from a shared outbox at a time */
+	public static final String KEY_OUTBOX_CLAIM_BATCH_SIZE = "outbox.claim.batch.size";
+	/** Property key (int) indicating the number of queued messages held in memory, beyond which saved messages are held as their id only; zero to hold every queued message in memory */
+	public static final String KEY_OUTBOX_MEMORY_LIMIT = "outbox.memory.limit";
+	/** Property key (int) indicating the time, in millis, ahead of now that scheduled messages are held in memory */
+	public static final String KEY_SCHEDULE_WINDOW = "schedule.window";
+	/** Property key (int) indicating the maximum number of scheduled messages held in memory */
+	public static final String KEY_SCHEDULE_CAPACITY = "schedule.capacity";
+	/** Property key (int) indicating the number of scheduled messages loaded from the database at a time */
+	public static final String KEY_SCHEDULE_BATCH_SIZE = "schedule.batch.size";
+	/** Property key (int) indicating the number of due scheduled messages which may be queued for sending each minute */
+	public static final String KEY_SCHEDULE_RELEASE_RATE = "schedule.release.rate";
+	/** Property key (int) indicating the number of threads used to run external commands triggered by keyword actions */
+	public static final String KEY_EXTERNAL_COMMAND_THREADS = "external.command.threads";
+	/** Property key (int) indicating the maximum number of external commands waiting to be run */
+	public static final String KEY_EXTERNAL_COMMAND_QUEUE_SIZE = "external.command.queue.size";
+	/** Property key (int) indicating the maximum number of external commands run against a single host at once */
+	public static final String KEY_EXTERNAL_COMMAND_HOST_CONCURRENCY = "external.command.host.concurrency";
+	/** Property key (int) indicating the maximum number of external commands which may wait for a single host */
+	public static final String KEY_EXTERNAL_COMMAND_HOST_QUEUE_SIZE = "external.command.host.queue.size";
+	/** Property key (int) indicating the time, in millis, after which an external command is abandoned */
+	public static final String KEY_EXTERNAL_COMMAND_TIMEOUT = "external.command.timeout";
 
 //> DEFAULT VALUES
 	/** Default value for {@link #KEY_DATABASE_CONFIG_PATH} */
 	private static final String DEFAULT_DATABASE_CONFIG_PATH = "h2.database.xml";
+	/** Default value for {@link #KEY_INCOMING_MESSAGE_PROCESSOR_THREADS} */
+	private static final int DEFAULT_INCOMING_MESSAGE_PROCESSOR_THREADS = 4;
+	/** Default value for {@link #KEY_INCOMING_MESSAGE_BATCH_SIZE} */
+	private static final int DEFAULT_INCOMING_MESSAGE_BATCH_SIZE = 50;
+	/** Default value for {@link #KEY_INCOMING_MESSAGE_BATCH_WINDOW} */
+	private static final int DEFAULT_INCOMING_MESSAGE_BATCH_WINDOW = 20;
+	/** Default value for {@link #KEY_INCOMING_RETRY_DELAY} */
+	private static final int DEFAULT_INCOMING_RETRY_DELAY = 1000;
+	/** Default value for {@link #KEY_INCOMING_RETRY_MAX_DELAY} */
+	private static final int DEFAULT_INCOMING_RETRY_MAX_DELAY = 60000;
+	/** Default value for {@link #KEY_INCOMING_RETRY_MAX_ATTEMPTS} */
+	private static final int DEFAULT_INCOMING_RETRY_MAX_ATTEMPTS = 10;
+	/** Default value for {@link #KEY_INCOMING_JOURNAL_SIZE} */
+	private static final int DEFAULT_INCOMING_JOURNAL_SIZE = 4 * 1024 * 1024;
+	/** Default value for {@link #KEY_INCOMING_JOURNAL_SYNC_INTERVAL} */
+	private static final int DEFAULT_INCOMING_JOURNAL_SYNC_INTERVAL = 10;
+	/** Default value for {@link #KEY_DELIVERY_REPORT_TIMEOUT} */
+	private static final int DEFAULT_DELIVERY_REPORT_TIMEOUT = 24 * 60 * 60 * 1000;
+	/** Default value for {@link #KEY_MESSAGE_STATUS_FLUSH_INTERVAL} */
+	private static final int DEFAULT_MESSAGE_STATUS_FLUSH_INTERVAL = 200;
+	/** Default value for {@link #KEY_OUTBOX_RECOVERY_BATCH_SIZE} */
+	private static final int DEFAULT_OUTBOX_RECOVERY_BATCH_SIZE = 500;
+	/** Default value for {@link #KEY_CAMPAIGN_BATCH_SIZE} */
+	private static final int DEFAULT_CAMPAIGN_BATCH_SIZE = 200;
+	/** Default value for {@link #KEY_OUTGOING_RETRY_DELAY} */
+	private static final int DEFAULT_OUTGOING_RETRY_DELAY = 30 * 1000;
+	/** Default value for {@link #KEY_OUTGOING_RETRY_MAX_DELAY} */
+	private static final int DEFAULT_OUTGOING_RETRY_MAX_DELAY = 30 * 60 * 1000;
+	/** Default value for {@link #KEY_OUTGOING_RETRY_JITTER} */
+	private static final int DEFAULT_OUTGOING_RETRY_JITTER = 20;
+	/** Default value for {@link #KEY_MODEM_STALL_TIMEOUT} */
+	private static final int DEFAULT_MODEM_STALL_TIMEOUT = 30 * 1000;
+	/** Default value for {@link #KEY_OUTBOX_LEASE_DURATION} */
+	private static final int DEFAULT_OUTBOX_LEASE_DURATION = 5 * 60 * 1000;
+	/** Default value for {@link #KEY_OUTBOX_CLAIM_BATCH_SIZE} */
+	private static final int DEFAULT_OUTBOX_CLAIM_BATCH_SIZE = 20;
+	/** Default value for {@link #KEY_OUTBOX_MEMORY_LIMIT} */
+	private static final int DEFAULT_OUTBOX_MEMORY_LIMIT = 10000;
+	/** Default value for {@link #KEY_SCHEDULE_WINDOW} */
+	private static final int DEFAULT_SCHEDULE_WINDOW = 60 * 60 * 1000;
+	/** Default value for {@link #KEY_SCHEDULE_CAPACITY} */
+	private static final int DEFAULT_SCHEDULE_CAPACITY = 100000;
+	/** Default value for {@link #KEY_SCHEDULE_BATCH_SIZE} */
+	private static final int DEFAULT_SCHEDULE_BATCH_SIZE = 500;
+	/** Default value for {@link #KEY_SCHEDULE_RELEASE_RATE} */
+	private static final int DEFAULT_SCHEDULE_RELEASE_RATE = 600;
+	/** Default value for {@link #KEY_EXTERNAL_COMMAND_THREADS} */
+	private static final int DEFAULT_EXTERNAL_COMMAND_THREADS = 4;
+	/** Default value for {@link #KEY_EXTERNAL_COMMAND_QUEUE_SIZE} */
+	private static final int DEFAULT_EXTERNAL_COMMAND_QUEUE_SIZE = 200;
+	/** Default value for {@link #KEY_EXTERNAL_COMMAND_HOST_CONCURRENCY} */
+	private static final int DEFAULT_EXTERNAL_COMMAND_HOST_CONCURRENCY = 2;
+	/** Default value for {@link #KEY_EXTERNAL_COMMAND_HOST_QUEUE_SIZE} */
+	private static final int DEFAULT_EXTERNAL_COMMAND_HOST_QUEUE_SIZE = 100;
+	/** Default value for {@link #KEY_EXTERNAL_COMMAND_TIMEOUT} */
+	private static final int DEFAULT_EXTERNAL_COMMAND_TIMEOUT = 30000;
 	
 	/** Singleton instance of this class. */
 	private static AppProperties instance;
@@ -212,6 +332,171 @@ public final class AppProperties extends UserHomeFilePropertySet {
 		super.setPropertyAsBoolean(KEY_START_DETECTING_AT_STARTUP, shouldStartDetectingAtStartup);
 	}
 	
+	/** @return the number of threads used to process incoming messages */
+	public int getIncomingMessageProcessorThreadCount() {
+		return super.getPropertyAsInt(KEY_INCOMING_MESSAGE_PROCESSOR_THREADS, DEFAULT_INCOMING_MESSAGE_PROCESSOR_THREADS);
+	}
+	
+	/** @param threadCount value for property {@link #KEY_INCOMING_MESSAGE_PROCESSOR_THREADS} */
+	public void setIncomingMessageProcessorThreadCount(int threadCount) {
+		super.setPropertyAsInteger(KEY_INCOMING_MESSAGE_PROCESSOR_THREADS, threadCount);
+	}
+	
+	/** @return the maximum number of incoming messages saved in a single transaction */
+	public int getIncomingMessageBatchSize() {
+		return super.getPropertyAsInt(KEY_INCOMING_MESSAGE_BATCH_SIZE, DEFAULT_INCOMING_MESSAGE_BATCH_SIZE);
+	}
+	
+	/** @return the time, in millis, to wait for more incoming messages before saving a batch */
+	public long getIncomingMessageBatchWindow() {
+		return super.getPropertyAsInt(KEY_INCOMING_MESSAGE_BATCH_WINDOW, DEFAULT_INCOMING_MESSAGE_BATCH_WINDOW);
+	}
+	
+	/** @return the time, in millis, to wait before retrying an incoming message which failed to be processed */
+	public long getIncomingRetryDelay() {
+		return super.getPropertyAsInt(KEY_INCOMING_RETRY_DELAY, DEFAULT_INCOMING_RETRY_DELAY);
+	}
+	
+	/** @return the maximum time, in millis, to wait before retrying an incoming message */
+	public long getIncomingRetryMaxDelay() {
+		return super.getPropertyAsInt(KEY_INCOMING_RETRY_MAX_DELAY, DEFAULT_INCOMING_RETRY_MAX_DELAY);
+	}
+	
+	/** @return the number of times processing an incoming message may fail before it is dead-lettered */
+	public int getIncomingRetryMaxAttempts() {
+		return super.getPropertyAsInt(KEY_INCOMING_RETRY_MAX_ATTEMPTS, DEFAULT_INCOMING_RETRY_MAX_ATTEMPTS);
+	}
+	
+	/** @return the size, in bytes, of each segment of the incoming message journal, or 0 if the journal is disabled */
+	public int getIncomingJournalSize() {
+		return super.getPropertyAsInt(KEY_INCOMING_JOURNAL_SIZE, DEFAULT_INCOMING_JOURNAL_SIZE);
+	}
+	
+	/** @return the time, in millis, between forcing the incoming message journal to disk */
+	public long getIncomingJournalSyncInterval() {
+		return super.getPropertyAsInt(KEY_INCOMING_JOURNAL_SYNC_INTERVAL, DEFAULT_INCOMING_JOURNAL_SYNC_INTERVAL);
+	}
+	
+	/** @return the time, in millis, to wait for a delivery report before a sent message's delivery is marked unknown */
+	public long getDeliveryReportTimeout() {
+		return super.getPropertyAsInt(KEY_DELIVERY_REPORT_TIMEOUT, DEFAULT_DELIVERY_REPORT_TIMEOUT);
+	}
+	
+	/** @return the maximum time, in millis, that an outgoing message's status change waits before it is written to the database */
+	public long getMessageStatusFlushInterval() {
+		return super.getPropertyAsInt(KEY_MESSAGE_STATUS_FLUSH_INTERVAL, DEFAULT_MESSAGE_STATUS_FLUSH_INTERVAL);
+	}
+	
+	/** @return the number of unsent messages loaded at a time when they are re-queued at startup */
+	public int getOutboxRecoveryBatchSize() {
+		return super.getPropertyAsInt(KEY_OUTBOX_RECOVERY_BATCH_SIZE, DEFAULT_OUTBOX_RECOVERY_BATCH_SIZE);
+	}
+	
+	/** @return the number of recipients loaded at a time when a message is sent to a group */
+	public int getCampaignBatchSize() {
+		return super.getPropertyAsInt(KEY_CAMPAIGN_BATCH_SIZE, DEFAULT_CAMPAIGN_BATCH_SIZE);
+	}
+	
+	/** @return the time, in millis, to wait before retrying an outgoing message which failed to send */
+	public int getOutgoingRetryDelay() {
+		return super.getPropertyAsInt(KEY_OUTGOING_RETRY_DELAY, DEFAULT_OUTGOING_RETRY_DELAY);
+	}
+	
+	/** @return the maximum time, in millis, to wait before retrying an outgoing message */
+	public int getOutgoingRetryMaxDelay() {
+		return super.getPropertyAsInt(KEY_OUTGOING_RETRY_MAX_DELAY, DEFAULT_OUTGOING_RETRY_MAX_DELAY);
+	}
+	
+	/** @return the maximum percentage by which the delay before retrying an outgoing message is randomly reduced */
+	public int getOutgoingRetryJitter() {
+		return super.getPropertyAsInt(KEY_OUTGOING_RETRY_JITTER, DEFAULT_OUTGOING_RETRY_JITTER);
+	}
+	
+	/** @return <code>true</code> if an outgoing message which failed to send should be retried on a different device when another is available */
+	public boolean isOutgoingRetryOnOtherDevice() {
+		return super.getPropertyAsBoolean(KEY_OUTGOING_RETRY_OTHER_DEVICE, true);
+	}
+	
+	/** @return <code>true</code> if characters which are expensive to send should be replaced in outgoing messages when that reduces the number of SMS parts */
+	public boolean isOutgoingTransliterationEnabled() {
+		return super.getPropertyAsBoolean(KEY_OUTGOING_TRANSLITERATE, false);
+	}
+	
+	/** @return the time, in millis, after which a modem which has not sent its waiting messages is treated as stalled */
+	public int getModemStallTimeout() {
+		return super.getPropertyAsInt(KEY_MODEM_STALL_TIMEOUT, DEFAULT_MODEM_STALL_TIMEOUT);
+	}
+	
+	/** @return <code>true</code> if the outbox is shared with other FrontlineSMS instances using the same database */
+	public boolean isOutboxShared() {
+		return super.getPropertyAsBoolean(KEY_OUTBOX_SHARED, false);
+	}
+	
+	/** @return the id of this instance when the outbox is shared, or <code>null</code> if none has been set */
+	public String getOutboxInstanceId() {
+		return super.getProperty(KEY_OUTBOX_INSTANCE_ID);
+	}
+	
+	/** @return the time, in millis, after which an instance's claim on a message in a shared outbox expires unless it is renewed */
+	public int getOutboxLeaseDuration() {
+		return super.getPropertyAsInt(KEY_OUTBOX_LEASE_DURATION, DEFAULT_OUTBOX_LEASE_DURATION);
+	}
+	
+	/** @return the maximum number of messages claimed from a shared outbox at a time */
+	public int getOutboxClaimBatchSize() {
+		return super.getPropertyAsInt(KEY_OUTBOX_CLAIM_BATCH_SIZE, DEFAULT_OUTBOX_CLAIM_BATCH_SIZE);
+	}
+	
+	/** @return the number of queued messages held in memory, beyond which saved messages are held as their id only */
+	public int getOutboxMemoryLimit() {
+		return super.getPropertyAsInt(KEY_OUTBOX_MEMORY_LIMIT, DEFAULT_OUTBOX_MEMORY_LIMIT);
+	}
+	
+	/** @return the time, in millis, ahead of now that scheduled messages are held in memory */
+	public int getScheduleWindow() {
+		return super.getPropertyAsInt(KEY_SCHEDULE_WINDOW, DEFAULT_SCHEDULE_WINDOW);
+	}
+	
+	/** @return the maximum number of scheduled messages held in memory */
+	public int getScheduleCapacity() {
+		return super.getPropertyAsInt(KEY_SCHEDULE_CAPACITY, DEFAULT_SCHEDULE_CAPACITY);
+	}
+	
+	/** @return the number of scheduled messages loaded from the database at a time */
+	public int getScheduleBatchSize() {
+		return super.getPropertyAsInt(KEY_SCHEDULE_BATCH_SIZE, DEFAULT_SCHEDULE_BATCH_SIZE);
+	}
+	
+	/** @return the number of due scheduled messages which may be queued for sending each minute */
+	public int getScheduleReleaseRate() {
+		return super.getPropertyAsInt(KEY_SCHEDULE_RELEASE_RATE, DEFAULT_SCHEDULE_RELEASE_RATE);
+	}
+	
+	/** @return the number of threads used to run external commands triggered by keyword actions */
+	public int getExternalCommandThreadCount() {
+		return super.getPropertyAsInt(KEY_EXTERNAL_COMMAND_THREADS, DEFAULT_EXTERNAL_COMMAND_THREADS);
+	}
+	
+	/** @return the maximum number of external commands waiting to be run */
+	public int getExternalCommandQueueSize() {
+		return super.getPropertyAsInt(KEY_EXTERNAL_COMMAND_QUEUE_SIZE, DEFAULT_EXTERNAL_COMMAND_QUEUE_SIZE);
+	}
+	
+	/** @return the maximum number of external commands run against a single host at once */
+	public int getExternalCommandHostConcurrency() {
+		return super.getPropertyAsInt(KEY_EXTERNAL_COMMAND_HOST_CONCURRENCY, DEFAULT_EXTERNAL_COMMAND_HOST_CONCURRENCY);
+	}
+	
+	/** @return the maximum number of external commands which may wait for a single host */
+	public int getExternalCommandHostQueueSize() {
+		return super.getPropertyAsInt(KEY_EXTERNAL_COMMAND_HOST_QUEUE_SIZE, DEFAULT_EXTERNAL_COMMAND_HOST_QUEUE_SIZE);
+	}
+	
+	/** @return the time, in millis, after which an external command is abandoned */
+	public int getExternalCommandTimeout() {
+		return super.getPropertyAsInt(KEY_EXTERNAL_COMMAND_TIMEOUT, DEFAULT_EXTERNAL_COMMAND_TIMEOUT);
+	}
+	
 //> INSTANCE HELPER METHODS
 	
 	/** @return number representing the cost of one SMS sent */
@@ -20,12 +20,15 @@
 package net.frontlinesms;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 
 import net.frontlinesms.data.*;
 import net.frontlinesms.data.domain.*;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
-import net.frontlinesms.data.domain.FrontlineMessage.Type;
 import net.frontlinesms.data.events.DatabaseEntityNotification;
 import net.frontlinesms.data.events.EntityDeletedNotification;
 import net.frontlinesms.data.events.EntitySavedNotification;
@@ -34,12 +37,23 @@ import net.frontlinesms.events.EventBus;
 import net.frontlinesms.events.EventObserver;
 import net.frontlinesms.events.FrontlineEventNotification;
 import net.frontlinesms.listener.*;
+import net.frontlinesms.messaging.DeliveryReportTracker;
 import net.frontlinesms.messaging.FrontlineMessagingServiceEventListener;
+import net.frontlinesms.messaging.IncomingMessageJournal;
 import net.frontlinesms.messaging.IncomingMessageProcessor;
 import net.frontlinesms.messaging.MessageFormatter;
+import net.frontlinesms.messaging.MessageStatusWriter;
+import net.frontlinesms.messaging.RoutingProperties;
+import net.frontlinesms.messaging.TransliterationProperties;
 import net.frontlinesms.messaging.mms.MmsServiceManager;
 import net.frontlinesms.messaging.mms.events.MmsReceivedNotification;
+import net.frontlinesms.messaging.sms.BulkSmsCampaign;
 import net.frontlinesms.messaging.sms.DummySmsService;
+import net.frontlinesms.messaging.sms.OutboxRecovery;
+import net.frontlinesms.messaging.sms.ScheduledMessageReleaser;
+import net.frontlinesms.messaging.sms.SharedOutboxClaimer;
+import net.frontlinesms.messaging.sms.SmsEncodingOptimizer;
+import net.frontlinesms.messaging.sms.SmsRoutingTable;
 import net.frontlinesms.messaging.sms.SmsService;
 import net.frontlinesms.messaging.sms.SmsServiceManager;
 import net.frontlinesms.messaging.sms.SmsServiceStatus;
@@ -65,6 +79,7 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 import org.springframework.context.support.StaticApplicationContext;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.transaction.PlatformTransactionManager;
 
 /**
  * 
@@ -100,6 +115,8 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	private static Logger LOG = FrontlineUtils.getLogger(FrontlineSMS.class);
 	/** SMS device emulator */
 	public static final SmsService EMULATOR = new DummySmsService(FrontlineSMSConstants.EMULATOR_MSISDN);
+	/** Name of the directory, within the config directory, holding the incoming message journal */
+	private static final String INCOMING_JOURNAL_DIRECTORY_NAME = "journal";
 	
 //> INSTANCE VARIABLES
 
@@ -124,6 +141,8 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	private EmailAccountDao emailAccountDao;
 	/** Data Access Object for {@link Email}s */
 	private EmailDao emailDao;
+	/** Manager of database transactions */
+	private PlatformTransactionManager transactionManager;
 	
 //> SERVICE MANAGERS
 	/** Class that handles sending of email messages */
@@ -134,6 +153,18 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	private MmsServiceManager mmsServiceManager;
 	/** Processor of received SMS & MMS. */
 	private IncomingMessageProcessor incomingMessageProcessor;
+	/** Index of sent messages waiting for delivery reports */
+	private DeliveryReportTracker deliveryReportTracker;
+	/** Write-behind buffer for outgoing message status changes */
+	private MessageStatusWriter messageStatusWriter;
+	/** Thread re-queueing messages which were unsent when FrontlineSMS last stopped */
+	private OutboxRecovery outboxRecovery;
+	/** Thread queueing scheduled messages once they are due */
+	private ScheduledMessageReleaser scheduledMessageReleaser;
+	/** Bulk SMS campaigns which have been started, and may still be queueing messages */
+	private final List<BulkSmsCampaign> campaigns = new ArrayList<BulkSmsCampaign>();
+	/** Replaces characters which are expensive to send in outgoing messages, or <code>null</code> if messages are sent as written */
+	private volatile SmsEncodingOptimizer encodingOptimizer;
 	private PluginManager pluginManager;
 
 	//> EVENT LISTENERS
@@ -194,6 +225,7 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 		smsInternetServiceSettingsDao = (SmsInternetServiceSettingsDao) applicationContext.getBean("smsInternetServiceSettingsDao");
 		smsModemSettingsDao = (SmsModemSettingsDao) applicationContext.getBean("smsModemSettingsDao");
 		eventBus = (EventBus) applicationContext.getBean("eventBus");
+		transactionManager = (PlatformTransactionManager) applicationContext.getBean("transactionManager");
 	}
 	
 	/** Deinitialise {@link #applicationContext}. */
@@ -233,16 +265,42 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 		emailServerManager = new EmailServerHandler();
 		emailServerManager.setEmailListener(this);
 
+		LOG.debug("Initialising delivery report tracker...");
+		deliveryReportTracker = new DeliveryReportTracker(messageDao, AppProperties.getInstance().getDeliveryReportTimeout());
+		deliveryReportTracker.start();
+
+		LOG.debug("Initialising message status writer...");
+		messageStatusWriter = new MessageStatusWriter(messageDao, AppProperties.getInstance().getMessageStatusFlushInterval());
+		messageStatusWriter.start();
+		deliveryReportTracker.setStatusWriter(messageStatusWriter);
+
 		LOG.debug("Initialising incoming message processor...");
 		
 		// Initialise the incoming message processor
 		incomingMessageProcessor = new IncomingMessageProcessor(this);
+		incomingMessageProcessor.setJournal(openIncomingMessageJournal());
 		incomingMessageProcessor.start();
 		
 		LOG.debug("Starting Phone Manager...");
 		smsServiceManager = new SmsServiceManager();
 		smsServiceManager.setSmsListener(this);
 		smsServiceManager.setEventBus(getEventBus());
+		AppProperties appProperties = AppProperties.getInstance();
+		smsServiceManager.getSendRetryScheduler().setRetryPolicy(appProperties.getOutgoingRetryDelay(),
+				appProperties.getOutgoingRetryMaxDelay(),
+				appProperties.getOutgoingRetryJitter());
+		smsServiceManager.setRetryOnOtherDevice(appProperties.isOutgoingRetryOnOtherDevice());
+		smsServiceManager.setModemStallTimeout(appProperties.getModemStallTimeout());
+		smsServiceManager.setMemoryQueueLimit(messageDao, appProperties.getOutboxMemoryLimit());
+		if(appProperties.isOutboxShared()) {
+			// Set before any messages are queued, so that none are sent without being claimed
+			smsServiceManager.setOutboxClaimer(new SharedOutboxClaimer(messageDao, smsServiceManager, getOutboxInstanceId(appProperties),
+					appProperties.getOutboxLeaseDuration(), appProperties.getOutboxClaimBatchSize()));
+		}
+		reloadRoutingTable();
+		if(appProperties.isOutgoingTransliterationEnabled()) {
+			encodingOptimizer = TransliterationProperties.load().createEncodingOptimizer();
+		}
 		smsServiceManager.listComPortsAndOwners(false);
 		smsServiceManager.start();
 		
@@ -265,10 +323,23 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 		System.out.println("before reloading messages to outbox");
 		LOG.debug("Re-Loading messages to outbox.");
 		//We need to reload all messages, which status is OUTBOX, to the outbox.
-		for (FrontlineMessage m : messageDao.getMessages(Type.OUTBOUND, Status.OUTBOX, Status.PENDING)) {
-			smsServiceManager.sendSMS(m);
+		// This is done in the background, as there may be too many to load at once.
+		// When the outbox is shared, unsent messages are claimed by whichever instance has space for them.
+		SharedOutboxClaimer outboxClaimer = smsServiceManager.getOutboxClaimer();
+		if(outboxClaimer != null) {
+			LOG.info("Claiming messages from the outbox shared by instance [" + outboxClaimer.getOwner() + "].");
+			outboxClaimer.start();
+		} else {
+			outboxRecovery = new OutboxRecovery(messageDao, smsServiceManager, AppProperties.getInstance().getOutboxRecoveryBatchSize());
+			outboxRecovery.start();
 		}
 
+		LOG.debug("Starting scheduled message releaser.");
+		scheduledMessageReleaser = new ScheduledMessageReleaser(messageDao, smsServiceManager,
+				appProperties.getScheduleWindow(), appProperties.getScheduleReleaseRate(),
+				appProperties.getScheduleCapacity(), appProperties.getScheduleBatchSize());
+		scheduledMessageReleaser.start();
+
 		LOG.debug("Re-Loading e-mails to outbox.");
 		//We need to reload all email, which status is RETRYING, to the outbox.
 		for (Email m : emailDao.getEmailsForStatus(new Email.Status[] {Email.Status.RETRYING, Email.Status.PENDING, Email.Status.OUTBOX})) {
@@ -276,6 +347,43 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 		}
 	}
 
+	/**
+	 * Gets the id this instance uses to claim messages from a shared outbox.  If none has been set, an id is
+	 * created from the host name, with a random suffix so that instances on the same machine do not clash.
+	 * @param appProperties
+	 * @return the id of this instance
+	 */
+	private static String getOutboxInstanceId(AppProperties appProperties) {
+		String instanceId = appProperties.getOutboxInstanceId();
+		if(instanceId != null && instanceId.trim().length() > 0) return instanceId.trim();
+		String hostName;
+		try {
+			hostName = InetAddress.getLocalHost().getHostName();
+		} catch(UnknownHostException ex) {
+			hostName = "frontlinesms";
+		}
+		return hostName + "-" + UUID.randomUUID().toString().substring(0, 8);
+	}
+
+	/**
+	 * Opens the journal that received messages are written to until they are saved.
+	 * @return the journal, or <code>null</code> if it is disabled or could not be opened
+	 */
+	private IncomingMessageJournal openIncomingMessageJournal() {
+		AppProperties appProperties = AppProperties.getInstance();
+		if(appProperties.getIncomingJournalSize() <= 0) {
+			LOG.info("Incoming message journal is disabled.");
+			return null;
+		}
+		try {
+			return new IncomingMessageJournal(new File(ResourceUtils.getConfigDirectoryPath(), INCOMING_JOURNAL_DIRECTORY_NAME),
+					appProperties.getIncomingJournalSize(), appProperties.getIncomingJournalSyncInterval());
+		} catch(IOException ex) {
+			LOG.error("Unable to open incoming message journal.  Received messages will be lost if FrontlineSMS stops before they are saved.", ex);
+			return null;
+		}
+	}
+
 	private void stopServices() {
 		// de-initialise plugin controllers
 		if(this.pluginManager != null) {
@@ -284,6 +392,25 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 			}
 		}
 		
+		if (outboxRecovery != null) {
+			LOG.debug("Stopping outbox recovery...");
+			outboxRecovery.stopRunning();
+		}
+		SharedOutboxClaimer outboxClaimer = smsServiceManager == null ? null : smsServiceManager.getOutboxClaimer();
+		if (outboxClaimer != null) {
+			LOG.debug("Stopping shared outbox claimer...");
+			outboxClaimer.stopRunning();
+		}
+		if (scheduledMessageReleaser != null) {
+			LOG.debug("Stopping scheduled message releaser...");
+			scheduledMessageReleaser.stopRunning();
+		}
+		synchronized (campaigns) {
+			for (BulkSmsCampaign campaign : campaigns) {
+				campaign.stopRunning();
+			}
+			campaigns.clear();
+		}
 		if (smsServiceManager != null) {
 			LOG.debug("Stopping Phone Manager...");
 			smsServiceManager.stopRunning();
@@ -300,6 +427,23 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 			LOG.debug("Stopping the incoming message processor...");
 			this.incomingMessageProcessor.die();
 		}
+		if(this.deliveryReportTracker != null) {
+			LOG.debug("Stopping the delivery report tracker...");
+			this.deliveryReportTracker.stop();
+		}
+		if(this.messageStatusWriter != null) {
+			LOG.debug("Writing outgoing message statuses...");
+			this.messageStatusWriter.stop();
+		}
+		if (outboxClaimer != null) {
+			// Only once messages are no longer being sent, and the statuses of those which were sent have been saved
+			LOG.debug("Releasing claims on the shared outbox...");
+			outboxClaimer.releaseClaims();
+		}
+		if(this.keywordActionDao != null) {
+			LOG.debug("Writing keyword action counters...");
+			this.keywordActionDao.flushCounters();
+		}
 	}
 	
 	/**
@@ -421,9 +565,21 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	}
 
 	/** Passes an outgoing message event to the SMS Listener if one is specified. */
-	public synchronized void outgoingMessageEvent(SmsService sender, FrontlineMessage outgoingMessage) {
-		// The message status will have changed, so save it here
-		this.messageDao.updateMessage(outgoingMessage);
+	public void outgoingMessageEvent(SmsService sender, FrontlineMessage outgoingMessage) {
+		// The message status will have changed, so save it here.  This is called from every
+		// sending thread, so the write is queued rather than made while the sender waits.
+		if(this.messageStatusWriter != null) {
+			this.messageStatusWriter.statusChanged(outgoingMessage);
+		} else {
+			this.messageDao.updateMessage(outgoingMessage);
+		}
+		
+		if(this.deliveryReportTracker != null
+				&& outgoingMessage.getStatus() == Status.SENT
+				&& sender instanceof SmsModem
+				&& ((SmsModem) sender).isUseDeliveryReports()) {
+			this.deliveryReportTracker.track(outgoingMessage);
+		}
 		
 		// FIXME should log this message here
 		if (uiListener != null) {
@@ -445,6 +601,7 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 				SmsModemSettings settings = this.smsModemSettingsDao.getSmsModemSettings(serial);
 				if(settings != null) {
 					modem.setSmscNumber(settings.getSmscNumber());
+					modem.setMaxSendRate(settings.getMaxSendRate());
 					// Only set the PIN number if it hasn't been set in the Manual Connection dialog
 					if(modem.getSimPin() == null) {
 						modem.setSimPin(settings.getSimPin());
@@ -468,6 +625,7 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 //> SMS SEND METHODS
 	/** Persists and sends an SMS message. */
 	public void sendMessage(FrontlineMessage message) {
+		smsServiceManager.claimUnsaved(message);
 		messageDao.saveMessage(message);
 		smsServiceManager.sendSMS(message);
 		if (uiListener != null) { 
@@ -485,15 +643,52 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	 * @return the {@link FrontlineMessage} describing the sent message
 	 */
 	public FrontlineMessage sendTextMessage(String targetNumber, String textContent) {
+		return sendTextMessage(targetNumber, textContent, Priority.NORMAL);
+	}
+	
+	/**
+	 * Sends an SMS in the same way as {@link #sendTextMessage(String, String)}, with the supplied priority.
+	 * 
+	 * @param targetNumber The recipient number.
+	 * @param textContent The message to be sent.
+	 * @param priority The priority of the message.
+	 * @return the {@link FrontlineMessage} describing the sent message
+	 */
+	public FrontlineMessage sendTextMessage(String targetNumber, String textContent, Priority priority) {
+		return sendTextMessage(targetNumber, this.contactDao.getFromMsisdn(targetNumber), textContent, priority);
+	}
+	
+	/**
+	 * Sends an SMS in the same way as {@link #sendTextMessage(String, String)}, for callers which have
+	 * already looked up the recipient's {@link Contact}.
+	 * 
+	 * @param targetNumber The recipient number.
+	 * @param recipient The contact with the recipient number, or <code>null</code> if the number does not belong to a contact.
+	 * @param textContent The message to be sent.
+	 * @return the {@link FrontlineMessage} describing the sent message
+	 */
+	public FrontlineMessage sendTextMessage(String targetNumber, Contact recipient, String textContent) {
+		return sendTextMessage(targetNumber, recipient, textContent, Priority.NORMAL);
+	}
+	
+	/**
+	 * Sends an SMS in the same way as {@link #sendTextMessage(String, Contact, String)}, with the supplied priority.
+	 * 
+	 * @param targetNumber The recipient number.
+	 * @param recipient The contact with the recipient number, or <code>null</code> if the number does not belong to a contact.
+	 * @param textContent The message to be sent.
+	 * @param priority The priority of the message.
+	 * @return the {@link FrontlineMessage} describing the sent message
+	 */
+	public FrontlineMessage sendTextMessage(String targetNumber, Contact recipient, String textContent, Priority priority) {
 		LOG.trace("ENTER");
 		
 		// By default, currently replaces the name by the phone number if it's not in the contacts
 		// TODO: have a setting for this
 		String recipientName = targetNumber;
 		
-		Contact c = this.contactDao.getFromMsisdn(targetNumber);
-		if (c != null) {
-			recipientName = c.getDisplayName();
+		if (recipient != null) {
+			recipientName = recipient.getDisplayName();
 		}
 		
 		// Replace the content of the message by substituting variables
@@ -510,13 +705,98 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 			incomingMessageEvent(EMULATOR, new CIncomingMessage(System.currentTimeMillis(), FrontlineSMSConstants.EMULATOR_MSISDN, textContent.trim(), 1, "NYI"));
 		} else {
 			m = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", targetNumber, textContent.trim());
+			m.setPriority(priority);
+			SmsEncodingOptimizer encodingOptimizer = this.encodingOptimizer;
+			if(encodingOptimizer != null) encodingOptimizer.optimize(m);
 			this.sendMessage(m);
 		}
 		LOG.trace("EXIT");
 		return m;
 	}
 	
+	/**
+	 * Schedules an SMS to be sent at a later time.  The message is saved immediately, and is queued for
+	 * sending in the same way as {@link #sendTextMessage(String, Contact, String, Priority)} once it is due.
+	 * Markers for the recipient's details are replaced when the message is scheduled.
+	 * 
+	 * @param targetNumber The recipient number.
+	 * @param recipient The contact with the recipient number, or <code>null</code> if the number does not belong to a contact.
+	 * @param textContent The message to be sent.
+	 * @param priority The priority of the message.
+	 * @param time The time, in millis, at which the message should be sent.
+	 * @return the {@link FrontlineMessage} describing the scheduled message
+	 */
+	public FrontlineMessage scheduleTextMessage(String targetNumber, Contact recipient, String textContent, Priority priority, long time) {
+		String recipientName = recipient == null ? targetNumber : recipient.getDisplayName();
+		textContent = MessageFormatter.formatMessage(textContent, 
+								MessageFormatter.MARKER_RECIPIENT_NAME, recipientName,
+								MessageFormatter.MARKER_RECIPIENT_NUMBER, targetNumber);
+		FrontlineMessage m = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", targetNumber, textContent.trim());
+		m.setPriority(priority);
+		SmsEncodingOptimizer encodingOptimizer = this.encodingOptimizer;
+		if(encodingOptimizer != null) encodingOptimizer.optimize(m);
+		scheduledMessageReleaser.schedule(m, time);
+		return m;
+	}
+	
+	/**
+	 * Cancels a scheduled SMS before it is sent.  The message is kept as a draft.
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was cancelled, or <code>false</code> if it had already been queued for sending
+	 */
+	public boolean cancelScheduledMessage(FrontlineMessage message) {
+		return scheduledMessageReleaser.cancel(message);
+	}
+	
+	/**
+	 * Reads the routing table from its properties file, and replaces the table used to choose which device
+	 * sends each message.  Messages continue to be dispatched while the table is replaced.
+	 */
+	public void reloadRoutingTable() {
+		SmsRoutingTable routingTable = RoutingProperties.load().createRoutingTable();
+		LOG.info("Loaded [" + routingTable.size() + "] SMS route(s).");
+		smsServiceManager.setRoutingTable(routingTable);
+	}
+	
+	/**
+	 * Starts sending a message to every member of a group in the background.  Recipients are loaded, and
+	 * their messages saved and queued, a page at a time, so that large groups do not hold up the caller.
+	 * 
+	 * @param group The group to send to.  Members of its subgroups are also sent the message.
+	 * @param contactFilter String the name or phone number of each recipient must contain, or <code>null</code> to send to all members.
+	 * @param textContent The message to be sent, which may contain markers for each recipient's details.
+	 * @param priority The priority of the messages.
+	 * @param listener Listener notified of the campaign's progress, or <code>null</code>.
+	 * @return the campaign, which has been started
+	 */
+	public BulkSmsCampaign startCampaign(Group group, String contactFilter, String textContent, Priority priority, BulkSmsCampaignListener listener) {
+		BulkSmsCampaign campaign = new BulkSmsCampaign(groupMembershipDao, messageDao, smsServiceManager,
+				group, contactFilter, textContent, priority, AppProperties.getInstance().getCampaignBatchSize(), listener);
+		campaign.setEncodingOptimizer(encodingOptimizer);
+		synchronized (campaigns) {
+			// Forget campaigns which have finished
+			for (Iterator<BulkSmsCampaign> i = campaigns.iterator(); i.hasNext(); ) {
+				if (i.next().isFinished()) i.remove();
+			}
+			campaigns.add(campaign);
+		}
+		campaign.start();
+		return campaign;
+	}
+	
 //> ACCESSOR METHODS
+	/** @return {@link #scheduledMessageReleaser} */
+	public ScheduledMessageReleaser getScheduledMessageReleaser() {
+		return scheduledMessageReleaser;
+	}
+	/** @return {@link #encodingOptimizer} */
+	public SmsEncodingOptimizer getEncodingOptimizer() {
+		return encodingOptimizer;
+	}
+	/** @param encodingOptimizer new value for {@link #encodingOptimizer} */
+	public void setEncodingOptimizer(SmsEncodingOptimizer encodingOptimizer) {
+		this.encodingOptimizer = encodingOptimizer;
+	}
 	/** @return {@link #contactDao} */
 	public ContactDao getContactDao() {
 		return this.contactDao;
@@ -561,6 +841,10 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 	public EventBus getEventBus() {
 		return eventBus;
 	}
+	/** @return {@link #transactionManager} */
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
 	/** @return {@link #emailServerManager} */
 	public EmailServerHandler getEmailServerHandler() {
 		return emailServerManager;
@@ -590,6 +874,24 @@ public class FrontlineSMS implements SmsSender, SmsListener, EmailListener, Even
 		return this.smsServiceManager;
 	}
 	
+	/**
+	 * @return {@link #incomingMessageProcessor}, e.g. to inspect its queue depths, or to replay or discard
+	 * received messages which failed too many times to be retried again
+	 */
+	public IncomingMessageProcessor getIncomingMessageProcessor() {
+		return this.incomingMessageProcessor;
+	}
+	
+	/** @return {@link #messageStatusWriter} */
+	public MessageStatusWriter getMessageStatusWriter() {
+		return this.messageStatusWriter;
+	}
+	
+	/** @return {@link #deliveryReportTracker} */
+	public DeliveryReportTracker getDeliveryReportTracker() {
+		return this.deliveryReportTracker;
+	}
+	
 	/** @return {@link #smsServiceManager} */
 	public MmsServiceManager getMmsServiceManager() {
 		return this.mmsServiceManager;
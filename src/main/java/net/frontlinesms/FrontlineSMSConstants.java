@@ -89,11 +89,13 @@ public final class FrontlineSMSConstants {
 	public static final String COMMON_LEAVE = "common.leave";
 	public static final String COMMON_JOIN = "common.join";
 	public static final String COMMON_DELIVERED = "common.type.delivered";
+	public static final String COMMON_DELIVERY_UNKNOWN = "common.type.delivery.unknown";
 	public static final String COMMON_RETRYING = "common.type.retrying";
 	public static final String COMMON_FAILED = "common.type.failed";
 	public static final String COMMON_SENT = "common.sent";
 	public static final String COMMON_PENDING = "common.type.pending";
 	public static final String COMMON_OUTBOX = "common.type.outbox";
+	public static final String COMMON_SCHEDULED = "common.type.scheduled";
 	public static final String COMMON_RECEIVED = "common.received";
 	public static final String COMMON_DORMANT = "common.dormant";
 	public static final String COMMON_DRAFT = "common.draft";
@@ -263,6 +265,10 @@ public final class FrontlineSMSConstants {
 	public static final String MESSAGE_GROUP_ALREADY_EXISTS = "message.group.already.exists";
 	public static final String MESSAGE_MESSAGES_DELETED = "message.messages.deleted";
 	public static final String MESSAGE_REMOVING_MESSAGES = "message.removing.messages";
+	public static final String MESSAGE_CAMPAIGN_PROGRESS = "message.campaign.progress";
+	public static final String MESSAGE_CAMPAIGN_ETA = "message.campaign.eta";
+	public static final String MESSAGE_CAMPAIGN_FINISHED = "message.campaign.finished";
+	public static final String MESSAGE_CAMPAIGN_PARTS_SAVED = "message.campaign.parts.saved";
 	public static final String MESSAGE_GROUPS_DELETED = "message.groups.deleted";
 	public static final String MESSAGE_GROUPS_AND_CONTACTS_DELETED = "message.group.and.contacts.deleted";
 	public static final String MESSAGE_PHONE_BLANK = "message.phone.number.blank";
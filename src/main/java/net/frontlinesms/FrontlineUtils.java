@@ -67,6 +67,8 @@ public class FrontlineUtils {
 	private static Logger LOG = FrontlineUtils.getLogger(FrontlineUtils.class);
 	/** Date formatter used in logs. */
 	private static final SimpleDateFormat LOG_DATE_FORMATTER = new SimpleDateFormat();
+	/** Time, in millis, between checks of whether an external program has completed when waiting with a timeout */
+	private static final long PROCESS_POLL_INTERVAL = 50;
 
 	static {
 		loadLogConfiguration();
@@ -173,10 +175,24 @@ public class FrontlineUtils {
 	 * @throws IOException
 	 */
 	public static String makeHttpRequest(String url, boolean waitForResponse) throws IOException {
+		return makeHttpRequest(url, waitForResponse, 0);
+	}
+
+	/**
+	 * This method makes a http request and returns the response according to the supplied parameter.
+	 * @param url URL to connect.
+	 * @param waitForResponse <code>true</code> if this method should block and return the http response body; <code>false</code> otherwise
+	 * @param timeout timeout, in millis, for connecting and for each read from the connection, or <code>0</code> for no timeout
+	 * @return the body of the http response, or empty string if the response is not requested
+	 * @throws IOException if there was a problem making the request, including if it timed out
+	 */
+	public static String makeHttpRequest(String url, boolean waitForResponse, int timeout) throws IOException {
 		LOG.trace("ENTER");
 		String str = "";
 		URL hp = new URL(url);
 		HttpURLConnection conn = (HttpURLConnection) hp.openConnection();
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
 		int rc = conn.getResponseCode();
 		LOG.debug("RC = " + rc);
 		if (rc == HttpURLConnection.HTTP_OK) {
@@ -209,9 +225,22 @@ public class FrontlineUtils {
 	 * @throws IOException
 	 */
 	public static InputStream makeHttpRequest(String url) throws IOException {
+		return makeHttpRequest(url, 0);
+	}
+
+	/**
+	 * This method makes a http request and returns the input stream.
+	 * @param url URL to connect.
+	 * @param timeout timeout, in millis, for connecting and for each read from the connection, or <code>0</code> for no timeout
+	 * @return the input stream of the http response
+	 * @throws IOException if there was a problem making the request, including if it timed out
+	 */
+	public static InputStream makeHttpRequest(String url, int timeout) throws IOException {
 		LOG.trace("ENTER");
 		URL hp = new URL(url);
 		URLConnection conn = hp.openConnection();
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
 		conn.connect();
 		LOG.trace("EXIT");
 		return conn.getInputStream();
@@ -225,9 +254,21 @@ public class FrontlineUtils {
 	 * @throws InterruptedException
 	 */
 	public static InputStream executeExternalProgram(String cmd) throws IOException, InterruptedException {
+		return executeExternalProgram(cmd, 0);
+	}
+
+	/**
+	 * This method executes a external command and returns the input stream.
+	 * @param cmd Command to be executed.
+	 * @param timeout time, in millis, to wait for the command to complete, or <code>0</code> to wait indefinitely
+	 * @return the standard output of the command
+	 * @throws IOException if there was a problem executing the command, or if it did not complete in time
+	 * @throws InterruptedException
+	 */
+	public static InputStream executeExternalProgram(String cmd, long timeout) throws IOException, InterruptedException {
 		LOG.trace("ENTER");
 		Process p = Runtime.getRuntime().exec(cmd);
-		p.waitFor();
+		waitFor(p, timeout);
 		LOG.trace("EXIT");
 		return p.getInputStream();
 	}
@@ -241,12 +282,25 @@ public class FrontlineUtils {
 	 * @throws InterruptedException
 	 */
 	public static String executeExternalProgram(String cmd, boolean waitForResponse) throws IOException, InterruptedException {
+		return executeExternalProgram(cmd, waitForResponse, 0);
+	}
+
+	/**
+	 * This method executes a external command and returns the response according to the supplied parameter.
+	 * @param cmd Command to be executed.
+	 * @param waitForResponse <code>true</code> if the command's response should be returned.  If <code>true</code>, this method blocks.
+	 * @param timeout time, in millis, to wait for the command to complete, or <code>0</code> to wait indefinitely
+	 * @return empty string if waitForResponse is <code>false</code> or the response was an error, or the standard output text of the command if waitForResponse was <code>true</code>
+	 * @throws IOException if there was a problem executing the command, or if it did not complete in time
+	 * @throws InterruptedException
+	 */
+	public static String executeExternalProgram(String cmd, boolean waitForResponse, long timeout) throws IOException, InterruptedException {
 		LOG.trace("ENTER");
 		String str = "";
 		Process p = Runtime.getRuntime().exec(cmd);
 		LOG.debug("Wait for response [" + waitForResponse + "]");
 		if (waitForResponse) {
-			int exit = p.waitFor();
+			int exit = waitFor(p, timeout);
 			LOG.debug("Process exit value [" + exit + "]");
 			if (exit == 0) {
 				InputStream inputStream = null;
@@ -267,6 +321,39 @@ public class FrontlineUtils {
 		return str;
 	}
 
+	/**
+	 * Waits for a process to complete.  If the process does not complete in time, or the waiting thread is
+	 * interrupted, the process is destroyed.
+	 * @param p the process to wait for
+	 * @param timeout time, in millis, to wait for the process to complete, or <code>0</code> to wait indefinitely
+	 * @return the exit value of the process
+	 * @throws IOException if the process did not complete in time
+	 * @throws InterruptedException if the waiting thread was interrupted
+	 */
+	private static int waitFor(Process p, long timeout) throws IOException, InterruptedException {
+		if(timeout <= 0) {
+			return p.waitFor();
+		}
+		long endTime = System.currentTimeMillis() + timeout;
+		try {
+			while(true) {
+				try {
+					return p.exitValue();
+				} catch(IllegalThreadStateException ex) {
+					// The process has not exited yet
+				}
+				if(System.currentTimeMillis() >= endTime) {
+					p.destroy();
+					throw new IOException("External program did not complete within " + timeout + "ms.");
+				}
+				Thread.sleep(PROCESS_POLL_INTERVAL);
+			}
+		} catch(InterruptedException ex) {
+			p.destroy();
+			throw ex;
+		}
+	}
+
 	/**
 	 * Encodes the supplied string into Base64.
 	 * @param password the string to encode
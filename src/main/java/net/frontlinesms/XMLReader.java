@@ -51,6 +51,7 @@ public class XMLReader {
 	private static final String ELEMENT_DATA = "data";
 	private static final String TYPE_BINARY = "binary";
 	private static final String ATTRIBUTE_TYPE = "type";
+	private static final String ATTRIBUTE_TIME = "time";
 	private static final String ELEMENT_SMS = "sms";
 
 	private Document doc;
@@ -77,6 +78,7 @@ public class XMLReader {
 					//new message
 					XMLMessage current = new XMLMessage();
 					getMessageType(child, current);
+					getScheduledTime(child, current);
 					getData(child, current);
 					getRecipients(child, current);
 					messages.add(current);
@@ -151,6 +153,24 @@ public class XMLReader {
 		}
 	}
 
+	/**
+	 * This method searches for a <code>time</code> attribute into the supplied element, giving the
+	 * time in millis at which the message should be sent, and sets it on the supplied XMLMessage instance.
+	 * 
+	 * @param child
+	 * @param current
+	 */
+	private static void getScheduledTime(Element child, XMLMessage current) {
+		String time = child.getAttributeValue(ATTRIBUTE_TIME);
+		if (time != null && !time.trim().equals("")) {
+			try {
+				current.setScheduledTime(Long.parseLong(time.trim()));
+			} catch (NumberFormatException ex) {
+				throw new RuntimeException("[" + ATTRIBUTE_TIME + "] of [" + ELEMENT_SMS + "] is not a valid time: " + time + ". Discarding message.", ex);
+			}
+		}
+	}
+
 	/**
 	 * This method searches for a <code>type</code> attribute into the supplied element and
 	 * set the type of the supplied XMLMessage instance.
@@ -36,6 +36,8 @@ public class XMLMessage {
 	private LinkedList<String> toNumbers;
 	private LinkedList<String> toContacts;
 	private LinkedList<String> toGroups;
+	/** The time, in millis, at which the message should be sent, or zero to send it straight away */
+	private long scheduledTime;
 	
 	public XMLMessage() {
 		type = TYPE_TEXT;
@@ -83,5 +85,13 @@ public class XMLMessage {
 	public LinkedList<String> getToGroups() {
 		return toGroups;
 	}
+	
+	public long getScheduledTime() {
+		return scheduledTime;
+	}
+	
+	public void setScheduledTime(long scheduledTime) {
+		this.scheduledTime = scheduledTime;
+	}
 
 }
@@ -24,12 +24,13 @@ import java.util.Arrays;
 import javax.persistence.*;
 
 import org.hibernate.annotations.DiscriminatorFormula;
-import org.smslib.util.GsmAlphabet;
+import org.hibernate.annotations.Index;
 import org.smslib.util.HexUtils;
 import org.smslib.util.TpduUtils;
 
 import net.frontlinesms.FrontlineSMSConstants;
 import net.frontlinesms.data.EntityField;
+import net.frontlinesms.messaging.sms.GsmCharacterClassifier;
 import net.frontlinesms.ui.i18n.Internationalised;
 
 /**
@@ -39,6 +40,10 @@ import net.frontlinesms.ui.i18n.Internationalised;
 @Entity
 // This class is mapped to the database table called "message", as this class used to be called "Message"
 @Table(name="message")
+// Status reports are matched to sent messages by recipient and SMSC reference
+@org.hibernate.annotations.Table(appliesTo="message", indexes={
+		@Index(name="message_status_report_idx", columnNames={"recipientMsisdn", "smscReference"})
+})
 @DiscriminatorFormula("(CASE WHEN dtype IS NULL THEN 'FrontlineMessage' ELSE dtype END)")
 public class FrontlineMessage {
 	/** Discriminator column for this class.  This was only implemented when {@link FrontlineMultimediaMessage} was
@@ -83,7 +88,11 @@ public class FrontlineMessage {
 		@Deprecated ABORTED(null),
 		@Deprecated UNKNOWN(null),
 		/** Outgoing message that had status FAILED returned by the GSM network */
-		FAILED(FrontlineSMSConstants.COMMON_FAILED);
+		FAILED(FrontlineSMSConstants.COMMON_FAILED),
+		/** Outgoing message which was sent with a request for a delivery report, but no report was received in time */
+		DELIVERY_UNKNOWN(FrontlineSMSConstants.COMMON_DELIVERY_UNKNOWN),
+		/** Outgoing message which will be queued for sending at its scheduled time */
+		SCHEDULED(FrontlineSMSConstants.COMMON_SCHEDULED);
 		
 		private final String i18nKey;
 		
@@ -96,6 +105,31 @@ public class FrontlineMessage {
 		}
 	}
 	
+	/**
+	 * Priority of an outgoing message.  Higher priority messages are sent first, but messages of every
+	 * priority get a share of the sending capacity in proportion to {@link #getWeight()}.
+	 */
+	public enum Priority {
+		/** Messages someone is waiting for, e.g. automatic replies to received messages */
+		HIGH(16),
+		/** Messages sent individually */
+		NORMAL(4),
+		/** Messages sent to many recipients at once, e.g. to a group */
+		BULK(1);
+		
+		/** Number of messages of this priority sent in turn while messages of other priorities are waiting */
+		private final int weight;
+		
+		private Priority(int weight) {
+			this.weight = weight;
+		}
+		
+		/** @return {@link #weight} */
+		public int getWeight() {
+			return weight;
+		}
+	}
+	
 	/** Number of times a failed message send is retried before status is set to STATUS_FAILED */
 	public static final int MAX_RETRIES = 2;
 	
@@ -128,7 +162,12 @@ public class FrontlineMessage {
 		SENDER_MSISDN("senderMsisdn"),
 		RECIPIENT_MSISDN("recipientMsisdn"),
 		MESSAGE_CONTENT("textMessageContent"),
-		SMSC_REFERENCE("smscReference");
+		SMSC_REFERENCE("smscReference"),
+		PRIORITY("priority"),
+		RETRY_TIME("retryTime"),
+		SCHEDULED_TIME("scheduledTime"),
+		CLAIM_OWNER("claimOwner"),
+		CLAIM_EXPIRY("claimExpiry");
 		/** name of a field */
 		private final String fieldName;
 		/**
@@ -142,7 +181,7 @@ public class FrontlineMessage {
 	
 //> INSTANCE PROPERTIES
 	/** Unique id for this entity.  This is for hibernate usage. */
-	@Id @GeneratedValue(strategy=GenerationType.IDENTITY) @Column(unique=true,nullable=false,updatable=false) @SuppressWarnings("unused")
+	@Id @GeneratedValue(strategy=GenerationType.IDENTITY) @Column(unique=true,nullable=false,updatable=false)
 	private long id;
 	private Type type;
 	private int retriesRemaining;
@@ -152,6 +191,22 @@ public class FrontlineMessage {
 	private int smsPartsCount;
 	private long date;
 	private Integer smscReference;
+	/** Priority of this message, if it is outgoing.  This is <code>null</code> for messages saved before priorities were added. */
+	private Priority priority;
+	/** Time, in millis, after which this message may be retried following a failed send, or <code>null</code> if it is not waiting to be retried. */
+	private Long retryTime;
+	/** Time, in millis, at which this message should be queued for sending, or <code>null</code> if it is not scheduled. */
+	private Long scheduledTime;
+	/**
+	 * Id of the FrontlineSMS instance which has claimed this message for sending from a shared outbox, or <code>null</code> if it is not claimed.
+	 * Once the message has been saved, this is only changed by the claim updates in the {@link net.frontlinesms.data.repository.MessageDao},
+	 * so that saving a message does not overwrite a claim taken or released since it was loaded.
+	 */
+	@Column(updatable=false)
+	private String claimOwner;
+	/** Time, in millis, at which the claim on this message expires unless renewed, or <code>null</code> if it is not claimed.  Updated as {@link #claimOwner}. */
+	@Column(updatable=false)
+	private Long claimExpiry;
 	private String senderMsisdn;
 	/** Text content of this message. */
 	@Column(name=COLUMN_TEXT_CONTENT, length=SMS_MAX_CHARACTERS)
@@ -170,6 +225,11 @@ public class FrontlineMessage {
 	}
 	
 //> ACCESSOR METHODS
+	/** @return the database ID of this message */
+	public long getId() {
+		return this.id;
+	}
+	
 	/**
 	 * Gets the type of this Message.  Should be one of the Message.TYPE_ constants.
 	 * @return
@@ -296,6 +356,51 @@ public class FrontlineMessage {
 		this.smscReference = smscReference;
 	}
 	
+	/** @return the priority of this message */
+	public Priority getPriority() {
+		return this.priority == null ? Priority.NORMAL : this.priority;
+	}
+	/** @param priority the priority of this message */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+	
+	/** @return the time, in millis, after which this message may be retried following a failed send, or 0 if it is not waiting to be retried */
+	public long getRetryTime() {
+		return this.retryTime == null ? 0 : this.retryTime;
+	}
+	/** @param retryTime the time, in millis, after which this message may be retried, or 0 if it should not wait */
+	public void setRetryTime(long retryTime) {
+		this.retryTime = retryTime == 0 ? null : retryTime;
+	}
+	
+	/** @return the time, in millis, at which this message should be queued for sending, or 0 if it is not scheduled */
+	public long getScheduledTime() {
+		return this.scheduledTime == null ? 0 : this.scheduledTime;
+	}
+	/** @param scheduledTime the time, in millis, at which this message should be queued for sending, or 0 if it is not scheduled */
+	public void setScheduledTime(long scheduledTime) {
+		this.scheduledTime = scheduledTime == 0 ? null : scheduledTime;
+	}
+	
+	/** @return the id of the FrontlineSMS instance which has claimed this message for sending, or <code>null</code> if it is not claimed */
+	public String getClaimOwner() {
+		return this.claimOwner;
+	}
+	/** @param claimOwner the id of the FrontlineSMS instance which has claimed this message for sending, or <code>null</code> */
+	public void setClaimOwner(String claimOwner) {
+		this.claimOwner = claimOwner;
+	}
+	
+	/** @return the time, in millis, at which the claim on this message expires, or 0 if it is not claimed */
+	public long getClaimExpiry() {
+		return this.claimExpiry == null ? 0 : this.claimExpiry;
+	}
+	/** @param claimExpiry the time, in millis, at which the claim on this message expires, or 0 if it is not claimed */
+	public void setClaimExpiry(long claimExpiry) {
+		this.claimExpiry = claimExpiry == 0 ? null : claimExpiry;
+	}
+	
 	/** @return the retries left for this message */
 	public int getRetriesRemaining() {
 		return this.retriesRemaining;
@@ -506,34 +611,13 @@ public class FrontlineMessage {
 	/**
 	 * Calculate the expected number of SMS parts required to send a text message.
 	 * This method <strong>will not work</strong> for <em>binary</em> messages.
+	 * The parts are counted by {@link GsmCharacterClassifier}, which also decides the encoding the message is sent in.
 	 * @param message the text content of the message
 	 * @return the number of SMS parts that we'd expect the supplied message to use, or <code>0</code> if no supplied message has zero length.
 	 */
 	public static int getExpectedNumberOfSmsParts(String message) {
-		int messageLength = message.length();
-		
-		boolean areAllCharactersValidGSM = GsmAlphabet.areAllCharactersValidGSM(message);
-		int singleMessageCharacterLimit, multipartMessageCharacterLimit;
-		
-		if(areAllCharactersValidGSM) {
-			singleMessageCharacterLimit = FrontlineMessage.SMS_LENGTH_LIMIT;
-			multipartMessageCharacterLimit = FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT;
-		} else {
-			// It appears there are some unicode-only characters here.  We should therefore
-			// treat this message as if it will be sent as unicode.
-			singleMessageCharacterLimit = FrontlineMessage.SMS_LENGTH_LIMIT_UCS2;
-			multipartMessageCharacterLimit = FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT_UCS2;
-		}
-
-		if (messageLength > getTotalLengthAllowed(message)) {
-			return (int)Math.ceil((double)messageLength / (double)multipartMessageCharacterLimit);
-		} else {
-			if (messageLength <= singleMessageCharacterLimit) {
-				return messageLength == 0 ? 0 : 1;
-			} else {
-				return (int)Math.ceil(messageLength / (double)multipartMessageCharacterLimit);
-			}
-		}
+		if(message.length() == 0) return 0;
+		return GsmCharacterClassifier.countParts(message);
 	}
 
 	public void setDate(long date) {
@@ -541,8 +625,7 @@ public class FrontlineMessage {
 	}
 
 	public static int getTotalLengthAllowed(String message) {
-		boolean areAllCharactersValidGSM = GsmAlphabet.areAllCharactersValidGSM(message);
-		if (areAllCharactersValidGSM) {
+		if (GsmCharacterClassifier.isGsmEncodable(message)) {
 			return FrontlineMessage.SMS_LENGTH_LIMIT + FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT * (FrontlineMessage.SMS_LIMIT - 1);
 		} else {
 			return FrontlineMessage.SMS_LENGTH_LIMIT_UCS2 + FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT_UCS2 * (FrontlineMessage.SMS_LIMIT - 1);
@@ -123,7 +123,7 @@ public class KeywordAction {
 	
 //> INSTANCE PROPERTIES
 	/** Unique id for this entity.  This is for hibernate usage. */
-	@Id @GeneratedValue(strategy=GenerationType.IDENTITY) @Column(unique=true,nullable=false,updatable=false) @SuppressWarnings("unused")
+	@Id @GeneratedValue(strategy=GenerationType.IDENTITY) @Column(unique=true,nullable=false,updatable=false)
 	private long id;
 	private Type type;
 	/** Keyword which this action is attached to */
@@ -300,6 +300,11 @@ public class KeywordAction {
 		this.externalCommand = commandLine;
 	}
 	
+	/** @return the database ID of this action */
+	public long getId() {
+		return this.id;
+	}
+	
 	/** @return how many times this action was executed */
 	public int getCounter() {
 		return this.counter;
@@ -36,6 +36,8 @@ public class SmsModemSettings {
 	private boolean deleteMessagesAfterReceiving;
 	/** whether delivery reports should be used with this device */
 	private boolean useDeliveryReports;
+	/** The maximum number of messages to send each minute with this device, or <code>null</code> if the rate is not limited */
+	private Integer maxSendRate;
 	
 //> CONSTRUCTORS
 	/** Empty constructor for hibernate */
@@ -119,6 +121,14 @@ public class SmsModemSettings {
 	public void setSimPin(String simPin) {
 		this.simPin = simPin;
 	}
+	/** @return the maximum number of messages to send each minute with this device, or zero if the rate is not limited */
+	public int getMaxSendRate() {
+		return maxSendRate == null ? 0 : maxSendRate;
+	}
+	/** @param maxSendRate the maximum number of messages to send each minute with this device, or zero if the rate should not be limited */
+	public void setMaxSendRate(int maxSendRate) {
+		this.maxSendRate = maxSendRate;
+	}
 
 //> GENERATED METHODS
 	/** @see java.lang.Object#hashCode() */
@@ -26,6 +26,18 @@ public interface GroupMembershipDao {
 	/** @return all members of a group and its subgroup, paged. */
 	public List<Contact> getMembers(Group group, int startIndex, int limit);
 
+	/**
+	 * Gets a page of the members of a group and its subgroups whose name or phone number contain the
+	 * filter string, in id order.  Pages are fetched by the id of the last contact in the previous page,
+	 * so a large group can be read in pages without loading every member.
+	 * @param group
+	 * @param contactFilterString string the name or phone number must contain, or <code>null</code> to match all members
+	 * @param afterId only contacts with an id greater than this are fetched; 0 for the first page
+	 * @param limit the maximum number of contacts to fetch
+	 * @return up to <code>limit</code> matching contacts with ids greater than <code>afterId</code>, ordered by id
+	 */
+	public List<Contact> getMembersAfterId(Group group, String contactFilterString, long afterId, int limit);
+	
 	/** @return all groups this contact is a <b>direct</b> member of */
 	public List<Group> getGroups(Contact contact);
 	
@@ -76,8 +76,20 @@ public interface KeywordActionDao {
 	public KeywordAction getAction(Keyword keyword, KeywordAction.Type actionType);
 	
 	/**
-	 * Increments the counter for this action
+	 * Increments the counter for this action.  The increment may not be written to the database until
+	 * {@link #flushCounters()} is next called.
 	 * @param action
 	 */
 	public void incrementCounter(KeywordAction action);
+	
+	/**
+	 * Gets the number of times an action has been executed since its counter was last written to the database.
+	 * The total number of executions is this plus the counter loaded with the action.
+	 * @param action
+	 * @return the number of executions of the action which have not been written to the database
+	 */
+	public int getPendingCounterIncrements(KeywordAction action);
+	
+	/** Writes the counts of all executions counted by {@link #incrementCounter(KeywordAction)} to the database. */
+	public void flushCounters();
 }
@@ -192,6 +192,72 @@ public interface MessageDao {
 	 */
 	public Collection<FrontlineMessage> getMessages(FrontlineMessage.Type type, FrontlineMessage.Status... status);
 	
+	/**
+	 * Gets a page of messages with the supplied type and statuses, in the order they were saved.  Pages are
+	 * found by id rather than by position, so they are not affected by messages changing status between pages.
+	 * @param type
+	 * @param statuses
+	 * @param afterId only messages with an id greater than this are returned
+	 * @param end only messages dated at or before this java timestamp are returned
+	 * @param limit the maximum number of messages to return
+	 * @return the messages with the lowest ids matching the supplied criteria
+	 */
+	public List<FrontlineMessage> getMessagesAfterId(FrontlineMessage.Type type, FrontlineMessage.Status[] statuses, long afterId, long end, int limit);
+	
+	/**
+	 * Gets a page of messages with status {@link FrontlineMessage.Status#SCHEDULED}, in the order they are
+	 * scheduled, and then by id.  Like {@link #getMessagesAfterId(FrontlineMessage.Type, FrontlineMessage.Status[], long, long, int)},
+	 * pages are found by the last message of the previous page rather than by position.
+	 * @param afterTime only messages scheduled after this time, or at this time with an id greater than <code>afterId</code>, are returned
+	 * @param afterId
+	 * @param until only messages scheduled at or before this java timestamp are returned
+	 * @param limit the maximum number of messages to return
+	 * @return the earliest scheduled messages matching the supplied criteria
+	 */
+	public List<FrontlineMessage> getScheduledMessages(long afterTime, long afterId, long until, int limit);
+	
+	/**
+	 * Claims unsent outgoing messages for sending by one of several FrontlineSMS instances sharing this
+	 * database.  Messages with status {@link FrontlineMessage.Status#OUTBOX} or {@link FrontlineMessage.Status#PENDING}
+	 * which are not claimed, or whose claim has expired, are claimed in the order they were saved.  Each
+	 * message is claimed with a compare-and-set update, so a message is only claimed by one instance even if
+	 * several try to claim it at once.
+	 * @param owner id of the claiming instance
+	 * @param now the current time, in millis; claims expiring before this time have expired
+	 * @param claimExpiry the time, in millis, at which the new claims expire unless renewed
+	 * @param limit the maximum number of messages to claim
+	 * @return the messages which have been claimed by <code>owner</code>
+	 */
+	public List<FrontlineMessage> claimMessages(String owner, long now, long claimExpiry, int limit);
+	
+	/**
+	 * Claims a single message, as {@link #claimMessages(String, long, long, int)} does.  The message may
+	 * also be claimed if <code>owner</code> already has a claim on it.  Messages which have been sent, or
+	 * have failed, are never claimed.
+	 * @param messageId id of the message to claim
+	 * @param owner id of the claiming instance
+	 * @param now the current time, in millis; claims expiring before this time have expired
+	 * @param claimExpiry the time, in millis, at which the new claim expires unless renewed
+	 * @return <code>true</code> if the message was claimed; <code>false</code> if another instance has claimed it, or it is no longer waiting to be sent
+	 */
+	public boolean claimMessage(long messageId, String owner, long now, long claimExpiry);
+	
+	/**
+	 * Extends the claims held by an instance on messages which have not been sent.
+	 * @param owner id of the instance
+	 * @param claimExpiry the time, in millis, at which the claims now expire
+	 * @return the number of claims renewed
+	 */
+	public int renewClaims(String owner, long claimExpiry);
+	
+	/**
+	 * Releases the claims held by an instance on messages with status {@link FrontlineMessage.Status#OUTBOX},
+	 * so that other instances may send them straight away.
+	 * @param owner id of the instance
+	 * @return the number of claims released
+	 */
+	public int releaseClaims(String owner);
+	
 	/**
 	 * Gets the number of messagesthere are of the given type for the given keyword.
 	 * @param messageType
@@ -204,13 +270,37 @@ public interface MessageDao {
 	
 	/**
 	 * Gets the outgoing message with the matching SMSC Reference Number sent to
-	 * a number ending with the supplied msisdn suffix.
+	 * a number ending with the supplied msisdn suffix.  SMSC references are reused, so if
+	 * more than one message matches, the most recent is returned.
 	 * @param targetMsisdnSuffix last N digits of the target's msisdn
 	 * @param smscReference
-	 * @return
+	 * @return the most recent matching message, or <code>null</code> if there is none
 	 */
 	public FrontlineMessage getMessageForStatusUpdate(String targetMsisdnSuffix, int smscReference);
 	
+	/**
+	 * Gets a message by its database ID.
+	 * @param id
+	 * @return the message with the supplied ID, or <code>null</code> if there is none
+	 */
+	public FrontlineMessage getMessage(long id);
+	
+	/**
+	 * Gets messages by their database IDs, with a single query.
+	 * @param messageIds
+	 * @return the messages with the supplied IDs, in the order they were saved.  IDs with no message are ignored.
+	 */
+	public List<FrontlineMessage> getMessagesById(Collection<Long> messageIds);
+	
+	/**
+	 * Changes the status of messages, if they still have the expected status.
+	 * @param messageIds the database IDs of the messages to update
+	 * @param currentStatus the status the messages are expected to have
+	 * @param newStatus the status to give the messages
+	 * @return the number of messages updated
+	 */
+	public int updateMessageStatus(Collection<Long> messageIds, FrontlineMessage.Status currentStatus, FrontlineMessage.Status newStatus);
+	
 	/** @return the number of messages sent to the specified phone numbers within the specified dates */
 	public int getMessageCount(FrontlineMessage.Type messageType, List<String> phoneNumbers, Long messageHistoryStart, Long messageHistoryEnd);
 
@@ -234,10 +324,22 @@ public interface MessageDao {
 	 * @param message the message to be saved
 	 */
 	public void saveMessage(FrontlineMessage message);
+	
+	/**
+	 * Save the supplied messages to the data source in a single transaction.
+	 * @param messages the messages to be saved
+	 */
+	public void saveMessages(List<FrontlineMessage> messages);
 
 	/**
 	 * Update the supplied message in the data source.
 	 * @param message the message to be updated
 	 */
 	public void updateMessage(FrontlineMessage message);
+	
+	/**
+	 * Update the supplied messages in the data source in a single transaction.
+	 * @param messages the messages to be updated
+	 */
+	public void updateMessages(List<FrontlineMessage> messages);
 }
@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.frontlinesms.data.domain.Contact;
+import net.frontlinesms.data.events.DatabaseEntityNotification;
+import net.frontlinesms.events.EventObserver;
+import net.frontlinesms.events.FrontlineEventNotification;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded, least-recently-used cache of {@link Contact}s by phone number, used by {@link HibernateContactDao}
+ * to avoid querying the database every time the sender of a message is looked up.
+ *
+ * Phone numbers which do not belong to any contact are also cached, as most messages from unknown numbers
+ * come from the same few senders.
+ *
+ * Entries are invalidated when {@link DatabaseEntityNotification}s are fired for {@link Contact}s.
+ */
+public class ContactMsisdnCache implements EventObserver {
+//> INSTANCE PROPERTIES
+	/** The cached contacts, mapped by phone number.  A <code>null</code> value means there is no contact with that number. */
+	private final Map<String, Contact> contacts;
+	/** Incremented every time entries are invalidated, so that results of lookups started before an invalidation are not cached */
+	private long generation;
+
+//> CONSTRUCTORS
+	/**
+	 * Create a new, empty {@link ContactMsisdnCache}.
+	 * @param maxSize the maximum number of phone numbers to hold in the cache
+	 */
+	public ContactMsisdnCache(final int maxSize) {
+		this.contacts = new LinkedHashMap<String, Contact>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Entry<String, Contact> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+//> ACCESSORS
+	/**
+	 * @param phoneNumber a phone number
+	 * @return <code>true</code> if there is an entry for the phone number in the cache, even if no contact has that number
+	 */
+	public synchronized boolean contains(String phoneNumber) {
+		return contacts.containsKey(phoneNumber);
+	}
+
+	/**
+	 * @param phoneNumber a phone number
+	 * @return the cached contact with the phone number, or <code>null</code> if no contact is cached for it
+	 */
+	public synchronized Contact get(String phoneNumber) {
+		return contacts.get(phoneNumber);
+	}
+
+	/**
+	 * @return the current generation of the cache.  This should be read before looking up a contact in the
+	 * database, and passed to {@link #put(String, Contact, long)} when caching the result.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Adds an entry to the cache, unless entries have been invalidated since the contact was looked up.
+	 * @param phoneNumber a phone number
+	 * @param contact the contact with the phone number, or <code>null</code> if no contact has the number
+	 * @param lookupGeneration the value of {@link #getGeneration()} before the contact was looked up
+	 */
+	public synchronized void put(String phoneNumber, Contact contact, long lookupGeneration) {
+		if(lookupGeneration == generation) {
+			contacts.put(phoneNumber, contact);
+		}
+	}
+
+	/** @return the number of phone numbers in the cache */
+	public synchronized int size() {
+		return contacts.size();
+	}
+
+//> CACHE MAINTENANCE METHODS
+	/**
+	 * Removes all entries relating to a contact: the entry for its current phone number, and any entries
+	 * holding the contact under a phone number it used to have.
+	 * @param contact the contact to remove
+	 */
+	public synchronized void remove(Contact contact) {
+		++generation;
+		contacts.remove(contact.getPhoneNumber());
+		Iterator<Contact> values = contacts.values().iterator();
+		while(values.hasNext()) {
+			Contact cached = values.next();
+			if(cached != null && cached.getId() == contact.getId()) {
+				values.remove();
+			}
+		}
+	}
+
+	/** Removes all entries from the cache. */
+	public synchronized void clear() {
+		++generation;
+		contacts.clear();
+	}
+
+	/**
+	 * Invalidates cache entries when {@link Contact}s are saved, updated or deleted.  If the change is made
+	 * in a transaction, the contact's entries are removed again once it commits, as lookups made by other
+	 * threads before then will have read and cached the contact as it was.  The whole cache is cleared if
+	 * the transaction does not commit, as contacts read during the transaction may have been cached.
+	 */
+	public void notify(FrontlineEventNotification notification) {
+		if(notification instanceof DatabaseEntityNotification<?>) {
+			Object entity = ((DatabaseEntityNotification<?>) notification).getDatabaseEntity();
+			if(entity instanceof Contact) {
+				final Contact contact = (Contact) entity;
+				remove(contact);
+				if(TransactionSynchronizationManager.isSynchronizationActive()) {
+					TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCommit() {
+							remove(contact);
+						}
+						@Override
+						public void afterCompletion(int status) {
+							if(status != STATUS_COMMITTED) {
+								clear();
+							}
+						}
+					});
+				}
+			}
+		}
+	}
+}
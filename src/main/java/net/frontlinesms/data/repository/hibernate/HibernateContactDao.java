@@ -7,6 +7,7 @@ import net.frontlinesms.data.Order;
 import net.frontlinesms.data.domain.Contact;
 import net.frontlinesms.data.domain.Contact.Field;
 import net.frontlinesms.data.repository.ContactDao;
+import net.frontlinesms.events.EventBus;
 
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Restrictions;
@@ -18,6 +19,12 @@ import org.springframework.transaction.annotation.Transactional;
  * @author Morgan Belkadi <morgan@frontlinesms.com>
  */
 public class HibernateContactDao extends BaseHibernateDao<Contact> implements ContactDao {
+	/** Maximum number of phone numbers held in {@link #msisdnCache} */
+	private static final int MSISDN_CACHE_SIZE = 1000;
+	
+	/** Cache of contacts by phone number, used by {@link #getFromMsisdn(String)} */
+	private ContactMsisdnCache msisdnCache;
+	
 	/** Create a new instance of this DAO. */
 		
 	public HibernateContactDao() {
@@ -90,9 +97,33 @@ public class HibernateContactDao extends BaseHibernateDao<Contact> implements Co
 
 	/** @see ContactDao#getFromMsisdn(String) */
 	public Contact getFromMsisdn(String phoneNumber) {
+		ContactMsisdnCache cache = getMsisdnCache();
+		synchronized(cache) {
+			if(cache.contains(phoneNumber)) {
+				return cache.get(phoneNumber);
+			}
+		}
+		
+		long generation = cache.getGeneration();
 		DetachedCriteria criteria = super.getCriterion();
 		criteria.add(Restrictions.eq(Field.PHONE_NUMBER.getFieldName(), phoneNumber));
-		return super.getUnique(criteria);
+		Contact contact = super.getUnique(criteria);
+		cache.put(phoneNumber, contact, generation);
+		return contact;
+	}
+	
+	/**
+	 * Gets the cache of contacts by phone number, creating it the first time it is requested.  The
+	 * cache is kept up-to-date with changes to contacts via the {@link EventBus}.
+	 * @return {@link #msisdnCache}
+	 */
+	synchronized ContactMsisdnCache getMsisdnCache() {
+		if(this.msisdnCache == null) {
+			ContactMsisdnCache cache = new ContactMsisdnCache(MSISDN_CACHE_SIZE);
+			getEventBus().registerObserver(cache);
+			this.msisdnCache = cache;
+		}
+		return this.msisdnCache;
 	}
 
 	/** @see ContactDao#getPageNumber(Contact, int) */
@@ -15,6 +15,7 @@ import net.frontlinesms.data.DuplicateKeyException;
 import net.frontlinesms.data.Order;
 import net.frontlinesms.data.domain.Contact;
 import net.frontlinesms.data.domain.Group;
+import net.frontlinesms.data.events.EntityDeletedNotification;
 import net.frontlinesms.data.repository.GroupDao;
 
 /**
@@ -55,6 +56,7 @@ public class HibernateGroupDao extends BaseHibernateDao<Group> implements GroupD
 				// And we delete the contact
 				String deleteContactQuery = "DELETE FROM Contact WHERE id=?";
 				super.getHibernateTemplate().bulkUpdate(deleteContactQuery, c.getId());	
+				getEventBus().notifyObservers(new EntityDeletedNotification<Contact>(c));
 			}
 		} else {
 			// We just delete all group memberships for the group and its descendants
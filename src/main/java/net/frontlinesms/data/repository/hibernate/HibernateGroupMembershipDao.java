@@ -8,6 +8,7 @@ import java.util.List;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -162,6 +163,25 @@ public class HibernateGroupMembershipDao extends BaseHibernateDao<GroupMembershi
 		return allMembers.subList(startIndex, Math.min(allMembers.size(), startIndex + limit));
 	}
 
+	/** @see GroupMembershipDao#getMembersAfterId(Group, String, long, int) */
+	public List<Contact> getMembersAfterId(Group group, String contactFilterString, long afterId, int limit) {
+		String likeString = getMemberFilterLikeString(contactFilterString);
+		DetachedCriteria criteria = DetachedCriteria.forClass(Contact.class);
+		criteria.add(Restrictions.or(Restrictions.ilike(Field.NAME.getFieldName(), likeString),
+				Restrictions.ilike(Field.PHONE_NUMBER.getFieldName(), likeString)));
+		criteria.add(Restrictions.gt("id", afterId));
+		if(!group.isRoot()) {
+			DetachedCriteria memberIds = DetachedCriteria.forClass(GroupMembership.class);
+			memberIds.createAlias("group", "g");
+			memberIds.add(Restrictions.or(Restrictions.eq("group", group),
+					Restrictions.like("g.path", group.getPath() + Group.PATH_SEPARATOR + "%")));
+			memberIds.setProjection(Projections.property("contact.id"));
+			criteria.add(Subqueries.propertyIn("id", memberIds));
+		}
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder("id"));
+		return getList(Contact.class, criteria, 0, limit);
+	}
+
 	/** @see GroupMembershipDao#isMember(Group, Contact) */
 	public boolean isMember(Group group, Contact contact) {
 		if(group.isRoot()) return true;
@@ -212,6 +232,18 @@ public class HibernateGroupMembershipDao extends BaseHibernateDao<GroupMembershi
 		return this.getHibernateTemplate().findByCriteria(criteria);
 	}
 	
+	/**
+	 * Gets a page of E matching the supplied criteria.
+	 * @param criteria
+	 * @param startIndex the index of the first result object to be retrieved (numbered from 0)
+	 * @param limit the maximum number of result objects to retrieve
+	 * @return a list of Es matching the supplied criteria
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> List<T> getList(Class<T> entityClass, DetachedCriteria criteria, int startIndex, int limit) {
+		return this.getHibernateTemplate().findByCriteria(criteria, startIndex, limit);
+	}
+	
 	/**
 	 * Gets a list of E matching the supplied HQL query.
 	 * @param hqlQuery HQL query
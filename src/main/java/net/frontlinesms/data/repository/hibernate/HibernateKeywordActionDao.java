@@ -5,10 +5,16 @@ package net.frontlinesms.data.repository.hibernate;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
 
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Restrictions;
 
+import net.frontlinesms.FrontlineUtils;
 import net.frontlinesms.data.domain.Keyword;
 import net.frontlinesms.data.domain.KeywordAction;
 import net.frontlinesms.data.repository.KeywordActionDao;
@@ -19,6 +25,16 @@ import net.frontlinesms.data.repository.KeywordActionDao;
  * @author Morgan Belkadi <morgan@frontlinesms.com>
  */
 public class HibernateKeywordActionDao extends BaseHibernateDao<KeywordAction> implements KeywordActionDao {
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(HibernateKeywordActionDao.class);
+	/** Time, in millis, between writing counted action executions to the database */
+	private static final long COUNTER_FLUSH_INTERVAL = 5000;
+	
+	/** Executions of actions which have not been written to the database yet */
+	private final KeywordActionCounters counters = new KeywordActionCounters();
+	/** Timer writing {@link #counters} to the database, or <code>null</code> if it has not been started yet */
+	private Timer counterFlushTimer;
+	
 	/** Create instance of this class */
 	public HibernateKeywordActionDao() {
 		super(KeywordAction.class);
@@ -27,6 +43,7 @@ public class HibernateKeywordActionDao extends BaseHibernateDao<KeywordAction> i
 	/** @see KeywordActionDao#deleteKeywordAction(KeywordAction) */
 	public void deleteKeywordAction(KeywordAction action) {
 		super.delete(action);
+		counters.remove(action.getId());
 	}
 
 	/** @see KeywordActionDao#getReplyActions() */
@@ -66,13 +83,54 @@ public class HibernateKeywordActionDao extends BaseHibernateDao<KeywordAction> i
 		return super.countAll();
 	}
 	
-	/** @see net.frontlinesms.data.repository.KeywordActionDao#incrementCounter(KeywordAction)*/
+	/**
+	 * Counts the execution in memory.  Counts are written to the database every {@link #COUNTER_FLUSH_INTERVAL}
+	 * millis, rather than updating the action's row every time it is executed.  The counter of the action
+	 * object itself is left as it was loaded, so that pending executions are not counted twice when they are
+	 * added to it, nor written to the database if the action is saved.
+	 * @see net.frontlinesms.data.repository.KeywordActionDao#incrementCounter(KeywordAction)
+	 */
 	public void incrementCounter(KeywordAction action) {
+		startCounterFlushTimer();
+		counters.increment(action.getId());
+	}
+	
+	/** @see KeywordActionDao#getPendingCounterIncrements(KeywordAction) */
+	public int getPendingCounterIncrements(KeywordAction action) {
+		return counters.getPending(action.getId());
+	}
+	
+	/** @see KeywordActionDao#flushCounters() */
+	public void flushCounters() {
 		String incrementCounterQuery = "UPDATE " + KeywordAction.TABLE_NAME + " as action" +
-										" SET " + KeywordAction.Field.COUNTER + "=" + KeywordAction.Field.COUNTER + "+1" +
-										" WHERE action=?";
-		super.getHibernateTemplate().bulkUpdate(incrementCounterQuery, action);
-		action.incrementCounter();
+										" SET " + KeywordAction.Field.COUNTER + "=" + KeywordAction.Field.COUNTER + "+?" +
+										" WHERE action.id=?";
+		for(Map.Entry<Long, Integer> entry : counters.drain().entrySet()) {
+			try {
+				super.getHibernateTemplate().bulkUpdate(incrementCounterQuery, new Object[] { entry.getValue(), entry.getKey() });
+			} catch(RuntimeException ex) {
+				// Keep the count so that it is written next time
+				LOG.warn("Unable to write counter for keyword action " + entry.getKey(), ex);
+				counters.add(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/** Starts the timer writing counted executions to the database, if it has not been started already. */
+	private synchronized void startCounterFlushTimer() {
+		if(counterFlushTimer == null) {
+			counterFlushTimer = new Timer("Keyword action counter flush", true);
+			counterFlushTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						flushCounters();
+					} catch(Throwable t) {
+						LOG.warn("Error writing keyword action counters.", t);
+					}
+				}
+			}, COUNTER_FLUSH_INTERVAL, COUNTER_FLUSH_INTERVAL);
+		}
 	}
 
 }
@@ -12,12 +12,16 @@ import net.frontlinesms.data.DuplicateKeyException;
 import net.frontlinesms.data.Order;
 import net.frontlinesms.data.domain.Keyword;
 import net.frontlinesms.data.repository.KeywordDao;
+import net.frontlinesms.events.EventBus;
 
 /**
  * Hibernate implementation of {@link KeywordDao}.
  * @author Alex
  */
 public class HibernateKeywordDao extends BaseHibernateDao<Keyword> implements KeywordDao {
+	/** In-memory index of all keywords, used for matching message text.  This is lazily initialised by {@link #getKeywordIndex()}. */
+	private KeywordIndex keywordIndex;
+	
 	/** Create instance of this class */
 	public HibernateKeywordDao() {
 		super(Keyword.class);
@@ -53,24 +57,25 @@ public class HibernateKeywordDao extends BaseHibernateDao<Keyword> implements Ke
 
 	/** @see KeywordDao#getFromMessageText(String) */
 	public Keyword getFromMessageText(String messageText) {
-		List<Keyword> results = super.getAll();
-		if(results.size() == 0) return null;
-		Keyword longest = null;
-		for(Keyword k : results) {
-			if(k.matches(messageText)
-					&& (longest == null || longest.getKeyword().length() < k.getKeyword().length())) {
-				longest = k;
+		return getKeywordIndex().getFromMessageText(messageText);
+	}
+	
+	/**
+	 * Gets the {@link KeywordIndex} for this DAO, loading all keywords into it the first time
+	 * it is requested.  The index is kept up-to-date with changes to keywords via the {@link EventBus}.
+	 * @return {@link #keywordIndex}
+	 */
+	synchronized KeywordIndex getKeywordIndex() {
+		if(this.keywordIndex == null) {
+			KeywordIndex index = new KeywordIndex();
+			// Register for keyword change notifications before loading, so that no changes are missed
+			getEventBus().registerObserver(index);
+			for(Keyword k : super.getAll()) {
+				index.put(k);
 			}
+			this.keywordIndex = index;
 		}
-		
-		if(longest == null) {
-			// If no keyword has been fetched, return the blank keyword
-			DetachedCriteria crit = super.getCriterion();
-			crit.add(Restrictions.eq(Keyword.Field.KEYWORD.getFieldName(), ""));
-			longest = super.getUnique(crit);
-		}
-		
-		return longest;
+		return this.keywordIndex;
 	}
 
 	/** @see KeywordDao#getTotalKeywordCount() */
@@ -3,14 +3,18 @@
  */
 package net.frontlinesms.data.repository.hibernate;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.criterion.SimpleExpression;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.transaction.annotation.Transactional;
 
 import net.frontlinesms.data.EntityField;
 import net.frontlinesms.data.Order;
@@ -26,6 +30,11 @@ import net.frontlinesms.data.repository.MessageDao;
  * @author Alex
  */
 public class HibernateMessageDao extends BaseHibernateDao<FrontlineMessage> implements MessageDao {
+	/** Statuses of outgoing messages which have not been sent, and so may be claimed from a shared outbox */
+	private static final FrontlineMessage.Status[] UNSENT_STATUSES = { FrontlineMessage.Status.OUTBOX, FrontlineMessage.Status.PENDING };
+	/** Maximum number of message IDs included in a single status update, to keep the <code>IN</code> list within database limits */
+	private static final int STATUS_UPDATE_CHUNK_SIZE = 500;
+	
 	/** Create instance of this class */
 	public HibernateMessageDao() {
 		super(FrontlineMessage.class);
@@ -95,10 +104,140 @@ public class HibernateMessageDao extends BaseHibernateDao<FrontlineMessage> impl
 
 	/** @see MessageDao#getMessageForStatusUpdate(String, int) */
 	public FrontlineMessage getMessageForStatusUpdate(String targetMsisdnSuffix, int smscReference) {
-		DetachedCriteria criteria = super.getCriterion();
+		DetachedCriteria criteria = super.getSortCriterion(Field.DATE, Order.DESCENDING);
 		criteria.add(Restrictions.eq(Field.RECIPIENT_MSISDN.getFieldName(), targetMsisdnSuffix));
 		criteria.add(Restrictions.eq(Field.SMSC_REFERENCE.getFieldName(), smscReference));
-		return super.getUnique(criteria);
+		addTypeCriteria(criteria, FrontlineMessage.Type.OUTBOUND);
+		List<FrontlineMessage> messages = super.getList(criteria, 0, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+	
+	/** @see MessageDao#getMessage(long) */
+	public FrontlineMessage getMessage(long id) {
+		return (FrontlineMessage) super.getHibernateTemplate().get(FrontlineMessage.class, id);
+	}
+	
+	/** @see MessageDao#getMessagesById(Collection) */
+	public List<FrontlineMessage> getMessagesById(Collection<Long> messageIds) {
+		if(messageIds.isEmpty()) return new LinkedList<FrontlineMessage>();
+		DetachedCriteria criteria = super.getCriterion();
+		criteria.add(Restrictions.in("id", messageIds));
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder("id"));
+		return getList(criteria);
+	}
+	
+	/**
+	 * The messages are updated {@link #STATUS_UPDATE_CHUNK_SIZE} at a time, with one <code>UPDATE</code> for
+	 * each chunk, all in the same transaction.
+	 * @see MessageDao#updateMessageStatus(Collection, FrontlineMessage.Status, FrontlineMessage.Status)
+	 */
+	@Transactional
+	public int updateMessageStatus(Collection<Long> messageIds, final FrontlineMessage.Status currentStatus, final FrontlineMessage.Status newStatus) {
+		final String updateQuery = "UPDATE " + FrontlineMessage.class.getName() + " SET " + Field.STATUS.getFieldName() + "=:newStatus" +
+				" WHERE id IN (:ids) AND " + Field.STATUS.getFieldName() + "=:currentStatus";
+		final List<Long> ids = new ArrayList<Long>(messageIds);
+		Integer updated = (Integer) super.getHibernateTemplate().execute(new HibernateCallback() {
+			public Object doInHibernate(Session session) {
+				int count = 0;
+				for(int start=0; start<ids.size(); start+=STATUS_UPDATE_CHUNK_SIZE) {
+					List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + STATUS_UPDATE_CHUNK_SIZE));
+					count += session.createQuery(updateQuery)
+							.setParameter("newStatus", newStatus)
+							.setParameterList("ids", chunk)
+							.setParameter("currentStatus", currentStatus)
+							.executeUpdate();
+				}
+				return count;
+			}
+		});
+		return updated;
+	}
+
+	/** @see MessageDao#claimMessages(String, long, long, int) */
+	public List<FrontlineMessage> claimMessages(String owner, long now, long claimExpiry, int limit) {
+		DetachedCriteria criteria = super.getCriterion();
+		addTypeCriteria(criteria, Type.OUTBOUND);
+		addStatusCriteria(criteria, UNSENT_STATUSES);
+		criteria.add(Restrictions.or(Restrictions.isNull(Field.CLAIM_OWNER.getFieldName()),
+				Restrictions.lt(Field.CLAIM_EXPIRY.getFieldName(), now)));
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder("id"));
+		List<FrontlineMessage> claimed = new LinkedList<FrontlineMessage>();
+		for(FrontlineMessage candidate : super.getList(criteria, 0, limit)) {
+			// Another instance may claim the candidate between the query and the update
+			if(claimMessage(candidate.getId(), owner, now, claimExpiry, false)) {
+				candidate.setClaimOwner(owner);
+				candidate.setClaimExpiry(claimExpiry);
+				claimed.add(candidate);
+			}
+		}
+		return claimed;
+	}
+	
+	/** @see MessageDao#claimMessage(long, String, long, long) */
+	public boolean claimMessage(long messageId, String owner, long now, long claimExpiry) {
+		return claimMessage(messageId, owner, now, claimExpiry, true);
+	}
+	
+	/** @see MessageDao#renewClaims(String, long) */
+	public int renewClaims(String owner, long claimExpiry) {
+		String updateQuery = "UPDATE " + FrontlineMessage.class.getName() + " SET " + Field.CLAIM_EXPIRY.getFieldName() + "=?" +
+				" WHERE " + Field.CLAIM_OWNER.getFieldName() + "=? AND " + Field.STATUS.getFieldName() + " IN (?,?)";
+		return super.getHibernateTemplate().bulkUpdate(updateQuery, new Object[] { claimExpiry, owner, UNSENT_STATUSES[0], UNSENT_STATUSES[1] });
+	}
+	
+	/** @see MessageDao#releaseClaims(String) */
+	public int releaseClaims(String owner) {
+		String updateQuery = "UPDATE " + FrontlineMessage.class.getName() + " SET " + Field.CLAIM_OWNER.getFieldName() + "=NULL, " +
+				Field.CLAIM_EXPIRY.getFieldName() + "=NULL" +
+				" WHERE " + Field.CLAIM_OWNER.getFieldName() + "=? AND " + Field.STATUS.getFieldName() + "=?";
+		return super.getHibernateTemplate().bulkUpdate(updateQuery, new Object[] { owner, FrontlineMessage.Status.OUTBOX });
+	}
+	
+	/**
+	 * Claims a message with a compare-and-set update, which only succeeds if the message is waiting to be
+	 * sent and is not claimed by another instance.
+	 * @param messageId id of the message to claim
+	 * @param owner id of the claiming instance
+	 * @param now the current time, in millis; claims expiring before this time have expired
+	 * @param claimExpiry the time, in millis, at which the new claim expires unless renewed
+	 * @param reclaim <code>true</code> if the message may be claimed when <code>owner</code> already has a claim on it
+	 * @return <code>true</code> if the message was claimed
+	 */
+	private boolean claimMessage(long messageId, String owner, long now, long claimExpiry, boolean reclaim) {
+		String claimOwner = Field.CLAIM_OWNER.getFieldName();
+		String updateQuery = "UPDATE " + FrontlineMessage.class.getName() + " SET " + claimOwner + "=?, " + Field.CLAIM_EXPIRY.getFieldName() + "=?" +
+				" WHERE id=? AND " + Field.STATUS.getFieldName() + " IN (?,?)" +
+				" AND (" + claimOwner + " IS NULL OR " + Field.CLAIM_EXPIRY.getFieldName() + "<?" +
+				(reclaim ? " OR " + claimOwner + "=?" : "") + ")";
+		Object[] values = reclaim
+				? new Object[] { owner, claimExpiry, messageId, UNSENT_STATUSES[0], UNSENT_STATUSES[1], now, owner }
+				: new Object[] { owner, claimExpiry, messageId, UNSENT_STATUSES[0], UNSENT_STATUSES[1], now };
+		return super.getHibernateTemplate().bulkUpdate(updateQuery, values) > 0;
+	}
+
+	/** @see MessageDao#getMessagesAfterId(FrontlineMessage.Type, FrontlineMessage.Status[], long, long, int) */
+	public List<FrontlineMessage> getMessagesAfterId(FrontlineMessage.Type messageType, FrontlineMessage.Status[] messageStatuses, long afterId, long end, int limit) {
+		DetachedCriteria criteria = super.getCriterion();
+		addTypeCriteria(criteria, messageType);
+		addStatusCriteria(criteria, messageStatuses);
+		addDateCriteria(criteria, null, end);
+		criteria.add(Restrictions.gt("id", afterId));
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder("id"));
+		return super.getList(criteria, 0, limit);
+	}
+
+	/** @see MessageDao#getScheduledMessages(long, long, long, int) */
+	public List<FrontlineMessage> getScheduledMessages(long afterTime, long afterId, long until, int limit) {
+		String scheduledTime = Field.SCHEDULED_TIME.getFieldName();
+		DetachedCriteria criteria = super.getCriterion();
+		addTypeCriteria(criteria, Type.OUTBOUND);
+		addStatusCriteria(criteria, FrontlineMessage.Status.SCHEDULED);
+		criteria.add(Restrictions.or(Restrictions.gt(scheduledTime, afterTime),
+				Restrictions.and(Restrictions.eq(scheduledTime, afterTime), Restrictions.gt("id", afterId))));
+		criteria.add(Restrictions.le(scheduledTime, until));
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder(scheduledTime));
+		criteria.addOrder(Order.ASCENDING.getHibernateOrder("id"));
+		return super.getList(criteria, 0, limit);
 	}
 
 	/** @see MessageDao#getMessages(int, Field, Order) */
@@ -274,10 +413,26 @@ public class HibernateMessageDao extends BaseHibernateDao<FrontlineMessage> impl
 		super.saveWithoutDuplicateHandling(message);
 	}
 
+	/** @see MessageDao#saveMessages(List) */
+	@Transactional
+	public void saveMessages(List<FrontlineMessage> messages) {
+		for(FrontlineMessage message : messages) {
+			super.saveWithoutDuplicateHandling(message);
+		}
+	}
+
 	/** @see MessageDao#updateMessage(FrontlineMessage) */
 	public void updateMessage(FrontlineMessage message) {
 		super.updateWithoutDuplicateHandling(message);
 	}
+
+	/** @see MessageDao#updateMessages(List) */
+	@Transactional
+	public void updateMessages(List<FrontlineMessage> messages) {
+		for(FrontlineMessage message : messages) {
+			super.updateWithoutDuplicateHandling(message);
+		}
+	}
 	
 	/**
 	 * Augments the supplied criteria with that required to match a keyword.
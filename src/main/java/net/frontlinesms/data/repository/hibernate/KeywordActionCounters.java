@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.frontlinesms.data.domain.KeywordAction;
+
+/**
+ * In-memory counters of {@link KeywordAction} executions which have not yet been written to the database,
+ * used by {@link HibernateKeywordActionDao} so that executing an action does not require a database update.
+ *
+ * Each action's counter is split into stripes, and each thread increments the stripe chosen by its id, so
+ * that threads executing the same action rarely contend for the same memory.  Stripes are spaced a cache
+ * line apart to avoid false sharing.
+ */
+public class KeywordActionCounters {
+//> STATIC CONSTANTS
+	/** Number of <code>int</code>s between the start of each stripe, so that each stripe is in its own cache line */
+	private static final int STRIPE_SPACING = 16;
+
+//> INSTANCE PROPERTIES
+	/** Mask applied to a thread's id to choose its stripe.  The number of stripes is <code>stripeMask + 1</code>. */
+	private final int stripeMask;
+	/** Striped counters of unflushed executions, mapped by action id */
+	private final ConcurrentMap<Long, AtomicIntegerArray> counters = new ConcurrentHashMap<Long, AtomicIntegerArray>();
+
+//> CONSTRUCTORS
+	/** Create a new {@link KeywordActionCounters} with a stripe for each available processor. */
+	public KeywordActionCounters() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a new {@link KeywordActionCounters}.
+	 * @param stripes the minimum number of stripes each counter should be split into
+	 */
+	public KeywordActionCounters(int stripes) {
+		int stripeCount = 1;
+		while(stripeCount < stripes) stripeCount <<= 1;
+		this.stripeMask = stripeCount - 1;
+	}
+
+//> ACCESSORS
+	/**
+	 * @param actionId the id of an action
+	 * @return the number of executions of the action counted since the counters were last drained
+	 */
+	public int getPending(long actionId) {
+		AtomicIntegerArray counter = counters.get(actionId);
+		if(counter == null) return 0;
+		int pending = 0;
+		for(int i=0; i<counter.length(); i+=STRIPE_SPACING) {
+			pending += counter.get(i);
+		}
+		return pending;
+	}
+
+//> COUNTER METHODS
+	/** @param actionId the id of an action which has been executed */
+	public void increment(long actionId) {
+		add(actionId, 1);
+	}
+
+	/**
+	 * Adds executions to an action's counter, e.g. to restore counts which could not be written to the database.
+	 * @param actionId the id of an action
+	 * @param count the number of executions to add
+	 */
+	public void add(long actionId, int count) {
+		AtomicIntegerArray counter = counters.get(actionId);
+		if(counter == null) {
+			AtomicIntegerArray newCounter = new AtomicIntegerArray((stripeMask + 1) * STRIPE_SPACING);
+			counter = counters.putIfAbsent(actionId, newCounter);
+			if(counter == null) counter = newCounter;
+		}
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+		counter.addAndGet(stripe * STRIPE_SPACING, count);
+	}
+
+	/**
+	 * Resets all counters to zero.
+	 * @return the number of executions counted for each action since the counters were last drained, mapped
+	 * by action id.  Actions with no executions are not included.
+	 */
+	public Map<Long, Integer> drain() {
+		Map<Long, Integer> drained = new HashMap<Long, Integer>();
+		for(Map.Entry<Long, AtomicIntegerArray> entry : counters.entrySet()) {
+			AtomicIntegerArray counter = entry.getValue();
+			int count = 0;
+			for(int i=0; i<counter.length(); i+=STRIPE_SPACING) {
+				count += counter.getAndSet(i, 0);
+			}
+			if(count != 0) {
+				drained.put(entry.getKey(), count);
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * Discards the counter for an action, e.g. because the action has been deleted.
+	 * @param actionId the id of an action
+	 */
+	public void remove(long actionId) {
+		counters.remove(actionId);
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.frontlinesms.data.domain.Keyword;
+import net.frontlinesms.data.events.DatabaseEntityNotification;
+import net.frontlinesms.data.events.EntityDeletedNotification;
+import net.frontlinesms.data.events.EntitySavedNotification;
+import net.frontlinesms.data.events.EntityUpdatedNotification;
+import net.frontlinesms.events.EventObserver;
+import net.frontlinesms.events.FrontlineEventNotification;
+
+/**
+ * In-memory, word-level trie of {@link Keyword}s, used for matching message text against keywords
+ * without scanning every keyword in the database.
+ *
+ * Each node of the trie represents one word of a keyword, so looking up the longest keyword matching
+ * a message costs one map lookup per word of the message, regardless of the number of keywords.  The
+ * root node holds the blank keyword.
+ *
+ * The index is kept in step with the database by listening for {@link DatabaseEntityNotification}s
+ * fired for {@link Keyword}s.
+ *
+ * Matching follows the same rules as {@link Keyword#matches(String)}: the message text is trimmed and
+ * upper-cased, and words are separated by single spaces.
+ */
+public class KeywordIndex implements EventObserver {
+//> STATIC CONSTANTS
+	/** Character separating the words of a keyword */
+	private static final char WORD_SEPARATOR = ' ';
+
+//> INSTANCE PROPERTIES
+	/** The root of the trie.  This node's keyword is the blank keyword. */
+	private final Node root = new Node();
+	/** The number of keywords held in this index */
+	private int size;
+
+//> CONSTRUCTORS
+	/** Create a new, empty {@link KeywordIndex}. */
+	public KeywordIndex() {}
+
+	/**
+	 * Create a new {@link KeywordIndex} containing the supplied keywords.
+	 * @param keywords keywords to add to the index
+	 */
+	public KeywordIndex(Collection<Keyword> keywords) {
+		for(Keyword k : keywords) {
+			put(k);
+		}
+	}
+
+//> ACCESSORS
+	/** @return the number of keywords in this index, including the blank keyword if it is present */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the longest keyword matching the supplied message text.
+	 * @param messageText the text of a message
+	 * @return the longest matching keyword, the blank keyword if no other keyword matched, or <code>null</code> if
+	 * no keyword matched and there is no blank keyword in the index
+	 */
+	public Keyword getFromMessageText(String messageText) {
+		Keyword longest = null;
+		if(messageText != null) {
+			String text = messageText.trim().toUpperCase();
+			Node node = root;
+			int wordStart = 0;
+			int textLength = text.length();
+			while(node != null && wordStart < textLength) {
+				int wordEnd = text.indexOf(WORD_SEPARATOR, wordStart);
+				if(wordEnd == -1) wordEnd = textLength;
+				node = node.getChild(text.substring(wordStart, wordEnd));
+				if(node != null && node.keyword != null) {
+					longest = node.keyword;
+				}
+				wordStart = wordEnd + 1;
+			}
+		}
+
+		if(longest == null) {
+			// If no keyword was matched, return the blank keyword
+			longest = root.keyword;
+		}
+		return longest;
+	}
+
+//> INDEX MAINTENANCE METHODS
+	/**
+	 * Adds a keyword to this index, replacing any keyword already held with the same text.
+	 * @param keyword the keyword to add
+	 */
+	public synchronized void put(Keyword keyword) {
+		Node node = root;
+		for(String word : getWords(keyword)) {
+			Node child = node.getChild(word);
+			if(child == null) {
+				child = new Node();
+				node.children.put(word, child);
+			}
+			node = child;
+		}
+		if(node.keyword == null) ++size;
+		node.keyword = keyword;
+	}
+
+	/**
+	 * Removes a keyword from this index.  Any nodes of the trie that are no longer required are discarded.
+	 * @param keyword the keyword to remove
+	 */
+	public synchronized void remove(Keyword keyword) {
+		if(remove(root, getWords(keyword), 0)) {
+			--size;
+		}
+	}
+
+	/**
+	 * Recursively removes a keyword from the trie.
+	 * @param node the node to remove the keyword below
+	 * @param words the words of the keyword
+	 * @param wordIndex the index in <code>words</code> of the word that <code>node</code>'s child should represent
+	 * @return <code>true</code> if a keyword was removed from the index
+	 */
+	private boolean remove(Node node, String[] words, int wordIndex) {
+		if(wordIndex == words.length) {
+			boolean removed = node.keyword != null;
+			node.keyword = null;
+			return removed;
+		} else {
+			String word = words[wordIndex];
+			Node child = node.getChild(word);
+			if(child == null) return false;
+			boolean removed = remove(child, words, wordIndex + 1);
+			if(child.keyword == null && child.children.isEmpty()) {
+				node.children.remove(word);
+			}
+			return removed;
+		}
+	}
+
+	/** Removes all keywords from this index. */
+	public synchronized void clear() {
+		root.keyword = null;
+		root.children.clear();
+		size = 0;
+	}
+
+	/** Keeps this index up-to-date with changes to {@link Keyword}s in the database. */
+	public void notify(FrontlineEventNotification notification) {
+		if(notification instanceof DatabaseEntityNotification<?>) {
+			Object entity = ((DatabaseEntityNotification<?>) notification).getDatabaseEntity();
+			if(entity instanceof Keyword) {
+				if(notification instanceof EntityDeletedNotification<?>) {
+					remove((Keyword) entity);
+				} else if(notification instanceof EntitySavedNotification<?>
+						|| notification instanceof EntityUpdatedNotification<?>) {
+					put((Keyword) entity);
+				}
+			}
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * @param keyword a keyword
+	 * @return the words making up the supplied keyword, or an empty array for the blank keyword
+	 */
+	private static String[] getWords(Keyword keyword) {
+		String keywordString = keyword.getKeyword();
+		if(keywordString.length() == 0) {
+			return new String[0];
+		} else {
+			// Keywords are stored in upper case, with words separated by a single space
+			return keywordString.split(String.valueOf(WORD_SEPARATOR));
+		}
+	}
+
+//> INNER CLASSES
+	/** A node in the trie.  Reads of the trie are not synchronized, so fields are safe for concurrent access. */
+	private static final class Node {
+		/** The keyword that ends at this node, or <code>null</code> if no keyword ends here */
+		private volatile Keyword keyword;
+		/** Child nodes of this node, mapped by the word they represent */
+		private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+		/**
+		 * @param word a word
+		 * @return the child node for the supplied word, or <code>null</code> if there is none
+		 */
+		private Node getChild(String word) {
+			return children.get(word);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package net.frontlinesms.listener;
+
+import net.frontlinesms.messaging.sms.BulkSmsCampaign;
+
+/**
+ * Listener notified of the progress of a {@link BulkSmsCampaign}.  Methods are called from the campaign's
+ * own thread.
+ */
+public interface BulkSmsCampaignListener {
+	/**
+	 * Called each time a page of the campaign's messages has been queued.
+	 * @param campaign
+	 */
+	public void campaignProgress(BulkSmsCampaign campaign);
+
+	/**
+	 * Called once all of the campaign's messages have been queued, or the campaign has been stopped.
+	 * @param campaign
+	 */
+	public void campaignFinished(BulkSmsCampaign campaign);
+}
@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
+
+/**
+ * Index of sent messages which are waiting for a delivery report, so that status reports can be matched
+ * to their messages without searching the message table.
+ *
+ * Messages are tracked by recipient and SMSC reference in the order they were sent.  Messages which have
+ * waited longer than the timeout are removed from the index, and their status changed to
+ * {@link Status#DELIVERY_UNKNOWN}.  Status reports which do not match a tracked message, e.g. because
+ * FrontlineSMS was restarted since the message was sent, are matched using the database instead.
+ */
+public class DeliveryReportTracker {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(DeliveryReportTracker.class);
+	/** Maximum time, in millis, between checks for messages which have waited too long for a delivery report */
+	private static final long MAX_EXPIRY_INTERVAL = 60 * 1000;
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to load and update tracked messages */
+	private final MessageDao messageDao;
+	/** The time, in millis, to wait for a delivery report before a message's delivery is marked unknown */
+	private final long timeout;
+	/** Messages waiting for delivery reports, keyed by {@link #getKey(String, int)}, in the order they were sent */
+	private final LinkedHashMap<String, TrackedMessage> pending = new LinkedHashMap<String, TrackedMessage>();
+	/** Write-behind buffer which may hold newer instances of tracked messages than the database, or <code>null</code> if statuses are written directly */
+	private volatile MessageStatusWriter statusWriter;
+	/** Timer which periodically expires messages, or <code>null</code> if the tracker is not running */
+	private Timer expiryTimer;
+
+//> CONSTRUCTORS
+	/**
+	 * @param messageDao data access object used to load and update tracked messages
+	 * @param timeout the time, in millis, to wait for a delivery report before a message's delivery is marked unknown
+	 */
+	public DeliveryReportTracker(MessageDao messageDao, long timeout) {
+		this.messageDao = messageDao;
+		this.timeout = timeout;
+	}
+
+//> ACCESSORS
+	/** @return the number of messages waiting for a delivery report */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/** @param statusWriter write-behind buffer which may hold newer instances of tracked messages than the database */
+	public void setStatusWriter(MessageStatusWriter statusWriter) {
+		this.statusWriter = statusWriter;
+	}
+
+//> TRACKING METHODS
+	/**
+	 * Starts waiting for a delivery report for a message which has been sent.
+	 * @param message a sent message, with its SMSC reference set
+	 */
+	public void track(FrontlineMessage message) {
+		if(message.getSmscReference() == null) {
+			return;
+		}
+		String key = getKey(message.getRecipientMsisdn(), message.getSmscReference());
+		TrackedMessage tracked = new TrackedMessage(message.getId(), System.currentTimeMillis());
+		synchronized(this) {
+			// Remove first so that a reused reference moves to the end of the send order
+			pending.remove(key);
+			pending.put(key, tracked);
+		}
+	}
+
+	/**
+	 * Gets the message a status report refers to.  The message stops being tracked.  If the message's last change
+	 * is still waiting in the {@link MessageStatusWriter}, the waiting instance is taken from the writer and
+	 * returned instead of the database copy; the caller is responsible for queueing it again.
+	 * @param originator the originator of the status report, i.e. the recipient of the message
+	 * @param smscReference the SMSC reference of the message
+	 * @return the message the status report refers to, or <code>null</code> if it could not be found
+	 */
+	public FrontlineMessage getMessageForStatusReport(String originator, int smscReference) {
+		TrackedMessage tracked;
+		synchronized(this) {
+			tracked = pending.remove(getKey(originator, smscReference));
+		}
+		MessageStatusWriter statusWriter = this.statusWriter;
+		if(tracked != null) {
+			FrontlineMessage message = statusWriter != null ? statusWriter.remove(tracked.messageId) : null;
+			if(message == null) {
+				message = messageDao.getMessage(tracked.messageId);
+			}
+			if(message != null) {
+				return message;
+			}
+		}
+		FrontlineMessage message = messageDao.getMessageForStatusUpdate(originator, smscReference);
+		if(message != null && statusWriter != null) {
+			FrontlineMessage waiting = statusWriter.remove(message.getId());
+			if(waiting != null) {
+				message = waiting;
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Stops tracking messages which have waited longer than the timeout for a delivery report, and marks
+	 * their delivery as unknown.
+	 * @return the number of messages whose delivery was marked unknown
+	 */
+	public int expire() {
+		long expiryTime = System.currentTimeMillis() - timeout;
+		List<Long> expired = new ArrayList<Long>();
+		synchronized(this) {
+			Iterator<TrackedMessage> iterator = pending.values().iterator();
+			while(iterator.hasNext()) {
+				TrackedMessage tracked = iterator.next();
+				// Messages are in the order they were sent, so no later message can have expired
+				if(tracked.sentTime > expiryTime) break;
+				expired.add(tracked.messageId);
+				iterator.remove();
+			}
+		}
+		if(expired.isEmpty()) {
+			return 0;
+		}
+		int updated = messageDao.updateMessageStatus(expired, Status.SENT, Status.DELIVERY_UNKNOWN);
+		LOG.debug("Delivery of " + updated + " message(s) marked unknown after waiting " + timeout + "ms for delivery reports.");
+		return updated;
+	}
+
+//> LIFECYCLE METHODS
+	/** Starts periodically marking the delivery of messages which have waited too long as unknown. */
+	public synchronized void start() {
+		if(expiryTimer == null) {
+			long interval = Math.max(1, Math.min(timeout, MAX_EXPIRY_INTERVAL));
+			expiryTimer = new Timer("Delivery report expiry", true);
+			expiryTimer.schedule(new TimerTask() {
+				public void run() {
+					try {
+						expire();
+					} catch(Throwable t) {
+						LOG.warn("Failed to expire messages waiting for delivery reports.", t);
+					}
+				}
+			}, interval, interval);
+		}
+	}
+
+	/** Stops periodically expiring messages. */
+	public synchronized void stop() {
+		if(expiryTimer != null) {
+			expiryTimer.cancel();
+			expiryTimer = null;
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * @param recipientMsisdn
+	 * @param smscReference
+	 * @return the key a message is tracked under
+	 */
+	private static String getKey(String recipientMsisdn, int smscReference) {
+		return recipientMsisdn + ':' + smscReference;
+	}
+
+//> INNER CLASSES
+	/** A message waiting for a delivery report */
+	private static final class TrackedMessage {
+		/** The database ID of the message */
+		private final long messageId;
+		/** The time, in millis, that the message started being tracked */
+		private final long sentTime;
+
+		TrackedMessage(long messageId, long sentTime) {
+			this.messageId = messageId;
+			this.sentTime = sentTime;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.frontlinesms.FrontlineUtils;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs external commands triggered by keyword actions (HTTP requests and external programs) on a
+ * bounded pool of threads, so that slow or hung commands do not hold up the processing of incoming
+ * messages.
+ *
+ * Each command is run against a target host.  No more than a fixed number of commands are run against
+ * the same host at once; further commands for that host wait their turn without occupying a thread.  If
+ * too many commands are already waiting for a host, new commands for it are failed straight away, so that
+ * a host which has stopped responding cannot build up an unbounded backlog.
+ * Commands which are still running after their timeout are interrupted, and their callback is notified
+ * of the failure.
+ */
+public class ExternalCommandExecutor {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(ExternalCommandExecutor.class);
+
+//> INSTANCE PROPERTIES
+	/** Threads running commands */
+	private final ThreadPoolExecutor executor;
+	/** Thread used for interrupting commands which have run for too long */
+	private final ScheduledExecutorService timeoutScheduler;
+	/** The maximum number of commands which may run against a single host at once */
+	private final int maxConcurrentPerHost;
+	/** The maximum number of commands which may wait for a single host */
+	private final int maxWaitingPerHost;
+	/** Commands running and waiting for each host, mapped by host name */
+	private final Map<String, HostLane> lanes = new HashMap<String, HostLane>();
+
+//> CONSTRUCTORS
+	/**
+	 * Create a new {@link ExternalCommandExecutor}.
+	 * @param threadCount the number of threads to run commands on
+	 * @param queueSize the maximum number of commands which may be waiting for a thread
+	 * @param maxConcurrentPerHost the maximum number of commands which may run against a single host at once
+	 * @param maxWaitingPerHost the maximum number of commands which may wait for a single host
+	 */
+	public ExternalCommandExecutor(int threadCount, int queueSize, int maxConcurrentPerHost, int maxWaitingPerHost) {
+		threadCount = Math.max(1, threadCount);
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new DaemonThreadFactory("External command executor"));
+		this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("External command timeout"));
+		this.maxConcurrentPerHost = Math.max(1, maxConcurrentPerHost);
+		this.maxWaitingPerHost = Math.max(0, maxWaitingPerHost);
+	}
+
+//> ACCESSORS
+	/**
+	 * @param host a host name
+	 * @return the number of commands running or waiting to run against the host
+	 */
+	public int getPendingCount(String host) {
+		synchronized(lanes) {
+			HostLane lane = lanes.get(host);
+			return lane == null ? 0 : lane.active + lane.waiting.size();
+		}
+	}
+
+//> EXECUTION METHODS
+	/**
+	 * Runs a command asynchronously.  Exactly one of the callback's methods will be called once the
+	 * command has completed, failed or timed out.  If the executor's queue is full, or too many commands
+	 * are already waiting for the host, the callback's {@link Callback#commandFailed(Throwable)} method is
+	 * called immediately.
+	 * @param <T> the type of result the command produces
+	 * @param host the host the command targets
+	 * @param timeout time, in millis, after which the command should be interrupted, or <code>0</code> for no timeout
+	 * @param command the command to run
+	 * @param callback the callback to notify with the result of the command
+	 */
+	public <T> void execute(String host, long timeout, Callable<T> command, Callback<T> callback) {
+		CommandTask<T> task = new CommandTask<T>(host, timeout, command, callback);
+		boolean rejected = false;
+		synchronized(lanes) {
+			HostLane lane = lanes.get(host);
+			if(lane == null) {
+				lane = new HostLane();
+				lanes.put(host, lane);
+			}
+			if(lane.active < maxConcurrentPerHost) {
+				++lane.active;
+			} else if(lane.waiting.size() < maxWaitingPerHost) {
+				LOG.debug("Command for host [" + host + "] is waiting for another command for the same host to complete.");
+				lane.waiting.add(task);
+				return;
+			} else {
+				rejected = true;
+			}
+		}
+		if(rejected) {
+			LOG.warn("External command for host [" + host + "] rejected: " + maxWaitingPerHost + " commands are already waiting for the host.");
+			task.fail(new RejectedExecutionException("Too many commands waiting for host: " + host));
+		} else {
+			submit(task);
+		}
+	}
+
+	/** Stops this executor.  Commands which are running are interrupted, and waiting commands are discarded. */
+	public void shutdown() {
+		executor.shutdownNow();
+		timeoutScheduler.shutdownNow();
+	}
+
+	/**
+	 * Submits a task to the thread pool.  If the pool rejects the task, it is failed and its host's next
+	 * waiting task, if any, is submitted.
+	 * @param task the task to run
+	 */
+	private void submit(CommandTask<?> task) {
+		try {
+			executor.execute(task);
+		} catch(RejectedExecutionException ex) {
+			LOG.warn("External command for host [" + task.host + "] rejected.", ex);
+			task.fail(ex);
+			taskFinished(task.host);
+		}
+	}
+
+	/**
+	 * Called when a task for a host has finished.  The next task waiting for the host, if there is one,
+	 * is submitted in its place.
+	 * @param host the host the task was run against
+	 */
+	private void taskFinished(String host) {
+		CommandTask<?> next;
+		synchronized(lanes) {
+			HostLane lane = lanes.get(host);
+			next = lane.waiting.poll();
+			if(next == null) {
+				--lane.active;
+				if(lane.active == 0) {
+					lanes.remove(host);
+				}
+			}
+		}
+		if(next != null) {
+			submit(next);
+		}
+	}
+
+//> INNER CLASSES
+	/**
+	 * Callback notified of the result of a command.
+	 * @param <T> the type of result the command produces
+	 */
+	public interface Callback<T> {
+		/** @param result the result of the command */
+		public void commandCompleted(T result);
+		/** @param cause the reason the command failed, which will be an {@link InterruptedException} if the command timed out */
+		public void commandFailed(Throwable cause);
+	}
+
+	/** Commands running and waiting for a single host. */
+	private static final class HostLane {
+		/** The number of commands for this host which are running or have been submitted to the thread pool */
+		private int active;
+		/** Commands for this host waiting to be submitted to the thread pool */
+		private final Queue<CommandTask<?>> waiting = new LinkedList<CommandTask<?>>();
+	}
+
+	/**
+	 * A command, and the callback to notify when it completes.
+	 * @param <T> the type of result the command produces
+	 */
+	private final class CommandTask<T> implements Runnable {
+		private final String host;
+		private final long timeout;
+		private final Callable<T> command;
+		private final Callback<T> callback;
+
+		CommandTask(String host, long timeout, Callable<T> command, Callback<T> callback) {
+			this.host = host;
+			this.timeout = timeout;
+			this.command = command;
+			this.callback = callback;
+		}
+
+		/**
+		 * Runs the command, and then notifies the callback.  The host's slot is released before the callback
+		 * is notified, so that the next command for the host is not held up by the callback, and so that the
+		 * command is no longer counted as pending once its result has been reported.
+		 */
+		public void run() {
+			final FutureTask<T> future = new FutureTask<T>(command);
+			Future<?> timeoutFuture = null;
+			if(timeout > 0) {
+				timeoutFuture = timeoutScheduler.schedule(new Runnable() {
+					public void run() {
+						if(future.cancel(true)) {
+							LOG.info("External command for host [" + host + "] timed out after " + timeout + "ms.");
+						}
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+			T result = null;
+			Throwable failure = null;
+			try {
+				future.run();
+				if(timeoutFuture != null) timeoutFuture.cancel(false);
+				try {
+					result = future.get();
+				} catch(Throwable t) {
+					failure = t.getCause() != null ? t.getCause() : t;
+				}
+			} finally {
+				// Clear the interrupt flag, in case the timeout interrupted this thread
+				Thread.interrupted();
+				taskFinished(host);
+			}
+			if(failure != null) {
+				fail(failure);
+			} else {
+				try {
+					callback.commandCompleted(result);
+				} catch(Throwable t) {
+					LOG.warn("Error handling external command response.", t);
+				}
+			}
+		}
+
+		/** @param cause the reason the command failed */
+		void fail(Throwable cause) {
+			if(cause instanceof CancellationException) {
+				cause = new InterruptedException("Command timed out after " + timeout + "ms.");
+			}
+			try {
+				callback.commandFailed(cause);
+			} catch(Throwable t) {
+				LOG.warn("Error handling external command failure.", t);
+			}
+		}
+	}
+
+	/** {@link ThreadFactory} creating named daemon threads. */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
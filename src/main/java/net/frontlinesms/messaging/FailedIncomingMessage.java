@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * An item from the {@link IncomingMessageProcessor}'s queue which failed to be processed.  Failed items
+ * wait in the processor's retry queue until {@link #getNextAttemptTime()}, and are moved to its dead-letter
+ * store once they have failed too many times.
+ */
+public class FailedIncomingMessage implements IncomingMessageProcessorQueueItem, Delayed {
+	/** The failed item, and the progress made in processing it */
+	private final IncomingMessageBatch batch;
+	/** The MSISDN of the sender of the failed item */
+	private final String senderMsisdn;
+	/** The number of times processing this item has failed */
+	private int attempts;
+	/** The exception thrown the last time this item failed */
+	private Throwable lastError;
+	/** The time, in millis, that this item last failed */
+	private long lastFailureTime;
+	/** The time, in millis, that this item should next be processed */
+	private long nextAttemptTime;
+
+//> CONSTRUCTORS
+	/**
+	 * @param batch a batch containing the single item which failed
+	 * @param senderMsisdn the MSISDN of the sender of the failed item
+	 */
+	FailedIncomingMessage(IncomingMessageBatch batch, String senderMsisdn) {
+		this.batch = batch;
+		this.senderMsisdn = senderMsisdn;
+	}
+
+//> ACCESSORS
+	/** @return the MSISDN of the sender of this message */
+	public String getSenderMsisdn() {
+		return senderMsisdn;
+	}
+
+	/** @return the message saved for this item, or <code>null</code> if it failed before it could be saved */
+	public synchronized FrontlineMessage getMessage() {
+		return batch.isSaved() ? batch.getMessages().get(0) : null;
+	}
+
+	/** @return the number of times processing this item has failed */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/** @return the exception thrown the last time this item failed */
+	public synchronized Throwable getLastError() {
+		return lastError;
+	}
+
+	/** @return the time, in millis, that this item last failed */
+	public synchronized long getLastFailureTime() {
+		return lastFailureTime;
+	}
+
+	/** @return the time, in millis, that this item will next be processed, if it is waiting to be retried */
+	public synchronized long getNextAttemptTime() {
+		return nextAttemptTime;
+	}
+
+	/** @return the failed item, and the progress made in processing it */
+	IncomingMessageBatch getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Records a failure to process this item.
+	 * @param error the exception thrown
+	 * @param retryDelay the time, in millis, to wait before processing this item again
+	 */
+	synchronized void failed(Throwable error, long retryDelay) {
+		++this.attempts;
+		this.lastError = error;
+		this.lastFailureTime = System.currentTimeMillis();
+		this.nextAttemptTime = this.lastFailureTime + retryDelay;
+	}
+
+	/** Resets the number of attempts made to process this item, so that it can be replayed from the dead-letter store. */
+	synchronized void reset() {
+		this.attempts = 0;
+		this.nextAttemptTime = 0;
+	}
+
+//> DELAYED METHODS
+	/** @see Delayed#getDelay(TimeUnit) */
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(getNextAttemptTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/** @see Comparable#compareTo(Object) */
+	public int compareTo(Delayed other) {
+		long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+		return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+	}
+}
@@ -0,0 +1,480 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of incoming messages which have been received but not yet saved to the database,
+ * so that messages removed from a device are not lost if FrontlineSMS stops before they are saved.
+ *
+ * Each message is appended to the journal when it is queued.  A saved record, holding the message's database
+ * id, is appended once it has been saved, and a checkpoint record once it has been handled, or discarded.
+ * When the journal is opened, messages without a checkpoint can be read back with {@link #getUncheckpointed()}
+ * and processed again; those which were saved should be loaded using {@link #getSavedMessageIds()} rather
+ * than saved again.
+ *
+ * The journal is written to a memory-mapped file, so appending a record only copies it into memory.  A
+ * background thread forces the file to disk every {@link #syncInterval} millis.  Records which have not been
+ * forced survive FrontlineSMS crashing, but may be lost if the operating system crashes.
+ *
+ * The journal is split into two segments of fixed size.  When the active segment is full, the records of
+ * messages which have not been checkpointed are copied into the other segment, which then becomes active.
+ * Each segment starts with a header holding its generation; the segment with the highest generation is
+ * active.  Each record is laid out as:
+ * <pre>
+ *   int length | int CRC32 of payload | payload
+ * </pre>
+ * and is followed by an <code>int</code> 0, which marks the end of the segment until the next record is
+ * appended over it.
+ */
+public class IncomingMessageJournal {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(IncomingMessageJournal.class);
+	/** Value at the start of each segment identifying it as part of a journal */
+	private static final int MAGIC = 0x464a524e;
+	/** Size, in bytes, of the header at the start of each segment: the magic number and the generation */
+	private static final int HEADER_SIZE = 4 + 8;
+	/** Size, in bytes, of the length and checksum preceding each record's payload */
+	private static final int RECORD_OVERHEAD = 4 + 4;
+	/** Size, in bytes, of the marker written after the last record of a segment */
+	private static final int END_MARKER_SIZE = 4;
+	/** Record type: a message was received */
+	private static final byte RECORD_MESSAGE = 1;
+	/** Record type: a message no longer needs processing, as it has been handled or discarded */
+	private static final byte RECORD_CHECKPOINT = 2;
+	/** Record type: a message was saved to the database */
+	private static final byte RECORD_SAVED = 3;
+	/** Value returned by {@link #append(long, String, String, String, byte[])} when a message could not be journalled */
+	public static final long NOT_JOURNALLED = -1;
+
+//> INSTANCE PROPERTIES
+	/** The two segments of the journal */
+	private final MappedByteBuffer[] segments = new MappedByteBuffer[2];
+	/** Time, in millis, between forcing the journal to disk */
+	private final long syncInterval;
+	/** Index in {@link #segments} of the segment being appended to */
+	private int activeSegment;
+	/** Generation of the active segment */
+	private long generation;
+	/** Sequence number to give the next message appended */
+	private long nextSequence;
+	/** Payloads of message records which have not been checkpointed, mapped by sequence number */
+	private final SortedMap<Long, byte[]> uncheckpointed = new TreeMap<Long, byte[]>();
+	/** Payloads of saved records for messages which have not been checkpointed, mapped by sequence number */
+	private final Map<Long, byte[]> saved = new HashMap<Long, byte[]>();
+	/** Set when records have been appended since the journal was last forced to disk */
+	private volatile boolean dirty;
+	/** Thread forcing the journal to disk */
+	private final Thread syncThread;
+	/** Set hi when the journal is being closed. */
+	private volatile boolean keepAlive = true;
+
+//> CONSTRUCTORS
+	/**
+	 * Opens a journal, creating it if it does not exist.  Records from the active segment are read, and the
+	 * sync thread is started.
+	 * @param directory the directory to keep the journal's segment files in
+	 * @param segmentSize size, in bytes, of each segment
+	 * @param syncInterval time, in millis, between forcing the journal to disk
+	 * @throws IOException if the journal could not be opened
+	 */
+	public IncomingMessageJournal(File directory, int segmentSize, long syncInterval) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory: " + directory.getAbsolutePath());
+		}
+		this.syncInterval = Math.max(1, syncInterval);
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = map(new File(directory, "incoming." + i), segmentSize);
+		}
+		this.activeSegment = getGeneration(segments[1]) > getGeneration(segments[0]) ? 1 : 0;
+		this.generation = getGeneration(segments[activeSegment]);
+		if(generation < 0) {
+			// Neither segment has been initialised, so start a new journal
+			this.generation = 0;
+			writeHeader(segments[activeSegment], generation);
+		}
+		readRecords(segments[activeSegment]);
+		LOG.info("Opened incoming message journal with " + uncheckpointed.size() + " uncheckpointed messages.");
+
+		this.syncThread = new Thread("Incoming message journal sync") {
+			public void run() {
+				while(keepAlive) {
+					FrontlineUtils.sleep_ignoreInterrupts(IncomingMessageJournal.this.syncInterval);
+					sync();
+				}
+			}
+		};
+		this.syncThread.setDaemon(true);
+		this.syncThread.start();
+	}
+
+//> ACCESSORS
+	/** @return the number of messages in the journal which have not been checkpointed */
+	public synchronized int getUncheckpointedCount() {
+		return uncheckpointed.size();
+	}
+
+	/**
+	 * @return the messages in the journal which have not been checkpointed, mapped by sequence number in the
+	 * order they were appended.  The messages have not been saved.
+	 */
+	public synchronized SortedMap<Long, FrontlineMessage> getUncheckpointed() {
+		SortedMap<Long, FrontlineMessage> messages = new TreeMap<Long, FrontlineMessage>();
+		for(Map.Entry<Long, byte[]> entry : uncheckpointed.entrySet()) {
+			try {
+				messages.put(entry.getKey(), decodeMessage(entry.getValue()));
+			} catch(IOException ex) {
+				LOG.warn("Unable to read journalled message " + entry.getKey(), ex);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * @return the database ids of messages in the journal which have been saved but not checkpointed, mapped by
+	 * sequence number
+	 */
+	public synchronized Map<Long, Long> getSavedMessageIds() {
+		Map<Long, Long> messageIds = new HashMap<Long, Long>();
+		for(Map.Entry<Long, byte[]> entry : saved.entrySet()) {
+			messageIds.put(entry.getKey(), getMessageId(entry.getValue()));
+		}
+		return messageIds;
+	}
+
+//> JOURNAL METHODS
+	/**
+	 * Appends a received message to the journal.  Exactly one of <code>text</code> and <code>binary</code>
+	 * should be supplied.
+	 * @param date the date the message was received
+	 * @param senderMsisdn the MSISDN of the message's sender
+	 * @param recipientMsisdn the MSISDN of the device which received the message
+	 * @param text the text of a text message, or <code>null</code> for a binary message
+	 * @param binary the content of a binary message, or <code>null</code> for a text message
+	 * @return the sequence number of the message, to pass to {@link #checkpoint(long)} once it has been saved
+	 * @throws IOException if the message could not be encoded, or there is no room for it in the journal
+	 */
+	public synchronized long append(long date, String senderMsisdn, String recipientMsisdn, String text, byte[] binary) throws IOException {
+		long sequence = nextSequence;
+		byte[] payload = encodeMessage(sequence, date, senderMsisdn, recipientMsisdn, text, binary);
+		if(!hasRoom(payload.length)) {
+			rollOver(payload.length);
+		}
+		writeRecord(segments[activeSegment], payload);
+		uncheckpointed.put(sequence, payload);
+		++nextSequence;
+		return sequence;
+	}
+
+	/**
+	 * Records that a message has been saved, so that it is not saved again if it is processed again when the
+	 * journal is next opened.
+	 * @param sequence the sequence number returned when the message was appended
+	 * @param messageId the database id of the saved message
+	 */
+	public synchronized void saved(long sequence, long messageId) {
+		if(!uncheckpointed.containsKey(sequence) || saved.containsKey(sequence)) return;
+		try {
+			byte[] payload = encodeSaved(sequence, messageId);
+			if(!hasRoom(payload.length)) {
+				rollOver(payload.length);
+			}
+			writeRecord(segments[activeSegment], payload);
+			saved.put(sequence, payload);
+		} catch(IOException ex) {
+			LOG.warn("Unable to record that journalled message " + sequence + " was saved.  It may be saved again when the journal is next opened.", ex);
+		}
+	}
+
+	/**
+	 * Records that a message has been handled, or discarded, so that it will not be returned by
+	 * {@link #getUncheckpointed()} when the journal is next opened.
+	 * @param sequence the sequence number returned when the message was appended
+	 */
+	public synchronized void checkpoint(long sequence) {
+		saved.remove(sequence);
+		if(uncheckpointed.remove(sequence) == null) return;
+		try {
+			byte[] payload = encodeCheckpoint(sequence);
+			if(!hasRoom(payload.length)) {
+				// The message is no longer uncheckpointed, so it will not be copied to the new segment
+				rollOver(0);
+			} else {
+				writeRecord(segments[activeSegment], payload);
+			}
+		} catch(IOException ex) {
+			LOG.warn("Unable to checkpoint journalled message " + sequence + ".  It may be processed again when the journal is next opened.", ex);
+		}
+	}
+
+	/** Forces any records appended since the last sync to disk. */
+	public void sync() {
+		if(dirty) {
+			dirty = false;
+			MappedByteBuffer segment;
+			synchronized(this) {
+				segment = segments[activeSegment];
+			}
+			segment.force();
+		}
+	}
+
+	/**
+	 * Stops the sync thread and forces the journal to disk.  Records appended after the journal has been
+	 * closed are still written, but will not be forced to disk.
+	 */
+	public void close() {
+		keepAlive = false;
+		syncThread.interrupt();
+		sync();
+	}
+
+//> SEGMENT METHODS
+	/**
+	 * @param payloadLength the length of a record's payload
+	 * @return <code>true</code> if there is room in the active segment for the record
+	 */
+	private boolean hasRoom(int payloadLength) {
+		MappedByteBuffer segment = segments[activeSegment];
+		return segment.position() + RECORD_OVERHEAD + payloadLength + END_MARKER_SIZE <= segment.capacity();
+	}
+
+	/**
+	 * Copies the records of all uncheckpointed messages, and their saved records, to the inactive segment, and
+	 * makes it the active segment.
+	 * The new segment's header is written last, so if FrontlineSMS stops while the records are being copied
+	 * the old segment will still be active when the journal is next opened.
+	 * @param requiredLength the length of the payload of a record which must fit in the new segment
+	 * @throws IOException if the uncheckpointed messages and the new record will not fit in a segment
+	 */
+	private void rollOver(int requiredLength) throws IOException {
+		int newSegmentIndex = 1 - activeSegment;
+		MappedByteBuffer newSegment = segments[newSegmentIndex];
+		int required = HEADER_SIZE + END_MARKER_SIZE + RECORD_OVERHEAD + requiredLength;
+		for(byte[] payload : uncheckpointed.values()) {
+			required += RECORD_OVERHEAD + payload.length;
+		}
+		for(byte[] payload : saved.values()) {
+			required += RECORD_OVERHEAD + payload.length;
+		}
+		if(required > newSegment.capacity()) {
+			throw new IOException("Incoming message journal is full: " + uncheckpointed.size() + " messages have not been checkpointed.");
+		}
+
+		LOG.debug("Rolling over incoming message journal with " + uncheckpointed.size() + " uncheckpointed messages.");
+		newSegment.position(HEADER_SIZE);
+		newSegment.putInt(HEADER_SIZE, 0);
+		for(Map.Entry<Long, byte[]> entry : uncheckpointed.entrySet()) {
+			writeRecord(newSegment, entry.getValue());
+			byte[] savedPayload = saved.get(entry.getKey());
+			if(savedPayload != null) writeRecord(newSegment, savedPayload);
+		}
+		newSegment.force();
+		writeHeader(newSegment, generation + 1);
+		newSegment.force();
+
+		++generation;
+		activeSegment = newSegmentIndex;
+	}
+
+	/**
+	 * Writes a record at the current position of a segment, followed by the end marker.  The position is
+	 * left at the start of the end marker, so that the next record overwrites it.
+	 * @param segment
+	 * @param payload
+	 */
+	private void writeRecord(MappedByteBuffer segment, byte[] payload) {
+		int start = segment.position();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		// Write the end marker first, so that there is never a gap between the previous record and the end of the segment
+		segment.putInt(start + RECORD_OVERHEAD + payload.length, 0);
+		segment.position(start + RECORD_OVERHEAD);
+		segment.put(payload);
+		segment.putInt(start + 4, (int) crc.getValue());
+		segment.putInt(start, payload.length);
+		segment.position(start + RECORD_OVERHEAD + payload.length);
+		dirty = true;
+	}
+
+	/**
+	 * Reads the records of a segment, starting after its header, and leaves the segment positioned at the end
+	 * of the last valid record.  A record whose checksum does not match was being written when FrontlineSMS
+	 * stopped, and is treated as the end of the segment.
+	 * @param segment
+	 */
+	private void readRecords(MappedByteBuffer segment) {
+		int position = HEADER_SIZE;
+		while(position + RECORD_OVERHEAD <= segment.capacity()) {
+			int length = segment.getInt(position);
+			if(length <= 0 || position + RECORD_OVERHEAD + length > segment.capacity()) break;
+			byte[] payload = new byte[length];
+			segment.position(position + RECORD_OVERHEAD);
+			segment.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if((int) crc.getValue() != segment.getInt(position + 4)) {
+				LOG.warn("Incomplete record found in incoming message journal at position " + position + ".");
+				break;
+			}
+
+			long sequence = getSequence(payload);
+			if(payload[0] == RECORD_MESSAGE) {
+				uncheckpointed.put(sequence, payload);
+			} else if(payload[0] == RECORD_SAVED) {
+				if(uncheckpointed.containsKey(sequence)) saved.put(sequence, payload);
+			} else {
+				uncheckpointed.remove(sequence);
+				saved.remove(sequence);
+			}
+			nextSequence = Math.max(nextSequence, sequence + 1);
+			position += RECORD_OVERHEAD + length;
+		}
+		segment.position(position);
+		if(position + END_MARKER_SIZE <= segment.capacity()) {
+			segment.putInt(position, 0);
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * Maps a segment file into memory, creating it if it does not exist.
+	 * @param file
+	 * @param size the size of the segment, in bytes
+	 * @return the mapped segment
+	 * @throws IOException
+	 */
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// The mapping remains valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER_SIZE + RECORD_OVERHEAD + END_MARKER_SIZE));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @return the generation of the segment, or <code>-1</code> if it has not been initialised
+	 */
+	private static long getGeneration(MappedByteBuffer segment) {
+		if(segment.getInt(0) != MAGIC) return -1;
+		return segment.getLong(4);
+	}
+
+	/**
+	 * @param segment
+	 * @param generation the generation to write in the segment's header
+	 */
+	private static void writeHeader(MappedByteBuffer segment, long generation) {
+		segment.putLong(4, generation);
+		segment.putInt(0, MAGIC);
+	}
+
+	/**
+	 * @param payload the payload of a record
+	 * @return the sequence number of the message the record relates to
+	 */
+	private static long getSequence(byte[] payload) {
+		long sequence = 0;
+		for(int i=1; i<9; ++i) {
+			sequence = (sequence << 8) | (payload[i] & 0xFF);
+		}
+		return sequence;
+	}
+
+	/** @return the payload of a record for a received message */
+	private static byte[] encodeMessage(long sequence, long date, String senderMsisdn, String recipientMsisdn, String text, byte[] binary) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_MESSAGE);
+		out.writeLong(sequence);
+		out.writeLong(date);
+		out.writeUTF(senderMsisdn == null ? "" : senderMsisdn);
+		out.writeUTF(recipientMsisdn == null ? "" : recipientMsisdn);
+		out.writeBoolean(binary != null);
+		if(binary != null) {
+			out.writeInt(binary.length);
+			out.write(binary);
+		} else {
+			out.writeUTF(text == null ? "" : text);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** @return the payload of a record of a message being saved */
+	private static byte[] encodeSaved(long sequence, long messageId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_SAVED);
+		out.writeLong(sequence);
+		out.writeLong(messageId);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param payload the payload of a saved record
+	 * @return the database id of the saved message
+	 */
+	private static long getMessageId(byte[] payload) {
+		long messageId = 0;
+		for(int i=9; i<17; ++i) {
+			messageId = (messageId << 8) | (payload[i] & 0xFF);
+		}
+		return messageId;
+	}
+
+	/** @return the payload of a record checkpointing a message */
+	private static byte[] encodeCheckpoint(long sequence) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_CHECKPOINT);
+		out.writeLong(sequence);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param payload the payload of a record for a received message
+	 * @return a new, unsaved message created from the record
+	 */
+	private static FrontlineMessage decodeMessage(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		in.readByte();
+		in.readLong();
+		long date = in.readLong();
+		String senderMsisdn = in.readUTF();
+		String recipientMsisdn = in.readUTF();
+		if(in.readBoolean()) {
+			byte[] binary = new byte[in.readInt()];
+			in.readFully(binary);
+			return FrontlineMessage.createBinaryIncomingMessage(date, senderMsisdn, recipientMsisdn, -1, binary);
+		} else {
+			return FrontlineMessage.createIncomingMessage(date, senderMsisdn, recipientMsisdn, in.readUTF());
+		}
+	}
+}
@@ -21,12 +21,23 @@ package net.frontlinesms.messaging;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.DelayQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import net.frontlinesms.AppProperties;
 import net.frontlinesms.EmailServerHandler;
 import net.frontlinesms.FrontlineSMS;
 import net.frontlinesms.FrontlineSMSConstants;
@@ -35,6 +46,7 @@ import net.frontlinesms.XMLReader;
 import net.frontlinesms.data.domain.*;
 import net.frontlinesms.data.domain.KeywordAction.ExternalCommandResponseActionType;
 import net.frontlinesms.data.domain.KeywordAction.ExternalCommandResponseType;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
 import net.frontlinesms.data.repository.*;
 import net.frontlinesms.data.*;
@@ -45,26 +57,70 @@ import net.frontlinesms.messaging.sms.SmsService;
 import net.frontlinesms.mms.MmsMessage;
 
 import org.apache.log4j.Logger;
-import org.jdom.JDOMException;
 import org.smslib.CIncomingMessage;
 import org.smslib.CStatusReportMessage;
 import org.smslib.CMessage.MessageType;
 import org.smslib.sms.SmsMessageEncoding;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * Processor of incoming messages for {@link FrontlineSMS}.
+ * 
+ * Messages are processed by a pool of {@link Worker} threads, each with its own queue.  Each message is
+ * routed to a worker by the sender's MSISDN, so messages from the same sender are always processed in
+ * the order they were received, while messages from different senders can be processed in parallel.
+ * 
+ * Items which fail to be processed are moved to a retry queue, so that a single bad message does not hold
+ * up the rest of its worker's queue.  Failed items are retried with exponential backoff, and are moved to a
+ * dead-letter store after too many failures, from where they can be inspected and replayed.  A retried item
+ * may therefore be processed after later messages from the same sender.
  * @author Alex
  */
-public class IncomingMessageProcessor extends Thread {
-	/** Time, in millis, thread should sleep for after message processing failed. */
-	private static final int THREAD_SLEEP_AFTER_PROCESSING_FAILED = 5000;
+public class IncomingMessageProcessor {
+	/** The maximum number of failed items held in the dead-letter store.  When it is full, the oldest items are discarded. */
+	private static final int DEAD_LETTER_CAPACITY = 1000;
+
+	/** Time, in millis, that {@link #die()} waits for the workers to process the messages already in their queues before interrupting them */
+	private static final long WORKER_STOP_TIMEOUT = 30 * 1000;
+
+	/** Host that all external programs are counted against when limiting the number of external commands run at once */
+	private static final String EXTERNAL_PROGRAM_HOST = "localhost";
 
 	private static final Logger LOG = FrontlineUtils.getLogger(IncomingMessageProcessor.class);
 	
-	/** Set hi when the thread should terminate. */
-	private boolean keepAlive;
-	/** Queue of messages to process. */
-	private final BlockingQueue<IncomingMessageProcessorQueueItem> incomingMessageQueue = new LinkedBlockingQueue<IncomingMessageProcessorQueueItem>();
+	/** Workers processing messages.  Each worker has its own queue, so this array also represents the partitions of the incoming queue. */
+	private final Worker[] workers;
+	/** The maximum number of messages to save in a single transaction */
+	private final int batchSize;
+	/** Time, in millis, to wait for more messages to arrive before saving a batch */
+	private final long batchWindow;
+	/** Template for handling each message in its own transaction, or <code>null</code> if no transaction manager is available */
+	private final TransactionTemplate transactionTemplate;
+	/** Executor for running external commands triggered by keyword actions */
+	private final ExternalCommandExecutor externalCommandExecutor;
+	/** Time, in millis, after which external commands are abandoned */
+	private final long externalCommandTimeout;
+	/** Scheduler returning failed items to the workers' queues once they are due to be retried */
+	private final RetryScheduler retryScheduler = new RetryScheduler();
+	/** Time, in millis, to wait before retrying a failed item for the first time.  The delay doubles with each further failure. */
+	private volatile long retryDelay;
+	/** The maximum time, in millis, to wait before retrying a failed item */
+	private volatile long maxRetryDelay;
+	/** The number of times an item may fail before it is moved to the dead-letter store */
+	private volatile int maxRetryAttempts;
+	/**
+	 * Items which failed too many times to be retried again, oldest first.  Journalled messages are not
+	 * checkpointed until they are discarded from here, so those still here when FrontlineSMS stops are
+	 * processed again when it next starts, and return here if they fail again.
+	 */
+	private final LinkedList<FailedIncomingMessage> deadLetters = new LinkedList<FailedIncomingMessage>();
+	/** Journal of received messages which have not been saved yet, or <code>null</code> if messages are not journalled */
+	private volatile IncomingMessageJournal journal;
 	
 //> DATA ACCESS OBJECTS
 	private final FrontlineSMS frontline;
@@ -76,15 +132,40 @@ public class IncomingMessageProcessor extends Thread {
 	private final MessageDao messageDao;
 	private EmailDao emailDao;
 
-	private UIListener uiListener;
+	private volatile UIListener uiListener;
 	/** Set of listeners for incoming message events. */
-	private Set<IncomingMessageListener> incomingMessageListeners = new HashSet<IncomingMessageListener>();
+	private Set<IncomingMessageListener> incomingMessageListeners = new CopyOnWriteArraySet<IncomingMessageListener>();
 	
 	private final EmailServerHandler emailServerHandler;
 
-	/** Create a new {@link IncomingMessageProcessor}, and initialise properties. */
+	/**
+	 * Create a new {@link IncomingMessageProcessor}, and initialise properties.  The number of worker threads
+	 * is read from {@link AppProperties#getIncomingMessageProcessorThreadCount()}.
+	 */
 	public IncomingMessageProcessor(FrontlineSMS frontline) {
-		super("Incoming message processor");
+		this(frontline, AppProperties.getInstance().getIncomingMessageProcessorThreadCount());
+	}
+	
+	/**
+	 * Create a new {@link IncomingMessageProcessor}, and initialise properties.  Batching settings are read
+	 * from {@link AppProperties}.
+	 * @param frontline
+	 * @param workerCount the number of threads to process messages with
+	 */
+	public IncomingMessageProcessor(FrontlineSMS frontline, int workerCount) {
+		this(frontline, workerCount,
+				AppProperties.getInstance().getIncomingMessageBatchSize(),
+				AppProperties.getInstance().getIncomingMessageBatchWindow());
+	}
+	
+	/**
+	 * Create a new {@link IncomingMessageProcessor}, and initialise properties.
+	 * @param frontline
+	 * @param workerCount the number of threads to process messages with
+	 * @param batchSize the maximum number of messages each worker will save in a single transaction
+	 * @param batchWindow the time, in millis, a worker will wait for more messages to add to a batch
+	 */
+	public IncomingMessageProcessor(FrontlineSMS frontline, int workerCount, int batchSize, long batchWindow) {
 		this.frontline = frontline;
 		this.contactDao = frontline.getContactDao();
 		this.keywordDao = frontline.getKeywordDao();
@@ -94,70 +175,395 @@ public class IncomingMessageProcessor extends Thread {
 		this.messageDao = frontline.getMessageDao();
 		this.emailDao = frontline.getEmailDao();
 		this.emailServerHandler = frontline.getEmailServerHandler();
+		PlatformTransactionManager transactionManager = frontline.getTransactionManager();
+		this.transactionTemplate = transactionManager == null ? null : new TransactionTemplate(transactionManager);
+		this.batchSize = Math.max(1, batchSize);
+		this.batchWindow = Math.max(0, batchWindow);
+		
+		AppProperties appProperties = AppProperties.getInstance();
+		this.externalCommandExecutor = new ExternalCommandExecutor(
+				appProperties.getExternalCommandThreadCount(),
+				appProperties.getExternalCommandQueueSize(),
+				appProperties.getExternalCommandHostConcurrency(),
+				appProperties.getExternalCommandHostQueueSize());
+		this.externalCommandTimeout = appProperties.getExternalCommandTimeout();
+		setRetryPolicy(appProperties.getIncomingRetryDelay(),
+				appProperties.getIncomingRetryMaxDelay(),
+				appProperties.getIncomingRetryMaxAttempts());
+		
+		this.workers = new Worker[Math.max(1, workerCount)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker("Incoming message processor " + i);
+		}
 	}
 	
 	public void setUiListener(UIListener uiListener) {
 		this.uiListener = uiListener;
 	}
+	
+	/**
+	 * Sets the journal that received messages are written to until they are saved.  This should be called
+	 * before the processor is started, so that messages left in the journal can be processed.
+	 * @param journal the journal, or <code>null</code> if messages should not be journalled
+	 */
+	public void setJournal(IncomingMessageJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Sets how failed items are retried.  This should be called before the processor is started.
+	 * @param retryDelay time, in millis, to wait before retrying a failed item for the first time
+	 * @param maxRetryDelay the maximum time, in millis, to wait before retrying a failed item
+	 * @param maxRetryAttempts the number of times an item may fail before it is moved to the dead-letter store
+	 */
+	/* not private to allow unit testing */
+	void setRetryPolicy(long retryDelay, long maxRetryDelay, int maxRetryAttempts) {
+		this.retryDelay = Math.max(0, retryDelay);
+		this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+		this.maxRetryAttempts = Math.max(1, maxRetryAttempts);
+	}
 
 	
 	public void queue(SmsService receiver, CIncomingMessage incomingMessage) {
 		LOG.trace("Adding message to queue: " + receiver.hashCode() + ":" + incomingMessage.hashCode());
-		incomingMessageQueue.add(new IncomingMessageDetails(receiver, incomingMessage));
+		IncomingMessageDetails details = new IncomingMessageDetails(receiver, incomingMessage);
+		IncomingMessageJournal journal = this.journal;
+		if(journal != null && incomingMessage.getType() != CIncomingMessage.MessageType.StatusReport) {
+			try {
+				boolean isText = isTextMessage(incomingMessage);
+				details.setJournalSequence(journal.append(incomingMessage.getDate(), incomingMessage.getOriginator(), receiver.getMsisdn(),
+						isText ? incomingMessage.getText() : null, isText ? null : incomingMessage.getBinary()));
+			} catch(IOException ex) {
+				LOG.error("Unable to journal incoming message.  It will be lost if FrontlineSMS stops before it is saved.", ex);
+			}
+		}
+		getWorker(incomingMessage.getOriginator()).queue(details);
 	}
 	
 	public void queue(MmsMessage mms) {
 		LOG.trace("Adding MMS to queue:" + mms.hashCode());
-		incomingMessageQueue.add(new IncomingMms(mms));
+		getWorker(mms.getSender()).queue(new IncomingMms(mms));
 	}
 	
+	/**
+	 * Start the worker threads.  Messages left in the journal by a previous run, including those which were
+	 * waiting to be retried or in the dead-letter store, are queued first.
+	 */
+	public void start() {
+		IncomingMessageJournal journal = this.journal;
+		if(journal != null) {
+			SortedMap<Long, FrontlineMessage> unhandled = journal.getUncheckpointed();
+			if(unhandled.size() > 0) {
+				LOG.info("Replaying " + unhandled.size() + " unhandled messages from the incoming message journal.");
+				Map<Long, Long> savedMessageIds = journal.getSavedMessageIds();
+				for(Map.Entry<Long, FrontlineMessage> entry : unhandled.entrySet()) {
+					FrontlineMessage message = entry.getValue();
+					Long messageId = savedMessageIds.get(entry.getKey());
+					if(messageId != null) {
+						// The message was saved, so it is handled without being saved again
+						FrontlineMessage savedMessage = messageDao.getMessage(messageId);
+						if(savedMessage == null) {
+							LOG.warn("Journalled message " + messageId + " has been deleted, so will not be replayed.");
+							journal.checkpoint(entry.getKey());
+							continue;
+						}
+						getWorker(message.getSenderMsisdn()).queue(new ReplayedIncomingMessage(entry.getKey(), savedMessage, true));
+					} else {
+						getWorker(message.getSenderMsisdn()).queue(new ReplayedIncomingMessage(entry.getKey(), message, false));
+					}
+				}
+			}
+		}
+		for(Worker worker : workers) {
+			worker.start();
+		}
+		retryScheduler.start();
+	}
+	
+	/**
+	 * Stop all worker threads once they have processed the messages already in their queues, and wait for them
+	 * to finish.  Workers which are still running after {@link #WORKER_STOP_TIMEOUT} are interrupted.  Once the
+	 * workers have stopped, external commands which are still running are interrupted, and failed items waiting
+	 * to be retried are abandoned; journalled messages among them are processed again when FrontlineSMS next starts.
+	 */
 	public void die() {
-		keepAlive = false;
-		incomingMessageQueue.add(new IncomingMessageProcessorQueueKiller());
+		for(Worker worker : workers) {
+			worker.die();
+		}
+		long stopBy = System.currentTimeMillis() + WORKER_STOP_TIMEOUT;
+		for(Worker worker : workers) {
+			worker.awaitDeath(stopBy - System.currentTimeMillis());
+		}
+		retryScheduler.die();
+		externalCommandExecutor.shutdown();
+		if(journal != null) {
+			journal.close();
+		}
 	}
 	
-	public void run() {
-		this.keepAlive = true;
-		while(keepAlive) {
-			IncomingMessageProcessorQueueItem queueItem = null;
-			LOG.trace("Getting incoming message from queue.");
-			try {
-				queueItem = incomingMessageQueue.take();
-			} catch(InterruptedException ex) {
-				LOG.warn("Thread interrupted.", ex);
+//> ACCESSORS
+	/** @return the number of partitions the incoming queue is split into, i.e. the number of worker threads */
+	public int getPartitionCount() {
+		return workers.length;
+	}
+	
+	/**
+	 * @param partition the index of a partition
+	 * @return the number of items waiting to be processed in the partition
+	 */
+	public int getQueueDepth(int partition) {
+		return workers[partition].getQueueDepth();
+	}
+	
+	/** @return the number of items waiting to be processed in each partition */
+	public int[] getQueueDepths() {
+		int[] depths = new int[workers.length];
+		for (int i = 0; i < depths.length; i++) {
+			depths[i] = workers[i].getQueueDepth();
+		}
+		return depths;
+	}
+	
+	/** @return the number of failed items waiting to be retried */
+	public int getRetryQueueSize() {
+		return retryScheduler.size();
+	}
+	
+	/** @return the items which failed too many times to be retried again, oldest first */
+	public List<FailedIncomingMessage> getDeadLetters() {
+		synchronized(deadLetters) {
+			return new ArrayList<FailedIncomingMessage>(deadLetters);
+		}
+	}
+	
+	/**
+	 * Gets the partition that messages from a particular sender are processed in.
+	 * @param senderMsisdn the MSISDN of the sender of a message
+	 * @return the index of the partition
+	 */
+	public int getPartition(String senderMsisdn) {
+		if(senderMsisdn == null) return 0;
+		return (senderMsisdn.hashCode() & Integer.MAX_VALUE) % workers.length;
+	}
+	
+	/**
+	 * @param senderMsisdn the MSISDN of the sender of a message
+	 * @return the worker which messages from the sender should be processed by
+	 */
+	private Worker getWorker(String senderMsisdn) {
+		return workers[getPartition(senderMsisdn)];
+	}
+	
+//> DEAD-LETTER METHODS
+	/**
+	 * Removes an item from the dead-letter store and queues it to be processed again.  Its number of
+	 * attempts is reset, so it may fail as many times as a new item before being dead-lettered again.
+	 * @param failed an item returned by {@link #getDeadLetters()}
+	 * @return <code>true</code> if the item was in the dead-letter store and has been queued
+	 */
+	public boolean replayDeadLetter(FailedIncomingMessage failed) {
+		if(!removeDeadLetter(failed)) return false;
+		LOG.info("Replaying dead-lettered message from [" + failed.getSenderMsisdn() + "]");
+		failed.reset();
+		getWorker(failed.getSenderMsisdn()).queue(failed);
+		return true;
+	}
+	
+	/**
+	 * Queues all items in the dead-letter store to be processed again.
+	 * @return the number of items replayed
+	 * @see #replayDeadLetter(FailedIncomingMessage)
+	 */
+	public int replayDeadLetters() {
+		int replayed = 0;
+		for(FailedIncomingMessage failed : getDeadLetters()) {
+			if(replayDeadLetter(failed)) ++replayed;
+		}
+		return replayed;
+	}
+	
+	/**
+	 * Removes an item from the dead-letter store without processing it again.  It is checkpointed in the
+	 * journal, so it will not be processed again when FrontlineSMS next starts.
+	 * @param failed an item returned by {@link #getDeadLetters()}
+	 * @return <code>true</code> if the item was in the dead-letter store
+	 */
+	public boolean discardDeadLetter(FailedIncomingMessage failed) {
+		if(!removeDeadLetter(failed)) return false;
+		checkpoint(failed.getBatch().getItems().get(0));
+		return true;
+	}
+	
+	/**
+	 * @param failed an item returned by {@link #getDeadLetters()}
+	 * @return <code>true</code> if the item was in the dead-letter store
+	 */
+	private boolean removeDeadLetter(FailedIncomingMessage failed) {
+		synchronized(deadLetters) {
+			return deadLetters.remove(failed);
+		}
+	}
+	
+	/**
+	 * Records the failure of an item.  If the item has failed too many times it is moved to the dead-letter
+	 * store, otherwise it is scheduled to be retried after a delay which doubles with each failure.
+	 * @param failed the failed item
+	 * @param error the exception thrown while processing the item
+	 */
+	private void failed(FailedIncomingMessage failed, Throwable error) {
+		failed.failed(error, getRetryDelay(failed.getAttempts() + 1));
+		if(failed.getAttempts() < maxRetryAttempts) {
+			LOG.warn("Error processing message from [" + failed.getSenderMsisdn() + "]." +
+					"  It will be retried in " + failed.getDelay(TimeUnit.MILLISECONDS) + "ms.", error);
+			retryScheduler.schedule(failed);
+		} else {
+			LOG.error("Error processing message from [" + failed.getSenderMsisdn() + "]." +
+					"  It has failed " + failed.getAttempts() + " times, and will not be retried.", error);
+			FailedIncomingMessage discarded = null;
+			synchronized(deadLetters) {
+				deadLetters.add(failed);
+				if(deadLetters.size() > DEAD_LETTER_CAPACITY) {
+					discarded = deadLetters.removeFirst();
+				}
+			}
+			if(discarded != null) {
+				LOG.error("Dead-letter store is full.  Discarding message from [" + discarded.getSenderMsisdn() + "]");
+				checkpoint(discarded.getBatch().getItems().get(0));
 			}
+		}
+	}
+	
+	/**
+	 * @param attempts the number of times an item has failed
+	 * @return the time, in millis, to wait before retrying the item
+	 */
+	private long getRetryDelay(int attempts) {
+		long delay = retryDelay;
+		for(int i=1; i<attempts && delay < maxRetryDelay; ++i) {
+			delay <<= 1;
+		}
+		return Math.min(delay, maxRetryDelay);
+	}
+	
+	/**
+	 * @param queueItem an item from a worker's queue
+	 * @return the MSISDN of the sender of the item, or <code>null</code> if it has no sender
+	 */
+	private static String getSenderMsisdn(IncomingMessageProcessorQueueItem queueItem) {
+		if(queueItem instanceof IncomingMessageDetails) {
+			return ((IncomingMessageDetails) queueItem).getMessage().getOriginator();
+		} else if(queueItem instanceof IncomingMms) {
+			return ((IncomingMms) queueItem).getMessage().getSender();
+		} else if(queueItem instanceof ReplayedIncomingMessage) {
+			return ((ReplayedIncomingMessage) queueItem).getMessage().getSenderMsisdn();
+		} else {
+			return null;
+		}
+	}
+	
+//> PROCESSING METHODS
+	/**
+	 * Processes a batch of items taken from a worker's queue.  Messages are created for all items and
+	 * saved in a single transaction, and then each item is handled in the order it was queued.
+	 * <br>If this method throws an exception, it can be called again with the same batch: messages that
+	 * have already been saved will not be saved again, and items which have been handled will not be
+	 * handled again.
+	 * @param batch
+	 */
+	private void processBatch(IncomingMessageBatch batch) {
+		if(!batch.isSaved()) {
+			List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>(batch.size());
+			for(IncomingMessageProcessorQueueItem queueItem : batch.getItems()) {
+				messages.add(createMessage(queueItem));
+			}
+			
+			List<FrontlineMessage> toSave = new ArrayList<FrontlineMessage>(messages.size());
+			for(int i=0; i<messages.size(); ++i) {
+				FrontlineMessage message = messages.get(i);
+				if(message != null && !isSaved(batch.getItems().get(i))) toSave.add(message);
+			}
+			if(toSave.size() > 0) {
+				LOG.trace("Saving " + toSave.size() + " incoming messages.");
+				messageDao.saveMessages(toSave);
+			}
+			batch.setMessages(messages);
+			recordSaved(batch);
+		}
 		
-			if (queueItem == null) {
-				// we may have popped out when queue was notified, which means job may be null
-				LOG.trace("There were no messages in the queue.");
-				continue;
-			} else {
-				if(queueItem instanceof IncomingMessageProcessorQueueKiller) {
-					// We have been given a "poisoned" item so must terminate this thread
-					keepAlive = false;
-				} else {
-					try {
-						// We've got a new message, so process it.
-						processIncomingMessageDetails(queueItem);
-					} catch(Throwable t) {
-						// There was a problem processing the message.  At this stage, any issue should be a database
-						// connectivity issue.  Stop processing messages for a while, and re-queue this one.
-						LOG.warn("Error processing message.  It will be queued for re-processing.", t);
-						incomingMessageQueue.add(queueItem);
-						FrontlineUtils.sleep_ignoreInterrupts(THREAD_SLEEP_AFTER_PROCESSING_FAILED);
-					}
-				} 
+		while(batch.getProcessedCount() < batch.size()) {
+			int index = batch.getProcessedCount();
+			IncomingMessageProcessorQueueItem queueItem = batch.getItems().get(index);
+			handleProcessedItemInTransaction(queueItem, batch.getMessages().get(index));
+			batch.incrementProcessedCount();
+			checkpoint(queueItem);
+		}
+	}
+	
+	/**
+	 * @param queueItem
+	 * @return <code>true</code> if the item's message was saved before FrontlineSMS last stopped
+	 */
+	private static boolean isSaved(IncomingMessageProcessorQueueItem queueItem) {
+		return queueItem instanceof ReplayedIncomingMessage && ((ReplayedIncomingMessage) queueItem).isSaved();
+	}
+	
+	/**
+	 * Records in the journal that the messages of a batch have been saved, so that they are not saved again
+	 * if they have not been handled when FrontlineSMS next starts.
+	 * @param batch
+	 */
+	private void recordSaved(IncomingMessageBatch batch) {
+		IncomingMessageJournal journal = this.journal;
+		if(journal != null) {
+			for(int i=0; i<batch.size(); ++i) {
+				long journalSequence = getJournalSequence(batch.getItems().get(i));
+				if(journalSequence != IncomingMessageJournal.NOT_JOURNALLED) {
+					FrontlineMessage message = batch.getMessages().get(i);
+					if(message == null) journal.checkpoint(journalSequence);
+					else journal.saved(journalSequence, message.getId());
+				}
 			}
 		}
-		LOG.trace("EXIT");
 	}
 	
-	private void processIncomingMessageDetails(IncomingMessageProcessorQueueItem queueItem) {
+	/**
+	 * Records in the journal that an item has been handled or discarded, so that it is not processed again
+	 * when FrontlineSMS next starts.
+	 * @param queueItem
+	 */
+	private void checkpoint(IncomingMessageProcessorQueueItem queueItem) {
+		IncomingMessageJournal journal = this.journal;
+		long journalSequence = getJournalSequence(queueItem);
+		if(journal != null && journalSequence != IncomingMessageJournal.NOT_JOURNALLED) {
+			journal.checkpoint(journalSequence);
+		}
+	}
+	
+	/**
+	 * @param queueItem
+	 * @return the sequence number of the item's message in the journal, or {@link IncomingMessageJournal#NOT_JOURNALLED}
+	 */
+	private static long getJournalSequence(IncomingMessageProcessorQueueItem queueItem) {
+		if(queueItem instanceof IncomingMessageDetails) {
+			return ((IncomingMessageDetails) queueItem).getJournalSequence();
+		} else if(queueItem instanceof ReplayedIncomingMessage) {
+			return ((ReplayedIncomingMessage) queueItem).getJournalSequence();
+		} else {
+			return IncomingMessageJournal.NOT_JOURNALLED;
+		}
+	}
+	
+	/**
+	 * Creates the {@link FrontlineMessage} to persist for a queue item.
+	 * @param queueItem
+	 * @return the message to save, or <code>null</code> if nothing should be saved for this item
+	 */
+	private FrontlineMessage createMessage(IncomingMessageProcessorQueueItem queueItem) {
 		if (queueItem instanceof IncomingMms) {
 			// Creates the FrontlineMultimediaMessage
-			FrontlineMultimediaMessage mms = MmsUtils.create(((IncomingMms) queueItem).getMessage());
-			this.messageDao.saveMessage(mms);
-			handleMessage(mms);
+			return MmsUtils.create(((IncomingMms) queueItem).getMessage());
+		} else if (queueItem instanceof ReplayedIncomingMessage) {
+			return ((ReplayedIncomingMessage) queueItem).getMessage();
 		} else if (queueItem instanceof IncomingMessageDetails) {
 			IncomingMessageDetails incomingMessageDetails = (IncomingMessageDetails) queueItem;
 			CIncomingMessage incomingMessage = incomingMessageDetails.getMessage();
@@ -169,34 +575,116 @@ public class IncomingMessageProcessor extends Thread {
 			String incomingSenderMsisdn = incomingMessage.getOriginator();
 			LOG.debug("Sender [" + incomingSenderMsisdn + "]");
 			if (incomingMessage.getType() == CIncomingMessage.MessageType.StatusReport) {
-				handleStatusReport(incomingMessage);
+				// Status reports update existing messages, so there is nothing to save
+				return null;
+			} else if (isTextMessage(incomingMessage)) {
+				if(LOG.isDebugEnabled()) LOG.debug("Incoming text message [" + incomingMessage.getText() + "]");
+				return FrontlineMessage.createIncomingMessage(incomingMessage.getDate(), incomingSenderMsisdn, receiver.getMsisdn(), incomingMessage.getText());
 			} else {
-				// This is an incoming message, so process accordingly
-				FrontlineMessage incoming;
-				if (incomingMessage.getMessageEncoding() == SmsMessageEncoding.GSM_7BIT || incomingMessage.getMessageEncoding() == SmsMessageEncoding.UCS2) {
-					if(LOG.isDebugEnabled()) LOG.debug("Incoming text message [" + incomingMessage.getText() + "]");
-					incoming = FrontlineMessage.createIncomingMessage(incomingMessage.getDate(), incomingSenderMsisdn, receiver.getMsisdn(), incomingMessage.getText());
-					messageDao.saveMessage(incoming);
-					handleMessage(incoming);
-				} else {
-					if(LOG.isDebugEnabled()) LOG.debug("Incoming binary message: " + incomingMessage.getBinary().length + "b");
-					
-					// Save the binary message
-					incoming = FrontlineMessage.createBinaryIncomingMessage(incomingMessage.getDate(), incomingSenderMsisdn, receiver.getMsisdn(), -1, incomingMessage.getBinary());
-					messageDao.saveMessage(incoming);
+				if(LOG.isDebugEnabled()) LOG.debug("Incoming binary message: " + incomingMessage.getBinary().length + "b");
+				return FrontlineMessage.createBinaryIncomingMessage(incomingMessage.getDate(), incomingSenderMsisdn, receiver.getMsisdn(), -1, incomingMessage.getBinary());
+			}
+		} else {
+			LOG.error("Unknown queue item type: " + queueItem.getClass());
+			return null;
+		}
+	}
+	
+	/**
+	 * Handles a queue item in a single transaction, so that all database access triggered by the item shares
+	 * one session and is committed once.
+	 * @param queueItem
+	 * @param message the message saved for the queue item, or <code>null</code> if none was saved
+	 * @see #handleProcessedItem(IncomingMessageProcessorQueueItem, FrontlineMessage)
+	 */
+	private void handleProcessedItemInTransaction(final IncomingMessageProcessorQueueItem queueItem, final FrontlineMessage message) {
+		if(transactionTemplate == null) {
+			handleProcessedItem(queueItem, message);
+		} else {
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					handleProcessedItem(queueItem, message);
 				}
+			});
+		}
+	}
 	
-				for(IncomingMessageListener listener : this.incomingMessageListeners) {
-					listener.incomingMessageEvent(incoming);
+	/**
+	 * Handles a queue item after its message has been saved: status reports are matched to sent messages,
+	 * keyword actions are triggered and listeners are notified.
+	 * @param queueItem
+	 * @param message the message saved for the queue item, or <code>null</code> if none was saved
+	 */
+	private void handleProcessedItem(IncomingMessageProcessorQueueItem queueItem, FrontlineMessage message) {
+		if (queueItem instanceof IncomingMms) {
+			handleMessage(message);
+		} else if (queueItem instanceof ReplayedIncomingMessage) {
+			handleReceivedMessage(message);
+		} else if (queueItem instanceof IncomingMessageDetails) {
+			CIncomingMessage incomingMessage = ((IncomingMessageDetails) queueItem).getMessage();
+			if (incomingMessage.getType() == CIncomingMessage.MessageType.StatusReport) {
+				handleStatusReport(incomingMessage);
+			} else {
+				handleReceivedMessage(message);
+			}
+		}
+	}
+	
+	/**
+	 * Handles a saved text or binary message: keyword actions are triggered for text messages, and listeners
+	 * are notified once the changes made for the message have been committed.
+	 * @param message
+	 */
+	private void handleReceivedMessage(final FrontlineMessage message) {
+		if (!message.isBinaryMessage()) {
+			handleMessage(message);
+		}
+
+		runAfterCommit(new Runnable() {
+			public void run() {
+				for(IncomingMessageListener listener : incomingMessageListeners) {
+					listener.incomingMessageEvent(message);
 				}
 				if (uiListener != null) {
-					uiListener.incomingMessageEvent(incoming);
+					uiListener.incomingMessageEvent(message);
 				}
 			}
-		}  else {
-			LOG.error("Unknown queue item type: " + queueItem.getClass());
+		});
+	}
+	
+	/**
+	 * Runs a task once the current transaction has been committed, or straight away if there is no transaction.
+	 * Replies and forwards are queued for sending, and listeners are notified, this way, so that nothing is sent
+	 * for a message whose changes are rolled back, and listeners do not read changes which are not yet in the
+	 * database.
+	 * @param task
+	 */
+	private static void runAfterCommit(final Runnable task) {
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					try {
+						task.run();
+					} catch(RuntimeException ex) {
+						// The message has been handled, so this must not cause it to be retried
+						LOG.warn("Exception thrown after incoming message changes were committed.", ex);
+					}
+				}
+			});
+		} else {
+			task.run();
 		}
 	}
+	
+	/**
+	 * @param incomingMessage
+	 * @return <code>true</code> if the message should be stored as text, or <code>false</code> if it should be stored as binary
+	 */
+	private static boolean isTextMessage(CIncomingMessage incomingMessage) {
+		return incomingMessage.getMessageEncoding() == SmsMessageEncoding.GSM_7BIT || incomingMessage.getMessageEncoding() == SmsMessageEncoding.UCS2;
+	}
 
 	/**
 	 * Process an incoming status report.  The status should be set to
@@ -211,7 +699,19 @@ public class IncomingMessageProcessor extends Thread {
 		// Here, we strip the first four characters off the originator's number.  This is because we
 		// cannot be sure if the numbers supplied by the PhoneHandler are localised, or international
 		// with or without leading +.
-		FrontlineMessage message = messageDao.getMessageForStatusUpdate(statusReport.getOriginator(), incomingMessage.getRefNo());
+		MessageStatusWriter statusWriter = frontline.getMessageStatusWriter();
+		DeliveryReportTracker deliveryReportTracker = frontline.getDeliveryReportTracker();
+		FrontlineMessage message;
+		if (deliveryReportTracker != null) {
+			// The tracker takes the sent message from the status writer if its status has not been written yet
+			message = deliveryReportTracker.getMessageForStatusReport(statusReport.getOriginator(), incomingMessage.getRefNo());
+		} else {
+			message = messageDao.getMessageForStatusUpdate(statusReport.getOriginator(), incomingMessage.getRefNo());
+			if (message != null && statusWriter != null) {
+				FrontlineMessage waiting = statusWriter.remove(message.getId());
+				if (waiting != null) message = waiting;
+			}
+		}
 		if (message != null) {
 			LOG.debug("It's a delivery report for message [" + message + "]");
 			switch(statusReport.getDeliveryStatus()) {
@@ -222,8 +722,19 @@ public class IncomingMessageProcessor extends Thread {
 				message.setStatus(Status.FAILED);
 				break;
 			}
+			if (statusWriter != null) {
+				// Written by the status writer, outside this transaction, together with other status changes
+				statusWriter.statusChanged(message);
+			} else {
+				messageDao.updateMessage(message);
+			}
 			if (uiListener != null) {
-				uiListener.outgoingMessageEvent(message);
+				final FrontlineMessage updated = message;
+				runAfterCommit(new Runnable() {
+					public void run() {
+						uiListener.outgoingMessageEvent(updated);
+					}
+				});
 			}
 		}
 	}
@@ -249,7 +760,8 @@ public class IncomingMessageProcessor extends Thread {
 
 			if(actions.size() > 0) {
 				LOG.debug("Executing actions for keyword, if the contact is allowed!");
-				Contact contact = contactDao.getFromMsisdn(message.getSenderMsisdn());
+				IncomingMessageContext context = new IncomingMessageContext(message, contactDao.getFromMsisdn(message.getSenderMsisdn()));
+				Contact contact = context.getSender();
 				//If we could not find this contact, we execute the action.
 				//If we found a contact, he/she needs to be allowed to execute the action.
 				if (contact == null || contact.isActive()) {
@@ -257,7 +769,7 @@ public class IncomingMessageProcessor extends Thread {
 					for (KeywordAction action : actions) {
 						if (action.isAlive(triggerTime)) {
 							try {
-								handleIncomingMessageAction_post(action, message);
+								handleIncomingMessageAction_post(action, context);
 							} catch(Exception ex) {
 								LOG.warn("Exception thrown while executing action.", ex);
 							}
@@ -271,10 +783,12 @@ public class IncomingMessageProcessor extends Thread {
 	/**
 	 * Handle relevant incoming message actions AFTER the message has been created with the messageFactory.
 	 * @param action The action to executed.
-	 * @param incoming The incoming message that triggered this action.
+	 * @param context The incoming message that triggered this action, and its sender.
 	 */
-	private void handleIncomingMessageAction_post(KeywordAction action, FrontlineMessage incoming) {
+	private void handleIncomingMessageAction_post(KeywordAction action, IncomingMessageContext context) {
 		LOG.trace("ENTER");
+		FrontlineMessage incoming = context.getMessage();
+		Contact sender = context.getSender();
 		String incomingSenderMsisdn = incoming.getSenderMsisdn();
 		String incomingMessageText = incoming.getTextContent();
 		switch (action.getType()) {
@@ -284,32 +798,36 @@ public class IncomingMessageProcessor extends Thread {
 			case FORWARD:
 				// Generate a message, and then forward it to the group attached to this action.
 				LOG.debug("It is a forward action!");
-				String forwardedMessageText = KeywordAction.KeywordUtils.getForwardText(action, contactDao.getFromMsisdn(incomingSenderMsisdn), incomingSenderMsisdn, incomingMessageText);
+				String forwardedMessageText = KeywordAction.KeywordUtils.getForwardText(action, sender, incomingSenderMsisdn, incomingMessageText);
 				LOG.debug("Message to forward [" + forwardedMessageText + "]");
-				for (Contact contact : this.groupMembershipDao.getActiveMembers(action.getGroup())) {
+				for (final Contact contact : this.groupMembershipDao.getActiveMembers(action.getGroup())) {
 					LOG.debug("Sending to [" + contact.getName() + "]");
-					frontline.sendTextMessage(contact.getPhoneNumber(), KeywordAction.KeywordUtils.personaliseMessage(contact, forwardedMessageText));
+					final String personalisedText = KeywordAction.KeywordUtils.personaliseMessage(contact, forwardedMessageText);
+					runAfterCommit(new Runnable() {
+						public void run() {
+							frontline.sendTextMessage(contact.getPhoneNumber(), contact, personalisedText, Priority.BULK);
+						}
+					});
 				}
 				break;
 			case JOIN: {
 				LOG.debug("It is a group join action!");
 				
 				// If the contact does not exist, we need to persist him so that we can add him to a group.
-				// Otherwise, get the contact from the database.
-				Contact contact = contactDao.getFromMsisdn(incomingSenderMsisdn);
+				Contact contact = sender;
 				try {
 					if (contact == null) {
 						contact = new Contact("", incomingSenderMsisdn, null, null, null, true);
 						contactDao.saveContact(contact);
+						// Later actions for this message should see the new contact
+						context.setSender(contact);
 					}
 					Group group = action.getGroup();
 					LOG.debug("Adding contact [" + contact.getName() + "], Number [" + contact.getPhoneNumber() + "] to Group [" + group.getName() + "]");
 					boolean contactAdded = this.groupMembershipDao.addMember(group, contact);
 					if(contactAdded) {
 						groupDao.updateGroup(group);
-						if(uiListener != null) {
-							uiListener.contactAddedToGroup(contact, group);
-						}
+						notifyContactAddedToGroup(contact, group);
 					}
 				} catch(DuplicateKeyException ex) {
 					// Due to previous check, this should never be thrown...
@@ -321,155 +839,253 @@ public class IncomingMessageProcessor extends Thread {
 			}	break;
 			case LEAVE: {
 				LOG.debug("It is a group leave action!");
-				Contact contact = contactDao.getFromMsisdn(incomingSenderMsisdn);
+				Contact contact = sender;
 				if (contact != null) {
 					Group group = action.getGroup();
 					LOG.debug("Removing contact [" + contact.getName() + "] from Group [" + group.getName() + "]");
 					if(this.groupMembershipDao.removeMember(group, contact)) {
 						this.groupDao.updateGroup(group);
 					}
-					if (uiListener != null) {
-						uiListener.contactRemovedFromGroup(contact, group);
-					}
+					notifyContactRemovedFromGroup(contact, group);
 				}
 			}	break;
 			case REPLY:
 				// Generate a message, and then send it back to the sender of the received message.
 				LOG.debug("It is an auto-reply action!");
-				String reply = KeywordAction.KeywordUtils.getReplyText(action, contactDao.getFromMsisdn(incomingSenderMsisdn), incomingSenderMsisdn, incomingMessageText, null);
+				final String reply = KeywordAction.KeywordUtils.getReplyText(action, sender, incomingSenderMsisdn, incomingMessageText, null);
 				LOG.debug("Sending [" + reply + "] to [" + incomingSenderMsisdn + "]");
-				frontline.sendTextMessage(incomingSenderMsisdn, reply);
+				final String replyMsisdn = incomingSenderMsisdn;
+				final Contact replyContact = sender;
+				runAfterCommit(new Runnable() {
+					public void run() {
+						frontline.sendTextMessage(replyMsisdn, replyContact, reply, Priority.HIGH);
+					}
+				});
 				// TODO should the message be tied to the action somehow?
 				break;
 			case EXTERNAL_CMD:
 				// Executes a external command
 				LOG.debug("It is an external command action!");
-				try {
-					executeExternalCommand(action, incomingSenderMsisdn, incomingMessageText);
-				} catch (IOException e) {
-					LOG.debug("Problem executing external command.", e);
-				} catch (InterruptedException e) {
-					LOG.debug("Problem executing external command.", e);
-				} catch (JDOMException e) {
-					LOG.debug("Problem executing external command.", e);
-				}
+				// Only run the command once the changes made for this message have been committed, so that
+				// it is not run again if this message is retried
+				final KeywordAction commandAction = action;
+				final Contact commandSender = sender;
+				final String commandMsisdn = incomingSenderMsisdn;
+				final String commandMessageText = incomingMessageText;
+				runAfterCommit(new Runnable() {
+					public void run() {
+						executeExternalCommand(commandAction, commandSender, commandMsisdn, commandMessageText);
+					}
+				});
 				break;
 			case EMAIL:
 				LOG.debug("It is an e-mail action!");
-				Email email = new Email(
+				final Email email = new Email(
 						action.getEmailAccount(),
 						action.getEmailRecipients(),
-						KeywordAction.KeywordUtils.getEmailSubject(action, contactDao.getFromMsisdn(incomingSenderMsisdn), incomingSenderMsisdn, incomingMessageText, null),
-						KeywordAction.KeywordUtils.getReplyText(action, contactDao.getFromMsisdn(incomingSenderMsisdn), incomingSenderMsisdn, incomingMessageText, null)
+						KeywordAction.KeywordUtils.getEmailSubject(action, sender, incomingSenderMsisdn, incomingMessageText, null),
+						KeywordAction.KeywordUtils.getReplyText(action, sender, incomingSenderMsisdn, incomingMessageText, null)
 				);
 				emailDao.saveEmail(email);
 				LOG.debug("Sending [" + email.getEmailContent() + "] from [" + email.getEmailFrom().getAccountName() + "] to [" + email.getEmailRecipients() + "]");
-				emailServerHandler.sendEmail(email);
+				// Only send the e-mail once it has been saved, so that it is not sent twice if this message is retried
+				runAfterCommit(new Runnable() {
+					public void run() {
+						emailServerHandler.sendEmail(email);
+					}
+				});
 				break;
 		}
 				
-		this.keywordActionDao.incrementCounter(action);
-		
-		if (uiListener != null) {
-			uiListener.keywordActionExecuted(action);
-		}
+		// The execution is only counted once this message's changes have been committed, so that a
+		// message which is rolled back and retried is not counted for each attempt
+		final KeywordAction executed = action;
+		runAfterCommit(new Runnable() {
+			public void run() {
+				keywordActionDao.incrementCounter(executed);
+				if (uiListener != null) {
+					uiListener.keywordActionExecuted(executed);
+				}
+			}
+		});
 		LOG.debug("Number of hits for this action [" + action + "] is [" + action.getCounter() + "]");
 		LOG.trace("EXIT");
 	}
 	
 
+	/** Notifies {@link #uiListener}, once the current transaction has been committed, that a contact has joined a group. */
+	private void notifyContactAddedToGroup(final Contact contact, final Group group) {
+		if(uiListener != null) {
+			runAfterCommit(new Runnable() {
+				public void run() {
+					uiListener.contactAddedToGroup(contact, group);
+				}
+			});
+		}
+	}
+	
+	/** Notifies {@link #uiListener}, once the current transaction has been committed, that a contact has left a group. */
+	private void notifyContactRemovedFromGroup(final Contact contact, final Group group) {
+		if(uiListener != null) {
+			runAfterCommit(new Runnable() {
+				public void run() {
+					uiListener.contactRemovedFromGroup(contact, group);
+				}
+			});
+		}
+	}
+
 	/**
 	 * Executes a external command (HTTP or Command Line) and treats its response according to what is defined in the action.
+	 * The command is run asynchronously by {@link #externalCommandExecutor}, and its response is handled when it completes.
 	 * @param action
+	 * @param sender the contact who sent the incoming message, or <code>null</code> if the sender is not a contact
 	 * @param incomingSenderMsisdn 
 	 * @param incomingMessageText 
-	 * @throws IOException 
-	 * @throws InterruptedException 
-	 * @throws JDOMException 
 	 */
 	/* not private to allow unit testing */
-	void executeExternalCommand(KeywordAction action, String incomingSenderMsisdn, String incomingMessageText) throws IOException, InterruptedException, JDOMException {
+	void executeExternalCommand(final KeywordAction action, final Contact sender, final String incomingSenderMsisdn, String incomingMessageText) {
 		LOG.trace("ENTER");
-		String cmd = KeywordAction.KeywordUtils.getExternalCommand(
+		final String cmd = KeywordAction.KeywordUtils.getExternalCommand(
 				action,
-				contactDao.getFromMsisdn(incomingSenderMsisdn),
+				sender,
 				incomingSenderMsisdn,
 				incomingMessageText
 		);
 		LOG.debug("Command to be executed [" + cmd + "]");
+		final boolean isHttpRequest = action.getExternalCommandType() == KeywordAction.ExternalCommandType.HTTP_REQUEST;
+		String host = getExternalCommandHost(isHttpRequest, cmd);
 
 		if (action.getExternalCommandResponseType() != ExternalCommandResponseType.LIST_COMMANDS) {
 			//Executes the command and handle the response as plain text, or no response at all.
-			String response;
 			LOG.debug("Response will be plain text or nothing at all.");
-			boolean waitForResponse = action.getExternalCommandResponseType() == ExternalCommandResponseType.PLAIN_TEXT;
-			if (action.getExternalCommandType() == KeywordAction.ExternalCommandType.HTTP_REQUEST) {
-				LOG.debug("Executing HTTP request...");
-				response = FrontlineUtils.makeHttpRequest(cmd, waitForResponse);
-			} else {
-				LOG.debug("Executing external program...");
-				response = FrontlineUtils.executeExternalProgram(cmd, waitForResponse);
-			}
-			if (waitForResponse) {
-				LOG.debug("Response [" + response + "]");
-				handleExternalCommandResponse(action, incomingSenderMsisdn, response);
-			}
+			final boolean waitForResponse = action.getExternalCommandResponseType() == ExternalCommandResponseType.PLAIN_TEXT;
+			externalCommandExecutor.execute(host, externalCommandTimeout, new Callable<String>() {
+				public String call() throws Exception {
+					if (isHttpRequest) {
+						LOG.debug("Executing HTTP request...");
+						return FrontlineUtils.makeHttpRequest(cmd, waitForResponse, (int) externalCommandTimeout);
+					} else {
+						LOG.debug("Executing external program...");
+						return FrontlineUtils.executeExternalProgram(cmd, waitForResponse, externalCommandTimeout);
+					}
+				}
+			}, new ExternalCommandExecutor.Callback<String>() {
+				public void commandCompleted(String response) {
+					if (waitForResponse) {
+						LOG.debug("Response [" + response + "]");
+						handleExternalCommandResponse(action, sender, incomingSenderMsisdn, response);
+					}
+				}
+				public void commandFailed(Throwable cause) {
+					LOG.debug("Problem executing external command.", cause);
+				}
+			});
 		} else {
 			//LIST OF COMMANDS TO EXECUTE
 			LOG.debug("Response will be an XML with Frontline Commands.");
-			InputStream toRead = null;
-			if (action.getExternalCommandType() == KeywordAction.ExternalCommandType.HTTP_REQUEST) {
-				LOG.debug("Executing HTTP request...");
-				toRead = FrontlineUtils.makeHttpRequest(cmd);
-			} else {
-				LOG.debug("Executing external program...");
-				toRead = FrontlineUtils.executeExternalProgram(cmd);
-			}
-			LOG.debug("Reading XML from response...");
-			XMLReader reader = new XMLReader(toRead);
-			for (XMLMessage msg : reader.readMessages()) {
-				LOG.debug("Message found!");
-				LOG.debug("Data [" + msg.getData() + "]");
-				if (msg.getType() == XMLMessage.TYPE_TEXT) {
-					//We add everything to the numbers list, to send in the end.
-					//Contacts
-					for (String contact : msg.getToContacts()) {
-						Contact c = contactDao.getContactByName(contact);
-						if (c!= null && c.isActive()) {
-							msg.addNumber(c.getPhoneNumber());
+			externalCommandExecutor.execute(host, externalCommandTimeout, new Callable<List<XMLMessage>>() {
+				public List<XMLMessage> call() throws Exception {
+					InputStream toRead = null;
+					try {
+						if (isHttpRequest) {
+							LOG.debug("Executing HTTP request...");
+							toRead = FrontlineUtils.makeHttpRequest(cmd, (int) externalCommandTimeout);
+						} else {
+							LOG.debug("Executing external program...");
+							toRead = FrontlineUtils.executeExternalProgram(cmd, externalCommandTimeout);
 						}
+						LOG.debug("Reading XML from response...");
+						return new XMLReader(toRead).readMessages();
+					} finally {
+						if(toRead != null) try { toRead.close(); } catch(IOException ex) { LOG.warn("Error closing external command input stream.", ex); }
+					}
+				}
+			}, new ExternalCommandExecutor.Callback<List<XMLMessage>>() {
+				public void commandCompleted(List<XMLMessage> messages) {
+					handleExternalCommandMessages(messages);
+				}
+				public void commandFailed(Throwable cause) {
+					LOG.debug("Problem executing external command.", cause);
+				}
+			});
+		}
+		LOG.trace("EXIT");
+	}
+	
+	/**
+	 * Gets the host that an external command targets, used to limit the number of commands run against
+	 * a single host at once.  All external programs are run on the local host.
+	 * @param isHttpRequest <code>true</code> if the command is an HTTP request; <code>false</code> if it is an external program
+	 * @param cmd the command
+	 * @return the host the command targets
+	 */
+	static String getExternalCommandHost(boolean isHttpRequest, String cmd) {
+		if(isHttpRequest) {
+			try {
+				return new URL(cmd).getHost();
+			} catch(MalformedURLException ex) {
+				// The request will fail anyway, so it does not matter which host it is counted against
+				return cmd;
+			}
+		} else {
+			return EXTERNAL_PROGRAM_HOST;
+		}
+	}
+	
+	/**
+	 * Sends the messages listed in the response to an external command.  Messages with a time in the future
+	 * are scheduled to be sent at that time.
+	 * @param messages the messages read from the response
+	 */
+	private void handleExternalCommandMessages(List<XMLMessage> messages) {
+		for (XMLMessage msg : messages) {
+			LOG.debug("Message found!");
+			LOG.debug("Data [" + msg.getData() + "]");
+			if (msg.getType() == XMLMessage.TYPE_TEXT) {
+				//We add everything to the numbers list, to send in the end.
+				//Contacts
+				for (String contact : msg.getToContacts()) {
+					Contact c = contactDao.getContactByName(contact);
+					if (c!= null && c.isActive()) {
+						msg.addNumber(c.getPhoneNumber());
 					}
-					//Groups
-					for (String group : msg.getToGroups()) {
-						Group g = groupDao.getGroupByPath(group);
-						if (g != null) {
-							for(Contact c : this.groupMembershipDao.getActiveMembers(g)) {
-								if (c.isActive()) {
-									msg.addNumber(c.getPhoneNumber());
-								}
+				}
+				//Groups
+				for (String group : msg.getToGroups()) {
+					Group g = groupDao.getGroupByPath(group);
+					if (g != null) {
+						for(Contact c : this.groupMembershipDao.getActiveMembers(g)) {
+							if (c.isActive()) {
+								msg.addNumber(c.getPhoneNumber());
 							}
 						}
 					}
-					//All recipients are in the numbers list now.
-					for (String number : msg.getToNumbers()) {
+				}
+				//All recipients are in the numbers list now.
+				for (String number : msg.getToNumbers()) {
+					if (msg.getScheduledTime() > System.currentTimeMillis()) {
+						LOG.debug("Scheduling for [" + number + "] at [" + msg.getScheduledTime() + "]");
+						frontline.scheduleTextMessage(number, contactDao.getFromMsisdn(number), msg.getData(), Priority.NORMAL, msg.getScheduledTime());
+					} else {
 						LOG.debug("Sending to [" + number + "]");
 						frontline.sendTextMessage(number, msg.getData());
 					}
-				} else {
-					//TODO BINARY MESSAGE
 				}
+			} else {
+				//TODO BINARY MESSAGE
 			}
 		}
-		LOG.trace("EXIT");
 	}
 
 	/**
 	 * Handles the command response for this action.
 	 * @param action
+	 * @param sender the contact who sent the incoming message, or <code>null</code> if the sender is not a contact
 	 * @param incomingSenderMsisdn
 	 * @param response
 	 */
-	private void handleExternalCommandResponse(KeywordAction action, String incomingSenderMsisdn,
+	private void handleExternalCommandResponse(KeywordAction action, Contact sender, String incomingSenderMsisdn,
 			String response) {
 		assert(action.getType() == KeywordAction.Type.EXTERNAL_CMD) : "This method should only be called on external command actions.";
 		// PLAIN TEXT RESPONSE so we need to verify if the user wants
@@ -487,7 +1103,7 @@ public class IncomingMessageProcessor extends Thread {
 				|| responseActionType == KeywordAction.ExternalCommandResponseActionType.REPLY_AND_FORWARD) {
 			//Auto reply
 			LOG.debug("Sending to [" + incomingSenderMsisdn + "] as an auto-reply.");
-			frontline.sendTextMessage(incomingSenderMsisdn, message);
+			frontline.sendTextMessage(incomingSenderMsisdn, sender, message, Priority.HIGH);
 		}
 		if (responseActionType == KeywordAction.ExternalCommandResponseActionType.FORWARD 
 				|| responseActionType == KeywordAction.ExternalCommandResponseActionType.REPLY_AND_FORWARD) {
@@ -502,7 +1118,7 @@ public class IncomingMessageProcessor extends Thread {
 						//so we don't send the message again.
 						LOG.debug("Sending to contact [" + contact.getName() + "]");
 					}
-					frontline.sendTextMessage(contact.getPhoneNumber(), message);
+					frontline.sendTextMessage(contact.getPhoneNumber(), contact, message, Priority.BULK);
 				}
 			}
 		}
@@ -524,6 +1140,227 @@ public class IncomingMessageProcessor extends Thread {
 	public void removeIncomingMessageListener(IncomingMessageListener incomingMessageListener) {
 		this.incomingMessageListeners.remove(incomingMessageListener);
 	}
+	
+//> INNER CLASSES
+	/** Thread processing one partition of the incoming message queue. */
+	private class Worker extends Thread {
+		/** Set lo when the thread should terminate. */
+		private volatile boolean keepAlive = true;
+		/** Queue of messages to process. */
+		private final BlockingQueue<IncomingMessageProcessorQueueItem> incomingMessageQueue = new LinkedBlockingQueue<IncomingMessageProcessorQueueItem>();
+		/** Item taken from the queue while creating a batch which could not be added to the batch, and so should be processed next */
+		private IncomingMessageProcessorQueueItem deferredItem;
+		
+		Worker(String name) {
+			super(name);
+		}
+		
+		/** @param queueItem item to add to this worker's queue */
+		void queue(IncomingMessageProcessorQueueItem queueItem) {
+			incomingMessageQueue.add(queueItem);
+		}
+		
+		/** @return the number of items in this worker's queue */
+		int getQueueDepth() {
+			return incomingMessageQueue.size();
+		}
+		
+		/** Stops this worker once it has processed the items already in its queue. */
+		void die() {
+			incomingMessageQueue.add(new IncomingMessageProcessorQueueKiller());
+		}
+		
+		/**
+		 * Waits for this worker to stop after {@link #die()} has been called.  If it has not stopped within
+		 * the timeout, it is interrupted and stops once it has finished the item it is processing.
+		 * @param timeout time, in millis, to wait for this worker to process the items in its queue
+		 */
+		void awaitDeath(long timeout) {
+			try {
+				if(timeout > 0) {
+					join(timeout);
+				}
+				if(isAlive()) {
+					LOG.warn("Interrupting " + getName() + " with " + getQueueDepth() + " item(s) still queued.");
+					keepAlive = false;
+					interrupt();
+					join(WORKER_STOP_TIMEOUT);
+					if(isAlive()) LOG.warn(getName() + " did not stop after being interrupted.");
+				}
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		public void run() {
+			while(keepAlive) {
+				IncomingMessageProcessorQueueItem queueItem = deferredItem;
+				deferredItem = null;
+				if(queueItem == null) {
+					LOG.trace("Getting incoming message from queue.");
+					try {
+						queueItem = incomingMessageQueue.take();
+					} catch(InterruptedException ex) {
+						LOG.warn("Thread interrupted.", ex);
+					}
+				}
+			
+				if (queueItem == null) {
+					// we may have popped out when queue was notified, which means job may be null
+					LOG.trace("There were no messages in the queue.");
+					continue;
+				} else {
+					if(queueItem instanceof IncomingMessageProcessorQueueKiller) {
+						// We have been given a "poisoned" item so must terminate this thread
+						keepAlive = false;
+					} else if(queueItem instanceof FailedIncomingMessage) {
+						process((FailedIncomingMessage) queueItem);
+					} else {
+						process(createBatch(queueItem));
+					} 
+				}
+			}
+			LOG.trace("EXIT");
+		}
+		
+		/**
+		 * Creates a batch of items to process, starting with the supplied item and adding any more which
+		 * arrive within {@link IncomingMessageProcessor#batchWindow}, up to {@link IncomingMessageProcessor#batchSize}.
+		 * If a killer item is found, this worker is stopped once the batch has been processed.  If an item
+		 * which is being retried is found, it is processed after the batch.
+		 * @param firstItem the first item of the batch
+		 * @return a new batch
+		 */
+		private IncomingMessageBatch createBatch(IncomingMessageProcessorQueueItem firstItem) {
+			List<IncomingMessageProcessorQueueItem> items = new ArrayList<IncomingMessageProcessorQueueItem>();
+			items.add(firstItem);
+			long windowEnd = System.currentTimeMillis() + batchWindow;
+			while(items.size() < batchSize) {
+				IncomingMessageProcessorQueueItem queueItem = incomingMessageQueue.poll();
+				if(queueItem == null) {
+					long remaining = windowEnd - System.currentTimeMillis();
+					if(remaining <= 0) break;
+					try {
+						queueItem = incomingMessageQueue.poll(remaining, TimeUnit.MILLISECONDS);
+					} catch(InterruptedException ex) {
+						LOG.warn("Thread interrupted.", ex);
+					}
+					if(queueItem == null) break;
+				}
+				if(queueItem instanceof IncomingMessageProcessorQueueKiller) {
+					keepAlive = false;
+					break;
+				}
+				if(queueItem instanceof FailedIncomingMessage) {
+					deferredItem = queueItem;
+					break;
+				}
+				items.add(queueItem);
+			}
+			return new IncomingMessageBatch(items);
+		}
+		
+		/**
+		 * Process a batch.  If processing fails, the item which caused the failure is moved to the retry
+		 * queue and the rest of the batch is processed without it.
+		 * @param batch
+		 */
+		private void process(IncomingMessageBatch batch) {
+			while(batch != null) {
+				try {
+					// We've got new messages, so process them.
+					processBatch(batch);
+					return;
+				} catch(Throwable t) {
+					if(batch.isSaved()) {
+						// The item being handled when the error occurred is retried on its own, and the rest of the batch is handled as normal
+						int failedIndex = batch.getProcessedCount();
+						retry(batch.subBatch(failedIndex, failedIndex + 1), t);
+						batch = failedIndex + 1 < batch.size() ? batch.subBatch(failedIndex + 1, batch.size()) : null;
+					} else if(batch.size() == 1) {
+						retry(batch, t);
+						batch = null;
+					} else {
+						// We cannot tell which item stopped the batch from being saved, so process each item separately
+						LOG.warn("Error saving batch of " + batch.size() + " messages.  They will be processed individually.", t);
+						for(int i=0; i<batch.size(); ++i) {
+							process(batch.subBatch(i, i + 1));
+						}
+						batch = null;
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Process an item which has failed before.  If it fails again, it is returned to the retry queue or
+		 * moved to the dead-letter store.
+		 * @param failed
+		 */
+		private void process(FailedIncomingMessage failed) {
+			try {
+				LOG.debug("Retrying message from [" + failed.getSenderMsisdn() + "]");
+				processBatch(failed.getBatch());
+			} catch(Throwable t) {
+				failed(failed, t);
+			}
+		}
+		
+		/**
+		 * Moves a failed item to the retry queue.
+		 * @param batch a batch containing the single item which failed
+		 * @param error the exception thrown while processing the item
+		 */
+		private void retry(IncomingMessageBatch batch, Throwable error) {
+			failed(new FailedIncomingMessage(batch, getSenderMsisdn(batch.getItems().get(0))), error);
+		}
+	}
+	
+	/**
+	 * Thread which returns failed items to their worker's queue once they are due to be retried, so that
+	 * waiting to retry an item does not hold up the processing of other messages.
+	 */
+	private class RetryScheduler extends Thread {
+		/** Set hi when the thread should terminate. */
+		private volatile boolean keepAlive = true;
+		/** Failed items waiting to be retried, ordered by the time they are due */
+		private final DelayQueue<FailedIncomingMessage> retryQueue = new DelayQueue<FailedIncomingMessage>();
+		
+		RetryScheduler() {
+			super("Incoming message retry scheduler");
+			setDaemon(true);
+		}
+		
+		/** @param failed item to retry once its retry delay has passed */
+		void schedule(FailedIncomingMessage failed) {
+			retryQueue.add(failed);
+		}
+		
+		/** @return the number of items waiting to be retried */
+		int size() {
+			return retryQueue.size();
+		}
+		
+		void die() {
+			keepAlive = false;
+			this.interrupt();
+			if(retryQueue.size() > 0) {
+				LOG.warn("Abandoning " + retryQueue.size() + " messages waiting to be retried.");
+			}
+		}
+		
+		public void run() {
+			while(keepAlive) {
+				try {
+					FailedIncomingMessage failed = retryQueue.take();
+					getWorker(failed.getSenderMsisdn()).queue(failed);
+				} catch(InterruptedException ex) {
+					if(keepAlive) LOG.warn("Thread interrupted.", ex);
+				}
+			}
+			LOG.trace("EXIT");
+		}
+	}
 }
 
 /** Empty interface implemented by items which are put in the {@link IncomingMessageProcessor}'s queue. */
@@ -538,6 +1375,8 @@ class IncomingMessageDetails implements IncomingMessageProcessorQueueItem {
 	private final CIncomingMessage message;
 	/** the device the message was received on */
 	private final SmsService receiver;
+	/** the sequence number of the message in the {@link IncomingMessageJournal}, or {@link IncomingMessageJournal#NOT_JOURNALLED} */
+	private long journalSequence = IncomingMessageJournal.NOT_JOURNALLED;
 //> CONSTRUCTOR
 	/**
 	 * @param receiver The device which this message was received on. 
@@ -556,6 +1395,51 @@ class IncomingMessageDetails implements IncomingMessageProcessorQueueItem {
 	public SmsService getReceiver() {
 		return receiver;
 	}
+	/** @return the sequence number of the message in the {@link IncomingMessageJournal}, or {@link IncomingMessageJournal#NOT_JOURNALLED} */
+	public long getJournalSequence() {
+		return journalSequence;
+	}
+	/** @param journalSequence the sequence number of the message in the {@link IncomingMessageJournal} */
+	public void setJournalSequence(long journalSequence) {
+		this.journalSequence = journalSequence;
+	}
+}
+
+/**
+ * Queue item which contains a message read back from the {@link IncomingMessageJournal}, which was received
+ * before FrontlineSMS last stopped but was never handled.
+ */
+class ReplayedIncomingMessage implements IncomingMessageProcessorQueueItem {
+	/** the sequence number of the message in the journal */
+	private final long journalSequence;
+	/** the message */
+	private final FrontlineMessage message;
+	/** <code>true</code> if {@link #message} was saved before FrontlineSMS stopped, and so should not be saved again */
+	private final boolean saved;
+//> CONSTRUCTOR
+	/**
+	 * @param journalSequence the sequence number of the message in the journal
+	 * @param message the message
+	 * @param saved <code>true</code> if the message was saved before FrontlineSMS stopped
+	 */
+	public ReplayedIncomingMessage(long journalSequence, FrontlineMessage message, boolean saved) {
+		this.journalSequence = journalSequence;
+		this.message = message;
+		this.saved = saved;
+	}
+//> ACCESSORS
+	/** @return the sequence number of the message in the journal */
+	public long getJournalSequence() {
+		return journalSequence;
+	}
+	/** @return the message */
+	public FrontlineMessage getMessage() {
+		return message;
+	}
+	/** @return <code>true</code> if the message was saved before FrontlineSMS stopped */
+	public boolean isSaved() {
+		return saved;
+	}
 }
 
 /**
@@ -585,3 +1469,97 @@ class IncomingMms implements IncomingMessageProcessorQueueItem {
  * @author Alex
  */
 class IncomingMessageProcessorQueueKiller implements IncomingMessageProcessorQueueItem {}
+
+/**
+ * A batch of items taken from the {@link IncomingMessageProcessor}'s queue, and the progress made in
+ * processing them.
+ */
+class IncomingMessageBatch {
+	/** the items in this batch, in the order they were queued */
+	private final List<IncomingMessageProcessorQueueItem> items;
+	/** the messages created for {@link #items}, or <code>null</code> if they have not been saved yet */
+	private List<FrontlineMessage> messages;
+	/** the number of items which have been handled after being saved */
+	private int processedCount;
+//> CONSTRUCTOR
+	/** @param items the items in this batch */
+	public IncomingMessageBatch(List<IncomingMessageProcessorQueueItem> items) {
+		this.items = items;
+	}
+//> ACCESSORS
+	/** @return the items in this batch */
+	public List<IncomingMessageProcessorQueueItem> getItems() {
+		return items;
+	}
+	/** @return the number of items in this batch */
+	public int size() {
+		return items.size();
+	}
+	/** @return <code>true</code> if the messages for this batch have been saved */
+	public boolean isSaved() {
+		return messages != null;
+	}
+	/** @return the messages saved for each item, with <code>null</code> for items which had no message saved */
+	public List<FrontlineMessage> getMessages() {
+		return messages;
+	}
+	/** @param messages the messages saved for each item */
+	public void setMessages(List<FrontlineMessage> messages) {
+		this.messages = messages;
+	}
+	/** @return the number of items which have been handled after being saved */
+	public int getProcessedCount() {
+		return processedCount;
+	}
+	/** Mark the next item in this batch as handled. */
+	public void incrementProcessedCount() {
+		++processedCount;
+	}
+	/**
+	 * Creates a new batch from some of the items in this batch.  If this batch has been saved, the new batch
+	 * is also marked as saved, with none of its items handled.
+	 * @param fromIndex index of the first item to include in the new batch
+	 * @param toIndex index after the last item to include in the new batch
+	 * @return a new batch
+	 */
+	public IncomingMessageBatch subBatch(int fromIndex, int toIndex) {
+		IncomingMessageBatch subBatch = new IncomingMessageBatch(new ArrayList<IncomingMessageProcessorQueueItem>(items.subList(fromIndex, toIndex)));
+		if(messages != null) {
+			subBatch.setMessages(new ArrayList<FrontlineMessage>(messages.subList(fromIndex, toIndex)));
+		}
+		return subBatch;
+	}
+}
+
+/**
+ * Details of an incoming message whose keyword actions are being executed.  The sender's {@link Contact}
+ * is resolved once and shared between all actions triggered by the message.
+ */
+class IncomingMessageContext {
+	/** the message which triggered the actions */
+	private final FrontlineMessage message;
+	/** the contact who sent {@link #message}, or <code>null</code> if the sender is not a contact */
+	private Contact sender;
+//> CONSTRUCTOR
+	/**
+	 * @param message the message which triggered the actions
+	 * @param sender the contact who sent the message, or <code>null</code> if the sender is not a contact
+	 */
+	public IncomingMessageContext(FrontlineMessage message, Contact sender) {
+		this.message = message;
+		this.sender = sender;
+	}
+//> ACCESSORS
+	/** @return the message which triggered the actions */
+	public FrontlineMessage getMessage() {
+		return message;
+	}
+	/** @return the contact who sent the message, or <code>null</code> if the sender is not a contact */
+	public Contact getSender() {
+		return sender;
+	}
+	/** @param sender the contact who sent the message, e.g. after a new contact was created for the sender */
+	public void setSender(Contact sender) {
+		this.sender = sender;
+	}
+}
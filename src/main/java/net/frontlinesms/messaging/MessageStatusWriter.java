@@ -0,0 +1,207 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.repository.MessageDao;
+
+/**
+ * Write-behind buffer for outgoing message status changes, so that the threads sending messages do not
+ * each wait for a database update whenever a message's status changes.
+ *
+ * Changed messages are held in memory, keyed by id, and written to the database in batches by a background
+ * thread.  A message which changes several times before it is written, e.g. from PENDING to SENT, is only
+ * written once, with its latest state.  If a different instance of a message is queued while an earlier
+ * one is waiting, only the later instance is written.
+ *
+ * Messages are written at most {@link #flushInterval}ms after they change, or sooner if a full batch is
+ * waiting.  If a batch cannot be written, its messages are written one at a time, so that one bad message
+ * does not stop the others being written; a message which still cannot be written is logged and dropped,
+ * rather than being retried forever.  Anything which reads message statuses from the database and must see every change should
+ * call {@link #flush()} first.  Anything which changes a message which may still be waiting, e.g. when a delivery report
+ * arrives, should take the waiting instance with {@link #remove(long)} and queue it again once it has been changed.
+ */
+public class MessageStatusWriter {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(MessageStatusWriter.class);
+	/** Maximum number of messages written in a single transaction */
+	static final int BATCH_SIZE = 100;
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to write changed messages */
+	private final MessageDao messageDao;
+	/** Maximum time, in millis, that a changed message waits before it is written */
+	private final long flushInterval;
+	/** Messages which have changed since they were last written, mapped by id, in the order they first changed.  Guarded by <code>this</code>. */
+	private LinkedHashMap<Long, FrontlineMessage> pending = new LinkedHashMap<Long, FrontlineMessage>();
+	/** Lock held while writing messages, so that writes of the same message cannot be reordered */
+	private final Object flushLock = new Object();
+	/** Thread which writes changed messages, or <code>null</code> if the writer is not running.  Guarded by <code>this</code>. */
+	private Thread writerThread;
+	/** Flag indicating that {@link #writerThread} should continue running.  Guarded by <code>this</code>. */
+	private boolean running;
+
+//> CONSTRUCTORS
+	/**
+	 * @param messageDao data access object used to write changed messages
+	 * @param flushInterval maximum time, in millis, that a changed message waits before it is written
+	 */
+	public MessageStatusWriter(MessageDao messageDao, long flushInterval) {
+		this.messageDao = messageDao;
+		this.flushInterval = Math.max(1, flushInterval);
+	}
+
+//> ACCESSORS
+	/** @return the number of changed messages waiting to be written */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+//> WRITE METHODS
+	/**
+	 * Queues a message to be written to the database.  This method does not block while messages are written.
+	 * @param message a saved message whose status has changed.  Messages which have not been saved are ignored.
+	 */
+	public void statusChanged(FrontlineMessage message) {
+		if(message.getId() == 0) {
+			LOG.warn("Status of unsaved message will not be written: " + message.getStatus());
+			return;
+		}
+		synchronized(this) {
+			pending.put(message.getId(), message);
+			if(pending.size() >= BATCH_SIZE) {
+				// A full batch is ready, so there is no reason for the writer to keep waiting
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes all messages which are waiting to the database.  Messages in a batch which cannot be written
+	 * are written one at a time, and any which still cannot be written are dropped.
+	 * @return the number of messages written
+	 */
+	public int flush() {
+		synchronized(flushLock) {
+			List<FrontlineMessage> messages;
+			synchronized(this) {
+				if(pending.isEmpty()) return 0;
+				messages = new ArrayList<FrontlineMessage>(pending.values());
+				pending = new LinkedHashMap<Long, FrontlineMessage>();
+			}
+
+			int written = 0;
+			for(int start=0; start<messages.size(); start+=BATCH_SIZE) {
+				List<FrontlineMessage> batch = messages.subList(start, Math.min(messages.size(), start + BATCH_SIZE));
+				try {
+					messageDao.updateMessages(batch);
+					written += batch.size();
+				} catch(RuntimeException ex) {
+					LOG.warn("Failed to write the status of " + batch.size() + " message(s) together.  Writing them one at a time.", ex);
+					written += writeEach(batch);
+				}
+			}
+			if(LOG.isTraceEnabled()) LOG.trace("Wrote the status of " + written + " message(s).");
+			return written;
+		}
+	}
+
+	/**
+	 * Stops waiting to write a message, so that it can be changed further before it is queued again.  If the
+	 * message is being written when this is called, this method waits until the write has finished, so the
+	 * database is up to date when it returns.
+	 * @param messageId the database ID of the message
+	 * @return the instance of the message which was waiting to be written, or <code>null</code> if none was
+	 */
+	public FrontlineMessage remove(long messageId) {
+		synchronized(flushLock) {
+			synchronized(this) {
+				return pending.remove(messageId);
+			}
+		}
+	}
+
+//> LIFECYCLE METHODS
+	/** Starts writing changed messages in the background. */
+	public synchronized void start() {
+		if(writerThread == null) {
+			running = true;
+			writerThread = new Thread("MessageStatusWriter") {
+				public void run() {
+					while(awaitMessages()) {
+						try {
+							flush();
+						} catch(Throwable t) {
+							LOG.warn("Failed to write message statuses.", t);
+						}
+					}
+				}
+			};
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+	}
+
+	/** Stops writing in the background, and writes any messages which are still waiting. */
+	public void stop() {
+		Thread thread;
+		synchronized(this) {
+			thread = writerThread;
+			writerThread = null;
+			running = false;
+			notifyAll();
+		}
+		if(thread != null) {
+			try {
+				thread.join();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Waits until a full batch is waiting, or {@link #flushInterval} has passed since the last flush.
+	 * THREAD: MessageStatusWriter
+	 * @return <code>true</code> if the writer should flush and keep running, or <code>false</code> if it has been stopped
+	 */
+	private synchronized boolean awaitMessages() {
+		if(running && pending.size() < BATCH_SIZE) {
+			try {
+				wait(flushInterval);
+			} catch(InterruptedException ex) {
+				// Flush early; the writer is stopped using stop()
+			}
+		}
+		return running;
+	}
+
+	/**
+	 * Writes messages one at a time, dropping any which cannot be written.
+	 * @param messages messages from a batch which could not be written
+	 * @return the number of messages written
+	 */
+	private int writeEach(List<FrontlineMessage> messages) {
+		int written = 0;
+		for(FrontlineMessage message : messages) {
+			try {
+				messageDao.updateMessage(message);
+				++written;
+			} catch(RuntimeException ex) {
+				LOG.error("Failed to write the status of message [" + message.getId() + "].  The change has been dropped.", ex);
+			}
+		}
+		return written;
+	}
+}
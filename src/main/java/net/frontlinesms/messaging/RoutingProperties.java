@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import net.frontlinesms.messaging.sms.SmsRoutingTable;
+import net.frontlinesms.resources.UserHomeFilePropertySet;
+
+/**
+ * Properties file listing which SMS devices should send messages to which recipients.  Each property maps a
+ * prefix of recipients' numbers to the routing ids of the preferred devices, optionally followed by a ';' and
+ * the ids of the fallback devices, as described in {@link SmsRoutingTable#create(java.util.Map)}.
+ *
+ * Unlike most property sets this is not a singleton, so that the file is read again each time it is loaded.
+ */
+public class RoutingProperties extends UserHomeFilePropertySet {
+
+//> CONSTRUCTORS
+	/**
+	 * Create a new routing properties file.
+	 */
+	private RoutingProperties() {
+		super("routing");
+	}
+
+//> ACCESSORS
+	/** @return a new routing table containing the routes in this file */
+	public SmsRoutingTable createRoutingTable() {
+		return SmsRoutingTable.create(super.getProperties());
+	}
+
+//> STATIC FACTORIES
+	/** @return the routing properties, read from disk */
+	public static RoutingProperties load() {
+		return new RoutingProperties();
+	}
+}
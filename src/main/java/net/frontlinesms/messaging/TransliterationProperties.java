@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import net.frontlinesms.messaging.sms.SmsEncodingOptimizer;
+import net.frontlinesms.resources.UserHomeFilePropertySet;
+
+/**
+ * Properties file listing replacements for characters which are expensive to send by SMS, in addition to,
+ * or instead of, the defaults in {@link SmsEncodingOptimizer#getDefaultTransliterations()}.  Each key is a
+ * single character, and each value is its replacement; an empty value stops the character being replaced.
+ *
+ * Like {@link RoutingProperties}, this is not a singleton, so that the file is read again each time it is loaded.
+ */
+public class TransliterationProperties extends UserHomeFilePropertySet {
+
+//> CONSTRUCTORS
+	/**
+	 * Create a new transliteration properties file.
+	 */
+	private TransliterationProperties() {
+		super("transliteration");
+	}
+
+//> ACCESSORS
+	/** @return a new optimizer using the default transliterations, overridden by those in this file */
+	public SmsEncodingOptimizer createEncodingOptimizer() {
+		return SmsEncodingOptimizer.create(super.getProperties());
+	}
+
+//> STATIC FACTORIES
+	/** @return the transliteration properties, read from disk */
+	public static TransliterationProperties load() {
+		return new TransliterationProperties();
+	}
+}
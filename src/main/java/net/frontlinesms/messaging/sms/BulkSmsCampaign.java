@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.Contact;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
+import net.frontlinesms.data.domain.Group;
+import net.frontlinesms.data.repository.GroupMembershipDao;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.listener.BulkSmsCampaignListener;
+import net.frontlinesms.messaging.MessageFormatter;
+
+/**
+ * Thread which sends a message to every member of a group, optionally filtered by name or phone number.
+ *
+ * Recipients are loaded a page at a time, in id order.  A message is created for each recipient from the
+ * campaign's template, the page of messages is saved in a single transaction, and the messages are then
+ * queued with the {@link SmsServiceManager}.  The next page is only loaded once the manager has fewer than a
+ * page of messages waiting to be sent, so a large group is never held in memory all at once, and the
+ * caller, e.g. the UI thread, does not wait for the messages to be created.
+ */
+public class BulkSmsCampaign extends Thread {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(BulkSmsCampaign.class);
+	/** Time, in millis, between checks of the number of messages waiting to be sent while the queue is full */
+	private static final long QUEUE_POLL_INTERVAL = 500;
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to load the recipients */
+	private final GroupMembershipDao groupMembershipDao;
+	/** Data access object used to save the messages */
+	private final MessageDao messageDao;
+	/** Manager the messages are queued with */
+	private final SmsServiceManager smsServiceManager;
+	/** Group whose members, and the members of its subgroups, the message is sent to */
+	private final Group group;
+	/** String the name or phone number of each recipient must contain, or <code>null</code> to send to all members */
+	private final String contactFilter;
+	/** Text of the message, which may contain {@link MessageFormatter} markers for each recipient's details */
+	private final String template;
+	/** Priority of the messages */
+	private final Priority priority;
+	/** The number of recipients loaded at a time */
+	private final int batchSize;
+	/** Listener notified of the campaign's progress, or <code>null</code> */
+	private final BulkSmsCampaignListener listener;
+	/** Replaces characters which are expensive to send in each message, or <code>null</code> if messages are sent as written */
+	private SmsEncodingOptimizer encodingOptimizer;
+	/** The number of SMS parts saved by {@link #encodingOptimizer} */
+	private volatile int partsSaved;
+	/** Flag indicating that the thread should continue running */
+	private volatile boolean running = true;
+	/** The number of recipients the campaign was started with */
+	private volatile int recipientCount;
+	/** The number of messages which have been queued */
+	private volatile int queuedCount;
+	/** Time, in millis, the campaign started queueing messages, or 0 if it has not started */
+	private volatile long startTime;
+	/** Flag indicating that the campaign has finished queueing messages */
+	private volatile boolean finished;
+
+//> CONSTRUCTORS
+	/**
+	 * @param groupMembershipDao data access object used to load the recipients
+	 * @param messageDao data access object used to save the messages
+	 * @param smsServiceManager manager the messages are queued with
+	 * @param group group whose members, and the members of its subgroups, the message is sent to
+	 * @param contactFilter string the name or phone number of each recipient must contain, or <code>null</code> to send to all members
+	 * @param template text of the message, which may contain {@link MessageFormatter} markers for each recipient's details
+	 * @param priority priority of the messages
+	 * @param batchSize the number of recipients loaded at a time, which must be greater than zero
+	 * @param listener listener notified of the campaign's progress, or <code>null</code>
+	 */
+	public BulkSmsCampaign(GroupMembershipDao groupMembershipDao, MessageDao messageDao, SmsServiceManager smsServiceManager,
+			Group group, String contactFilter, String template, Priority priority, int batchSize, BulkSmsCampaignListener listener) {
+		super("BulkSmsCampaign");
+		if(batchSize <= 0) throw new IllegalArgumentException("Batch size must be greater than zero: " + batchSize);
+		this.groupMembershipDao = groupMembershipDao;
+		this.messageDao = messageDao;
+		this.smsServiceManager = smsServiceManager;
+		this.group = group;
+		this.contactFilter = contactFilter;
+		this.template = template;
+		this.priority = priority;
+		this.batchSize = batchSize;
+		this.listener = listener;
+		setDaemon(true);
+	}
+
+//> ACCESSORS
+	/** @return {@link #group} */
+	public Group getGroup() {
+		return group;
+	}
+
+	/** @return the number of recipients the campaign was started with, or 0 if it has not started */
+	public int getRecipientCount() {
+		return recipientCount;
+	}
+
+	/** @return the number of messages which have been queued */
+	public int getQueuedCount() {
+		return queuedCount;
+	}
+
+	/** @return the number of SMS parts saved by replacing characters which are expensive to send */
+	public int getPartsSaved() {
+		return partsSaved;
+	}
+
+	/**
+	 * Sets the optimizer used to replace characters which are expensive to send.  This should be set before the
+	 * campaign is started.
+	 * @param encodingOptimizer new value for {@link #encodingOptimizer}, or <code>null</code> to send messages as written
+	 */
+	public void setEncodingOptimizer(SmsEncodingOptimizer encodingOptimizer) {
+		this.encodingOptimizer = encodingOptimizer;
+	}
+
+	/** @return <code>true</code> if the campaign has finished queueing messages, or has been stopped */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Estimates the time until every message has been queued, from the rate messages have been queued so far.
+	 * As messages are only queued as fast as earlier ones are sent, this is also roughly the time until the
+	 * campaign has been sent.
+	 * @return the estimated time remaining, in millis, or -1 if it cannot be estimated yet
+	 */
+	public long getEstimatedTimeRemaining() {
+		int queued = this.queuedCount;
+		if(finished) return 0;
+		if(queued == 0 || startTime == 0) return -1;
+		long elapsed = currentTimeMillis() - startTime;
+		int remaining = Math.max(0, recipientCount - queued);
+		return remaining * elapsed / queued;
+	}
+
+//> THREAD METHODS
+	/** Queues a message for every recipient, and then exits. */
+	public void run() {
+		LOG.trace("ENTER");
+		try {
+			queueMessages();
+		} catch(RuntimeException ex) {
+			LOG.error("Campaign to group [" + group.getPath() + "] stopped after " + queuedCount + " messages.", ex);
+		} finally {
+			finished = true;
+			if(listener != null) listener.campaignFinished(this);
+		}
+		LOG.info("Queued " + queuedCount + " messages to group [" + group.getPath() + "]" + (partsSaved > 0 ? ", saving " + partsSaved + " SMS parts" : ""));
+		LOG.trace("EXIT");
+	}
+
+	/** Stops queueing messages.  Messages which have already been queued are still sent. */
+	public void stopRunning() {
+		this.running = false;
+	}
+
+//> CAMPAIGN METHODS
+	/**
+	 * Loads the recipients, and creates and queues their messages, a page at a time.
+	 * This method is separated for simple, unthreaded unit testing.
+	 * THREAD: BulkSmsCampaign
+	 */
+	void queueMessages() {
+		recipientCount = groupMembershipDao.getFilteredMemberCount(group, contactFilter);
+		startTime = currentTimeMillis();
+		long lastId = 0;
+		while(running) {
+			awaitQueueSpace();
+			if(!running) break;
+
+			List<Contact> page = groupMembershipDao.getMembersAfterId(group, contactFilter, lastId, batchSize);
+			List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>(page.size());
+			for(Contact contact : page) {
+				messages.add(createMessage(contact));
+				lastId = contact.getId();
+			}
+			if(!messages.isEmpty()) {
+				messageDao.saveMessages(messages);
+				for(FrontlineMessage message : messages) {
+					smsServiceManager.sendSMS(message);
+				}
+				queuedCount += messages.size();
+			}
+			if(LOG.isDebugEnabled()) LOG.debug("Queued " + queuedCount + " of " + recipientCount + " messages to group [" + group.getPath() + "]");
+			if(listener != null) listener.campaignProgress(this);
+
+			if(page.size() < batchSize) {
+				// This was the last page
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @param recipient
+	 * @return a new message to the recipient, with the recipient's details substituted into the template
+	 */
+	private FrontlineMessage createMessage(Contact recipient) {
+		String textContent = MessageFormatter.formatMessage(template,
+				MessageFormatter.MARKER_RECIPIENT_NAME, recipient.getDisplayName(),
+				MessageFormatter.MARKER_RECIPIENT_NUMBER, recipient.getPhoneNumber());
+		FrontlineMessage message = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", recipient.getPhoneNumber(), textContent.trim());
+		message.setPriority(priority);
+		if(encodingOptimizer != null) partsSaved += encodingOptimizer.optimize(message);
+		smsServiceManager.claimUnsaved(message);
+		return message;
+	}
+
+	/**
+	 * Waits until fewer than {@link #batchSize} messages are waiting to be sent, or the thread is stopped.
+	 * THREAD: BulkSmsCampaign
+	 */
+	private void awaitQueueSpace() {
+		while(running && smsServiceManager.getQueuedMessageCount() >= batchSize) {
+			FrontlineUtils.sleep_ignoreInterrupts(QUEUE_POLL_INTERVAL);
+		}
+	}
+
+	/** @return the current time, in millis.  This method is separated so that unit tests can control the clock. */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
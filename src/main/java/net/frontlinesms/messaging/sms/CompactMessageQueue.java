@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.LinkedList;
+
+/**
+ * First-in, first-out queue of saved message ids, stored outside the Java heap.
+ *
+ * Each queued message takes 8 bytes of direct memory, rather than the kilobyte or so of heap taken by a
+ * {@link net.frontlinesms.data.domain.FrontlineMessage} and its strings, so that a backlog of millions of
+ * messages does not exhaust the heap.  The ids are held in fixed-size chunks, which are allocated as the
+ * queue grows and dropped as it empties; one empty chunk is kept, so that a queue which is repeatedly
+ * filled and emptied does not keep allocating direct memory.
+ *
+ * This class is not thread-safe.
+ */
+class CompactMessageQueue {
+//> STATIC CONSTANTS
+	/** Default number of ids held in each chunk */
+	static final int DEFAULT_CHUNK_SIZE = 8192;
+
+//> INSTANCE PROPERTIES
+	/** Number of ids held in each chunk */
+	private final int chunkSize;
+	/** Chunks holding the queued ids, oldest first */
+	private final LinkedList<LongBuffer> chunks = new LinkedList<LongBuffer>();
+	/** Empty chunk kept for reuse, or <code>null</code> if there is none */
+	private LongBuffer spareChunk;
+	/** Position of the next id to be taken from the first chunk */
+	private int head;
+	/** Position the next id will be written to in the last chunk */
+	private int tail;
+	/** Number of ids in the queue */
+	private int size;
+
+//> CONSTRUCTORS
+	/** Creates a queue with the default chunk size. */
+	CompactMessageQueue() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/** @param chunkSize number of ids held in each chunk, which must be greater than zero */
+	CompactMessageQueue(int chunkSize) {
+		if(chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be greater than zero: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+//> ACCESSORS
+	/** @return the number of ids in the queue */
+	int size() {
+		return size;
+	}
+
+	/** @return <code>true</code> if the queue holds no ids */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** @return the number of bytes of direct memory currently allocated by this queue */
+	long getAllocatedBytes() {
+		return ((long) chunks.size() + (spareChunk == null ? 0 : 1)) * chunkSize * 8;
+	}
+
+//> QUEUE METHODS
+	/**
+	 * Adds an id to the end of the queue.
+	 * @param messageId the database id of a saved message, which must be greater than zero
+	 */
+	void add(long messageId) {
+		if(messageId <= 0) throw new IllegalArgumentException("Only saved messages may be queued: " + messageId);
+		if(chunks.isEmpty() || tail == chunkSize) {
+			chunks.addLast(allocateChunk());
+			tail = 0;
+		}
+		chunks.getLast().put(tail++, messageId);
+		++size;
+	}
+
+	/**
+	 * Removes the id at the front of the queue.
+	 * @return the id which has been queued longest, or <code>0</code> if the queue is empty
+	 */
+	long poll() {
+		if(size == 0) return 0;
+		long messageId = chunks.getFirst().get(head++);
+		--size;
+		if(size == 0) {
+			// Reuse the remaining chunk from the start
+			head = 0;
+			tail = 0;
+		} else if(head == chunkSize) {
+			spareChunk = chunks.removeFirst();
+			head = 0;
+		}
+		return messageId;
+	}
+
+	/** Removes every id from the queue, and frees the memory used to hold them. */
+	void clear() {
+		chunks.clear();
+		spareChunk = null;
+		head = 0;
+		tail = 0;
+		size = 0;
+	}
+
+//> PRIVATE HELPER METHODS
+	/** @return an empty chunk, reusing the spare chunk if there is one */
+	private LongBuffer allocateChunk() {
+		LongBuffer chunk = spareChunk;
+		if(chunk == null) {
+			chunk = ByteBuffer.allocateDirect(chunkSize * 8).asLongBuffer();
+		} else {
+			spareChunk = null;
+		}
+		return chunk;
+	}
+}
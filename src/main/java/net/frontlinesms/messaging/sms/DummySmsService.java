@@ -65,6 +65,22 @@ public class DummySmsService implements SmsService {
 		return false;
 	}
 
+	/** 
+	 * @see net.frontlinesms.messaging.sms.SmsService#getOutboxSize()
+	 */
+	public int getOutboxSize() {
+		/* do nothing */
+		return 0;
+	}
+
+	/** 
+	 * @see net.frontlinesms.messaging.sms.SmsService#getSendRateLimiter()
+	 */
+	public TokenBucket getSendRateLimiter() {
+		/* do nothing */
+		return null;
+	}
+
 	/** 
 	 * @see net.frontlinesms.messaging.sms.SmsService#isUseForReceiving()
 	 */
@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Classifies characters by how they are encoded in the GSM 03.38 default alphabet, and counts the SMS parts
+ * text will be sent in.  Characters in the basic table take one septet, characters in the extension table
+ * take two, as they are preceded by an escape, and any other character forces the whole message to be sent
+ * as UCS-2.
+ *
+ * Every GSM character except the euro sign is below {@link #TABLE_SIZE}, so characters are classified with
+ * a single lookup in a table of that size.
+ */
+public final class GsmCharacterClassifier {
+//> STATIC CONSTANTS
+	/** Class of characters in the basic table of the GSM default alphabet, which take one septet */
+	public static final int BASIC = 1;
+	/** Class of characters in the extension table of the GSM default alphabet, which take two septets */
+	public static final int EXTENSION = 2;
+	/** Class of characters which cannot be encoded in the GSM default alphabet */
+	public static final int UNENCODABLE = 0;
+
+	/** Characters of the basic table of the GSM default alphabet, excluding the escape to the extension table */
+	private static final String BASIC_CHARACTERS = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5"
+			+ "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9"
+			+ " !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+			+ "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7"
+			+ "\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+	/** Characters of the extension table of the GSM default alphabet, except for the euro sign */
+	private static final String EXTENSION_CHARACTERS = "\f^{}\\[~]|";
+	/** The euro sign, the only GSM character outside {@link #TABLE_SIZE} */
+	private static final char EURO = '\u20AC';
+	/** Size of {@link #CLASSES}; one more than the largest character in the basic table, capital omega */
+	private static final int TABLE_SIZE = 0x3AA;
+	/** Class of each character below {@link #TABLE_SIZE} */
+	private static final byte[] CLASSES = new byte[TABLE_SIZE];
+	static {
+		for(int i=0; i<BASIC_CHARACTERS.length(); ++i) {
+			CLASSES[BASIC_CHARACTERS.charAt(i)] = BASIC;
+		}
+		for(int i=0; i<EXTENSION_CHARACTERS.length(); ++i) {
+			CLASSES[EXTENSION_CHARACTERS.charAt(i)] = EXTENSION;
+		}
+	}
+
+//> CONSTRUCTORS
+	/** Static utility class, so should not be instantiated */
+	private GsmCharacterClassifier() {}
+
+//> STATIC METHODS
+	/**
+	 * @param c
+	 * @return the class of the character: {@link #BASIC}, {@link #EXTENSION} or {@link #UNENCODABLE}
+	 */
+	public static int getCharacterClass(char c) {
+		if(c < TABLE_SIZE) return CLASSES[c];
+		return c == EURO ? EXTENSION : UNENCODABLE;
+	}
+
+	/**
+	 * @param text
+	 * @return <code>true</code> if every character of the text can be encoded in the GSM default alphabet
+	 */
+	public static boolean isGsmEncodable(String text) {
+		for(int i=0; i<text.length(); ++i) {
+			if(getCharacterClass(text.charAt(i)) == UNENCODABLE) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the SMS parts needed to send some text.  If the text can be encoded in the GSM default alphabet,
+	 * extension characters count as two septets, and are not split between parts.  Otherwise the text is
+	 * counted as UCS-2.
+	 * @param text
+	 * @return the number of parts needed to send the text; an empty message still needs one part
+	 */
+	public static int countParts(String text) {
+		if(!isGsmEncodable(text)) {
+			int length = text.length();
+			if(length <= FrontlineMessage.SMS_LENGTH_LIMIT_UCS2) return 1;
+			return (length + FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT_UCS2 - 1) / FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT_UCS2;
+		}
+
+		int septets = 0;
+		for(int i=0; i<text.length(); ++i) {
+			septets += getCharacterClass(text.charAt(i));
+		}
+		if(septets <= FrontlineMessage.SMS_LENGTH_LIMIT) return 1;
+
+		// Fill each part in turn, as an escaped character cannot be split between two parts
+		int parts = 1;
+		int used = 0;
+		for(int i=0; i<text.length(); ++i) {
+			int size = getCharacterClass(text.charAt(i));
+			if(used + size > FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT) {
+				++parts;
+				used = 0;
+			}
+			used += size;
+		}
+		return parts;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * {@link SmsServiceBalancer} which sends each message with the service expected to finish sending it soonest.
+ *
+ * Each service is scored by the time it would take to send its in-flight messages and the new message, at
+ * the rate it has been observed to send messages.  The score is increased for services which have recently
+ * failed to send messages, and reduced for services given a higher weight.  Services which have not sent
+ * anything yet are assumed to send a message every {@link #DEFAULT_SEND_INTERVAL}ms.
+ */
+public class LeastLoadedSmsServiceBalancer implements SmsServiceBalancer {
+//> STATIC CONSTANTS
+	/** Time, in millis, assumed to be taken to send each message by a service which has not sent any yet */
+	static final double DEFAULT_SEND_INTERVAL = 1000;
+	/** Weight given to the latest observation when updating a service's average send interval and failure rate */
+	private static final double SMOOTHING = 0.2;
+	/** Minimum proportion of messages a service is assumed to send successfully, so that failing services are still tried occasionally */
+	private static final double MIN_SUCCESS_RATE = 0.05;
+
+//> INSTANCE PROPERTIES
+	/** Statistics for each service which has been dispatched messages */
+	private final Map<SmsService, ServiceStatistics> statistics = new HashMap<SmsService, ServiceStatistics>();
+	/** The service each in-flight message was dispatched to */
+	private final Map<FrontlineMessage, SmsService> inFlight = new IdentityHashMap<FrontlineMessage, SmsService>();
+	/** Weights set for services.  Services without a weight have a weight of 1. */
+	private final Map<SmsService, Double> weights = new HashMap<SmsService, Double>();
+
+//> ACCESSORS
+	/**
+	 * Sets the weight of a service.  A service with twice the weight of another will be sent twice as many
+	 * messages, if the two send messages at the same rate.
+	 * @param service
+	 * @param weight the weight, which must be greater than zero
+	 */
+	public synchronized void setWeight(SmsService service, double weight) {
+		if(weight <= 0) throw new IllegalArgumentException("Weight must be greater than zero: " + weight);
+		weights.put(service, weight);
+	}
+
+	/**
+	 * @param service
+	 * @return the weight of the service
+	 */
+	public synchronized double getWeight(SmsService service) {
+		Double weight = weights.get(service);
+		return weight == null ? 1 : weight;
+	}
+
+	/**
+	 * @param service
+	 * @return the number of messages dispatched to the service which it has not yet sent or failed to send
+	 */
+	public synchronized int getInFlightCount(SmsService service) {
+		ServiceStatistics serviceStatistics = statistics.get(service);
+		return serviceStatistics == null ? 0 : serviceStatistics.inFlight;
+	}
+
+//> SMS SERVICE BALANCER METHODS
+	/** @see SmsServiceBalancer#select(List, FrontlineMessage) */
+	public synchronized SmsService select(List<? extends SmsService> services, FrontlineMessage message) {
+		SmsService selected = null;
+		double selectedScore = Double.MAX_VALUE;
+		for(SmsService service : services) {
+			double score = getScore(service);
+			if(selected == null || score < selectedScore) {
+				selected = service;
+				selectedScore = score;
+			}
+		}
+		return selected;
+	}
+
+	/** @see SmsServiceBalancer#messageDispatched(SmsService, FrontlineMessage) */
+	public synchronized void messageDispatched(SmsService service, FrontlineMessage message) {
+		SmsService previous = inFlight.put(message, service);
+		if(previous != null) {
+			// The message was dispatched again before we heard what happened to it last time
+			ServiceStatistics previousStatistics = statistics.get(previous);
+			if(previousStatistics != null) --previousStatistics.inFlight;
+		}
+		ServiceStatistics serviceStatistics = statistics.get(service);
+		if(serviceStatistics == null) {
+			serviceStatistics = new ServiceStatistics();
+			statistics.put(service, serviceStatistics);
+		}
+		if(serviceStatistics.inFlight == 0) {
+			// The service was idle, so start timing its next send from now
+			serviceStatistics.lastProgressTime = System.currentTimeMillis();
+		}
+		++serviceStatistics.inFlight;
+	}
+
+	/** @see SmsServiceBalancer#messageSent(SmsService, FrontlineMessage) */
+	public synchronized void messageSent(SmsService service, FrontlineMessage message) {
+		ServiceStatistics serviceStatistics = complete(message);
+		if(serviceStatistics != null) {
+			long now = System.currentTimeMillis();
+			long interval = Math.max(1, now - serviceStatistics.lastProgressTime);
+			serviceStatistics.averageSendInterval += SMOOTHING * (interval - serviceStatistics.averageSendInterval);
+			serviceStatistics.failureRate -= SMOOTHING * serviceStatistics.failureRate;
+			serviceStatistics.lastProgressTime = now;
+		}
+	}
+
+	/** @see SmsServiceBalancer#messageFailed(SmsService, FrontlineMessage) */
+	public synchronized void messageFailed(SmsService service, FrontlineMessage message) {
+		ServiceStatistics serviceStatistics = complete(message);
+		if(serviceStatistics != null) {
+			// Failures are not used to estimate the send interval, as a service may fail much faster than it sends
+			serviceStatistics.failureRate += SMOOTHING * (1 - serviceStatistics.failureRate);
+			serviceStatistics.lastProgressTime = System.currentTimeMillis();
+		}
+	}
+
+	/** @see SmsServiceBalancer#serviceRemoved(SmsService) */
+	public synchronized void serviceRemoved(SmsService service) {
+		statistics.remove(service);
+		Iterator<SmsService> services = inFlight.values().iterator();
+		while(services.hasNext()) {
+			if(services.next() == service) services.remove();
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Stops tracking an in-flight message.
+	 * @param message
+	 * @return the statistics of the service the message was dispatched to, or <code>null</code> if the message was not in flight
+	 */
+	private ServiceStatistics complete(FrontlineMessage message) {
+		SmsService service = inFlight.remove(message);
+		if(service == null) return null;
+		ServiceStatistics serviceStatistics = statistics.get(service);
+		if(serviceStatistics != null) --serviceStatistics.inFlight;
+		return serviceStatistics;
+	}
+
+	/**
+	 * @param service
+	 * @return the score of a service; the service with the lowest score should be sent the next message
+	 */
+	private double getScore(SmsService service) {
+		ServiceStatistics serviceStatistics = statistics.get(service);
+		int queued = 1;
+		double sendInterval = DEFAULT_SEND_INTERVAL;
+		double successRate = 1;
+		if(serviceStatistics != null) {
+			queued += serviceStatistics.inFlight;
+			sendInterval = serviceStatistics.averageSendInterval;
+			successRate = Math.max(MIN_SUCCESS_RATE, 1 - serviceStatistics.failureRate);
+		}
+		return queued * sendInterval / (getWeight(service) * successRate);
+	}
+
+//> INNER CLASSES
+	/** Statistics of messages sent by a service */
+	private static final class ServiceStatistics {
+		/** Number of messages dispatched to the service which it has not yet sent or failed to send */
+		private int inFlight;
+		/** Moving average of the time, in millis, between the service sending messages while it is busy */
+		private double averageSendInterval = DEFAULT_SEND_INTERVAL;
+		/** Moving average of the proportion of messages the service has failed to send */
+		private double failureRate;
+		/** The time, in millis, that the service last finished with a message, or became busy */
+		private long lastProgressTime;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.domain.FrontlineMessage.Type;
+import net.frontlinesms.data.repository.MessageDao;
+
+/**
+ * Thread which re-queues messages that were waiting to be sent when FrontlineSMS last stopped.
+ *
+ * Messages are loaded from the database a page at a time, and the next page is only loaded once the
+ * {@link SmsServiceManager} has fewer than a page of messages waiting to be sent.  A large backlog is
+ * therefore never held in memory all at once, and startup does not wait for it to be loaded.
+ *
+ * Only messages dated before the recovery was created are loaded, so that messages queued since startup
+ * are not sent twice.
+ */
+public class OutboxRecovery extends Thread {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(OutboxRecovery.class);
+	/** Time, in millis, between checks of the number of messages waiting to be sent while the queue is full */
+	private static final long QUEUE_POLL_INTERVAL = 500;
+	/** Statuses of messages which had not been sent when FrontlineSMS stopped */
+	private static final Status[] UNSENT_STATUSES = { Status.OUTBOX, Status.PENDING };
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to load unsent messages */
+	private final MessageDao messageDao;
+	/** Manager the recovered messages are queued with */
+	private final SmsServiceManager smsServiceManager;
+	/** The number of messages loaded at a time */
+	private final int batchSize;
+	/** Messages dated after this time, in millis, were queued since startup and are not recovered */
+	private final long startTime;
+	/** Flag indicating that the thread should continue running */
+	private volatile boolean running = true;
+	/** The number of messages which have been re-queued */
+	private volatile int recoveredCount;
+
+//> CONSTRUCTORS
+	/**
+	 * @param messageDao data access object used to load unsent messages
+	 * @param smsServiceManager manager the recovered messages are queued with
+	 * @param batchSize the number of messages loaded at a time, which must be greater than zero
+	 */
+	public OutboxRecovery(MessageDao messageDao, SmsServiceManager smsServiceManager, int batchSize) {
+		super("OutboxRecovery");
+		if(batchSize <= 0) throw new IllegalArgumentException("Batch size must be greater than zero: " + batchSize);
+		this.messageDao = messageDao;
+		this.smsServiceManager = smsServiceManager;
+		this.batchSize = batchSize;
+		this.startTime = System.currentTimeMillis();
+		setDaemon(true);
+	}
+
+//> ACCESSORS
+	/** @return the number of messages which have been re-queued */
+	public int getRecoveredCount() {
+		return recoveredCount;
+	}
+
+//> THREAD METHODS
+	/** Re-queues all unsent messages, and then exits. */
+	public void run() {
+		LOG.trace("ENTER");
+		recover();
+		LOG.info("Re-queued " + recoveredCount + " unsent messages.");
+		LOG.trace("EXIT");
+	}
+
+	/** Stops re-queueing messages.  Messages which have not been re-queued yet will be recovered on the next startup. */
+	public void stopRunning() {
+		this.running = false;
+	}
+
+//> RECOVERY METHODS
+	/**
+	 * Loads and re-queues unsent messages a page at a time, waiting for the queue to drain between pages.
+	 * This method is separated for simple, unthreaded unit testing.
+	 * THREAD: OutboxRecovery
+	 */
+	void recover() {
+		long lastId = 0;
+		while(running) {
+			awaitQueueSpace();
+			if(!running) break;
+
+			List<FrontlineMessage> page = messageDao.getMessagesAfterId(Type.OUTBOUND, UNSENT_STATUSES, lastId, startTime, batchSize);
+			for(FrontlineMessage message : page) {
+				smsServiceManager.sendSMS(message);
+				lastId = message.getId();
+				++recoveredCount;
+			}
+			if(LOG.isDebugEnabled()) LOG.debug("Re-queued " + page.size() + " unsent messages up to id " + lastId);
+
+			if(page.size() < batchSize) {
+				// This was the last page
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Waits until fewer than {@link #batchSize} messages are waiting to be sent, or the thread is stopped.
+	 * THREAD: OutboxRecovery
+	 */
+	private void awaitQueueSpace() {
+		while(running && smsServiceManager.getQueuedMessageCount() >= batchSize) {
+			FrontlineUtils.sleep_ignoreInterrupts(QUEUE_POLL_INTERVAL);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
+
+/**
+ * Queue of outgoing messages with a separate lane for each {@link Priority}.
+ *
+ * Messages are taken from the lanes in weighted round-robin order: each lane in turn may give up to
+ * {@link Priority#getWeight()} messages before the next lane is tried.  A busy lane of low priority messages
+ * therefore only delays a high priority message by a few messages, and low priority messages are still sent
+ * while high priority ones are waiting.  Messages of the same priority are taken in the order they were added.
+ *
+ * Each lane is a linked list, and every queued message is indexed by its id, so that a message can be found,
+ * removed or moved to another lane without searching the outbox.  A message may be removed using a different
+ * instance with the same id, e.g. one loaded from the database by the UI.  Messages which have not been saved
+ * yet are indexed by instance instead.  All methods are synchronized on the outbox.
+ */
+public class PriorityOutbox implements Iterable<FrontlineMessage> {
+//> STATIC CONSTANTS
+	/** The priorities, in the order their lanes are visited */
+	private static final Priority[] PRIORITIES = Priority.values();
+
+//> INSTANCE PROPERTIES
+	/** First node of each lane, indexed by {@link Priority#ordinal()} */
+	private final Node[] heads = new Node[PRIORITIES.length];
+	/** Last node of each lane, indexed by {@link Priority#ordinal()} */
+	private final Node[] tails = new Node[PRIORITIES.length];
+	/** Number of messages in each lane, indexed by {@link Priority#ordinal()} */
+	private final int[] laneSizes = new int[PRIORITIES.length];
+	/** Nodes of queued messages which have been saved, mapped by message id */
+	private final HashMap<Long, Node> savedIndex = new HashMap<Long, Node>();
+	/** Nodes of queued messages which have not been saved, and so have no id, mapped by instance */
+	private final IdentityHashMap<FrontlineMessage, Node> unsavedIndex = new IdentityHashMap<FrontlineMessage, Node>();
+	/** Total number of messages in this outbox */
+	private int size;
+	/** Index in {@link #PRIORITIES} of the lane messages are currently being taken from */
+	private int currentLane;
+	/** Number of messages which may still be taken from the current lane before moving to the next */
+	private int credits = PRIORITIES[0].getWeight();
+
+//> QUEUE METHODS
+	/**
+	 * Adds a message to the end of the lane for its priority.  If the message, or another instance with the
+	 * same id, is already queued, it is not added again.
+	 * @param message message to add to the lane for its priority
+	 * @return <code>true</code> if the message was added
+	 */
+	public synchronized boolean add(FrontlineMessage message) {
+		if(getNode(message) != null) return false;
+		Node node = new Node(message);
+		link(node, message.getPriority());
+		if(message.getId() != 0) {
+			savedIndex.put(message.getId(), node);
+		} else {
+			unsavedIndex.put(message, node);
+		}
+		return true;
+	}
+
+	/** @param messages messages to add to the lanes for their priorities */
+	public synchronized void addAll(Collection<FrontlineMessage> messages) {
+		for(FrontlineMessage message : messages) {
+			add(message);
+		}
+	}
+
+	/** @return the next message to send, or <code>null</code> if there are no messages */
+	public synchronized FrontlineMessage poll() {
+		if(size == 0) return null;
+		// Visit every lane once, and the current lane again with new credits if all the others are empty
+		for(int i=0; i<=PRIORITIES.length; ++i) {
+			Node head = heads[currentLane];
+			if(credits > 0 && head != null) {
+				--credits;
+				unlink(head);
+				unindex(head);
+				return head.message;
+			}
+			currentLane = (currentLane + 1) % PRIORITIES.length;
+			credits = PRIORITIES[currentLane].getWeight();
+		}
+		return null;
+	}
+
+	/**
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was in this outbox and has been removed
+	 */
+	public synchronized boolean remove(FrontlineMessage message) {
+		Node node = getNode(message);
+		if(node == null) return false;
+		unlink(node);
+		unindex(node);
+		return true;
+	}
+
+	/**
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message is in this outbox
+	 */
+	public synchronized boolean contains(FrontlineMessage message) {
+		return getNode(message) != null;
+	}
+
+	/**
+	 * Changes the priority of a queued message.  The message is moved to the end of the lane for its new
+	 * priority; if its priority has not changed, it keeps its place.
+	 * @param message the message, or another instance with the same id
+	 * @param priority the new priority of the message
+	 * @return <code>true</code> if the message was in this outbox
+	 */
+	public synchronized boolean reprioritize(FrontlineMessage message, Priority priority) {
+		Node node = getNode(message);
+		if(node == null) return false;
+		if(node.lane != priority.ordinal()) {
+			unlink(node);
+			link(node, priority);
+		}
+		node.message.setPriority(priority);
+		return true;
+	}
+
+//> ACCESSORS
+	/** @return <code>true</code> if there are no messages in this outbox */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** @return the number of messages in this outbox */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param priority
+	 * @return the number of messages of the supplied priority in this outbox
+	 */
+	public synchronized int size(Priority priority) {
+		return laneSizes[priority.ordinal()];
+	}
+
+	/** @return an iterator over a snapshot of the messages in this outbox, in priority order */
+	public synchronized Iterator<FrontlineMessage> iterator() {
+		List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>(size);
+		for(Node head : heads) {
+			for(Node node = head; node != null; node = node.next) {
+				messages.add(node.message);
+			}
+		}
+		return messages.iterator();
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * @param message
+	 * @return the node of the queued message with the same id as the supplied message, or of the supplied instance if it has not been saved
+	 */
+	private Node getNode(FrontlineMessage message) {
+		if(message.getId() != 0) {
+			Node node = savedIndex.get(message.getId());
+			if(node != null) return node;
+		}
+		// The message may have been saved since it was queued
+		return unsavedIndex.get(message);
+	}
+
+	/** Adds a node to the end of a lane. */
+	private void link(Node node, Priority priority) {
+		int lane = priority.ordinal();
+		node.lane = lane;
+		node.previous = tails[lane];
+		node.next = null;
+		if(tails[lane] == null) {
+			heads[lane] = node;
+		} else {
+			tails[lane].next = node;
+		}
+		tails[lane] = node;
+		++laneSizes[lane];
+		++size;
+	}
+
+	/** Removes a node from its lane. */
+	private void unlink(Node node) {
+		int lane = node.lane;
+		if(node.previous == null) {
+			heads[lane] = node.next;
+		} else {
+			node.previous.next = node.next;
+		}
+		if(node.next == null) {
+			tails[lane] = node.previous;
+		} else {
+			node.next.previous = node.previous;
+		}
+		node.previous = null;
+		node.next = null;
+		--laneSizes[lane];
+		--size;
+	}
+
+	/** Removes a node from whichever index it was added to. */
+	private void unindex(Node node) {
+		if(unsavedIndex.remove(node.message) == null) {
+			savedIndex.remove(node.message.getId());
+		}
+	}
+
+//> INNER CLASSES
+	/** Entry for a single message in a lane */
+	private static final class Node {
+		/** The queued message */
+		private final FrontlineMessage message;
+		/** Index of the lane this node is in */
+		private int lane;
+		/** The node before this one in its lane, or <code>null</code> if this is the first */
+		private Node previous;
+		/** The node after this one in its lane, or <code>null</code> if this is the last */
+		private Node next;
+
+		Node(FrontlineMessage message) {
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
+
+/**
+ * Thread which queues scheduled messages with the {@link SmsServiceManager} once they are due.
+ *
+ * Scheduled messages are saved with status {@link Status#SCHEDULED} and the time they are due, so they are
+ * not lost if FrontlineSMS stops.  Only messages due within {@link #window} of now are held in memory, in a
+ * {@link TimingWheel}, and at most {@link #capacity} of them; later messages are loaded from the database a
+ * page at a time as the wheel turns towards them.  Pages are found by the time and id of the last message
+ * loaded, so a message scheduled after that point is left for a later page rather than added to the wheel.
+ *
+ * Due messages are queued at no more than the configured rate, so that many messages scheduled for the same
+ * moment do not all arrive at the {@link SmsServiceManager} at once.  Messages which became due while
+ * FrontlineSMS was stopped are queued as soon as they are loaded.  Each message's status is changed with a
+ * compare-and-set update before it is queued, so that it is only queued once even if several instances
+ * share the database.
+ */
+public class ScheduledMessageReleaser extends Thread {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(ScheduledMessageReleaser.class);
+	/** Time, in millis, covered by each slot of the {@link #wheel} */
+	static final long TICK_DURATION = 1000;
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to save and load scheduled messages */
+	private final MessageDao messageDao;
+	/** Manager the due messages are queued with */
+	private final SmsServiceManager smsServiceManager;
+	/** Limits the rate at which due messages are queued */
+	private final TokenBucket rateLimiter;
+	/** Time, in millis, ahead of now that scheduled messages are held in memory */
+	private final long window;
+	/** The maximum number of scheduled messages held in memory */
+	private final int capacity;
+	/** The number of messages loaded at a time */
+	private final int pageSize;
+	/** Scheduled messages which have been loaded and are not yet due.  Guarded by <code>this</code>. */
+	private final TimingWheel wheel;
+	/** Messages which are due, waiting to be queued, in the order they became due.  Guarded by <code>this</code>. */
+	private final LinkedList<FrontlineMessage> due = new LinkedList<FrontlineMessage>();
+	/** Scheduled time of the last message loaded from the database.  Guarded by <code>this</code>. */
+	private long loadedTime = Long.MIN_VALUE;
+	/** Id of the last message loaded from the database.  Guarded by <code>this</code>. */
+	private long loadedId;
+	/** Flag indicating that the thread should continue running */
+	private volatile boolean running = true;
+	/** The number of messages which have been queued */
+	private volatile int releasedCount;
+
+//> CONSTRUCTORS
+	/**
+	 * @param messageDao data access object used to save and load scheduled messages
+	 * @param smsServiceManager manager the due messages are queued with
+	 * @param window time, in millis, ahead of now that scheduled messages are held in memory, which must be at least {@link #TICK_DURATION}
+	 * @param rate the number of due messages which may be queued each minute, which must be greater than zero
+	 * @param capacity the maximum number of scheduled messages held in memory, which must be greater than zero
+	 * @param pageSize the number of messages loaded at a time, which must be greater than zero
+	 */
+	public ScheduledMessageReleaser(MessageDao messageDao, SmsServiceManager smsServiceManager, long window, int rate, int capacity, int pageSize) {
+		this(messageDao, smsServiceManager, window, rate, capacity, pageSize, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param messageDao data access object used to save and load scheduled messages
+	 * @param smsServiceManager manager the due messages are queued with
+	 * @param window time, in millis, ahead of now that scheduled messages are held in memory, which must be at least {@link #TICK_DURATION}
+	 * @param rate the number of due messages which may be queued each minute, which must be greater than zero
+	 * @param capacity the maximum number of scheduled messages held in memory, which must be greater than zero
+	 * @param pageSize the number of messages loaded at a time, which must be greater than zero
+	 * @param startTime the time, in millis, the wheel starts at
+	 */
+	ScheduledMessageReleaser(MessageDao messageDao, SmsServiceManager smsServiceManager, long window, int rate, int capacity, int pageSize, long startTime) {
+		super("ScheduledMessageReleaser");
+		if(window < TICK_DURATION) throw new IllegalArgumentException("Window must be at least " + TICK_DURATION + "ms: " + window);
+		if(capacity <= 0) throw new IllegalArgumentException("Capacity must be greater than zero: " + capacity);
+		if(pageSize <= 0) throw new IllegalArgumentException("Page size must be greater than zero: " + pageSize);
+		this.messageDao = messageDao;
+		this.smsServiceManager = smsServiceManager;
+		// Allow up to a second's worth of messages to be queued at once
+		this.rateLimiter = new TokenBucket(rate, rate / 60);
+		this.window = window;
+		this.capacity = capacity;
+		this.pageSize = pageSize;
+		this.wheel = new TimingWheel(TICK_DURATION, (int) (window / TICK_DURATION) + 1, startTime);
+		setDaemon(true);
+	}
+
+//> ACCESSORS
+	/** @return the number of messages which have been queued */
+	public int getReleasedCount() {
+		return releasedCount;
+	}
+
+	/** @return the number of scheduled messages held in memory */
+	public synchronized int getHeldCount() {
+		return wheel.size() + due.size();
+	}
+
+//> SCHEDULING METHODS
+	/**
+	 * Saves a message to be queued for sending at the supplied time.  If the message has already been
+	 * scheduled, it is rescheduled.
+	 * @param message an outgoing message which has not been sent
+	 * @param time the time, in millis, at which the message should be queued
+	 */
+	public void schedule(FrontlineMessage message, long time) {
+		message.setStatus(Status.SCHEDULED);
+		message.setScheduledTime(time);
+		if(message.getId() == 0) {
+			messageDao.saveMessage(message);
+		} else {
+			messageDao.updateMessage(message);
+		}
+		synchronized(this) {
+			remove(message);
+			if(time < loadedTime || (time == loadedTime && message.getId() <= loadedId)) {
+				wheel.add(message, time);
+			}
+		}
+	}
+
+	/**
+	 * Cancels a scheduled message, which is kept as a draft.  The message's status is changed with a
+	 * compare-and-set update, so a message which has already been queued for sending is not cancelled.
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was cancelled, or <code>false</code> if it was no longer scheduled
+	 */
+	public boolean cancel(FrontlineMessage message) {
+		remove(message);
+		if(message.getId() == 0
+				|| messageDao.updateMessageStatus(Collections.singleton(message.getId()), Status.SCHEDULED, Status.DRAFT) == 0) {
+			if(LOG.isDebugEnabled()) LOG.debug("Scheduled message [" + message.getId() + "] has already been released or cancelled.");
+			return false;
+		}
+		message.setStatus(Status.DRAFT);
+		message.setScheduledTime(0);
+		messageDao.updateMessage(message);
+		return true;
+	}
+
+	/**
+	 * Removes a scheduled message from memory, e.g. because it is about to be deleted.  The message is not
+	 * changed in the database.
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was held in memory and has been removed
+	 */
+	public synchronized boolean remove(FrontlineMessage message) {
+		if(wheel.remove(message)) return true;
+		for(Iterator<FrontlineMessage> i = due.iterator(); i.hasNext(); ) {
+			FrontlineMessage m = i.next();
+			if(m == message || (m.getId() != 0 && m.getId() == message.getId())) {
+				i.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+//> THREAD METHODS
+	/** Queues scheduled messages as they become due, until stopped. */
+	public void run() {
+		LOG.trace("ENTER");
+		while(running) {
+			long now = currentTimeMillis();
+			tick(now);
+			long sleepTime = TICK_DURATION - now % TICK_DURATION;
+			synchronized(this) {
+				if(!due.isEmpty()) sleepTime = Math.min(sleepTime, Math.max(1, rateLimiter.getWaitTime()));
+			}
+			FrontlineUtils.sleep_ignoreInterrupts(sleepTime);
+		}
+		LOG.info("Queued " + releasedCount + " scheduled messages.");
+		LOG.trace("EXIT");
+	}
+
+	/** Stops queueing messages.  Messages which have not been queued will be loaded again on the next startup. */
+	public void stopRunning() {
+		this.running = false;
+	}
+
+//> RELEASE METHODS
+	/**
+	 * Turns the wheel to the supplied time, loads any messages which now fall within the window, and queues
+	 * as many due messages as the rate limit allows.
+	 * This method is separated for simple, unthreaded unit testing.
+	 * THREAD: ScheduledMessageReleaser
+	 * @param now the current time, in millis
+	 */
+	void tick(long now) {
+		synchronized(this) {
+			due.addAll(wheel.advance(now));
+			if(loadedTime < now + window / 2) {
+				load();
+			}
+		}
+		release();
+	}
+
+	/**
+	 * Loads scheduled messages a page at a time, up to the wheel's horizon or until {@link #capacity}
+	 * messages are held.  The database is queried while holding the lock, so that a message scheduled during
+	 * the query is either found by it or added to the wheel by {@link #schedule(FrontlineMessage, long)}.
+	 * THREAD: ScheduledMessageReleaser
+	 */
+	private synchronized void load() {
+		long until = wheel.getHorizon() - 1;
+		int loadedCount = 0;
+		while(running) {
+			int limit = Math.min(pageSize, capacity - getHeldCount());
+			if(limit <= 0) break;
+			List<FrontlineMessage> page = messageDao.getScheduledMessages(loadedTime, loadedId, until, limit);
+			for(FrontlineMessage message : page) {
+				wheel.add(message, message.getScheduledTime());
+				loadedTime = message.getScheduledTime();
+				loadedId = message.getId();
+			}
+			loadedCount += page.size();
+			if(page.size() < limit) {
+				// Every message up to the horizon has been loaded
+				loadedTime = until;
+				loadedId = Long.MAX_VALUE;
+				break;
+			}
+		}
+		if(LOG.isDebugEnabled() && loadedCount > 0) LOG.debug("Loaded " + loadedCount + " scheduled messages up to " + loadedTime);
+	}
+
+	/**
+	 * Queues due messages with the {@link SmsServiceManager} until none are left or the rate limit is reached.
+	 * THREAD: ScheduledMessageReleaser
+	 */
+	private void release() {
+		while(running) {
+			FrontlineMessage message;
+			synchronized(this) {
+				if(due.isEmpty() || !rateLimiter.tryAcquire()) break;
+				message = due.removeFirst();
+			}
+			// Only one instance sharing the database may release each message, and not once it has been cancelled
+			if(messageDao.updateMessageStatus(Collections.singleton(message.getId()), Status.SCHEDULED, Status.OUTBOX) == 0) {
+				if(LOG.isDebugEnabled()) LOG.debug("Scheduled message [" + message.getId() + "] has already been released or cancelled.");
+				continue;
+			}
+			message.setStatus(Status.OUTBOX);
+			message.setScheduledTime(0);
+			message.setDate(currentTimeMillis());
+			messageDao.updateMessage(message);
+			smsServiceManager.sendSMS(message);
+			++releasedCount;
+		}
+	}
+
+	/** @return the current time, in millis.  This method is separated so that unit tests can control the clock. */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
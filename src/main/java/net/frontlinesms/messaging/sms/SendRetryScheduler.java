@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Holds outgoing messages which failed to send until they are due to be retried.
+ *
+ * The delay before each retry doubles with every failed attempt, up to a maximum, and is reduced by a random
+ * amount of up to {@link #jitterPercent}% so that messages which failed together, e.g. because a device was
+ * unplugged, are not all retried at the same moment.  The time each message is due is stored in the message
+ * itself, see {@link FrontlineMessage#getRetryTime()}, so that retries are still delayed after a restart.
+ *
+ * Like {@link PriorityOutbox}, messages are indexed by id, or by instance if they have not been saved, so
+ * that a message may be cancelled using a copy loaded from the database.
+ */
+public class SendRetryScheduler {
+//> INSTANCE PROPERTIES
+	/** Source of the random jitter added to retry delays */
+	private final Random random;
+	/** Time, in millis, to wait before retrying a failed message for the first time.  The delay doubles with each further failure. */
+	private volatile long retryDelay;
+	/** The maximum time, in millis, to wait before retrying a failed message */
+	private volatile long maxRetryDelay;
+	/** The maximum amount, as a percentage, by which a retry delay is randomly reduced */
+	private volatile int jitterPercent;
+	/** Waiting messages, ordered by the time they are due */
+	private final TreeSet<Entry> schedule = new TreeSet<Entry>();
+	/** Entries of waiting messages which have been saved, mapped by message id */
+	private final HashMap<Long, Entry> savedIndex = new HashMap<Long, Entry>();
+	/** Entries of waiting messages which have not been saved, mapped by instance */
+	private final IdentityHashMap<FrontlineMessage, Entry> unsavedIndex = new IdentityHashMap<FrontlineMessage, Entry>();
+	/** Sequence number of the next entry, so that messages due at the same time keep the order they were scheduled in */
+	private long nextSequence;
+
+//> CONSTRUCTORS
+	/**
+	 * @param retryDelay time, in millis, to wait before retrying a failed message for the first time
+	 * @param maxRetryDelay the maximum time, in millis, to wait before retrying a failed message
+	 * @param jitterPercent the maximum amount, as a percentage, by which a retry delay is randomly reduced
+	 */
+	public SendRetryScheduler(long retryDelay, long maxRetryDelay, int jitterPercent) {
+		this(retryDelay, maxRetryDelay, jitterPercent, new Random());
+	}
+
+	/**
+	 * @param retryDelay time, in millis, to wait before retrying a failed message for the first time
+	 * @param maxRetryDelay the maximum time, in millis, to wait before retrying a failed message
+	 * @param jitterPercent the maximum amount, as a percentage, by which a retry delay is randomly reduced
+	 * @param random source of the random jitter added to retry delays
+	 */
+	SendRetryScheduler(long retryDelay, long maxRetryDelay, int jitterPercent, Random random) {
+		this.random = random;
+		setRetryPolicy(retryDelay, maxRetryDelay, jitterPercent);
+	}
+
+//> ACCESSORS
+	/**
+	 * Sets how failed messages are retried.  Messages which are already waiting keep their current retry time.
+	 * @param retryDelay time, in millis, to wait before retrying a failed message for the first time
+	 * @param maxRetryDelay the maximum time, in millis, to wait before retrying a failed message
+	 * @param jitterPercent the maximum amount, as a percentage, by which a retry delay is randomly reduced
+	 */
+	public void setRetryPolicy(long retryDelay, long maxRetryDelay, int jitterPercent) {
+		this.retryDelay = Math.max(0, retryDelay);
+		this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+		this.jitterPercent = Math.max(0, Math.min(100, jitterPercent));
+	}
+
+	/**
+	 * @param attempts the number of times a message has failed to send
+	 * @return the time, in millis, to wait before retrying the message
+	 */
+	public long getRetryDelay(int attempts) {
+		long delay = retryDelay;
+		for(int i=1; i<attempts && delay < maxRetryDelay; ++i) {
+			delay <<= 1;
+		}
+		delay = Math.min(delay, maxRetryDelay);
+		long jitter;
+		synchronized(random) {
+			jitter = (long) (random.nextDouble() * delay * jitterPercent / 100);
+		}
+		return delay - jitter;
+	}
+
+	/** @return the number of messages waiting to be retried */
+	public synchronized int size() {
+		return schedule.size();
+	}
+
+	/**
+	 * @param now the current time, in millis
+	 * @return the time, in millis, until the next message is due, or {@link Long#MAX_VALUE} if no messages are waiting
+	 */
+	public synchronized long getWaitTime(long now) {
+		if(schedule.isEmpty()) return Long.MAX_VALUE;
+		return Math.max(0, schedule.first().time - now);
+	}
+
+//> SCHEDULING METHODS
+	/**
+	 * Holds a message until the time set by {@link FrontlineMessage#setRetryTime(long)}.  If the message, or
+	 * another instance with the same id, is already waiting, it is rescheduled.
+	 * @param message a failed message
+	 */
+	public synchronized void schedule(FrontlineMessage message) {
+		remove(message);
+		Entry entry = new Entry(message, message.getRetryTime(), nextSequence++);
+		schedule.add(entry);
+		if(message.getId() != 0) {
+			savedIndex.put(message.getId(), entry);
+		} else {
+			unsavedIndex.put(message, entry);
+		}
+	}
+
+	/**
+	 * Removes and returns the messages which are due to be retried.
+	 * @param now the current time, in millis
+	 * @return the messages due at or before <code>now</code>, in the order they are due
+	 */
+	public synchronized List<FrontlineMessage> pollDue(long now) {
+		List<FrontlineMessage> due = new ArrayList<FrontlineMessage>();
+		while(!schedule.isEmpty() && schedule.first().time <= now) {
+			Entry entry = schedule.first();
+			schedule.remove(entry);
+			unindex(entry);
+			due.add(entry.message);
+		}
+		return due;
+	}
+
+	/**
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was waiting to be retried and has been removed
+	 */
+	public synchronized boolean remove(FrontlineMessage message) {
+		Entry entry = null;
+		if(message.getId() != 0) entry = savedIndex.get(message.getId());
+		if(entry == null) entry = unsavedIndex.get(message);
+		if(entry == null) return false;
+		schedule.remove(entry);
+		unindex(entry);
+		return true;
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Removes an entry from whichever index it was added to. */
+	private void unindex(Entry entry) {
+		if(unsavedIndex.remove(entry.message) == null) {
+			savedIndex.remove(entry.message.getId());
+		}
+	}
+
+//> INNER CLASSES
+	/** A message waiting to be retried */
+	private static final class Entry implements Comparable<Entry> {
+		/** The waiting message */
+		private final FrontlineMessage message;
+		/** The time, in millis, the message is due to be retried */
+		private final long time;
+		/** Order in which this entry was scheduled */
+		private final long sequence;
+
+		Entry(FrontlineMessage message, long time, long sequence) {
+			this.message = message;
+			this.time = time;
+			this.sequence = sequence;
+		}
+
+		/** @see Comparable#compareTo(Object) */
+		public int compareTo(Entry other) {
+			if(this.time != other.time) return this.time < other.time ? -1 : 1;
+			if(this.sequence != other.sequence) return this.sequence < other.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+}
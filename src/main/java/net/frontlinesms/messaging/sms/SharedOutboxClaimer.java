@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.repository.MessageDao;
+
+/**
+ * Thread which claims unsent messages from an outbox shared by several FrontlineSMS instances using the same
+ * database, so that each message is only sent by one of them.
+ *
+ * A message is only queued by the {@link SmsServiceManager} once this instance holds a claim on it, which is
+ * stored in the message and expires after {@link #leaseDuration}; see {@link MessageDao#claimMessages(String, long, long, int)}.
+ * Claims are taken with a compare-and-set update, and renewed regularly while this instance is running.  If
+ * the instance stops without releasing its claims, e.g. because it crashed, they expire, and the unsent
+ * messages are claimed by the other instances.
+ *
+ * Messages created by this instance are claimed before they are saved, so they are normally sent by this
+ * instance.  Messages are claimed from the database a batch at a time whenever fewer than a batch are waiting
+ * to be sent, so an instance with idle devices takes work which other instances have not claimed.
+ */
+public class SharedOutboxClaimer extends Thread {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(SharedOutboxClaimer.class);
+	/** Time, in millis, between checks for unclaimed messages when none were found */
+	private static final long POLL_INTERVAL = 1000;
+
+//> INSTANCE PROPERTIES
+	/** Data access object used to claim messages */
+	private final MessageDao messageDao;
+	/** Manager the claimed messages are queued with */
+	private final SmsServiceManager smsServiceManager;
+	/** Id of this instance, which is stored in the messages it claims */
+	private final String owner;
+	/** Time, in millis, after which a claim expires unless it is renewed */
+	private final long leaseDuration;
+	/** The maximum number of messages claimed at a time */
+	private final int batchSize;
+	/** Time, in millis, that the claims of this instance were last renewed */
+	private long lastRenewalTime;
+	/** Flag indicating that the thread should continue running */
+	private volatile boolean running = true;
+	/** The number of messages which have been claimed from the database by this thread */
+	private volatile int claimedCount;
+
+//> CONSTRUCTORS
+	/**
+	 * @param messageDao data access object used to claim messages
+	 * @param smsServiceManager manager the claimed messages are queued with
+	 * @param owner id of this instance, which must be different for each instance sharing the database
+	 * @param leaseDuration time, in millis, after which a claim expires unless it is renewed, which must be greater than zero
+	 * @param batchSize the maximum number of messages claimed at a time, which must be greater than zero
+	 */
+	public SharedOutboxClaimer(MessageDao messageDao, SmsServiceManager smsServiceManager, String owner, long leaseDuration, int batchSize) {
+		super("SharedOutboxClaimer");
+		if(owner == null || owner.length() == 0) throw new IllegalArgumentException("Owner must be specified.");
+		if(leaseDuration <= 0) throw new IllegalArgumentException("Lease duration must be greater than zero: " + leaseDuration);
+		if(batchSize <= 0) throw new IllegalArgumentException("Batch size must be greater than zero: " + batchSize);
+		this.messageDao = messageDao;
+		this.smsServiceManager = smsServiceManager;
+		this.owner = owner;
+		this.leaseDuration = leaseDuration;
+		this.batchSize = batchSize;
+		this.lastRenewalTime = currentTimeMillis();
+		setDaemon(true);
+	}
+
+//> ACCESSORS
+	/** @return {@link #owner} */
+	public String getOwner() {
+		return owner;
+	}
+
+	/** @return the number of messages which have been claimed from the database by this thread */
+	public int getClaimedCount() {
+		return claimedCount;
+	}
+
+//> CLAIM METHODS
+	/**
+	 * Marks a message which has not been saved yet as claimed by this instance, so that other instances do
+	 * not claim it once it has been saved.
+	 * @param message a new outgoing message
+	 */
+	public void claimUnsaved(FrontlineMessage message) {
+		message.setClaimOwner(owner);
+		message.setClaimExpiry(currentTimeMillis() + leaseDuration);
+	}
+
+	/**
+	 * Claims a message which is about to be queued, unless this instance already holds an unexpired claim on it.
+	 * @param message an outgoing message
+	 * @return <code>true</code> if this instance holds a claim on the message, and may send it
+	 */
+	public boolean claim(FrontlineMessage message) {
+		long now = currentTimeMillis();
+		if(owner.equals(message.getClaimOwner()) && message.getClaimExpiry() > now) return true;
+		if(message.getId() != 0 && !messageDao.claimMessage(message.getId(), owner, now, now + leaseDuration)) {
+			if(LOG.isDebugEnabled()) LOG.debug("Message [" + message.getId() + "] has been claimed by another instance.");
+			return false;
+		}
+		message.setClaimOwner(owner);
+		message.setClaimExpiry(now + leaseDuration);
+		return true;
+	}
+
+//> THREAD METHODS
+	/** Claims and queues messages until stopped. */
+	public void run() {
+		LOG.trace("ENTER");
+		while(running) {
+			int claimed = poll(currentTimeMillis());
+			if(claimed < batchSize) {
+				FrontlineUtils.sleep_ignoreInterrupts(POLL_INTERVAL);
+			}
+		}
+		LOG.info("Claimed " + claimedCount + " messages from the shared outbox.");
+		LOG.trace("EXIT");
+	}
+
+	/** Stops claiming messages.  Claims already held are kept until {@link #releaseClaims()} is called, or they expire. */
+	public void stopRunning() {
+		this.running = false;
+	}
+
+	/**
+	 * Releases the claims of this instance on messages which have not been given to a device, so that other
+	 * instances may send them straight away.  This should only be called once this instance has stopped
+	 * sending messages, and the statuses of the messages it has sent have been saved.
+	 */
+	public void releaseClaims() {
+		int released = messageDao.releaseClaims(owner);
+		LOG.info("Released " + released + " claimed messages to the shared outbox.");
+	}
+
+	/**
+	 * Renews this instance's claims if they are due to be renewed, and claims and queues a batch of messages
+	 * if fewer than a batch are waiting to be sent.
+	 * This method is separated for simple, unthreaded unit testing.
+	 * THREAD: SharedOutboxClaimer
+	 * @param now the current time, in millis
+	 * @return the number of messages claimed
+	 */
+	int poll(long now) {
+		if(!running) return 0;
+		if(now - lastRenewalTime >= leaseDuration / 3) {
+			int renewed = messageDao.renewClaims(owner, now + leaseDuration);
+			lastRenewalTime = now;
+			if(LOG.isDebugEnabled()) LOG.debug("Renewed " + renewed + " claims.");
+		}
+
+		if(smsServiceManager.getQueuedMessageCount() >= batchSize) return 0;
+		List<FrontlineMessage> claimed = messageDao.claimMessages(owner, now, now + leaseDuration, batchSize);
+		for(FrontlineMessage message : claimed) {
+			smsServiceManager.sendSMS(message);
+		}
+		claimedCount += claimed.size();
+		if(LOG.isDebugEnabled() && !claimed.isEmpty()) LOG.debug("Claimed " + claimed.size() + " messages from the shared outbox.");
+		return claimed.size();
+	}
+
+	/** @return the current time, in millis.  This method is separated so that unit tests can control the clock. */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
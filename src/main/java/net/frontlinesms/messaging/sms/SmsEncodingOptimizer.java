@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Reduces the number of SMS parts outgoing text messages are sent in by replacing characters which are
+ * expensive to send with similar characters from the GSM default alphabet.  A single character outside the
+ * alphabet, e.g. a smart quote pasted from a word processor, forces the whole message to be sent as UCS-2,
+ * which fits less than half as many characters in each part.  Characters in the alphabet's extension table
+ * take twice the space of other characters.
+ *
+ * Text is only changed if the replacements reduce the number of parts it is sent in; otherwise it is sent as
+ * written.  The replacements are read from a transliteration map, which by default covers common punctuation
+ * and accented letters; see {@link #getDefaultTransliterations()}.
+ */
+public class SmsEncodingOptimizer {
+//> INSTANCE PROPERTIES
+	/** Replacement for each character which is expensive to send */
+	private final Map<Character, String> transliterations;
+
+//> CONSTRUCTORS
+	/** Creates an optimizer using the {@link #getDefaultTransliterations()}. */
+	public SmsEncodingOptimizer() {
+		this(getDefaultTransliterations());
+	}
+
+	/**
+	 * @param transliterations replacement for each character which is expensive to send.  Replacements should
+	 * contain only characters from the GSM default alphabet.
+	 */
+	public SmsEncodingOptimizer(Map<Character, String> transliterations) {
+		this.transliterations = new HashMap<Character, String>(transliterations);
+	}
+
+//> OPTIMIZATION METHODS
+	/**
+	 * @param text
+	 * @return the text with expensive characters replaced, if that reduces the number of parts it is sent
+	 * in; otherwise the same text
+	 */
+	public String optimize(String text) {
+		if(text == null) return null;
+		StringBuilder replaced = null;
+		for(int i=0; i<text.length(); ++i) {
+			char c = text.charAt(i);
+			String replacement = null;
+			if(GsmCharacterClassifier.getCharacterClass(c) != GsmCharacterClassifier.BASIC) {
+				replacement = transliterations.get(c);
+			}
+			if(replacement != null && replaced == null) {
+				// Only copy the text once a character needs replacing
+				replaced = new StringBuilder(text.length());
+				replaced.append(text, 0, i);
+			}
+			if(replaced != null) {
+				if(replacement != null) replaced.append(replacement);
+				else replaced.append(c);
+			}
+		}
+		if(replaced == null) return text;
+
+		String optimized = replaced.toString();
+		if(GsmCharacterClassifier.countParts(optimized) < GsmCharacterClassifier.countParts(text)) {
+			return optimized;
+		} else {
+			return text;
+		}
+	}
+
+	/**
+	 * Replaces expensive characters in the text of an outgoing message, if that reduces the number of parts
+	 * it is sent in, and updates the message's part count.  Binary messages are not changed.
+	 * @param message a message which has not yet been sent
+	 * @return the number of parts saved
+	 */
+	public int optimize(FrontlineMessage message) {
+		if(message.isBinaryMessage()) return 0;
+		String text = message.getTextContent();
+		String optimized = optimize(text);
+		if(optimized == text) return 0;
+		int saved = GsmCharacterClassifier.countParts(text) - GsmCharacterClassifier.countParts(optimized);
+		message.setTextMessageContent(optimized);
+		message.setSmsPartsCount(Math.max(1, FrontlineMessage.getExpectedNumberOfSmsParts(optimized)));
+		return saved;
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Creates an optimizer using the default transliterations, overridden by the supplied entries.
+	 * @param overrides replacements mapped by the character they replace.  Keys which are not a single
+	 * character are ignored, and an empty replacement removes the default for a character.
+	 * @return a new optimizer
+	 */
+	public static SmsEncodingOptimizer create(Map<String, String> overrides) {
+		Map<Character, String> transliterations = getDefaultTransliterations();
+		for(Map.Entry<String, String> entry : overrides.entrySet()) {
+			if(entry.getKey().length() != 1) continue;
+			Character c = entry.getKey().charAt(0);
+			if(entry.getValue().length() == 0) transliterations.remove(c);
+			else transliterations.put(c, entry.getValue());
+		}
+		return new SmsEncodingOptimizer(transliterations);
+	}
+
+	/** @return a new map of replacements for common punctuation and accented letters outside the GSM default alphabet */
+	public static Map<Character, String> getDefaultTransliterations() {
+		Map<Character, String> map = new HashMap<Character, String>();
+		// Quotes, dashes and spaces
+		put(map, "\u2018\u2019\u201A\u201B\u2032\u00B4`", "'");
+		put(map, "\u201C\u201D\u201E\u201F\u2033\u00AB\u00BB", "\"");
+		put(map, "\u2010\u2011\u2012\u2013\u2014\u2015\u2212", "-");
+		put(map, "\u00A0\u2002\u2003\u2007\u2009\u200A\u202F", " ");
+		put(map, "\u2026", "...");
+		put(map, "\u2022\u00B7", "*");
+		// Accented letters
+		put(map, "\u00C0\u00C1\u00C2\u00C3", "A");
+		put(map, "\u00E1\u00E2\u00E3", "a");
+		put(map, "\u00C8\u00CA\u00CB", "E");
+		put(map, "\u00EA\u00EB", "e");
+		put(map, "\u00CC\u00CD\u00CE\u00CF", "I");
+		put(map, "\u00ED\u00EE\u00EF", "i");
+		put(map, "\u00D2\u00D3\u00D4\u00D5", "O");
+		put(map, "\u00F3\u00F4\u00F5", "o");
+		put(map, "\u00D9\u00DA\u00DB", "U");
+		put(map, "\u00FA\u00FB", "u");
+		put(map, "\u00E7", "\u00C7");
+		put(map, "\u00DD", "Y");
+		put(map, "\u00FD\u00FF", "y");
+		return map;
+	}
+
+//> STATIC HELPER METHODS
+	/** Maps each of the supplied characters to the same replacement. */
+	private static void put(Map<Character, String> map, String characters, String replacement) {
+		for(int i=0; i<characters.length(); ++i) {
+			map.put(characters.charAt(i), replacement);
+		}
+	}
+}
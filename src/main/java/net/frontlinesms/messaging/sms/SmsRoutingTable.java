@@ -0,0 +1,210 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.FrontlineUtils;
+
+/**
+ * Table of which {@link SmsService}s should send messages to which recipients, chosen by the longest prefix
+ * of the recipient's number which has a {@link Route}.  Each route lists the services which should send
+ * messages to the prefix if they are available, e.g. a SIM on the same network, and the services to fall
+ * back to if none of those are available.  Services are named by their routing id; see
+ * {@link SmsServiceManager#getRoutingId(SmsService)}.
+ *
+ * Prefixes are stored in a trie of digits, held in a single array so that the table is compact, and so that
+ * looking up a route does not create any objects.  Characters other than digits, e.g. a leading '+', are
+ * ignored, so prefixes should be given in the same format that recipients' numbers are stored in.
+ *
+ * Tables are immutable, so a new table may be swapped in while messages are being dispatched.
+ */
+public class SmsRoutingTable {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static final Logger LOG = FrontlineUtils.getLogger(SmsRoutingTable.class);
+	/** Number of children each node of the trie may have, one for each digit */
+	private static final int RADIX = 10;
+	/** Table with no routes, so that every message may be sent with any service */
+	public static final SmsRoutingTable EMPTY = new SmsRoutingTable(new int[RADIX], new Route[1]);
+
+//> INSTANCE PROPERTIES
+	/**
+	 * Children of each node of the trie.  The child of node <code>n</code> for digit <code>d</code> is at
+	 * <code>children[n * RADIX + d]</code>, or is 0 if there is no child.  Node 0 is the root.
+	 */
+	private final int[] children;
+	/** Route of each node, or <code>null</code> if no route was given for the node's prefix */
+	private final Route[] routes;
+
+//> CONSTRUCTORS
+	/**
+	 * @param children value for {@link #children}
+	 * @param routes value for {@link #routes}
+	 */
+	private SmsRoutingTable(int[] children, Route[] routes) {
+		this.children = children;
+		this.routes = routes;
+	}
+
+//> ACCESSORS
+	/** @return the number of prefixes which have a route */
+	public int size() {
+		int size = 0;
+		for(Route route : routes) {
+			if(route != null) ++size;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the route for the longest prefix of a number which has one.
+	 * @param msisdn the recipient's number
+	 * @return the route for the number, or <code>null</code> if no prefix of the number has a route
+	 */
+	public Route getRoute(String msisdn) {
+		if(msisdn == null) return null;
+		int node = 0;
+		Route route = routes[0];
+		for(int i=0; i<msisdn.length(); ++i) {
+			char c = msisdn.charAt(i);
+			if(c < '0' || c > '9') continue;
+			node = children[node * RADIX + (c - '0')];
+			if(node == 0) break;
+			if(routes[node] != null) route = routes[node];
+		}
+		return route;
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Creates a routing table from a map of prefixes to the services which should send messages to them.
+	 * Each value is a comma-separated list of the preferred services, optionally followed by a ';' and a
+	 * comma-separated list of the fallback services, e.g. <code>+2547=modem1,modem2;clickatell</code>.
+	 * Entries whose prefix contains no digits, or which name no services, are ignored.
+	 * @param entries routes mapped by prefix
+	 * @return a new routing table
+	 */
+	public static SmsRoutingTable create(Map<String, String> entries) {
+		int[] children = new int[RADIX * Math.max(1, entries.size())];
+		List<Route> routes = new ArrayList<Route>();
+		routes.add(null);
+		for(Map.Entry<String, String> entry : entries.entrySet()) {
+			String prefix = entry.getKey().trim();
+			Route route = parseRoute(entry.getValue());
+			if(route == null || !containsDigit(prefix)) {
+				LOG.warn("Ignoring invalid route [" + entry.getKey() + "=" + entry.getValue() + "]");
+				continue;
+			}
+
+			int node = 0;
+			for(int i=0; i<prefix.length(); ++i) {
+				char c = prefix.charAt(i);
+				if(c < '0' || c > '9') continue;
+				int index = node * RADIX + (c - '0');
+				if(children[index] == 0) {
+					children[index] = routes.size();
+					routes.add(null);
+					if(routes.size() * RADIX > children.length) {
+						children = resize(children, children.length * 2);
+					}
+				}
+				node = children[index];
+			}
+			routes.set(node, route);
+		}
+		children = resize(children, routes.size() * RADIX);
+		return new SmsRoutingTable(children, routes.toArray(new Route[routes.size()]));
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * @param value comma-separated preferred services, optionally followed by a ';' and comma-separated fallback services
+	 * @return the route described by the value, or <code>null</code> if it names no services
+	 */
+	private static Route parseRoute(String value) {
+		if(value == null) return null;
+		int separator = value.indexOf(';');
+		String[] preferred = parseServiceIds(separator < 0 ? value : value.substring(0, separator));
+		String[] fallback = parseServiceIds(separator < 0 ? "" : value.substring(separator + 1));
+		if(preferred.length == 0 && fallback.length == 0) return null;
+		return new Route(preferred, fallback);
+	}
+
+	/**
+	 * @param list comma-separated routing ids
+	 * @return the non-empty ids in the list
+	 */
+	private static String[] parseServiceIds(String list) {
+		List<String> ids = new ArrayList<String>();
+		for(String id : list.split(",")) {
+			id = id.trim();
+			if(id.length() > 0) ids.add(id);
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+
+	/**
+	 * @param array
+	 * @param length
+	 * @return a copy of the array, truncated or padded with zeros to the supplied length
+	 */
+	private static int[] resize(int[] array, int length) {
+		int[] resized = new int[length];
+		System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+		return resized;
+	}
+
+	/** @return <code>true</code> if the string contains at least one digit */
+	private static boolean containsDigit(String s) {
+		for(int i=0; i<s.length(); ++i) {
+			if(Character.isDigit(s.charAt(i))) return true;
+		}
+		return false;
+	}
+
+//> INNER CLASSES
+	/** The services which should send messages to a prefix */
+	public static final class Route {
+		/** Tier of services which should be used when they are available */
+		public static final int PREFERRED = 0;
+		/** Tier of services which should be used when no preferred service is available */
+		public static final int FALLBACK = 1;
+		/** Tier of services not named in the route */
+		public static final int UNLISTED = 2;
+
+		/** Routing ids of the services which should be used when they are available */
+		private final String[] preferred;
+		/** Routing ids of the services which should be used when no preferred service is available */
+		private final String[] fallback;
+
+		/**
+		 * @param preferred routing ids of the services which should be used when they are available
+		 * @param fallback routing ids of the services which should be used when no preferred service is available
+		 */
+		public Route(String[] preferred, String[] fallback) {
+			this.preferred = preferred;
+			this.fallback = fallback;
+		}
+
+		/**
+		 * @param routingId the routing id of a service
+		 * @return the tier of the service for this route: {@link #PREFERRED}, {@link #FALLBACK} or {@link #UNLISTED}
+		 */
+		public int getTier(String routingId) {
+			if(routingId == null) return UNLISTED;
+			for(String id : preferred) {
+				if(id.equals(routingId)) return PREFERRED;
+			}
+			for(String id : fallback) {
+				if(id.equals(routingId)) return FALLBACK;
+			}
+			return UNLISTED;
+		}
+	}
+}
@@ -35,6 +35,9 @@ public interface SmsService extends FrontlineMessagingService {
 	/** Adds the supplied message to the outbox. */
 	public void sendSMS(FrontlineMessage outgoingMessage);
 	
+	/** Gets the number of messages in the outbox waiting to be sent by this device. */
+	public int getOutboxSize();
+	
 	/** Check whether this device actually supports sending binary sms. */
 	public boolean isBinarySendingSupported();
 
@@ -46,4 +49,10 @@ public interface SmsService extends FrontlineMessagingService {
 	 * FIXME this method is unnecessary as all handsets support UCS-2 so far!
 	 */
 	public boolean isUcs2SendingSupported();
+	
+	/**
+	 * Gets the token bucket limiting how quickly this device may be given messages to send.
+	 * @return the rate limiter for this device, or <code>null</code> if its send rate is not limited
+	 */
+	public TokenBucket getSendRateLimiter();
 }
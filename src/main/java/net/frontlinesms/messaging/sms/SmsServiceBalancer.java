@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.List;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Chooses which {@link SmsService} the {@link SmsServiceManager} should send each outgoing message with.
+ * The manager reports each message it dispatches, and the outcome of sending it, so that implementations
+ * can take account of how busy and how reliable each service is.
+ *
+ * Methods may be called from the threads of the manager and of any {@link SmsService}, so implementations
+ * must be thread-safe.
+ */
+public interface SmsServiceBalancer {
+	/**
+	 * Chooses a service to send a message with.
+	 * @param services the services which are available to send the message, never empty
+	 * @param message the message to send
+	 * @return one of the supplied services
+	 */
+	public SmsService select(List<? extends SmsService> services, FrontlineMessage message);
+
+	/**
+	 * Notifies the balancer that a message has been passed to a service to send.
+	 * @param service
+	 * @param message
+	 */
+	public void messageDispatched(SmsService service, FrontlineMessage message);
+
+	/**
+	 * Notifies the balancer that a service has sent a message.
+	 * @param service
+	 * @param message
+	 */
+	public void messageSent(SmsService service, FrontlineMessage message);
+
+	/**
+	 * Notifies the balancer that a service failed to send a message.
+	 * @param service
+	 * @param message
+	 */
+	public void messageFailed(SmsService service, FrontlineMessage message);
+
+	/**
+	 * Notifies the balancer that a service will no longer be used, so any state kept for it can be discarded.
+	 * @param service
+	 */
+	public void serviceRemoved(SmsService service);
+}
@@ -27,7 +27,9 @@ import serial.*;
 import net.frontlinesms.CommUtils;
 import net.frontlinesms.FrontlineUtils;
 import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
 import net.frontlinesms.events.EventBus;
 import net.frontlinesms.listener.SmsListener;
 import net.frontlinesms.messaging.CommProperties;
@@ -39,7 +41,6 @@ import net.frontlinesms.messaging.sms.modem.SmsModemStatus;
 import org.apache.log4j.Logger;
 import org.smslib.CIncomingMessage;
 import org.smslib.handler.CATHandler;
-import org.smslib.util.GsmAlphabet;
 
 /**
  * SmsHandler should be run as a separate thread.
@@ -77,12 +78,38 @@ import org.smslib.util.GsmAlphabet;
  * @author Alex Anderson alex(at)masabi(dot)com
  */
 public class SmsServiceManager extends Thread implements SmsListener  {
+	/**
+	 * Maximum time, in millis, between dispatch passes while messages are waiting for a device or modems
+	 * are receiving.  Received messages are polled from the modems, and not all changes in device
+	 * availability are signalled, so these cases still need checking regularly.
+	 */
+	private static final long POLL_INTERVAL = 1000;
+	/** Maximum time, in millis, between dispatch passes when there is no work waiting */
+	private static final long IDLE_INTERVAL = 60 * 1000;
+	/** Default time, in millis, after which a modem which has messages waiting but has not sent any is treated as stalled */
+	private static final long DEFAULT_MODEM_STALL_TIMEOUT = 30 * 1000;
+	/**
+	 * Number of waiting messages above which an idle modem takes messages from a modem which is still sending.
+	 * Below this, moving messages would not get them sent noticeably sooner.
+	 */
+	private static final int MIN_STEAL_BACKLOG = 10;
+	/** Maximum number of spilled messages loaded from the database at a time */
+	private static final int SPILL_LOAD_BATCH_SIZE = 500;
+	
 	/** List of GSM 7bit text messages queued to be sent. */
-	private final ConcurrentLinkedQueue<FrontlineMessage> gsm7bitOutbox = new ConcurrentLinkedQueue<FrontlineMessage>();
+	private final PriorityOutbox gsm7bitOutbox = new PriorityOutbox();
 	/** List of UCS2 text messages queued to be sent. */
-	private final ConcurrentLinkedQueue<FrontlineMessage> ucs2Outbox = new ConcurrentLinkedQueue<FrontlineMessage>();
+	private final PriorityOutbox ucs2Outbox = new PriorityOutbox();
 	/** List of binary messages queued to be sent. */
-	private final ConcurrentLinkedQueue<FrontlineMessage> binOutbox = new ConcurrentLinkedQueue<FrontlineMessage>();
+	private final PriorityOutbox binOutbox = new PriorityOutbox();
+	/** Messages which failed to send, waiting until they are due to be retried.  Until configured, failed messages are retried straight away. */
+	private final SendRetryScheduler retryScheduler = new SendRetryScheduler(0, 0, 0);
+	/** The device each failed message was last tried on, mapped by message id, while the message waits to be retried */
+	private final ConcurrentMap<Long, SmsService> failedSenders = new ConcurrentHashMap<Long, SmsService>();
+	/** If set TRUE, messages which failed to send are retried on a different device when another is available. */
+	private volatile boolean retryOnOtherDevice;
+	/** Time, in millis, after which a modem which has messages waiting but has not sent any is treated as stalled, and its messages are given to other modems */
+	private volatile long modemStallTimeout = DEFAULT_MODEM_STALL_TIMEOUT;
 	/** List of phone handlers that this manager is currently looking after. */
 	private final ConcurrentMap<String, SmsModem> phoneHandlers = new ConcurrentHashMap<String, SmsModem>();
 	/** Set of SMS internet services */
@@ -94,6 +121,36 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	private EventBus eventBus;
 	/** Flag indicating that the thread should continue running. */
 	private boolean running;	
+	/** Lock notified when there may be work for the dispatch thread */
+	private final Object dispatchLock = new Object();
+	/** <code>true</code> if there may be work for the dispatch thread.  Guarded by {@link #dispatchLock}. */
+	private boolean dispatchRequested;
+	/**
+	 * Time, in millis, until a device which reached its send rate during the last dispatch pass
+	 * may be given another message; {@link Long#MAX_VALUE} if no messages were held back.
+	 * THREAD: SmsDeviceManager
+	 */
+	private long rateLimitWait = Long.MAX_VALUE;
+	/**
+	 * Scratch lists, reused for each message dispatched so that dispatching does not allocate.  Each is
+	 * cleared by the method which fills it, and its contents are only valid until that method is next called.
+	 * All are emptied at the end of each pass by {@link #clearScratchLists()}.
+	 * THREAD: SmsDeviceManager
+	 */
+	private final List<SmsService> availableDevices = new ArrayList<SmsService>();
+	private final List<SmsService> otherDevices = new ArrayList<SmsService>();
+	private final List<SmsService> preferredDevices = new ArrayList<SmsService>();
+	private final List<SmsService> fallbackDevices = new ArrayList<SmsService>();
+	private final List<SmsModem> idleModems = new ArrayList<SmsModem>();
+	private final List<SmsModem> thievingModems = new ArrayList<SmsModem>();
+	private final Set<SmsModem> givenModems = new HashSet<SmsModem>();
+	/**
+	 * The {@link #getRoutingId(SmsService)} of each device routed during the current dispatch pass, so that it is
+	 * worked out once per pass rather than once per message.  Emptied at the end of each pass, as a device's id
+	 * may change, e.g. when a modem's serial number is read or an internet service's settings are changed.
+	 * THREAD: SmsDeviceManager
+	 */
+	private final Map<SmsService, String> routingIds = new HashMap<SmsService, String>();
 	/** If set TRUE, then thread will automatically try to connect to newly-detected devices. */ 
 	private boolean autoConnectToNewPhones;
 	private boolean refreshPhoneList;
@@ -105,10 +162,21 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	 */
 	private final HashSet<String> connectedSerials = new HashSet<String>();
 	private String[] portIgnoreList;
-	/** Counter used for choosing which SMS device to send messages with next.
-	 * TODO we should use different counters for different types of messages, and also
-	 * for SMS internet services vs. phones. */
-	private int globalDispatchCounter;
+	/** Chooses which SMS device to send each message with */
+	private SmsServiceBalancer balancer = new LeastLoadedSmsServiceBalancer();
+	/** Table of which devices should send messages to which recipients.  Replaced, rather than modified, when routes change. */
+	private volatile SmsRoutingTable routingTable = SmsRoutingTable.EMPTY;
+	/** Claims messages from an outbox shared with other FrontlineSMS instances, or <code>null</code> if the outbox is not shared */
+	private volatile SharedOutboxClaimer outboxClaimer;
+	/**
+	 * Ids of saved messages which were queued while {@link #memoryQueueLimit} messages were already held in memory,
+	 * indexed by {@link Priority#ordinal()}.  Guarded by itself.
+	 */
+	private final CompactMessageQueue[] spilledMessages = createSpillQueues();
+	/** Data access object used to load spilled messages, or <code>null</code> if messages are never spilled */
+	private volatile MessageDao messageDao;
+	/** Number of queued messages held in memory above which saved messages are spilled, or zero if messages are never spilled */
+	private volatile int memoryQueueLimit;
 
 	private static Logger LOG = FrontlineUtils.getLogger(SmsServiceManager.class);
 
@@ -131,20 +199,142 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	public void setEventBus(EventBus eventBus) {
 		this.eventBus = eventBus;
 	}
+	
+	/** @return {@link #balancer} */
+	public SmsServiceBalancer getBalancer() {
+		return balancer;
+	}
+	
+	/** @param balancer new value for {@link #balancer} */
+	public void setBalancer(SmsServiceBalancer balancer) {
+		this.balancer = balancer;
+	}
+	
+	/** @return {@link #routingTable} */
+	public SmsRoutingTable getRoutingTable() {
+		return routingTable;
+	}
+	
+	/**
+	 * Replaces the routing table.  Messages dispatched after this call use the new routes.
+	 * @param routingTable new value for {@link #routingTable}, or <code>null</code> to send every message with any device
+	 */
+	public void setRoutingTable(SmsRoutingTable routingTable) {
+		this.routingTable = routingTable == null ? SmsRoutingTable.EMPTY : routingTable;
+	}
+
+	/** @return {@link #outboxClaimer} */
+	public SharedOutboxClaimer getOutboxClaimer() {
+		return outboxClaimer;
+	}
+
+	/**
+	 * @param outboxClaimer new value for {@link #outboxClaimer}.  Once set, messages are only queued after
+	 * they have been claimed by this instance.
+	 */
+	public void setOutboxClaimer(SharedOutboxClaimer outboxClaimer) {
+		this.outboxClaimer = outboxClaimer;
+	}
+
+	/**
+	 * Sets how many queued messages may be held in memory.  Beyond this, messages which have been saved are
+	 * held as their id only, outside the heap, and loaded again from the database in batches as the messages
+	 * in memory are sent.  Messages of {@link Priority#HIGH} priority are always held in memory.
+	 * @param messageDao data access object used to load spilled messages
+	 * @param memoryQueueLimit number of queued messages held in memory, or zero to hold every queued message in memory
+	 */
+	public void setMemoryQueueLimit(MessageDao messageDao, int memoryQueueLimit) {
+		this.messageDao = messageDao;
+		this.memoryQueueLimit = memoryQueueLimit;
+		requestDispatch();
+	}
+
+	/** @return the number of queued messages which are held as their id only, waiting to be loaded from the database */
+	public int getSpilledMessageCount() {
+		synchronized(spilledMessages) {
+			int count = 0;
+			for(CompactMessageQueue lane : spilledMessages) {
+				count += lane.size();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Prepares a new message to be saved and then sent by this instance.  If the outbox is shared with other
+	 * instances, the message is claimed by this one, so that the others do not send it once it has been saved.
+	 * @param outgoingMessage a message which has not been saved
+	 */
+	public void claimUnsaved(FrontlineMessage outgoingMessage) {
+		SharedOutboxClaimer outboxClaimer = this.outboxClaimer;
+		if(outboxClaimer != null) outboxClaimer.claimUnsaved(outgoingMessage);
+	}
 
 	public void run() {
 		LOG.trace("ENTER");
 		running = true;
 		while (running) {
-			// Sleep for a second to ensure lists are not constantly being reshuffled.  Processing dispatch
-			// and received messages is not really time-critical, otherwise it might be worth sleeping for
-			// less time.
-			FrontlineUtils.sleep_ignoreInterrupts(1000);
+			// Wait until a message is queued or a device changes status.  Messages which could not be
+			// dispatched are put back in their outbox without a signal, so the lists are not constantly
+			// being reshuffled while no device is available.
+			long timeout = isPollingRequired() ? POLL_INTERVAL : IDLE_INTERVAL;
+			// Messages held back by rate limits should be dispatched as soon as a token is available,
+			// and failed messages as soon as they are due to be retried
+			long retryWait = retryScheduler.getWaitTime(System.currentTimeMillis());
+			awaitDispatchRequest(Math.min(timeout, Math.min(rateLimitWait, retryWait)));
 			
 			doRun();
 		}
 		LOG.trace("EXIT");
 	}
+	
+	/**
+	 * Wakes the dispatch thread, so that queued messages are dispatched and device changes are handled
+	 * without waiting for the next poll.
+	 */
+	public void requestDispatch() {
+		synchronized(dispatchLock) {
+			dispatchRequested = true;
+			dispatchLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Waits until {@link #requestDispatch()} is called, or the timeout passes.
+	 * THREAD: SmsDeviceManager
+	 * @param timeout the maximum time to wait, in millis
+	 */
+	private void awaitDispatchRequest(long timeout) {
+		synchronized(dispatchLock) {
+			if(!dispatchRequested && running) {
+				try {
+					dispatchLock.wait(timeout);
+				} catch (InterruptedException ex) {
+					// Dispatch early rather than exiting; the thread is stopped using stopRunning()
+				}
+			}
+			dispatchRequested = false;
+		}
+	}
+	
+	/**
+	 * THREAD: SmsDeviceManager
+	 * @return <code>true</code> if there is work which will not be signalled by {@link #requestDispatch()},
+	 * i.e. messages are waiting for a device to become available, or for a modem to send them.  Modems
+	 * signal when they have received messages, so receiving does not require polling.
+	 */
+	private boolean isPollingRequired() {
+		if(!gsm7bitOutbox.isEmpty() || !ucs2Outbox.isEmpty() || !binOutbox.isEmpty() || getSpilledMessageCount() > 0) {
+			return true;
+		}
+		for(SmsModem modem : this.phoneHandlers.values()) {
+			// Modems with messages waiting are checked for stalls and backlogs
+			if(modem.getOutboxSize() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
 
 	/**
 	 * Run the looped behaviour from {@link #run()} once.
@@ -158,12 +348,33 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 			listComPortsAndOwners(autoConnectToNewPhones);
 			refreshPhoneList = false;
 		} else {
+			rateLimitWait = Long.MAX_VALUE;
+			queueDueRetries();
+			loadSpilledMessages();
 			dispatchSms(MessageType.GSM7BIT_TEXT);
 			dispatchSms(MessageType.UCS2_TEXT);
 			dispatchSms(MessageType.BINARY);
+			stealQueuedMessages();
+			clearScratchLists();
 			processModemReceiving();
 		}
 	}
+	
+	/**
+	 * Empties the scratch lists used while dispatching, so that they do not keep devices which have since
+	 * been removed.
+	 * THREAD: SmsDeviceManager
+	 */
+	private void clearScratchLists() {
+		availableDevices.clear();
+		otherDevices.clear();
+		preferredDevices.clear();
+		fallbackDevices.clear();
+		idleModems.clear();
+		thievingModems.clear();
+		givenModems.clear();
+		routingIds.clear();
+	}
 
 	/** Handle the steps necessary when disconnecting a modem. */
 	private void handleDisconnect(SmsModem modem) {
@@ -178,6 +389,7 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	public void refreshPhoneList(boolean autoConnectToNewPhones) {
 		this.autoConnectToNewPhones = autoConnectToNewPhones;
 		refreshPhoneList = true;
+		requestDispatch();
 	}
 
 	/**
@@ -221,14 +433,40 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 
 	/**
 	 * Request that an SMS with the specified text be sent to the requested
-	 * number.
+	 * number.  If the message is waiting to be retried after a failed send, it is held until its
+	 * {@link FrontlineMessage#getRetryTime()}.  If the outbox is shared with other instances, the message is
+	 * only queued if it can be claimed by this one.
 	 * @param targetNumber
 	 * @param smsMessage
 	 * @return the Message object 
 	 */
 	public void sendSMS(FrontlineMessage outgoingMessage) {
 		LOG.trace("ENTER");
+		SharedOutboxClaimer outboxClaimer = this.outboxClaimer;
+		if(outboxClaimer != null && !outboxClaimer.claim(outgoingMessage)) {
+			// Another instance is sending this message
+			LOG.trace("EXIT");
+			return;
+		}
 		outgoingMessage.setStatus(Status.OUTBOX);
+		if(outgoingMessage.getRetryTime() > System.currentTimeMillis()) {
+			retryScheduler.schedule(outgoingMessage);
+			if(LOG.isDebugEnabled()) LOG.debug("Message will be retried in [" + (outgoingMessage.getRetryTime() - System.currentTimeMillis()) + "ms]. Waiting retries [" + retryScheduler.size() + "]");
+		} else if(!spill(outgoingMessage)) {
+			queue(outgoingMessage);
+		}
+		
+		if (smsListener != null) smsListener.outgoingMessageEvent(null, outgoingMessage);
+		requestDispatch();
+		LOG.trace("EXIT");
+	}
+	
+	/**
+	 * Adds a message to the outbox for its type.
+	 * @param outgoingMessage
+	 */
+	private void queue(FrontlineMessage outgoingMessage) {
+		outgoingMessage.setRetryTime(0);
 		switch(MessageType.get(outgoingMessage)) {
 		case BINARY:
 			binOutbox.add(outgoingMessage);
@@ -244,14 +482,105 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 			break;
 		default: throw new IllegalStateException();
 		}
+	}
+	
+	/**
+	 * Holds a saved message as its id only if {@link #memoryQueueLimit} messages are already held in memory,
+	 * or if earlier messages of the same priority are still spilled, so that they are sent first.  The message
+	 * is loaded from the database again before it is sent, so it must have been saved since it was last changed.
+	 * @param outgoingMessage
+	 * @return <code>true</code> if the message was spilled, and must not be queued in memory
+	 */
+	private boolean spill(FrontlineMessage outgoingMessage) {
+		int memoryQueueLimit = this.memoryQueueLimit;
+		if(this.messageDao == null || memoryQueueLimit <= 0
+				|| outgoingMessage.getId() == 0 || outgoingMessage.getPriority() == Priority.HIGH) {
+			return false;
+		}
+		synchronized(spilledMessages) {
+			CompactMessageQueue lane = spilledMessages[outgoingMessage.getPriority().ordinal()];
+			if(lane.isEmpty() && getQueuedMessageCount() - getSpilledMessageCount() < memoryQueueLimit) {
+				return false;
+			}
+			lane.add(outgoingMessage.getId());
+			if(LOG.isDebugEnabled()) LOG.debug("Message [" + outgoingMessage.getId() + "] spilled. Spilled messages [" + getSpilledMessageCount() + "]");
+			return true;
+		}
+	}
+	
+	/**
+	 * Loads spilled messages from the database and queues them, highest priority first, until
+	 * {@link #memoryQueueLimit} messages are held in memory.  Spilled messages which have since been
+	 * deleted are dropped.
+	 * THREAD: SmsDeviceManager
+	 */
+	private void loadSpilledMessages() {
+		MessageDao messageDao = this.messageDao;
+		if(messageDao == null) return;
+		List<Long> messageIds = new ArrayList<Long>();
+		synchronized(spilledMessages) {
+			int spilledCount = getSpilledMessageCount();
+			if(spilledCount == 0) return;
+			int memoryQueueLimit = this.memoryQueueLimit;
+			// If the limit has been removed, the remaining spilled messages are loaded a batch at a time
+			int space = memoryQueueLimit <= 0 ? SPILL_LOAD_BATCH_SIZE
+					: Math.min(SPILL_LOAD_BATCH_SIZE, memoryQueueLimit - (getQueuedMessageCount() - spilledCount));
+			for(CompactMessageQueue lane : spilledMessages) {
+				while(messageIds.size() < space && !lane.isEmpty()) {
+					messageIds.add(lane.poll());
+				}
+			}
+		}
+		if(messageIds.isEmpty()) return;
 		
-		if (smsListener != null) smsListener.outgoingMessageEvent(null, outgoingMessage);
-		LOG.trace("EXIT");
+		List<FrontlineMessage> loaded = messageDao.getMessagesById(messageIds);
+		for(FrontlineMessage m : loaded) {
+			m.setStatus(Status.OUTBOX);
+			queue(m);
+		}
+		if(LOG.isDebugEnabled()) LOG.debug("Loaded [" + loaded.size() + "] spilled messages. Deleted messages dropped [" + (messageIds.size() - loaded.size()) + "]");
+	}
+	
+	/** @return an empty spill queue for each message priority */
+	private static CompactMessageQueue[] createSpillQueues() {
+		CompactMessageQueue[] queues = new CompactMessageQueue[Priority.values().length];
+		for(int i=0; i<queues.length; ++i) {
+			queues[i] = new CompactMessageQueue();
+		}
+		return queues;
+	}
+	
+	/**
+	 * Moves messages which are due to be retried into the outboxes.
+	 * THREAD: SmsDeviceManager
+	 */
+	private void queueDueRetries() {
+		for(FrontlineMessage m : retryScheduler.pollDue(System.currentTimeMillis())) {
+			queue(m);
+		}
 	}
 
 	/**
-	 * Remove the supplied message from outbox.
-	 * @param deleted
+	 * Gets the number of messages which have been queued with this manager and not yet sent.  This
+	 * includes messages waiting for a device or to be retried, spilled messages, and messages in the outboxes
+	 * of the devices themselves.
+	 * @return the number of messages waiting to be sent
+	 */
+	public int getQueuedMessageCount() {
+		int count = gsm7bitOutbox.size() + ucs2Outbox.size() + binOutbox.size() + retryScheduler.size() + getSpilledMessageCount();
+		for(SmsModem modem : this.phoneHandlers.values()) {
+			count += modem.getOutboxSize();
+		}
+		for(SmsInternetService service : this.smsInternetServices) {
+			count += service.getOutboxSize();
+		}
+		return count;
+	}
+
+	/**
+	 * Remove the supplied message from outbox.  Spilled messages are not removed here; they are dropped
+	 * when they are loaded, once the message has been deleted from the database.
+	 * @param deleted the message, or another instance with the same id
 	 */
 	public void removeFromOutbox(FrontlineMessage deleted) {
 		if(gsm7bitOutbox.remove(deleted)) {
@@ -260,9 +589,40 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 			if(LOG.isDebugEnabled()) LOG.debug("Message [" + deleted + "] removed from uc2Outbox. Size is [" + ucs2Outbox.size() + "]");
 		} else if(binOutbox.remove(deleted)) {
 			if(LOG.isDebugEnabled()) LOG.debug("Message [" + deleted + "] removed from binOutbox. Size is [" + binOutbox.size() + "]");
+		} else if(retryScheduler.remove(deleted)) {
+			if(LOG.isDebugEnabled()) LOG.debug("Message [" + deleted + "] removed from retries. Size is [" + retryScheduler.size() + "]");
 		} else {
 			if(LOG.isInfoEnabled()) LOG.info("Attempt to delete message found in no outbox.");
 		}
+		failedSenders.remove(deleted.getId());
+	}
+
+	/** @return the scheduler holding failed messages until they are due to be retried */
+	public SendRetryScheduler getSendRetryScheduler() {
+		return retryScheduler;
+	}
+	
+	/** @param retryOnOtherDevice <code>true</code> if failed messages should be retried on a different device when another is available */
+	public void setRetryOnOtherDevice(boolean retryOnOtherDevice) {
+		this.retryOnOtherDevice = retryOnOtherDevice;
+		if(!retryOnOtherDevice) failedSenders.clear();
+	}
+
+	/** @param modemStallTimeout new value for {@link #modemStallTimeout} */
+	public void setModemStallTimeout(long modemStallTimeout) {
+		this.modemStallTimeout = modemStallTimeout;
+	}
+
+	/**
+	 * Changes the priority of a message which is waiting in the outbox.
+	 * @param message the message, or another instance with the same id
+	 * @param priority the new priority of the message
+	 * @return <code>true</code> if the message was waiting in the outbox
+	 */
+	public boolean reprioritize(FrontlineMessage message, Priority priority) {
+		return gsm7bitOutbox.reprioritize(message, priority)
+				|| ucs2Outbox.reprioritize(message, priority)
+				|| binOutbox.reprioritize(message, priority);
 	}
 
 	/**
@@ -270,6 +630,7 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	 */
 	public void stopRunning() {
 		this.running = false;
+		requestDispatch();
 
 		// Disconnect all phones.
 		for(SmsModem p : phoneHandlers.values()) {
@@ -292,10 +653,22 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 
 	public void outgoingMessageEvent(SmsService sender, FrontlineMessage msg) {
 		if (smsListener != null) smsListener.outgoingMessageEvent(sender, msg);
+		if (sender != null) {
+			if (msg.getStatus() == Status.SENT) {
+				balancer.messageSent(sender, msg);
+			} else if (msg.getStatus() == Status.FAILED) {
+				balancer.messageFailed(sender, msg);
+			}
+		}
 		if (msg.getStatus() == Status.FAILED) {
 			if (msg.getRetriesRemaining() > 0) {
 				msg.setRetriesRemaining(msg.getRetriesRemaining() - 1);
 				msg.setSenderMsisdn("");
+				int attempts = FrontlineMessage.MAX_RETRIES - msg.getRetriesRemaining();
+				msg.setRetryTime(System.currentTimeMillis() + retryScheduler.getRetryDelay(attempts));
+				if (retryOnOtherDevice && sender != null && msg.getId() != 0) {
+					failedSenders.put(msg.getId(), sender);
+				}
 				sendSMS(msg);
 			}
 		}
@@ -351,6 +724,8 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 		if (smsListener != null) {
 			smsListener.smsDeviceEvent(device, deviceStatus);
 		}
+		// The device may have become available for sending
+		requestDispatch();
 		LOG.trace("EXIT");
 	}
 	
@@ -500,13 +875,15 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	}
 
 	public void addSmsInternetService(SmsInternetService smsInternetService) {
-		smsInternetService.setSmsListener(smsListener);
+		// Events are passed on to smsListener by this manager, which also uses them for load balancing
+		smsInternetService.setSmsListener(this);
 		if (smsInternetServices.contains(smsInternetService)) {
 			smsInternetService.restartThisThing();
 		} else {
 			smsInternetServices.add(smsInternetService);
 			smsInternetService.startThisThing();
 		}
+		requestDispatch();
 	}
 
 	/**
@@ -516,6 +893,7 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	public void removeSmsInternetService(SmsInternetService service) {
 		smsInternetServices.remove(service);
 		disconnectSmsInternetService(service);
+		balancer.serviceRemoved(service);
 	}
 	
 	public void disconnect(SmsService device) {
@@ -636,27 +1014,20 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	 * THREAD: SmsDeviceManager
 	 */
 	private void dispatchSms(MessageType messageType) {
-		ConcurrentLinkedQueue<FrontlineMessage> outboxFromType = getOutboxFromType(messageType);
+		PriorityOutbox outboxFromType = getOutboxFromType(messageType);
 		List<FrontlineMessage> messages = removeAll(outboxFromType);
 		if(messages.size() > 0) {
-			// Try dispatching to SmsInternetServices
-			List<SmsInternetService> internetServices = getSmsInternetServicesForSending(messageType);
-			int serviceCount = internetServices.size();
-			if(serviceCount > 0) {
-				// We have some SMS Internet services to send with.  These are assumed to be higher priority
-				// than Sms Modems, so send all messages with the internet services.
-				dispatchSms(internetServices, messages);
+			// Internet services and modems are used together, and the balancer chooses between them
+			List<SmsService> sendingServices = new ArrayList<SmsService>();
+			sendingServices.addAll(getSmsInternetServicesForSending(messageType));
+			sendingServices.addAll(getSmsModemsForSending(messageType));
+			if(sendingServices.size() > 0) {
+				dispatchSms(sendingServices, messages, outboxFromType);
 			} else {
-				// There are no available SMS Internet Services, so dispatch to SmsModems
-				List<SmsModem> sendingModems = getSmsModemsForSending(messageType);
-				if(sendingModems.size() > 0) {
-					dispatchSms(sendingModems, messages);
-				} else {
-					// The messages cannot be sent
-					// We put them back in their outbox 
-					outboxFromType.addAll(messages);
-				}
-			}		
+				// The messages cannot be sent
+				// We put them back in their outbox 
+				outboxFromType.addAll(messages);
+			}
 		}
 	}
 	
@@ -665,7 +1036,7 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	 * @param messageType The {@link MessageType}
 	 * @return The outbox corresponding to the {@link MessageType}
 	 */
-	private ConcurrentLinkedQueue<FrontlineMessage> getOutboxFromType(MessageType messageType) {
+	private PriorityOutbox getOutboxFromType(MessageType messageType) {
 		switch (messageType) {
 		case BINARY:
 			return binOutbox;
@@ -678,15 +1049,35 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 	}
 
 	/**
-	 * Dispatch some SMS {@link FrontlineMessage}s to some {@link SmsService}s. 
+	 * Dispatch some SMS {@link FrontlineMessage}s to some {@link SmsService}s.
+	 * Each message is only given to a device which has a token available in its
+	 * {@link SmsService#getSendRateLimiter()}, so once a device reaches its send rate the
+	 * following messages go to other devices.  Messages which no device can take yet are
+	 * put back in the outbox, and dispatched on a later pass once tokens are available.
 	 * @param devices
 	 * @param messages
+	 * @param outbox the outbox the messages were taken from
 	 * THREAD: SmsDeviceManager
 	 */
-	private void dispatchSms(List<? extends SmsService> devices, List<FrontlineMessage> messages) {
-		int deviceCount = devices.size();
-		for(FrontlineMessage m : messages) {
-			SmsService device = devices.get(++globalDispatchCounter  % deviceCount);
+	private void dispatchSms(List<? extends SmsService> devices, List<FrontlineMessage> messages, PriorityOutbox outbox) {
+		Iterator<FrontlineMessage> iterator = messages.iterator();
+		while(iterator.hasNext()) {
+			FrontlineMessage m = iterator.next();
+			List<SmsService> available = getDevicesWithSendTokens(devices);
+			if(available.isEmpty()) {
+				// Every device has reached its send rate
+				for(SmsService device : devices) {
+					TokenBucket rateLimiter = device.getSendRateLimiter();
+					if(rateLimiter != null) rateLimitWait = Math.min(rateLimitWait, Math.max(1, rateLimiter.getWaitTime()));
+				}
+				outbox.add(m);
+				while(iterator.hasNext()) outbox.add(iterator.next());
+				return;
+			}
+			SmsService device = balancer.select(route(excludeFailedSender(available, m), m), m);
+			TokenBucket rateLimiter = device.getSendRateLimiter();
+			if(rateLimiter != null) rateLimiter.tryAcquire();
+			balancer.messageDispatched(device, m);
 			// Presumably the device will complain somehow if it is no longer connected
 			// etc.  TODO we should actually check what happens!
 			device.sendSMS(m);
@@ -694,8 +1085,195 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 		}
 	}
 
-	/** Removes and returns all messages currently available in a list. */
-	private List<FrontlineMessage> removeAll(ConcurrentLinkedQueue<FrontlineMessage> outbox) {
+	/**
+	 * Moves messages which modems have not started sending from modems which are stalled or backed up to modems
+	 * which are idle.  A modem is stalled if it has messages waiting and has not sent a message for
+	 * {@link #modemStallTimeout}, e.g. because it has lost signal or is waiting for an AT command to time out;
+	 * all of its waiting messages are moved.  A modem which is still sending but has more than
+	 * {@link #MIN_STEAL_BACKLOG} messages waiting shares them evenly with the idle modems.
+	 *
+	 * Each idle modem takes messages from at most one other modem per pass, subject to its send rate.  Messages
+	 * it cannot send, e.g. because it does not support their type, are put back in the manager's outbox.
+	 * THREAD: SmsDeviceManager
+	 */
+	private void stealQueuedMessages() {
+		List<SmsModem> idle = idleModems;
+		idle.clear();
+		for(SmsModem modem : this.phoneHandlers.values()) {
+			if(modem.isConnected() && modem.isUseForSending() && modem.getOutboxSize() == 0) {
+				idle.add(modem);
+			}
+		}
+		if(idle.isEmpty()) return;
+		
+		long now = System.currentTimeMillis();
+		for(SmsModem victim : this.phoneHandlers.values()) {
+			// A disconnected modem fails the messages it is holding, so they must not be moved as well
+			if(!victim.isConnected()) continue;
+			int backlog = victim.getOutboxSize();
+			if(backlog == 0 || idle.isEmpty()) continue;
+			List<SmsModem> thieves = thievingModems;
+			thieves.clear();
+			thieves.addAll(idle);
+			thieves.remove(victim);
+			if(thieves.isEmpty()) continue;
+			
+			int count;
+			if(now - victim.getTimeOfLastSend() > modemStallTimeout) {
+				if(LOG.isInfoEnabled()) LOG.info("Modem [" + victim.getPort() + "] has not sent a message for [" + (now - victim.getTimeOfLastSend()) + "ms]. Moving [" + backlog + "] waiting message(s) to other modems.");
+				count = backlog;
+			} else if(backlog > MIN_STEAL_BACKLOG) {
+				// Leave the victim its share of the backlog
+				count = backlog * thieves.size() / (thieves.size() + 1);
+			} else {
+				continue;
+			}
+			
+			List<FrontlineMessage> stolen = victim.stealMessages(count);
+			idle.removeAll(giveStolenMessages(stolen, thieves));
+		}
+	}
+	
+	/**
+	 * Shares messages taken from one modem between other modems, in turn.
+	 * @param stolen messages taken from a modem's outbox
+	 * @param thieves idle modems which may be given the messages
+	 * @return the modems which were given messages, in {@link #givenModems}
+	 * THREAD: SmsDeviceManager
+	 */
+	private Set<SmsModem> giveStolenMessages(List<FrontlineMessage> stolen, List<SmsModem> thieves) {
+		Set<SmsModem> given = givenModems;
+		given.clear();
+		int next = 0;
+		for(FrontlineMessage m : stolen) {
+			SmsModem thief = null;
+			for(int i=0; i<thieves.size() && thief == null; ++i) {
+				SmsModem candidate = thieves.get((next + i) % thieves.size());
+				TokenBucket rateLimiter = candidate.getSendRateLimiter();
+				if(canSend(candidate, MessageType.get(m)) && (rateLimiter == null || rateLimiter.tryAcquire())) {
+					thief = candidate;
+					next += i + 1;
+				}
+			}
+			m.setSenderMsisdn("");
+			if(thief == null) {
+				// No idle modem can send the message now, so let the balancer choose a device for it later
+				sendSMS(m);
+			} else {
+				balancer.messageDispatched(thief, m);
+				thief.sendSMS(m);
+				given.add(thief);
+			}
+		}
+		return given;
+	}
+	
+	/**
+	 * @param modem
+	 * @param messageType
+	 * @return <code>true</code> if the modem supports sending messages of the supplied type
+	 */
+	private boolean canSend(SmsModem modem, MessageType messageType) {
+		switch(messageType) {
+			case BINARY:
+				return modem.isBinarySendingSupported();
+			case UCS2_TEXT:
+				return modem.isUcs2SendingSupported();
+			case GSM7BIT_TEXT:
+				return true;
+			default: throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Chooses the devices which should send a message according to {@link #routingTable}.
+	 * @param available devices which may be given the message
+	 * @param m message to send
+	 * @return the available devices preferred for the message's recipient, in {@link #preferredDevices}, or, if
+	 * none are available, the fallback devices, in {@link #fallbackDevices}; if no preferred or fallback device
+	 * is available, or the recipient has no route, all available devices
+	 * THREAD: SmsDeviceManager
+	 */
+	private List<SmsService> route(List<SmsService> available, FrontlineMessage m) {
+		SmsRoutingTable.Route route = routingTable.getRoute(m.getRecipientMsisdn());
+		if(route == null) return available;
+		List<SmsService> preferred = preferredDevices;
+		List<SmsService> fallback = fallbackDevices;
+		preferred.clear();
+		fallback.clear();
+		for(SmsService device : available) {
+			String routingId = routingIds.get(device);
+			if(routingId == null && !routingIds.containsKey(device)) {
+				routingId = getRoutingId(device);
+				routingIds.put(device, routingId);
+			}
+			switch(route.getTier(routingId)) {
+			case SmsRoutingTable.Route.PREFERRED:
+				preferred.add(device);
+				break;
+			case SmsRoutingTable.Route.FALLBACK:
+				fallback.add(device);
+				break;
+			}
+		}
+		if(!preferred.isEmpty()) return preferred;
+		if(!fallback.isEmpty()) return fallback;
+		return available;
+	}
+	
+	/**
+	 * Gets the id used to name a device in the {@link SmsRoutingTable}.
+	 * @param device
+	 * @return the serial number of a modem, the identifier of an internet service, or otherwise the device's MSISDN
+	 */
+	public static String getRoutingId(SmsService device) {
+		if(device instanceof SmsModem) {
+			return ((SmsModem) device).getSerial();
+		} else if(device instanceof SmsInternetService) {
+			return ((SmsInternetService) device).getIdentifier();
+		} else {
+			return device.getMsisdn();
+		}
+	}
+
+	/**
+	 * @param available devices which may be given the message
+	 * @param m message to send
+	 * @return the available devices, without the device the message last failed on unless it is the only one,
+	 * in which case they are copied to {@link #otherDevices}
+	 * THREAD: SmsDeviceManager
+	 */
+	private List<SmsService> excludeFailedSender(List<SmsService> available, FrontlineMessage m) {
+		SmsService failedSender = m.getId() == 0 ? null : failedSenders.remove(m.getId());
+		if(failedSender == null || available.size() <= 1 || !available.contains(failedSender)) {
+			return available;
+		}
+		List<SmsService> others = otherDevices;
+		others.clear();
+		others.addAll(available);
+		others.remove(failedSender);
+		return others;
+	}
+
+	/**
+	 * @param devices
+	 * @return the devices which may be given a message to send now without exceeding their send rate, in {@link #availableDevices}
+	 * THREAD: SmsDeviceManager
+	 */
+	private List<SmsService> getDevicesWithSendTokens(List<? extends SmsService> devices) {
+		List<SmsService> available = availableDevices;
+		available.clear();
+		for(SmsService device : devices) {
+			TokenBucket rateLimiter = device.getSendRateLimiter();
+			if(rateLimiter == null || rateLimiter.hasToken()) {
+				available.add(device);
+			}
+		}
+		return available;
+	}
+
+	/** Removes and returns all messages currently available in a list, in the order they should be sent. */
+	private List<FrontlineMessage> removeAll(PriorityOutbox outbox) {
 		LinkedList<FrontlineMessage> retrieved = new LinkedList<FrontlineMessage>();
 		FrontlineMessage m;
 		while((m=outbox.poll())!=null) retrieved.add(m);
@@ -738,20 +1316,7 @@ public class SmsServiceManager extends Thread implements SmsListener  {
 				if(LOG.isDebugEnabled()) LOG.debug("Watchdog from phone [" + modem.getPort() + "] has timed out! Disconnecting...");
 				handleDisconnect(modem);
 			} else if(modem.isConnected() && modem.isUseForSending()) {
-				boolean addModem;
-				switch(messageType) {
-					case BINARY:
-						addModem = modem.isBinarySendingSupported();
-						break;
-					case UCS2_TEXT:
-						addModem = modem.isUcs2SendingSupported();
-						break;
-					case GSM7BIT_TEXT:
-						addModem = true;
-						break;
-					default: throw new IllegalStateException();
-				}
-				if(addModem) senders.add(modem);
+				if(canSend(modem, messageType)) senders.add(modem);
 			}
 		}
 		return senders;
@@ -789,7 +1354,7 @@ enum MessageType {
 	public static MessageType get(FrontlineMessage message) {
 		if(message.isBinaryMessage()) {
 			return BINARY;
-		} else if(GsmAlphabet.areAllCharactersValidGSM(message.getTextContent())) {
+		} else if(GsmCharacterClassifier.isGsmEncodable(message.getTextContent())) {
 			return GSM7BIT_TEXT;
 		} else {
 			return UCS2_TEXT;
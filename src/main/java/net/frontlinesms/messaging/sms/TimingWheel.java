@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Hashed timing wheel holding messages until the time they are due.
+ *
+ * Time is divided into ticks of {@link #tickDuration}, and each tick in the near future has a slot of the
+ * wheel, found by taking the tick modulo the number of slots.  Adding or removing a message is a constant
+ * time operation, however many messages are held, and expiring a tick only touches the messages in its slot.
+ * The wheel only covers {@link #getHorizon()}; messages due after that must be held elsewhere, e.g. in the
+ * database, and added once the wheel has turned far enough to hold them.  As a slot never holds messages for
+ * more than one tick, messages do not need to count the turns of the wheel before they are due.
+ *
+ * A message is released once the whole of the tick it is due in has passed, so messages are released up to
+ * one tick late but never early.
+ *
+ * Like {@link SendRetryScheduler}, messages are indexed by id, or by instance if they have not been saved, so
+ * that a message may be removed using a copy loaded from the database.
+ */
+public class TimingWheel {
+//> INSTANCE PROPERTIES
+	/** Time, in millis, covered by each slot */
+	private final long tickDuration;
+	/** Head of the list of entries in each slot.  Each head is an empty entry linking the first and last entries of a circular list. */
+	private final Entry[] slots;
+	/** The earliest tick which has not been expired yet */
+	private long currentTick;
+	/** The number of messages held */
+	private int size;
+	/** Entries of held messages which have been saved, mapped by message id */
+	private final HashMap<Long, Entry> savedIndex = new HashMap<Long, Entry>();
+	/** Entries of held messages which have not been saved, mapped by instance */
+	private final IdentityHashMap<FrontlineMessage, Entry> unsavedIndex = new IdentityHashMap<FrontlineMessage, Entry>();
+
+//> CONSTRUCTORS
+	/**
+	 * @param tickDuration time, in millis, covered by each slot, which must be greater than zero
+	 * @param slotCount the number of slots, which must be greater than zero
+	 * @param startTime the time, in millis, the wheel starts at
+	 */
+	public TimingWheel(long tickDuration, int slotCount, long startTime) {
+		if(tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be greater than zero: " + tickDuration);
+		if(slotCount <= 0) throw new IllegalArgumentException("Slot count must be greater than zero: " + slotCount);
+		this.tickDuration = tickDuration;
+		this.slots = new Entry[slotCount];
+		for(int i=0; i<slotCount; ++i) {
+			slots[i] = new Entry(null);
+		}
+		this.currentTick = startTime / tickDuration;
+	}
+
+//> ACCESSORS
+	/** @return {@link #tickDuration} */
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/** @return the number of messages held */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** @return the time, in millis, before which messages must be due to be held */
+	public synchronized long getHorizon() {
+		return (currentTick + slots.length) * tickDuration;
+	}
+
+//> SCHEDULING METHODS
+	/**
+	 * Holds a message until the supplied time.  If the message, or another instance with the same id, is
+	 * already held, it is rescheduled.  Messages which are already due are released by the next call to
+	 * {@link #advance(long)}.
+	 * @param message the message to hold
+	 * @param time the time, in millis, the message is due
+	 * @return <code>true</code> if the message is held; <code>false</code> if it is due at or after the {@link #getHorizon()}
+	 */
+	public synchronized boolean add(FrontlineMessage message, long time) {
+		remove(message);
+		long tick = Math.max(currentTick, time / tickDuration);
+		if(tick >= currentTick + slots.length) return false;
+
+		Entry entry = new Entry(message);
+		Entry head = slots[(int) (tick % slots.length)];
+		entry.previous = head.previous;
+		entry.next = head;
+		head.previous.next = entry;
+		head.previous = entry;
+		if(message.getId() != 0) {
+			savedIndex.put(message.getId(), entry);
+		} else {
+			unsavedIndex.put(message, entry);
+		}
+		++size;
+		return true;
+	}
+
+	/**
+	 * Turns the wheel to the supplied time, and removes and returns the messages which are due.
+	 * @param now the current time, in millis
+	 * @return the messages due in the ticks which have passed, in the order of their ticks
+	 */
+	public synchronized List<FrontlineMessage> advance(long now) {
+		List<FrontlineMessage> due = new ArrayList<FrontlineMessage>();
+		long nowTick = now / tickDuration;
+		// Each slot only needs expiring once, however far the wheel turns
+		long lastTick = Math.min(nowTick, currentTick + slots.length);
+		while(currentTick < lastTick && size > 0) {
+			Entry head = slots[(int) (currentTick % slots.length)];
+			for(Entry entry = head.next; entry != head; entry = entry.next) {
+				unindex(entry);
+				due.add(entry.message);
+				--size;
+			}
+			head.next = head;
+			head.previous = head;
+			++currentTick;
+		}
+		currentTick = Math.max(currentTick, nowTick);
+		return due;
+	}
+
+	/**
+	 * @param message the message, or another instance with the same id
+	 * @return <code>true</code> if the message was held and has been removed
+	 */
+	public synchronized boolean remove(FrontlineMessage message) {
+		Entry entry = null;
+		if(message.getId() != 0) entry = savedIndex.get(message.getId());
+		if(entry == null) entry = unsavedIndex.get(message);
+		if(entry == null) return false;
+		entry.previous.next = entry.next;
+		entry.next.previous = entry.previous;
+		unindex(entry);
+		--size;
+		return true;
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Removes an entry from whichever index it was added to. */
+	private void unindex(Entry entry) {
+		if(unsavedIndex.remove(entry.message) == null) {
+			savedIndex.remove(entry.message.getId());
+		}
+	}
+
+//> INNER CLASSES
+	/** A held message, linked to the other messages in its slot */
+	private static final class Entry {
+		/** The held message */
+		private final FrontlineMessage message;
+		/** The previous entry in the slot */
+		private Entry previous = this;
+		/** The next entry in the slot */
+		private Entry next = this;
+
+		Entry(FrontlineMessage message) {
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+/**
+ * Token bucket limiting the rate at which an {@link SmsService} is given messages to send.
+ *
+ * The bucket holds up to {@link #getBurst()} tokens, and is refilled at {@link #getRate()} tokens per minute.
+ * Each message sent takes a token, so a service which has been idle may send a short burst of messages, but
+ * over time cannot send faster than the configured rate.
+ */
+public class TokenBucket {
+//> STATIC CONSTANTS
+	/** Number of millis in a minute */
+	private static final double MILLIS_PER_MINUTE = 60 * 1000;
+
+//> INSTANCE PROPERTIES
+	/** The number of tokens added to the bucket each minute */
+	private final int rate;
+	/** The maximum number of tokens the bucket can hold */
+	private final int burst;
+	/** The number of tokens currently in the bucket.  Guarded by <code>this</code>. */
+	private double tokens;
+	/** The time, in millis, that {@link #tokens} was last refilled.  Guarded by <code>this</code>. */
+	private long lastRefillTime;
+
+//> CONSTRUCTORS
+	/**
+	 * Creates a full bucket.
+	 * @param rate the number of messages which may be sent each minute, which must be greater than zero
+	 * @param burst the number of messages which may be sent at once after the bucket has filled; values below 1 are treated as 1
+	 */
+	public TokenBucket(int rate, int burst) {
+		if(rate <= 0) throw new IllegalArgumentException("Rate must be greater than zero: " + rate);
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefillTime = currentTimeMillis();
+	}
+
+//> ACCESSORS
+	/** @return {@link #rate} */
+	public int getRate() {
+		return rate;
+	}
+
+	/** @return {@link #burst} */
+	public int getBurst() {
+		return burst;
+	}
+
+//> TOKEN METHODS
+	/** @return <code>true</code> if a message could be sent now */
+	public synchronized boolean hasToken() {
+		refill();
+		return tokens >= 1;
+	}
+
+	/**
+	 * Takes a token from the bucket, if one is available.
+	 * @return <code>true</code> if a token was taken and a message may be sent now
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if(tokens >= 1) {
+			--tokens;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/** @return the time, in millis, until a token will be available; zero if one is available now */
+	public synchronized long getWaitTime() {
+		refill();
+		if(tokens >= 1) return 0;
+		return (long) Math.ceil((1 - tokens) * MILLIS_PER_MINUTE / rate);
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Adds the tokens earned since the last refill. */
+	private void refill() {
+		long now = currentTimeMillis();
+		long elapsed = now - lastRefillTime;
+		if(elapsed > 0) {
+			tokens = Math.min(burst, tokens + elapsed * rate / MILLIS_PER_MINUTE);
+			lastRefillTime = now;
+		}
+	}
+
+	/** @return the current time, in millis.  This method is separated so that unit tests can control the clock. */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
@@ -22,12 +22,13 @@ package net.frontlinesms.messaging.sms.internet;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import net.frontlinesms.FrontlineUtils;
 import net.frontlinesms.data.domain.*;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
 import net.frontlinesms.listener.SmsListener;
+import net.frontlinesms.messaging.sms.PriorityOutbox;
+import net.frontlinesms.messaging.sms.TokenBucket;
 import net.frontlinesms.messaging.sms.properties.OptionalRadioSection;
 import net.frontlinesms.messaging.sms.properties.OptionalSection;
 
@@ -49,6 +50,10 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	protected static final String PROPERTY_USE_FOR_SENDING = "common.use.for.sending";
 	/** Property name: use this service for receiving SMS */
 	protected static final String PROPERTY_USE_FOR_RECEIVING = "common.use.for.receiving";
+	/** Property name: the maximum number of messages to send each minute with this service, or zero for no limit */
+	protected static final String PROPERTY_MAX_SEND_RATE = "common.max.send.rate";
+	/** Property name: the maximum number of messages to send at once with this service, if the rate is limited */
+	protected static final String PROPERTY_SEND_BURST = "common.send.burst";
 	/** Separator used while displaying the name in the UI */
 	protected static final String UI_NAME_SEPARATOR = "@";
 	
@@ -56,7 +61,7 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	/** The active thread running this service */
 	private SmsInternetServiceThread thread;
 	/** Queue of SMS messages waiting to be sent with this service */
-	protected ConcurrentLinkedQueue<FrontlineMessage> outbox = new ConcurrentLinkedQueue<FrontlineMessage>();
+	protected PriorityOutbox outbox = new PriorityOutbox();
 	/** The SmsListener to which this phone handler should report SMS Message events. */
 	protected SmsListener smsListener;
 	/** Settings for this service */
@@ -65,14 +70,21 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	private SmsInternetServiceStatus status = SmsInternetServiceStatus.DORMANT;
 	/** Extra info relating to the current status. */
 	private String statusDetail;
+	/** Limits how quickly messages are given to this service to send, or <code>null</code> if the rate is not limited.  Rebuilt when {@link #settings} change. */
+	private volatile TokenBucket sendRateLimiter;
 
 //> ACCESSOR METHODS
 	
 	/** @return This internet service outbox. */
-	public ConcurrentLinkedQueue<FrontlineMessage> getOutbox() {
+	public PriorityOutbox getOutbox() {
 		return outbox;
 	}
 	
+	/** @see net.frontlinesms.messaging.sms.SmsService#getOutboxSize() */
+	public int getOutboxSize() {
+		return outbox.size();
+	}
+	
 	/** @return the settings attached to this {@link SmsInternetService} instance. */
 	public SmsInternetServiceSettings getSettings() {
 		return settings;
@@ -96,6 +108,15 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	public String getServiceIdentification() {
 		return this.getMsisdn();
 	}
+	
+	/**
+	 * The limiter is created from {@link #PROPERTY_MAX_SEND_RATE} and {@link #PROPERTY_SEND_BURST} when the
+	 * settings are changed with {@link #setSettings(SmsInternetServiceSettings)} or {@link #setProperty(String, Object)}.
+	 * @see net.frontlinesms.messaging.sms.SmsService#getSendRateLimiter()
+	 */
+	public TokenBucket getSendRateLimiter() {
+		return this.sendRateLimiter;
+	}
 
 	/**
 	 * Set the status of this {@link SmsInternetService}, and fires an event to {@link #smsListener}
@@ -140,6 +161,9 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	 */
 	protected void setProperty(String key, Object value) {
 		this.settings.set(key, value);
+		if(PROPERTY_MAX_SEND_RATE.equals(key) || PROPERTY_SEND_BURST.equals(key)) {
+			updateSendRateLimiter();
+		}
 	}
 	
 	/**
@@ -172,6 +196,29 @@ public abstract class AbstractSmsInternetService implements SmsInternetService {
 	 */
 	public void setSettings(SmsInternetServiceSettings settings) {
 		this.settings = settings;
+		updateSendRateLimiter();
+	}
+	
+	/**
+	 * Replaces {@link #sendRateLimiter} if {@link #PROPERTY_MAX_SEND_RATE} or {@link #PROPERTY_SEND_BURST} have
+	 * changed.  Services which do not have a {@link #PROPERTY_MAX_SEND_RATE} property are not limited.
+	 */
+	private synchronized void updateSendRateLimiter() {
+		Map<String, Object> properties = getPropertiesStructure();
+		if(this.settings == null || getValue(PROPERTY_MAX_SEND_RATE, properties) == null) {
+			this.sendRateLimiter = null;
+			return;
+		}
+		int maxSendRate = getPropertyValue(PROPERTY_MAX_SEND_RATE, Integer.class);
+		int sendBurst = getValue(PROPERTY_SEND_BURST, properties) == null ? 1 : getPropertyValue(PROPERTY_SEND_BURST, Integer.class);
+		TokenBucket current = this.sendRateLimiter;
+		if(maxSendRate <= 0) {
+			this.sendRateLimiter = null;
+		} else if(current == null
+				|| current.getRate() != maxSendRate
+				|| current.getBurst() != Math.max(1, sendBurst)) {
+			this.sendRateLimiter = new TokenBucket(maxSendRate, sendBurst);
+		}
 	}
 
 	/** Starts this service. */
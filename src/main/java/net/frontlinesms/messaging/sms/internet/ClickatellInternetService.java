@@ -25,6 +25,7 @@ import net.frontlinesms.*;
 import net.frontlinesms.data.domain.FrontlineMessage;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
 import net.frontlinesms.messaging.Provider;
+import net.frontlinesms.messaging.sms.GsmCharacterClassifier;
 import net.frontlinesms.messaging.sms.properties.PasswordString;
 import net.frontlinesms.messaging.sms.properties.PhoneSection;
 import net.frontlinesms.ui.handler.settings.SmsInternetServiceSettingsHandler;
@@ -50,6 +51,10 @@ public class ClickatellInternetService extends AbstractSmsInternetService {
 	protected static final String PROPERTY_API = PROPERTY_PREFIX + "api";
 	protected static final String PROPERTY_FROM_MSISDN = PROPERTY_PREFIX + "from.msisdn";
 	protected static final String PROPERTY_SSL = PROPERTY_PREFIX + "ssl";
+	/** Default maximum number of messages to send each minute, low enough not to be throttled by the gateway */
+	private static final int DEFAULT_MAX_SEND_RATE = 1800;
+	/** Default maximum number of messages to send at once */
+	private static final int DEFAULT_SEND_BURST = 30;
 
 	/** Logging object */
 	private static Logger LOG = FrontlineUtils.getLogger(ClickatellInternetService.class);
@@ -91,6 +96,8 @@ public class ClickatellInternetService extends AbstractSmsInternetService {
 			oMessage = new OutboundMessage(message.getRecipientMsisdn(), message.getBinaryContent());
 		} else {
 			oMessage = new OutboundMessage(message.getRecipientMsisdn(), message.getTextContent());
+			// Send in the encoding the message's parts were counted in
+			oMessage.setEncoding(GsmCharacterClassifier.isGsmEncodable(message.getTextContent()) ? MessageEncodings.ENC7BIT : MessageEncodings.ENCUCS2);
 		}
 		if(message.getRecipientSmsPort() > 0) {
 			oMessage.setDstPort(message.getRecipientSmsPort());
@@ -196,6 +203,8 @@ public class ClickatellInternetService extends AbstractSmsInternetService {
 		defaultSettings.put(PROPERTY_FROM_MSISDN, new PhoneSection(""));
 		defaultSettings.put(PROPERTY_SSL, Boolean.FALSE);
 		defaultSettings.put(PROPERTY_USE_FOR_SENDING, Boolean.TRUE);
+		defaultSettings.put(PROPERTY_MAX_SEND_RATE, new Integer(DEFAULT_MAX_SEND_RATE));
+		defaultSettings.put(PROPERTY_SEND_BURST, new Integer(DEFAULT_SEND_BURST));
 		return defaultSettings;
 	}
 	
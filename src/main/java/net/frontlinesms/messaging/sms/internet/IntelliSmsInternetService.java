@@ -26,6 +26,7 @@ import net.frontlinesms.data.domain.*;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
 import net.frontlinesms.email.receive.*;
 import net.frontlinesms.messaging.Provider;
+import net.frontlinesms.messaging.sms.GsmCharacterClassifier;
 import net.frontlinesms.messaging.sms.properties.OptionalSection;
 import net.frontlinesms.messaging.sms.properties.PasswordString;
 import net.frontlinesms.messaging.sms.properties.PhoneSection;
@@ -33,7 +34,6 @@ import net.frontlinesms.ui.handler.settings.SmsInternetServiceSettingsHandler;
 
 import org.apache.log4j.Logger;
 import org.smslib.CIncomingMessage;
-import org.smslib.util.GsmAlphabet;
 import org.smslib.util.HexUtils;
 import org.smslib.util.TpduUtils;
 
@@ -63,6 +63,10 @@ public class IntelliSmsInternetService extends AbstractSmsInternetService implem
 	protected static final String PROPERTY_PASSWORD = PROPERTY_PREFIX + "password";
 	protected static final String PROPERTY_FROM_MSISDN = PROPERTY_PREFIX + "from.msisdn";
 	protected static final String PROPERTY_SSL = PROPERTY_PREFIX + "ssl";
+	/** Default maximum number of messages to send each minute, low enough not to be throttled by the gateway */
+	private static final int DEFAULT_MAX_SEND_RATE = 600;
+	/** Default maximum number of messages to send at once */
+	private static final int DEFAULT_SEND_BURST = 10;
 
 	protected static final String PROPERTY_RECEIVING_EMAIL_HOST = PROPERTY_PREFIX + "email.host";
 	protected static final String PROPERTY_RECEIVING_EMAIL_HOST_PORT = PROPERTY_PREFIX + "email.host.port";
@@ -170,7 +174,7 @@ public class IntelliSmsInternetService extends AbstractSmsInternetService implem
 			ResultCodes code;
 			if (message.isBinaryMessage()) {
 				code = sendBinarySms(message);
-			} else if(!GsmAlphabet.areAllCharactersValidGSM(message.getTextContent())) {
+			} else if(!GsmCharacterClassifier.isGsmEncodable(message.getTextContent())) {
 				code = sendUcs2Sms(message);
 			} else {
 				if ( (message.getTextContent().length() / FrontlineMessage.SMS_LENGTH_LIMIT) > MAX_SMS_PARTS) {
@@ -275,6 +279,8 @@ public class IntelliSmsInternetService extends AbstractSmsInternetService implem
 		defaultSettings.put(PROPERTY_FROM_MSISDN, new PhoneSection(""));
 		defaultSettings.put(PROPERTY_SSL, Boolean.FALSE);
 		defaultSettings.put(PROPERTY_USE_FOR_SENDING, Boolean.TRUE);
+		defaultSettings.put(PROPERTY_MAX_SEND_RATE, new Integer(DEFAULT_MAX_SEND_RATE));
+		defaultSettings.put(PROPERTY_SEND_BURST, new Integer(DEFAULT_SEND_BURST));
 		// Proxy properties
 		if(PROXIES_SUPPORTED) {
 			OptionalSection section = new OptionalSection();
@@ -59,6 +59,10 @@ public class YoInternetService extends AbstractSmsInternetService {
     protected static final String PROPERTY_PASSWORD = PROPERTY_PREFIX + "password";
     protected static final String PROPERTY_FROM_MSISDN = PROPERTY_PREFIX + "from.msisdn";
     protected static final String PROPERTY_SSL = PROPERTY_PREFIX + "ssl";
+    /** Default maximum number of messages to send each minute, low enough not to be throttled by the gateway */
+    private static final int DEFAULT_MAX_SEND_RATE = 300;
+    /** Default maximum number of messages to send at once */
+    private static final int DEFAULT_SEND_BURST = 5;
 
     private static final String YBSSMGW_TAG = "YbsSmgw";
     private static final String REQUEST_TAG = "Request";
@@ -157,6 +161,8 @@ public class YoInternetService extends AbstractSmsInternetService {
 	defaultSettings.put(PROPERTY_FROM_MSISDN, new PhoneSection(""));
 	// defaultSettings.put(PROPERTY_SSL, Boolean.FALSE);
 	defaultSettings.put(PROPERTY_USE_FOR_SENDING, Boolean.TRUE);
+	defaultSettings.put(PROPERTY_MAX_SEND_RATE, new Integer(DEFAULT_MAX_SEND_RATE));
+	defaultSettings.put(PROPERTY_SEND_BURST, new Integer(DEFAULT_SEND_BURST));
 	// defaultSettings.put(PROPERTY_USE_FOR_RECEIVING, Boolean.FALSE);
 	return defaultSettings;
     }
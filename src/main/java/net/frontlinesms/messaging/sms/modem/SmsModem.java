@@ -28,9 +28,11 @@ import serial.*;
 import net.frontlinesms.FrontlineUtils;
 import net.frontlinesms.data.domain.*;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
-import net.frontlinesms.listener.SmsListener;
 import net.frontlinesms.messaging.CatHandlerAliasMatcher;
+import net.frontlinesms.messaging.sms.PriorityOutbox;
 import net.frontlinesms.messaging.sms.SmsService;
+import net.frontlinesms.messaging.sms.SmsServiceManager;
+import net.frontlinesms.messaging.sms.TokenBucket;
 
 import org.apache.log4j.Logger;
 import org.smslib.*;
@@ -75,11 +77,23 @@ public class SmsModem extends Thread implements SmsService {
 	 * Watchdog to monitor when a phone handler has lost communication with the phone
 	 */
 	private long timeOfLastResponseFromPhone;
+	/**
+	 * Time, in millis, that this modem last sent a message successfully, or was given a message while its
+	 * outbox was empty.  Used to tell when the modem has stopped sending messages, so that they can be
+	 * taken by another device.
+	 */
+	private volatile long timeOfLastSend;
 
 	private final ConcurrentLinkedQueue<CIncomingMessage> inbox = new ConcurrentLinkedQueue<CIncomingMessage>();
-	private final ConcurrentLinkedQueue<FrontlineMessage> outbox = new ConcurrentLinkedQueue<FrontlineMessage>();
-	/** The SmsListener to which this phone handler should report SMS Message events. */
-	private final SmsListener smsListener;
+	/** Messages waiting to be sent with this modem, in priority lanes */
+	private final PriorityOutbox outbox = new PriorityOutbox();
+	/** Lock notified when a message is added to {@link #outbox}, so that an idle modem sends it straight away */
+	private final Object outboxLock = new Object();
+	/**
+	 * The manager to which this phone handler should report SMS Message events, and which collects the
+	 * messages it receives.
+	 */
+	private final SmsServiceManager manager;
 
 	/** The name of the COM port that this PhoneHandler controls. */
 	private final String portName;
@@ -114,6 +128,8 @@ public class SmsModem extends Thread implements SmsService {
 
 	private boolean deleteMessagesAfterReceiving;
 	private boolean useDeliveryReports;
+	/** Limits how quickly messages are given to this phone to send, or <code>null</code> if the rate is not limited */
+	private volatile TokenBucket sendRateLimiter;
 
 	private String manufacturer = "";
 	private String model = "";
@@ -136,10 +152,10 @@ public class SmsModem extends Thread implements SmsService {
 	/**
 	 * Create a new instance {@link SmsModem}
 	 * @param portName the name of the port which this modem is found on.  Value for {@link #portName}
-	 * @param smsListener the value for {@link #smsListener} 
+	 * @param manager the value for {@link #manager} 
 	 * @throws NoSuchPortException 
 	 */
-	public SmsModem(String portName, SmsListener smsListener) throws NoSuchPortException {
+	public SmsModem(String portName, SmsServiceManager manager) throws NoSuchPortException {
 		super("SmsModem :: " + portName);
 		/*
 		 * Make this into a daemon thread - we never know when it may get blocked in native code.  Indeed this can be
@@ -153,8 +169,8 @@ public class SmsModem extends Thread implements SmsService {
 		 */	
 		super.setDaemon(true);
 
-		assert(smsListener != null);
-		this.smsListener = smsListener;
+		assert(manager != null);
+		this.manager = manager;
 		this.portName = portName;
 
 		resetWatchdog();
@@ -176,6 +192,25 @@ public class SmsModem extends Thread implements SmsService {
 		}
 	}
 	
+	/**
+	 * Create a new {@link SmsModem} which is already connected through the supplied service, rather than
+	 * through a COM port.  When started, it sends and receives messages without connecting or detecting
+	 * the phone.  This is used for testing the modem without a phone attached.
+	 * @param portName the value for {@link #portName}
+	 * @param manager the value for {@link #manager}
+	 * @param cService the connected service used to communicate with the phone
+	 */
+	SmsModem(String portName, SmsServiceManager manager, CService cService) {
+		super("SmsModem :: " + portName);
+		super.setDaemon(true);
+		this.manager = manager;
+		this.portName = portName;
+		this.cService = cService;
+		this.smsLibConnected = true;
+		this.status = SmsModemStatus.CONNECTED;
+		resetWatchdog();
+	}
+	
 //> ACCESSOR METHODS
 	/** @return {@link #status} */
 	public SmsModemStatus getStatus() {
@@ -183,7 +218,7 @@ public class SmsModem extends Thread implements SmsService {
 	}
 	
 	/**
-	 * Set the status of this {@link SmsModem}, and fires an event to {@link #smsListener}
+	 * Set the status of this {@link SmsModem}, and fires an event to {@link #manager}
 	 * @param status the status
 	 * @param detail detail relating to the status
 	 */
@@ -194,7 +229,7 @@ public class SmsModem extends Thread implements SmsService {
 				+ (detail == null?"":": "+detail)
 				+ "]");
 		
-		smsListener.smsDeviceEvent(this, this.status);
+		manager.smsDeviceEvent(this, this.status);
 	}
 	
 	/** @return {@link #statusDetail} */
@@ -310,7 +345,7 @@ public class SmsModem extends Thread implements SmsService {
 	
 	/**
 	 * Sets the status of this modem.  If the status is {@link SmsModemStatus#DUPLICATE}, an
-	 * event will be triggered with {@link #smsListener}.
+	 * event will be triggered with {@link #manager}.
 	 * @param newDuplicate new value for {@link #duplicate}
 	 */
 	public void setDuplicate(boolean newDuplicate) {
@@ -475,7 +510,8 @@ public class SmsModem extends Thread implements SmsService {
 	 */
 	@Override
 	public synchronized void start() {
-		this.autoDetect = true;
+		// A modem created already connected has nothing to detect
+		this.autoDetect = !smsLibConnected;
 		super.start();
 	}
 
@@ -558,7 +594,7 @@ public class SmsModem extends Thread implements SmsService {
 				if (noActivity) {
 					try {
 						if(smsLibConnected) cService.keepGsmLinkOpen();
-						FrontlineUtils.sleep_ignoreInterrupts(5000); /* 5 seconds */
+						awaitOutgoingMessage(5000); /* 5 seconds */
 					} catch (Throwable t) {
 						LOG.debug("", t);
 						tryToConnect = false;
@@ -574,6 +610,22 @@ public class SmsModem extends Thread implements SmsService {
 		LOG.trace("EXIT");
 	}
 
+	/**
+	 * Waits until a message is available to send, or the timeout passes.
+	 * @param timeout the maximum time to wait, in millis
+	 */
+	private void awaitOutgoingMessage(long timeout) {
+		synchronized(outboxLock) {
+			if(!useForSending || outbox.isEmpty()) {
+				try {
+					outboxLock.wait(timeout);
+				} catch (InterruptedException ex) {
+					// Ignore, as with FrontlineUtils.sleep_ignoreInterrupts(long)
+				}
+			}
+		}
+	}
+
 	private final void setManufacturer(String manufacturer) {
 		LOG.debug("Manufacturer before translation [" + manufacturer + "]");
 		this.manufacturer = CatHandlerAliasMatcher.getInstance().translateManufacturer(manufacturer);
@@ -751,6 +803,10 @@ public class SmsModem extends Thread implements SmsService {
 			deleteIfAppropriate(msg);
 			resetWatchdog();
 		}
+		if(!messageList.isEmpty()) {
+			// Wake the manager, so that the messages are collected without waiting for its next poll
+			manager.requestDispatch();
+		}
 
 		LOG.trace("EXIT");
 		return messageList.size();
@@ -796,8 +852,13 @@ public class SmsModem extends Thread implements SmsService {
 			outgoingMessage.setSenderMsisdn(serialNumber);
 		} // Otherwise it will go with blank sender.
 
+		// A modem which has just been given work should not be treated as having stopped sending
+		if(outbox.isEmpty()) timeOfLastSend = System.currentTimeMillis();
 		outbox.add(outgoingMessage);
-		smsListener.outgoingMessageEvent(this, outgoingMessage);
+		synchronized(outboxLock) {
+			outboxLock.notifyAll();
+		}
+		manager.outgoingMessageEvent(this, outgoingMessage);
 		LOG.debug("Message added to outbox. Size is [" + outbox.size() + "]");
 
 		LOG.trace("EXIT");
@@ -825,6 +886,58 @@ public class SmsModem extends Thread implements SmsService {
 		this.useDeliveryReports = useDeliveryReports;
 	}
 
+	/** @see SmsService#getOutboxSize() */
+	public int getOutboxSize() {
+		return outbox.size();
+	}
+
+	/** @return {@link #timeOfLastSend} */
+	public long getTimeOfLastSend() {
+		return timeOfLastSend;
+	}
+
+	/**
+	 * Removes messages which this modem has not started sending, so that they can be sent with another device.
+	 * Messages are taken from the outbox one at a time under its lock, so each message is either sent by this
+	 * modem or returned here, never both.
+	 * @param max the maximum number of messages to remove
+	 * @return the removed messages, in the order this modem would have sent them
+	 */
+	public List<FrontlineMessage> stealMessages(int max) {
+		List<FrontlineMessage> stolen = new ArrayList<FrontlineMessage>();
+		FrontlineMessage m;
+		while(stolen.size() < max && (m = outbox.poll()) != null) {
+			stolen.add(m);
+		}
+		if(LOG.isDebugEnabled() && !stolen.isEmpty()) LOG.debug("[" + stolen.size() + "] message(s) taken for another device. Outbox size is [" + outbox.size() + "]");
+		return stolen;
+	}
+
+	/** @see SmsService#getSendRateLimiter() */
+	public TokenBucket getSendRateLimiter() {
+		return sendRateLimiter;
+	}
+
+	/** @return the maximum number of messages to send each minute with this phone, or zero if the rate is not limited */
+	public int getMaxSendRate() {
+		TokenBucket current = this.sendRateLimiter;
+		return current == null ? 0 : current.getRate();
+	}
+
+	/**
+	 * Limits the rate at which this phone is given messages to send.  Messages are not sent in bursts, as
+	 * some networks silently drop messages sent in quick succession from the same SIM.
+	 * @param maxSendRate the maximum number of messages to send each minute, or zero if the rate should not be limited
+	 */
+	public void setMaxSendRate(int maxSendRate) {
+		TokenBucket current = this.sendRateLimiter;
+		if(maxSendRate <= 0) {
+			this.sendRateLimiter = null;
+		} else if(current == null || current.getRate() != maxSendRate) {
+			this.sendRateLimiter = new TokenBucket(maxSendRate, 1);
+		}
+	}
+
 	public void setAutoReconnect(boolean autoReconnect) {
 		this.autoReconnect = autoReconnect;
 	}
@@ -919,9 +1032,11 @@ public class SmsModem extends Thread implements SmsService {
 			this.setStatus(SmsModemStatus.DISCONNECTED, null);
 		}
 		
-		for (FrontlineMessage m : outbox) {
+		// Messages are removed as they are failed, so that they are not sent, or taken by another device, later
+		FrontlineMessage m;
+		while((m = outbox.poll()) != null) {
 			m.setStatus(Status.FAILED);
-			smsListener.outgoingMessageEvent(this, m);
+			manager.outgoingMessageEvent(this, m);
 		}
 		LOG.trace("EXIT");
 	}
@@ -959,6 +1074,7 @@ public class SmsModem extends Thread implements SmsService {
 					if (cMessage.getRefNo() != -1) {
 						message.setSmscReference(cMessage.getRefNo());
 						message.setStatus(Status.SENT);
+						timeOfLastSend = System.currentTimeMillis();
 						if(LOG.isDebugEnabled()) LOG.debug("Message [" + message.getTextContent() + "] was sent to [" + message.getRecipientMsisdn() + "]");
 					} else {
 						//message not sent
@@ -970,7 +1086,7 @@ public class SmsModem extends Thread implements SmsService {
 					message.setStatus(Status.FAILED);
 					if(LOG.isInfoEnabled()) LOG.info("Message [" + message + "] failed to send to [" + message.getRecipientMsisdn() + "]", ex);
 				} finally {
-					smsListener.outgoingMessageEvent(this, message);
+					manager.outgoingMessageEvent(this, message);
 				}
 			}
 		} finally {
@@ -32,6 +32,7 @@ import java.util.Set;
 import net.frontlinesms.*;
 import net.frontlinesms.data.*;
 import net.frontlinesms.data.domain.*;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
 import net.frontlinesms.data.domain.FrontlineMessage.Type;
 import net.frontlinesms.data.events.EntitySavedNotification;
@@ -134,6 +135,8 @@ public class UiGeneratorController extends FrontlineUI implements EmailListener,
 	private final MessageDao messageFactory;
 	/** Data Access Object for {@link SmsModemSettings}s */
 	private final SmsModemSettingsDao phoneDetailsManager;
+	/** Data Access Object for {@link KeywordAction}s */
+	private final KeywordActionDao keywordActionDao;
 
 	/** Controller of the home tab. */
 	private final HomeTabHandler homeTabController;
@@ -204,6 +207,7 @@ public class UiGeneratorController extends FrontlineUI implements EmailListener,
 		this.groupMembershipDao = frontlineController.getGroupMembershipDao();
 		this.messageFactory = frontlineController.getMessageDao();
 		this.phoneDetailsManager = frontlineController.getSmsModemSettingsDao();
+		this.keywordActionDao = frontlineController.getKeywordActionDao();
 		this.pluginManager = frontlineController.getPluginManager();
 		
 		// Load the data mode from the ui.properties file
@@ -736,17 +740,20 @@ public class UiGeneratorController extends FrontlineUI implements EmailListener,
 	 */
 	public void sendMessage(Object composeMessageDialog, Object recipientList, Object messageContent) {
 		String messageText = getText(messageContent);
-		for (Object o : getItems(recipientList)) {
+		Object[] recipients = getItems(recipientList);
+		// Messages to more than one recipient should not hold up replies and individual messages
+		Priority priority = recipients.length > 1 ? Priority.BULK : Priority.NORMAL;
+		for (Object o : recipients) {
 			Object attachedObject = getAttachedObject(o);
 			if(attachedObject == null) {
 				// Do nothing
 				// TODO check this is necessary
 			} else if(attachedObject instanceof Contact) {
 				Contact c = (Contact)attachedObject;
-				frontlineController.sendTextMessage(c.getPhoneNumber(), messageText);
+				frontlineController.sendTextMessage(c.getPhoneNumber(), messageText, priority);
 			} else if(attachedObject instanceof String) {
 				// Attached object is a phone number
-				frontlineController.sendTextMessage((String)attachedObject, messageText);
+				frontlineController.sendTextMessage((String)attachedObject, messageText, priority);
 			}
 		}
 		
@@ -1203,7 +1210,8 @@ public class UiGeneratorController extends FrontlineUI implements EmailListener,
 		setIcon(cell, action.isAlive(System.currentTimeMillis()) ? Icon.CIRLCE_TICK : Icon.CANCEL);
 		setChoice(cell, ALIGNMENT, CENTER);
 		add(row, cell);
-		add(row, createTableCell(action.getCounter()));
+		// Include executions which have been counted but not yet written to the database
+		add(row, createTableCell(action.getCounter() + keywordActionDao.getPendingCounterIncrements(action)));
 		return row;
 	}
 
@@ -690,6 +690,8 @@ public class MessageHistoryTabHandler extends BaseTabHandler implements PagedCom
 				if (status == Status.OUTBOX) {
 					// FIXME should not be getting the phone manager like this - should be a local propery i rather think
 					ui.getPhoneManager().removeFromOutbox(toBeRemoved);
+				} else if (status == Status.SCHEDULED) {
+					ui.getFrontlineController().getScheduledMessageReleaser().remove(toBeRemoved);
 				}
 				numberOfSMSPartsSent -= toBeRemoved.getNumberOfSMS();
 				messageDao.deleteMessage(toBeRemoved);
@@ -730,6 +732,10 @@ public class MessageHistoryTabHandler extends BaseTabHandler implements PagedCom
 			if (status == Status.FAILED) {
 				toBeReSent.setSenderMsisdn("");
 				toBeReSent.setRetriesRemaining(FrontlineMessage.MAX_RETRIES);
+				// Saved first, in case the message is spilled and loaded again before it is sent, and so that
+				// it may be claimed from a shared outbox
+				toBeReSent.setStatus(Status.OUTBOX);
+				messageDao.updateMessage(toBeReSent);
 				ui.getPhoneManager().sendSMS(toBeReSent);
 			} else if (status == Status.DELIVERED || status == Status.SENT) {
 				if(toBeReSent.isBinaryMessage()) {
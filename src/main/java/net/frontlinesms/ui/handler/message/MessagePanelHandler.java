@@ -4,6 +4,10 @@
 package net.frontlinesms.ui.handler.message;
 
 // TODO Remove static imports
+import static net.frontlinesms.FrontlineSMSConstants.MESSAGE_CAMPAIGN_ETA;
+import static net.frontlinesms.FrontlineSMSConstants.MESSAGE_CAMPAIGN_FINISHED;
+import static net.frontlinesms.FrontlineSMSConstants.MESSAGE_CAMPAIGN_PARTS_SAVED;
+import static net.frontlinesms.FrontlineSMSConstants.MESSAGE_CAMPAIGN_PROGRESS;
 import static net.frontlinesms.FrontlineSMSConstants.MESSAGE_NO_CONTACT_SELECTED;
 import static net.frontlinesms.ui.UiGeneratorControllerConstants.COMPONENT_LB_COST;
 import static net.frontlinesms.ui.UiGeneratorControllerConstants.COMPONENT_LB_FIRST;
@@ -17,7 +21,7 @@ import static net.frontlinesms.ui.UiGeneratorControllerConstants.COMPONENT_TF_ME
 import static net.frontlinesms.ui.UiGeneratorControllerConstants.COMPONENT_TF_RECIPIENT;
 
 import java.awt.Color;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import net.frontlinesms.AppProperties;
@@ -25,7 +29,11 @@ import net.frontlinesms.FrontlineSMSConstants;
 import net.frontlinesms.FrontlineUtils;
 import net.frontlinesms.data.domain.Contact;
 import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.Group;
+import net.frontlinesms.listener.BulkSmsCampaignListener;
+import net.frontlinesms.messaging.sms.BulkSmsCampaign;
+import net.frontlinesms.messaging.sms.GsmCharacterClassifier;
 import net.frontlinesms.ui.Icon;
 import net.frontlinesms.ui.ThinletUiEventHandler;
 import net.frontlinesms.ui.UiGeneratorController;
@@ -37,7 +45,6 @@ import net.frontlinesms.ui.handler.keyword.BaseActionDialog;
 import net.frontlinesms.ui.i18n.InternationalisationUtils;
 
 import org.apache.log4j.Logger;
-import org.smslib.util.GsmAlphabet;
 
 /**
  * Controller for a panel which allows sending of text SMS messages
@@ -165,10 +172,9 @@ public class MessagePanelHandler implements ThinletUiEventHandler, SingleGroupSe
 		Object attachedObject = this.uiController.getAttachedObject(find(COMPONENT_TF_RECIPIENT));
 		
 		if (attachedObject != null && attachedObject instanceof Group) {
-			List<Contact> recipientList = this.uiController.getFrontlineController().getGroupMembershipDao().getMembers((Group) attachedObject);
-			for (Contact contact : recipientList) {
-				this.uiController.getFrontlineController().sendTextMessage(contact.getPhoneNumber(), this.uiController.getText(find(COMPONENT_TF_MESSAGE)));
-			}
+			// Messages are created in the background, so that large groups do not freeze the UI
+			this.uiController.getFrontlineController().startCampaign((Group) attachedObject, null,
+					this.uiController.getText(find(COMPONENT_TF_MESSAGE)), Priority.BULK, new CampaignStatusUpdater(this.uiController));
 		}
 		
 		this.clearComponents();
@@ -250,7 +256,7 @@ public class MessagePanelHandler implements ThinletUiEventHandler, SingleGroupSe
 		int messageLength = message.length();
 		
 		Object sendButton = find(COMPONENT_BT_SEND);
-		boolean areAllCharactersValidGSM = GsmAlphabet.areAllCharactersValidGSM(message);
+		boolean areAllCharactersValidGSM = GsmCharacterClassifier.isGsmEncodable(message);
 		int totalLengthAllowed = FrontlineMessage.getTotalLengthAllowed(message);
 		
 		boolean shouldEnableSendButton = (messageLength > 0 && (!shouldCheckMaxMessageLength || messageLength <= totalLengthAllowed));
@@ -377,4 +383,37 @@ public class MessagePanelHandler implements ThinletUiEventHandler, SingleGroupSe
 	}
 
 //> STATIC HELPER METHODS
+
+//> INNER CLASSES
+	/** Shows the progress of a {@link BulkSmsCampaign} in the status bar. */
+	private static class CampaignStatusUpdater implements BulkSmsCampaignListener {
+		/** The {@link UiGeneratorController} whose status bar is updated */
+		private final UiGeneratorController uiController;
+		
+		CampaignStatusUpdater(UiGeneratorController uiController) {
+			this.uiController = uiController;
+		}
+		
+		/** @see BulkSmsCampaignListener#campaignProgress(BulkSmsCampaign) */
+		public void campaignProgress(BulkSmsCampaign campaign) {
+			String status = InternationalisationUtils.getI18nString(MESSAGE_CAMPAIGN_PROGRESS, campaign.getGroup().getName(),
+					String.valueOf(campaign.getQueuedCount()), String.valueOf(campaign.getRecipientCount()));
+			long timeRemaining = campaign.getEstimatedTimeRemaining();
+			if (timeRemaining > 0) {
+				long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(timeRemaining));
+				status += " " + InternationalisationUtils.getI18nString(MESSAGE_CAMPAIGN_ETA, String.valueOf(minutes));
+			}
+			this.uiController.setStatus(status);
+		}
+		
+		/** @see BulkSmsCampaignListener#campaignFinished(BulkSmsCampaign) */
+		public void campaignFinished(BulkSmsCampaign campaign) {
+			String status = InternationalisationUtils.getI18nString(MESSAGE_CAMPAIGN_FINISHED, campaign.getGroup().getName(),
+					String.valueOf(campaign.getQueuedCount()));
+			if (campaign.getPartsSaved() > 0) {
+				status += " " + InternationalisationUtils.getI18nString(MESSAGE_CAMPAIGN_PARTS_SAVED, String.valueOf(campaign.getPartsSaved()));
+			}
+			this.uiController.setStatus(status);
+		}
+	}
 }
@@ -42,10 +42,14 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 	private static final String COMPONENT_SMSC_NUMBER = "tfSmscNumber";
 	/** UI Component name: textfield containing the PIN */
 	private static final String COMPONENT_SIM_PIN = "tfPin";
+	/** UI Component name: textfield containing the maximum number of messages to send each minute */
+	private static final String COMPONENT_MAX_SEND_RATE = "tfMaxSendRate";
 
 //> INSTANCE PROPERTIES
 	/** I18n Text Key: TODO */
 	private static final String COMMON_SETTINGS_FOR_PHONE = "common.settings.for.phone";
+	/** I18n Text Key: the maximum send rate entered is not a valid number */
+	private static final String I18N_INVALID_MAX_SEND_RATE = "phone.settings.invalid.max.send.rate";
 	
 	/** Logger */
 	private Logger LOG = FrontlineUtils.getLogger(this.getClass());
@@ -76,6 +80,7 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 		if(smscNumber != null) this.ui.setText(this.find(COMPONENT_SMSC_NUMBER), smscNumber);
 		String simPin = this.device.getSimPin();
 		if(simPin != null) this.ui.setText(this.find(COMPONENT_SIM_PIN), simPin);
+		this.ui.setText(this.find(COMPONENT_MAX_SEND_RATE), Integer.toString(this.device.getMaxSendRate()));
 		
 		if(!isNewPhone) {
 			boolean useForSending = device.isUseForSending();
@@ -124,6 +129,12 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 	 */
 	public void updatePhoneDetails() {
 		String serial = this.device.getSerial();
+		
+		int maxSendRate = parseMaxSendRate(ui.getText(find(COMPONENT_MAX_SEND_RATE)));
+		if(maxSendRate < 0) {
+			ui.alert(InternationalisationUtils.getI18nString(I18N_INVALID_MAX_SEND_RATE));
+			return;
+		}
 
 		boolean useForSending;
 		boolean useDeliveryReports;
@@ -171,6 +182,7 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 		settings.setDeleteMessagesAfterReceiving(deleteMessagesAfterReceiving);
 		settings.setSmscNumber(smscNumber);
 		settings.setSimPin(simPin);
+		settings.setMaxSendRate(maxSendRate);
 		
 		if(newSettings) {
 			smsModemSettingsDao.saveSmsModemSettings(settings);
@@ -183,6 +195,7 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 		// TODO check if this value has changed if there is any value to that
 		// TODO how is the PIN change propagated?  Guessing that we will need to reconnect to the phone.
 		device.setSimPin(simPin);
+		device.setMaxSendRate(maxSendRate);
 		
 		removeDialog();
 	}
@@ -193,6 +206,9 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 	/** Used by the {@link SettingsDeviceSectionHandler} */
 	public void pinChanged(String pin) {}
 	
+	/** Used by the {@link SettingsDeviceSectionHandler} */
+	public void maxSendRateChanged(String maxSendRate) {}
+	
 	/** TODO someone please rename this method */
 	public void phoneManagerDetailsUse(Object radioButton) {
 		Object pnPhoneSettings = find(COMPONENT_PN_PHONE_SETTINGS);
@@ -219,6 +235,21 @@ public class DeviceSettingsDialogHandler implements ThinletUiEventHandler {
 		this.ui.showHelpPage(page);
 	}
 
+//> STATIC HELPER METHODS
+	/**
+	 * @param text the maximum send rate entered by the user
+	 * @return the number of messages per minute, zero if the text is empty, or <code>-1</code> if the text is not a valid rate
+	 */
+	public static int parseMaxSendRate(String text) {
+		if(text == null || text.trim().length() == 0) return 0;
+		try {
+			int maxSendRate = Integer.parseInt(text.trim());
+			return maxSendRate < 0 ? -1 : maxSendRate;
+		} catch(NumberFormatException ex) {
+			return -1;
+		}
+	}
+
 //> UI HELPER METHODS
 	/** @return UI component with the supplied name, or <code>null</code> if none could be found */
 	private Object find(String componentName) {
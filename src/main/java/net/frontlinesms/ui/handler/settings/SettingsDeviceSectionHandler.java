@@ -1,13 +1,17 @@
 package net.frontlinesms.ui.handler.settings;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.frontlinesms.data.domain.SmsModemSettings;
 import net.frontlinesms.data.repository.SmsModemSettingsDao;
+import net.frontlinesms.messaging.sms.SmsService;
+import net.frontlinesms.messaging.sms.modem.SmsModem;
 import net.frontlinesms.settings.BaseSectionHandler;
 import net.frontlinesms.settings.FrontlineValidationMessage;
 import net.frontlinesms.ui.ThinletUiEventHandler;
 import net.frontlinesms.ui.UiGeneratorController;
+import net.frontlinesms.ui.handler.phones.DeviceSettingsDialogHandler;
 import net.frontlinesms.ui.i18n.InternationalisationUtils;
 import net.frontlinesms.ui.settings.UiSettingsSectionHandler;
 
@@ -17,6 +21,7 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 	
 	private static final String UI_COMPONENT_TF_SMSC_NUMBER = "tfSmscNumber";
 	private static final String UI_COMPONENT_TF_SIM_PIN = "tfPin";
+	private static final String UI_COMPONENT_TF_MAX_SEND_RATE = "tfMaxSendRate";
 	private static final String UI_COMPONENT_PHONE_SENDING = "cbSending";
 	private static final String UI_COMPONENT_PHONE_RECEIVING = "cbReceiving";
 	private static final String UI_COMPONENT_PHONE_DELETE = "cbDeleteMsgs";
@@ -27,6 +32,7 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 	
 	private static final String SECTION_ITEM_DEVICE_SMSC_NUMBER = "SERVICES_DEVICES_SMSC_NUMBER";
 	private static final String SECTION_ITEM_DEVICE_SIM_PIN = "SERVICES_DEVICES_PIN";
+	private static final String SECTION_ITEM_DEVICE_MAX_SEND_RATE = "SERVICES_DEVICES_MAX_SEND_RATE";
 	private static final String SECTION_ITEM_DEVICE_SETTINGS = "SERVICES_DEVICES_SETTINGS";
 	private static final String SECTION_ITEM_DEVICE_USE = "SERVICES_DEVICES_USE";
 	private static final String SECTION_ITEM_DEVICE_USE_FOR_SENDING = "SERVICES_DEVICES_USE_FOR_SENDING";
@@ -35,6 +41,9 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 	private static final String SECTION_ITEM_DEVICE_DELETE_MESSAGES = "SERVICES_DEVICES_DELETE_MESSAGES";
 	
 	private static final String I18N_SETTINGS_MENU_DEVICES = "settings.menu.devices";
+	private static final String I18N_INVALID_MAX_SEND_RATE = "phone.settings.invalid.max.send.rate";
+	
+	private static final String SECTION_ICON = "/icons/phone_number.png";
 
 	private SmsModemSettingsDao smsModemSettingsDao;
 
@@ -71,6 +80,7 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 		
 		String smscNumber = this.getDeviceSettings().getSmscNumber();
 		String simPin = this.getDeviceSettings().getSimPin();
+		String maxSendRate = Integer.toString(this.getDeviceSettings().getMaxSendRate());
 		
 		if(useForSending || useForReceiving) {
 			this.uiController.setSelected(this.find(UI_COMPONENT_PHONE_SENDING), useForSending);
@@ -99,10 +109,12 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 		
 		this.uiController.setText(find(UI_COMPONENT_TF_SMSC_NUMBER), smscNumber);
 		this.uiController.setText(find(UI_COMPONENT_TF_SIM_PIN), simPin);
+		this.uiController.setText(find(UI_COMPONENT_TF_MAX_SEND_RATE), maxSendRate);
 		
 		// Save the original values for this device
 		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_SMSC_NUMBER, smscNumber);
 		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_SIM_PIN, simPin);
+		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_MAX_SEND_RATE, maxSendRate);
 		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_SETTINGS, this.getDeviceSettings());
 		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_USE, useForReceiving || useForSending);
 		this.saveAndMarkUnchanged(SECTION_ITEM_DEVICE_USE_FOR_SENDING, useForSending);
@@ -158,6 +170,10 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 		settingChanged(SECTION_ITEM_DEVICE_SIM_PIN, simPin);
 	}
 	
+	public void maxSendRateChanged(String maxSendRate) {
+		settingChanged(SECTION_ITEM_DEVICE_MAX_SEND_RATE, maxSendRate);
+	}
+	
 	public void showHelpPage(String page) {
 		this.uiController.showHelpPage(page);
 	}
@@ -194,12 +210,25 @@ public class SettingsDeviceSectionHandler extends BaseSectionHandler implements
 		
 		this.getDeviceSettings().setSmscNumber(this.uiController.getText(find(UI_COMPONENT_TF_SMSC_NUMBER)));
 		this.getDeviceSettings().setSimPin(this.uiController.getText(find(UI_COMPONENT_TF_SIM_PIN)));
+		int maxSendRate = DeviceSettingsDialogHandler.parseMaxSendRate(this.uiController.getText(find(UI_COMPONENT_TF_MAX_SEND_RATE)));
+		this.getDeviceSettings().setMaxSendRate(maxSendRate);
 		
 		this.smsModemSettingsDao.updateSmsModemSettings(this.getDeviceSettings());
+		
+		// Apply the new rate to the device straight away if it is connected
+		for(SmsService service : this.uiController.getFrontlineController().getSmsServiceManager().getAll()) {
+			if(service instanceof SmsModem && this.getDeviceSettings().getSerial().equals(((SmsModem) service).getSerial())) {
+				((SmsModem) service).setMaxSendRate(maxSendRate);
+			}
+		}
 	}
 
 	public List<FrontlineValidationMessage> validateFields() {
-		return null;
+		List<FrontlineValidationMessage> validationMessages = new ArrayList<FrontlineValidationMessage>();
+		if(DeviceSettingsDialogHandler.parseMaxSendRate(this.uiController.getText(find(UI_COMPONENT_TF_MAX_SEND_RATE))) < 0) {
+			validationMessages.add(new FrontlineValidationMessage(I18N_INVALID_MAX_SEND_RATE, null, SECTION_ICON));
+		}
+		return validationMessages;
 	}
 
 	public String getTitle() {
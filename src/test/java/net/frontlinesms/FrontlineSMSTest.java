@@ -0,0 +1,58 @@
+/**
+ *
+ */
+package net.frontlinesms;
+
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.Field;
+
+import org.smslib.CIncomingMessage;
+
+import net.frontlinesms.data.repository.KeywordDao;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.messaging.IncomingMessageProcessor;
+import net.frontlinesms.messaging.sms.SmsService;
+
+/**
+ * Unit tests for {@link FrontlineSMS}.
+ */
+public class FrontlineSMSTest extends BaseTestCase {
+//> TESTS
+	/**
+	 * Test that the {@link IncomingMessageProcessor} which received messages are passed to is available, so
+	 * that its queues can be monitored and its dead letters replayed.
+	 */
+	public void testIncomingMessageProcessor() throws Exception {
+		FrontlineSMS frontline = new FrontlineSMS();
+		assertNull(frontline.getIncomingMessageProcessor());
+
+		FrontlineSMS controller = mock(FrontlineSMS.class);
+		MessageDao messageDao = mock(MessageDao.class);
+		when(controller.getMessageDao()).thenReturn(messageDao);
+		KeywordDao keywordDao = mock(KeywordDao.class);
+		when(controller.getKeywordDao()).thenReturn(keywordDao);
+		IncomingMessageProcessor processor = new IncomingMessageProcessor(controller, 1, 1, 0);
+		setIncomingMessageProcessor(frontline, processor);
+
+		frontline.incomingMessageEvent(mock(SmsService.class), new CIncomingMessage("+123456789", "Hello"));
+		assertSame(processor, frontline.getIncomingMessageProcessor());
+		assertEquals(1, frontline.getIncomingMessageProcessor().getQueueDepth(0));
+
+		processor.start();
+		processor.die();
+		assertEquals(0, frontline.getIncomingMessageProcessor().getQueueDepth(0));
+		assertTrue(frontline.getIncomingMessageProcessor().getDeadLetters().isEmpty());
+		assertEquals(0, frontline.getIncomingMessageProcessor().replayDeadLetters());
+		verify(messageDao).saveMessages(anyList());
+	}
+
+//> TEST HELPER METHODS
+	/** Sets the processor of a {@link FrontlineSMS} which has not been initialised. */
+	private static void setIncomingMessageProcessor(FrontlineSMS frontline, IncomingMessageProcessor processor) throws Exception {
+		Field field = FrontlineSMS.class.getDeclaredField("incomingMessageProcessor");
+		field.setAccessible(true);
+		field.set(frontline, processor);
+	}
+}
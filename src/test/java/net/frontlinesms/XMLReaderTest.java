@@ -0,0 +1,35 @@
+/**
+ *
+ */
+package net.frontlinesms;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import net.frontlinesms.data.XMLMessage;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link XMLReader}.
+ */
+public class XMLReaderTest extends BaseTestCase {
+//> TESTS
+	/** Test that messages may be given a time to be sent at, and that messages with an invalid time are discarded. */
+	public void testScheduledTime() throws Exception {
+		List<XMLMessage> messages = read("<frontline>" +
+				"<sms><to number=\"+123\"/><text>Now</text></sms>" +
+				"<sms time=\"1262304000000\"><to number=\"+123\"/><text>Later</text></sms>" +
+				"<sms time=\"tomorrow\"><to number=\"+123\"/><text>Invalid</text></sms>" +
+				"</frontline>");
+		assertEquals(2, messages.size());
+		assertEquals("Now", messages.get(0).getData());
+		assertEquals(0, messages.get(0).getScheduledTime());
+		assertEquals("Later", messages.get(1).getData());
+		assertEquals(1262304000000L, messages.get(1).getScheduledTime());
+	}
+
+//> TEST HELPER METHODS
+	private static List<XMLMessage> read(String xml) throws Exception {
+		return new XMLReader(new ByteArrayInputStream(xml.getBytes("UTF-8"))).readMessages();
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import net.frontlinesms.data.domain.Contact;
+import net.frontlinesms.data.events.EntityDeletedNotification;
+import net.frontlinesms.data.events.EntitySavedNotification;
+import net.frontlinesms.data.events.EntityUpdatedNotification;
+import net.frontlinesms.junit.BaseTestCase;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Unit tests for {@link ContactMsisdnCache}.
+ */
+public class ContactMsisdnCacheTest extends BaseTestCase {
+//> TEST METHODS
+	/** Test caching of contacts, and of phone numbers with no contact. */
+	public void testPutAndGet() {
+		ContactMsisdnCache cache = new ContactMsisdnCache(10);
+		Contact alice = createContact("Alice", "+111");
+		
+		assertFalse(cache.contains("+111"));
+		cache.put("+111", alice, cache.getGeneration());
+		cache.put("+222", null, cache.getGeneration());
+		
+		assertTrue(cache.contains("+111"));
+		assertEquals(alice, cache.get("+111"));
+		assertTrue(cache.contains("+222"));
+		assertNull(cache.get("+222"));
+		assertFalse(cache.contains("+333"));
+		assertEquals(2, cache.size());
+	}
+	
+	/** Test that the least recently used phone number is evicted when the cache is full. */
+	public void testEviction() {
+		ContactMsisdnCache cache = new ContactMsisdnCache(2);
+		cache.put("+111", null, cache.getGeneration());
+		cache.put("+222", null, cache.getGeneration());
+		// Use the first number, so that the second is now the least recently used
+		cache.get("+111");
+		cache.put("+333", null, cache.getGeneration());
+		
+		assertEquals(2, cache.size());
+		assertTrue(cache.contains("+111"));
+		assertFalse(cache.contains("+222"));
+		assertTrue(cache.contains("+333"));
+	}
+	
+	/** Test that the result of a lookup started before an invalidation is not cached. */
+	public void testStaleLookupNotCached() {
+		ContactMsisdnCache cache = new ContactMsisdnCache(10);
+		long generation = cache.getGeneration();
+		cache.notify(new EntitySavedNotification<Contact>(createContact("Alice", "+111")));
+		cache.put("+111", null, generation);
+		assertFalse(cache.contains("+111"));
+	}
+	
+	/** Test that contact notifications invalidate cache entries. */
+	public void testNotifications() {
+		ContactMsisdnCache cache = new ContactMsisdnCache(10);
+		Contact alice = createContact("Alice", "+111");
+		Contact bob = createContact("Bob", "+222");
+		
+		// A new contact must replace a cached "no contact" entry
+		cache.put("+111", null, cache.getGeneration());
+		cache.notify(new EntitySavedNotification<Contact>(alice));
+		assertFalse(cache.contains("+111"));
+		
+		cache.put("+111", alice, cache.getGeneration());
+		cache.put("+222", bob, cache.getGeneration());
+		cache.notify(new EntityUpdatedNotification<Contact>(alice));
+		assertFalse(cache.contains("+111"));
+		
+		cache.notify(new EntityDeletedNotification<Contact>(bob));
+		assertFalse(cache.contains("+222"));
+		assertEquals(0, cache.size());
+	}
+	
+	/**
+	 * Test that a contact changed in a transaction is removed again when the transaction commits, as it may
+	 * have been cached as it was by a lookup made before the commit.
+	 */
+	public void testStaleLookupBeforeCommit() {
+		ContactMsisdnCache cache = new ContactMsisdnCache(10);
+		Contact alice = createContact("Alice", "+111");
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cache.notify(new EntityUpdatedNotification<Contact>(alice));
+			// Another thread looks up the number before the change is committed
+			cache.put("+111", alice, cache.getGeneration());
+			assertTrue(cache.contains("+111"));
+			for(Object synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+				((TransactionSynchronization) synchronization).afterCommit();
+				((TransactionSynchronization) synchronization).afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+			}
+			assertFalse(cache.contains("+111"));
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+//> TEST HELPER METHODS
+	private static Contact createContact(String name, String phoneNumber) {
+		return new Contact(name, phoneNumber, null, null, null, true);
+	}
+}
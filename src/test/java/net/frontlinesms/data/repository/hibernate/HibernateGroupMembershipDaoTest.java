@@ -153,6 +153,23 @@ public class HibernateGroupMembershipDaoTest extends HibernateTestCase {
 			for(Contact c : expectedResults) missingContacts += ", " + c.getName();
 			fail("Expected results where not found in retrieved results: " + missingContacts.substring(2));
 		}
+		
+		// Paging through the members by id should find the same contacts, in id order
+		List<Contact> pagedResults = new ArrayList<Contact>();
+		List<Contact> page;
+		long lastId = 0;
+		do {
+			page = this.groupMembershipDao.getMembersAfterId(group, filterString, lastId, 2);
+			for(Contact actual : page) {
+				assertTrue("Contacts were not in id order", actual.getId() > lastId);
+				lastId = actual.getId();
+			}
+			pagedResults.addAll(page);
+		} while(page.size() == 2);
+		assertEquals(expectedContacts.length, pagedResults.size());
+		for(Contact expected : expectedContacts) {
+			assertTrue("Expected contact not found when paging: " + expected.getName(), pagedResults.contains(expected));
+		}
 	}
 	
 	public void testFilteringAndSorting() throws DuplicateKeyException {
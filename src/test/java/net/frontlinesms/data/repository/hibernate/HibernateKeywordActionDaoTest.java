@@ -12,6 +12,8 @@ import net.frontlinesms.data.domain.KeywordAction;
 import net.frontlinesms.data.repository.KeywordActionDao;
 import net.frontlinesms.data.repository.KeywordDao;
 
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Required;
 
 /**
@@ -25,6 +27,8 @@ public class HibernateKeywordActionDaoTest extends HibernateTestCase {
 	private KeywordActionDao keywordActionDao; // TODO should this explicitly be a Hibernate*Dao?
 	/** {@link KeywordDao} instance to test against. */
 	private KeywordDao keywordDao;
+	/** Factory providing the session the test runs in */
+	private SessionFactory sessionFactory;
 	
 	private Keyword testKeyword;
 	private Keyword testKeyword2;
@@ -83,16 +87,33 @@ public class HibernateKeywordActionDaoTest extends HibernateTestCase {
 		assertEquals(0, this.keywordActionDao.getActions(this.testKeyword).get(0).getCounter());
 		
 		this.keywordActionDao.incrementCounter(action);
-		assertEquals(1, action.getCounter());
-		assertEquals(1, this.keywordActionDao.getActions(this.testKeyword).get(0).getCounter());
+		// Increments are only written to the database when counters are flushed, and are not added to the loaded action
+		assertEquals(0, action.getCounter());
+		assertEquals(1, this.keywordActionDao.getPendingCounterIncrements(action));
+		assertEquals(0, getPersistedCounter());
+		this.keywordActionDao.flushCounters();
+		assertEquals(0, this.keywordActionDao.getPendingCounterIncrements(action));
+		assertEquals(1, getPersistedCounter());
 		
 		int randomIncrements = (int)(Math.random() * 10);
 		for (int i = 0 ; i < randomIncrements ; ++i) {
 			this.keywordActionDao.incrementCounter(action);
 		}
 		
-		assertEquals(randomIncrements + 1, action.getCounter());
-		assertEquals(randomIncrements + 1, this.keywordActionDao.getActions(this.testKeyword).get(0).getCounter());
+		assertEquals(randomIncrements, this.keywordActionDao.getPendingCounterIncrements(action));
+		this.keywordActionDao.flushCounters();
+		assertEquals(randomIncrements + 1, getPersistedCounter());
+	}
+	
+	/**
+	 * Reads the counter of the first action of {@link #testKeyword} from the database.  The session is cleared
+	 * first, as bulk updates made when counters are flushed do not change actions already loaded in it.
+	 */
+	private int getPersistedCounter() {
+		Session session = this.sessionFactory.getCurrentSession();
+		session.flush();
+		session.clear();
+		return this.keywordActionDao.getActions(this.testKeyword).get(0).getCounter();
 	}
 	
 //> INIT METHODS
@@ -118,4 +139,9 @@ public class HibernateKeywordActionDaoTest extends HibernateTestCase {
 	public void setKeywordDao(KeywordDao d) {
 		this.keywordDao = d;
 	}
+	/** @param sessionFactory factory providing the session the test runs in */
+	@Required
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
 }
@@ -74,6 +74,137 @@ public class HibernateMessageDaoTest extends HibernateTestCase {
 		assertEquals(0, dao.getSMSCount(startTime, Long.MAX_VALUE));
 	}
 	
+	/**
+	 * Test paging through unsent messages by id, as done when they are re-queued at startup.
+	 */
+	public void testGetMessagesAfterId() {
+		checkSanity();
+		
+		long startTime = System.currentTimeMillis();
+		List<FrontlineMessage> unsent = new ArrayList<FrontlineMessage>();
+		for(int i=0; i<5; ++i) {
+			FrontlineMessage m = FrontlineMessage.createOutgoingMessage(startTime, ARTHUR, BERNADETTE, "Unsent " + i);
+			m.setStatus(FrontlineMessage.Status.OUTBOX);
+			dao.saveMessage(m);
+			unsent.add(m);
+		}
+		FrontlineMessage sent = FrontlineMessage.createOutgoingMessage(startTime, ARTHUR, BERNADETTE, "Sent");
+		sent.setStatus(FrontlineMessage.Status.SENT);
+		dao.saveMessage(sent);
+		FrontlineMessage later = FrontlineMessage.createOutgoingMessage(startTime + 1000, ARTHUR, BERNADETTE, "Queued later");
+		later.setStatus(FrontlineMessage.Status.OUTBOX);
+		dao.saveMessage(later);
+		
+		FrontlineMessage.Status[] statuses = { FrontlineMessage.Status.OUTBOX, FrontlineMessage.Status.PENDING };
+		List<FrontlineMessage> page = dao.getMessagesAfterId(Type.OUTBOUND, statuses, 0, startTime, 3);
+		assertEquals(unsent.subList(0, 3), page);
+		
+		// Messages changing status between pages should not cause any to be skipped
+		unsent.get(0).setStatus(FrontlineMessage.Status.SENT);
+		dao.updateMessage(unsent.get(0));
+		page = dao.getMessagesAfterId(Type.OUTBOUND, statuses, page.get(2).getId(), startTime, 3);
+		assertEquals(unsent.subList(3, 5), page);
+		
+		for(FrontlineMessage m : unsent) dao.deleteMessage(m);
+		dao.deleteMessage(sent);
+		dao.deleteMessage(later);
+		checkSanity();
+	}
+	
+	/**
+	 * Test claiming messages for two instances sharing the database, as done when the outbox is shared.
+	 */
+	public void testClaimMessages() {
+		checkSanity();
+		
+		long now = System.currentTimeMillis();
+		List<FrontlineMessage> unsent = new ArrayList<FrontlineMessage>();
+		for(int i=0; i<5; ++i) {
+			FrontlineMessage m = FrontlineMessage.createOutgoingMessage(now, ARTHUR, BERNADETTE, "Unsent " + i);
+			m.setStatus(FrontlineMessage.Status.OUTBOX);
+			dao.saveMessage(m);
+			unsent.add(m);
+		}
+		FrontlineMessage sent = FrontlineMessage.createOutgoingMessage(now, ARTHUR, BERNADETTE, "Sent");
+		sent.setStatus(FrontlineMessage.Status.SENT);
+		dao.saveMessage(sent);
+		
+		// Each instance claims different messages
+		List<FrontlineMessage> claimedByA = dao.claimMessages("a", now, now + 1000, 3);
+		assertEquals(unsent.subList(0, 3), claimedByA);
+		assertEquals("a", claimedByA.get(0).getClaimOwner());
+		assertEquals(now + 1000, claimedByA.get(0).getClaimExpiry());
+		assertEquals(unsent.subList(3, 5), dao.claimMessages("b", now, now + 1000, 3));
+		assertTrue(dao.claimMessages("a", now, now + 1000, 3).isEmpty());
+		assertFalse(dao.claimMessage(unsent.get(3).getId(), "a", now, now + 1000));
+		assertTrue(dao.claimMessage(unsent.get(3).getId(), "b", now, now + 2000));
+		
+		// Claims which are renewed do not expire, but others may be claimed by another instance
+		assertEquals(2, dao.renewClaims("b", now + 5000));
+		assertEquals(unsent.subList(0, 3), dao.claimMessages("b", now + 2000, now + 5000, 5));
+		
+		// Released claims may be claimed straight away
+		assertEquals(5, dao.releaseClaims("b"));
+		assertEquals(5, dao.claimMessages("a", now + 2000, now + 3000, 5).size());
+		
+		for(FrontlineMessage m : unsent) dao.deleteMessage(m);
+		dao.deleteMessage(sent);
+		checkSanity();
+	}
+	
+	/**
+	 * Test changing the status of more messages than are updated at once, where only some have the expected status.
+	 */
+	public void testUpdateMessageStatus() {
+		checkSanity();
+		
+		long now = System.currentTimeMillis();
+		List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>();
+		final int scheduledCount = 501;
+		for(int i=0; i<scheduledCount; ++i) {
+			FrontlineMessage m = FrontlineMessage.createOutgoingMessage(now, ARTHUR, BERNADETTE, "Scheduled " + i);
+			m.setStatus(FrontlineMessage.Status.SCHEDULED);
+			messages.add(m);
+		}
+		FrontlineMessage sent = FrontlineMessage.createOutgoingMessage(now, ARTHUR, BERNADETTE, "Sent");
+		sent.setStatus(FrontlineMessage.Status.SENT);
+		messages.add(sent);
+		dao.saveMessages(messages);
+		
+		List<Long> ids = new ArrayList<Long>();
+		for(FrontlineMessage m : messages) ids.add(m.getId());
+		assertEquals(0, dao.updateMessageStatus(new ArrayList<Long>(), FrontlineMessage.Status.SCHEDULED, FrontlineMessage.Status.OUTBOX));
+		assertEquals(scheduledCount, dao.updateMessageStatus(ids, FrontlineMessage.Status.SCHEDULED, FrontlineMessage.Status.OUTBOX));
+		// The messages no longer have the expected status
+		assertEquals(0, dao.updateMessageStatus(ids, FrontlineMessage.Status.SCHEDULED, FrontlineMessage.Status.OUTBOX));
+		assertEquals(scheduledCount, dao.updateMessageStatus(ids, FrontlineMessage.Status.OUTBOX, FrontlineMessage.Status.PENDING));
+	}
+	
+	/**
+	 * Test saving a batch of messages.
+	 */
+	public void testSaveMessages() {
+		checkSanity();
+		
+		long startTime = System.currentTimeMillis();
+		List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>();
+		messages.add(FrontlineMessage.createIncomingMessage(startTime + 1000, ARTHUR, BERNADETTE, "First."));
+		messages.add(FrontlineMessage.createIncomingMessage(startTime + 2000, ARTHUR, BERNADETTE, "Second."));
+		messages.add(FrontlineMessage.createIncomingMessage(startTime + 3000, BERNADETTE, ARTHUR, "Third."));
+		dao.saveMessages(messages);
+		
+		checkSanity();
+		assertEquals(3, dao.getSMSCount(0l, Long.MAX_VALUE));
+		assertEquals(2, dao.getSMSCountForMsisdn(BERNADETTE, startTime + 2000, Long.MAX_VALUE));
+		assertEquals(3, dao.getMessageCount(Type.RECEIVED, 0l, Long.MAX_VALUE));
+		
+		for(FrontlineMessage m : messages) {
+			dao.deleteMessage(m);
+		}
+		checkSanity();
+		assertEquals(0, dao.getSMSCount(startTime, Long.MAX_VALUE));
+	}
+	
 	public void testGetSimilarKeywords() throws DuplicateKeyException {
 		// Create a number of keywords and messages, and perform queries over them
 		createKeywords("", "te", "test", "test complex", "test other complex", "test complex again", "distraction", "another distraction");
@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import java.util.Map;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link KeywordActionCounters}.
+ */
+public class KeywordActionCountersTest extends BaseTestCase {
+	/** Test counting, draining and restoring executions of actions. */
+	public void testCounting() {
+		KeywordActionCounters counters = new KeywordActionCounters(4);
+		assertEquals(0, counters.getPending(1));
+		assertTrue(counters.drain().isEmpty());
+
+		counters.increment(1);
+		counters.increment(1);
+		counters.increment(2);
+		assertEquals(2, counters.getPending(1));
+		assertEquals(1, counters.getPending(2));
+
+		Map<Long, Integer> drained = counters.drain();
+		assertEquals(2, drained.size());
+		assertEquals(Integer.valueOf(2), drained.get(1L));
+		assertEquals(Integer.valueOf(1), drained.get(2L));
+		assertEquals(0, counters.getPending(1));
+		assertTrue(counters.drain().isEmpty());
+
+		counters.add(1, 5);
+		assertEquals(5, counters.getPending(1));
+		counters.remove(1);
+		assertEquals(0, counters.getPending(1));
+	}
+
+	/** Test that no executions are lost when many threads count executions of the same action while it is drained. */
+	public void testConcurrentIncrements() throws InterruptedException {
+		final KeywordActionCounters counters = new KeywordActionCounters();
+		final int threadCount = 8;
+		final int incrementsPerThread = 10000;
+		Thread[] threads = new Thread[threadCount];
+		for(int i=0; i<threads.length; ++i) {
+			threads[i] = new Thread() {
+				public void run() {
+					for(int j=0; j<incrementsPerThread; ++j) {
+						counters.increment(1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		long drainedTotal = 0;
+		for(Thread thread : threads) {
+			while(thread.isAlive()) {
+				Integer drained = counters.drain().get(1L);
+				if(drained != null) drainedTotal += drained;
+				thread.join(1);
+			}
+		}
+		Integer drained = counters.drain().get(1L);
+		if(drained != null) drainedTotal += drained;
+		assertEquals(threadCount * incrementsPerThread, drainedTotal);
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package net.frontlinesms.data.repository.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.data.domain.Keyword;
+import net.frontlinesms.data.events.EntityDeletedNotification;
+import net.frontlinesms.data.events.EntitySavedNotification;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link KeywordIndex}.
+ */
+public class KeywordIndexTest extends BaseTestCase {
+//> STATIC CONSTANTS
+	/** Words used for building random keywords and messages */
+	private static final String[] WORDS = { "one", "two", "three", "a", "b", "x", "join", "leave", "vote", "info" };
+	/** Number of keywords to create for the benchmark */
+	private static final int BENCHMARK_KEYWORD_COUNT = 5000;
+	/** Number of messages to match during the benchmark */
+	private static final int BENCHMARK_MESSAGE_COUNT = 2000;
+
+//> INSTANCE PROPERTIES
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+
+//> TEST METHODS
+	/** Test matching against a small set of keywords, including nested keywords. */
+	public void testMatching() {
+		Keyword blank = new Keyword("", "");
+		Keyword one = new Keyword("one", "");
+		Keyword oneA = new Keyword("one a", "");
+		Keyword oneAX = new Keyword("one a x", "");
+		Keyword oneBYZ = new Keyword("one b y z", "");
+		KeywordIndex index = new KeywordIndex();
+		index.put(blank);
+		index.put(one);
+		index.put(oneA);
+		index.put(oneAX);
+		index.put(oneBYZ);
+		assertEquals(5, index.size());
+
+		assertEquals(blank, index.getFromMessageText(""));
+		assertEquals(blank, index.getFromMessageText(" \r\n"));
+		assertEquals(blank, index.getFromMessageText("zxcvb"));
+		assertEquals(blank, index.getFromMessageText("oneself"));
+		assertEquals(one, index.getFromMessageText("one"));
+		assertEquals(one, index.getFromMessageText(" ONE "));
+		assertEquals(one, index.getFromMessageText("one ax"));
+		assertEquals(one, index.getFromMessageText("one  a"));
+		assertEquals(one, index.getFromMessageText("one b y"));
+		assertEquals(oneA, index.getFromMessageText("One A is the keyword"));
+		assertEquals(oneAX, index.getFromMessageText("one a x"));
+		assertEquals(oneBYZ, index.getFromMessageText("one b y z and more"));
+	}
+
+	/** Test that an index without a blank keyword returns <code>null</code> when nothing matches. */
+	public void testNoBlankKeyword() {
+		KeywordIndex index = new KeywordIndex();
+		assertNull(index.getFromMessageText("anything"));
+		index.put(new Keyword("something", ""));
+		assertNull(index.getFromMessageText("anything"));
+		assertNull(index.getFromMessageText(null));
+	}
+
+	/** Test that the index is kept up-to-date by entity notifications. */
+	public void testNotifications() {
+		Keyword blank = new Keyword("", "");
+		Keyword one = new Keyword("one", "");
+		Keyword oneA = new Keyword("one a", "");
+		KeywordIndex index = new KeywordIndex();
+
+		index.notify(new EntitySavedNotification<Keyword>(blank));
+		index.notify(new EntitySavedNotification<Keyword>(one));
+		index.notify(new EntitySavedNotification<Keyword>(oneA));
+		assertEquals(oneA, index.getFromMessageText("one a"));
+
+		index.notify(new EntityDeletedNotification<Keyword>(oneA));
+		assertEquals(2, index.size());
+		assertEquals(one, index.getFromMessageText("one a"));
+
+		index.notify(new EntityDeletedNotification<Keyword>(one));
+		assertEquals(blank, index.getFromMessageText("one a"));
+
+		index.notify(new EntityDeletedNotification<Keyword>(blank));
+		assertEquals(0, index.size());
+		assertNull(index.getFromMessageText("one a"));
+	}
+
+	/** Test that the index gives the same results as scanning all keywords with {@link Keyword#matches(String)}. */
+	public void testMatchesLinearScan() {
+		Random random = new Random(0);
+		List<Keyword> keywords = createRandomKeywords(random, 200);
+		KeywordIndex index = new KeywordIndex(keywords);
+		for(int i=0; i<1000; ++i) {
+			String message = createRandomMessage(random);
+			assertEquals("Unexpected match for: '" + message + "'", scan(keywords, message), index.getFromMessageText(message));
+		}
+	}
+
+	/** Compare the time taken to match messages using the index with a scan of all keywords. */
+	public void testBenchmark() {
+		Random random = new Random(0);
+		List<Keyword> keywords = createRandomKeywords(random, BENCHMARK_KEYWORD_COUNT);
+		KeywordIndex index = new KeywordIndex(keywords);
+		String[] messages = new String[BENCHMARK_MESSAGE_COUNT];
+		for(int i=0; i<messages.length; ++i) {
+			messages[i] = createRandomMessage(random);
+		}
+
+		long scanStart = System.nanoTime();
+		for(String message : messages) scan(keywords, message);
+		long scanTime = System.nanoTime() - scanStart;
+
+		long indexStart = System.nanoTime();
+		for(String message : messages) index.getFromMessageText(message);
+		long indexTime = System.nanoTime() - indexStart;
+
+		log.info("Matched " + messages.length + " messages against " + keywords.size() + " keywords." +
+				" Scan: " + (scanTime / messages.length) + "ns/message;" +
+				" Index: " + (indexTime / messages.length) + "ns/message");
+	}
+
+//> TEST HELPER METHODS
+	/**
+	 * Finds the longest matching keyword in the same way as the original implementation of
+	 * {@link HibernateKeywordDao#getFromMessageText(String)}.
+	 */
+	private static Keyword scan(List<Keyword> keywords, String messageText) {
+		Keyword longest = null;
+		Keyword blank = null;
+		for(Keyword k : keywords) {
+			if(k.getKeyword().length() == 0) blank = k;
+			if(k.matches(messageText)
+					&& (longest == null || longest.getKeyword().length() < k.getKeyword().length())) {
+				longest = k;
+			}
+		}
+		return longest == null ? blank : longest;
+	}
+
+	/** Creates a list of unique keywords, including the blank keyword. */
+	private static List<Keyword> createRandomKeywords(Random random, int count) {
+		List<Keyword> keywords = new ArrayList<Keyword>();
+		keywords.add(new Keyword("", ""));
+		KeywordIndex unique = new KeywordIndex();
+		while(keywords.size() < count) {
+			StringBuilder bob = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+			int wordCount = random.nextInt(4);
+			for(int i=0; i<wordCount; ++i) {
+				bob.append(' ');
+				bob.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			// Add a numeric suffix to some keywords so that there are enough unique keywords
+			if(random.nextBoolean()) bob.append(random.nextInt(count));
+			Keyword k = new Keyword(bob.toString(), "");
+			int sizeBefore = unique.size();
+			unique.put(k);
+			if(unique.size() > sizeBefore) keywords.add(k);
+		}
+		return keywords;
+	}
+
+	/** Creates a random message, made up of {@link #WORDS} separated by whitespace. */
+	private static String createRandomMessage(Random random) {
+		StringBuilder bob = new StringBuilder();
+		int wordCount = random.nextInt(6);
+		for(int i=0; i<wordCount; ++i) {
+			if(i > 0) bob.append(random.nextInt(10) == 0 ? "  " : " ");
+			String word = WORDS[random.nextInt(WORDS.length)];
+			bob.append(random.nextBoolean() ? word : word.toUpperCase());
+		}
+		return bob.toString();
+	}
+}
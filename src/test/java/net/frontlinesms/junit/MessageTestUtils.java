@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package net.frontlinesms.junit;
+
+import java.lang.reflect.Field;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+
+/**
+ * Utility methods for unit tests which use {@link FrontlineMessage}s without a database.
+ */
+public final class MessageTestUtils {
+	/** Utility class, which should not be instantiated */
+	private MessageTestUtils() {}
+
+	/**
+	 * Sets the id of a message, as if it had been saved to the database.
+	 * @param message the message to set the id of
+	 * @param id the id to set, which should be greater than zero
+	 * @return <code>message</code>
+	 */
+	public static FrontlineMessage setId(FrontlineMessage message, long id) {
+		try {
+			Field idField = FrontlineMessage.class.getDeclaredField("id");
+			idField.setAccessible(true);
+			idField.setLong(message, id);
+			return message;
+		} catch(Exception ex) {
+			throw new IllegalStateException("Unable to set the id of a message.", ex);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link DeliveryReportTracker}.
+ */
+public class DeliveryReportTrackerTest extends BaseTestCase {
+	private MessageDao messageDao;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		messageDao = mock(MessageDao.class);
+	}
+
+//> TESTS
+	/** Test that a status report for a tracked message is matched without searching the database. */
+	public void testTrackedMessage() {
+		DeliveryReportTracker tracker = new DeliveryReportTracker(messageDao, 60000);
+		FrontlineMessage message = mockMessage(1, "+447890123456", 42);
+		when(messageDao.getMessage(1)).thenReturn(message);
+
+		tracker.track(message);
+		assertEquals(1, tracker.size());
+		assertEquals(message, tracker.getMessageForStatusReport("+447890123456", 42));
+		assertEquals(0, tracker.size());
+		verify(messageDao, never()).getMessageForStatusUpdate(anyString(), anyInt());
+	}
+
+	/** Test that a status report which does not match a tracked message is matched using the database. */
+	public void testUntrackedMessage() {
+		DeliveryReportTracker tracker = new DeliveryReportTracker(messageDao, 60000);
+		FrontlineMessage message = mockMessage(1, "+447890123456", 42);
+		when(messageDao.getMessageForStatusUpdate("+447890123456", 42)).thenReturn(message);
+
+		tracker.track(mockMessage(2, "+447890123456", 43));
+		assertEquals(message, tracker.getMessageForStatusReport("+447890123456", 42));
+		assertEquals(1, tracker.size());
+	}
+
+	/** Test that a tracked message whose status has not been written yet is taken from the status writer rather than loaded. */
+	public void testWaitingMessageTakenFromWriter() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		DeliveryReportTracker tracker = new DeliveryReportTracker(messageDao, 60000);
+		tracker.setStatusWriter(writer);
+		FrontlineMessage message = mockMessage(1, "+447890123456", 42);
+
+		writer.statusChanged(message);
+		tracker.track(message);
+		assertEquals(message, tracker.getMessageForStatusReport("+447890123456", 42));
+		assertEquals(0, writer.size());
+		verify(messageDao, never()).getMessage(anyLong());
+
+		// A message found in the database is also replaced by its waiting instance
+		FrontlineMessage waiting = mockMessage(2, "+447890123456", 43);
+		writer.statusChanged(waiting);
+		FrontlineMessage loaded = mockMessage(2, "+447890123456", 43);
+		when(messageDao.getMessageForStatusUpdate("+447890123456", 43)).thenReturn(loaded);
+		assertEquals(waiting, tracker.getMessageForStatusReport("+447890123456", 43));
+		assertEquals(0, writer.size());
+	}
+
+	/** Test that messages which have waited too long are no longer tracked, and their delivery is marked unknown. */
+	public void testExpiry() throws InterruptedException {
+		DeliveryReportTracker tracker = new DeliveryReportTracker(messageDao, 50);
+		when(messageDao.updateMessageStatus(anyCollection(), eq(Status.SENT), eq(Status.DELIVERY_UNKNOWN))).thenReturn(2);
+
+		tracker.track(mockMessage(1, "+111", 1));
+		tracker.track(mockMessage(2, "+222", 2));
+		assertEquals(0, tracker.expire());
+		Thread.sleep(100);
+		tracker.track(mockMessage(3, "+333", 3));
+
+		assertEquals(2, tracker.expire());
+		assertEquals(1, tracker.size());
+		verify(messageDao).updateMessageStatus(Arrays.asList(1L, 2L), Status.SENT, Status.DELIVERY_UNKNOWN);
+	}
+
+//> STATIC HELPER METHODS
+	private static FrontlineMessage mockMessage(long id, String recipientMsisdn, int smscReference) {
+		FrontlineMessage message = mock(FrontlineMessage.class);
+		when(message.getId()).thenReturn(id);
+		when(message.getRecipientMsisdn()).thenReturn(recipientMsisdn);
+		when(message.getSmscReference()).thenReturn(smscReference);
+		return message;
+	}
+}
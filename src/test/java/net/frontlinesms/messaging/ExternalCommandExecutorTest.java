@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link ExternalCommandExecutor}.
+ */
+public class ExternalCommandExecutorTest extends BaseTestCase {
+	/** Time, in millis, to wait for commands to complete before failing a test */
+	private static final long TEST_TIMEOUT = 5000;
+
+	private ExternalCommandExecutor executor;
+
+//> TEST META METHODS
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if(executor != null) executor.shutdown();
+	}
+
+//> TESTS
+	/** Test that the result of a command is passed to its callback. */
+	public void testCompletion() throws Exception {
+		executor = new ExternalCommandExecutor(2, 10, 2, 10);
+		RecordingCallback callback = new RecordingCallback();
+		executor.execute("example.com", 0, new Callable<String>() {
+			public String call() {
+				return "response";
+			}
+		}, callback);
+		assertEquals("response", callback.getResult());
+	}
+
+	/** Test that a command which throws an exception is reported as failed. */
+	public void testFailure() throws Exception {
+		executor = new ExternalCommandExecutor(2, 10, 2, 10);
+		RecordingCallback callback = new RecordingCallback();
+		final Exception thrown = new Exception("Command failed.");
+		executor.execute("example.com", 0, new Callable<String>() {
+			public String call() throws Exception {
+				throw thrown;
+			}
+		}, callback);
+		assertEquals(thrown, callback.getResult());
+	}
+
+	/** Test that a command which runs for too long is interrupted and reported as failed. */
+	public void testTimeout() throws Exception {
+		executor = new ExternalCommandExecutor(2, 10, 2, 10);
+		RecordingCallback callback = new RecordingCallback();
+		executor.execute("example.com", 100, new Callable<String>() {
+			public String call() throws Exception {
+				Thread.sleep(TEST_TIMEOUT * 2);
+				return "too late";
+			}
+		}, callback);
+		assertTrue(callback.getResult() instanceof InterruptedException);
+	}
+
+	/** Test that no more than the maximum number of commands are run against a single host at once. */
+	public void testHostConcurrencyLimit() throws Exception {
+		executor = new ExternalCommandExecutor(4, 10, 1, 10);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		Callable<String> command = new Callable<String>() {
+			public String call() throws Exception {
+				int nowRunning = running.incrementAndGet();
+				if(nowRunning > maxRunning.get()) maxRunning.set(nowRunning);
+				release.await();
+				running.decrementAndGet();
+				return "done";
+			}
+		};
+
+		RecordingCallback callback = new RecordingCallback();
+		for(int i=0; i<3; ++i) {
+			executor.execute("slow.example.com", 0, command, callback);
+		}
+		// A command for another host should not be held up
+		RecordingCallback otherHostCallback = new RecordingCallback();
+		executor.execute("fast.example.com", 0, new Callable<String>() {
+			public String call() {
+				return "fast";
+			}
+		}, otherHostCallback);
+		assertEquals("fast", otherHostCallback.getResult());
+		assertEquals(3, executor.getPendingCount("slow.example.com"));
+
+		release.countDown();
+		for(int i=0; i<3; ++i) {
+			assertEquals("done", callback.getResult());
+		}
+		assertEquals(1, maxRunning.get());
+		assertEquals(0, executor.getPendingCount("slow.example.com"));
+	}
+
+	/** Test that commands are rejected when too many are already waiting for their host. */
+	public void testHostQueueFull() throws Exception {
+		executor = new ExternalCommandExecutor(4, 10, 1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<String> command = new Callable<String>() {
+			public String call() throws Exception {
+				release.await();
+				return "done";
+			}
+		};
+
+		RecordingCallback callback = new RecordingCallback();
+		// The first command runs, the second waits for the host, and the third is rejected
+		executor.execute("slow.example.com", 0, command, callback);
+		executor.execute("slow.example.com", 0, command, callback);
+		executor.execute("slow.example.com", 0, command, callback);
+		assertTrue(callback.getResult() instanceof RejectedExecutionException);
+		assertEquals(2, executor.getPendingCount("slow.example.com"));
+
+		release.countDown();
+		assertEquals("done", callback.getResult());
+		assertEquals("done", callback.getResult());
+		assertEquals(0, executor.getPendingCount("slow.example.com"));
+	}
+
+	/** Test that commands are rejected when the executor's queue is full. */
+	public void testQueueFull() throws Exception {
+		executor = new ExternalCommandExecutor(1, 1, 10, 10);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<String> command = new Callable<String>() {
+			public String call() throws Exception {
+				release.await();
+				return "done";
+			}
+		};
+
+		RecordingCallback callback = new RecordingCallback();
+		// The first command occupies the only thread, and the second fills the queue
+		executor.execute("example.com", 0, command, callback);
+		executor.execute("example.com", 0, command, callback);
+		executor.execute("example.com", 0, command, callback);
+		assertTrue(callback.getResult() instanceof RejectedExecutionException);
+
+		release.countDown();
+		assertEquals("done", callback.getResult());
+		assertEquals("done", callback.getResult());
+	}
+
+	/** Test that the host of external commands is determined correctly. */
+	public void testGetExternalCommandHost() {
+		assertEquals("example.com", IncomingMessageProcessor.getExternalCommandHost(true, "http://example.com:8080/sms?from=123"));
+		assertEquals("localhost", IncomingMessageProcessor.getExternalCommandHost(false, "/usr/bin/handle-sms 123"));
+	}
+
+//> INNER CLASSES
+	/** Callback recording the results and failures of commands, in the order they are reported. */
+	private static class RecordingCallback implements ExternalCommandExecutor.Callback<String> {
+		private final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+
+		public void commandCompleted(String result) {
+			results.add(result);
+		}
+
+		public void commandFailed(Throwable cause) {
+			results.add(cause);
+		}
+
+		/** @return the next result or failure reported to this callback */
+		Object getResult() throws InterruptedException {
+			Object result = results.poll(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull("Command did not complete in time.", result);
+			return result;
+		}
+	}
+}
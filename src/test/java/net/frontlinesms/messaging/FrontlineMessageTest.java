@@ -82,5 +82,13 @@ public class FrontlineMessageTest extends BaseTestCase {
 		assertEquals(3, FrontlineMessage.getExpectedNumberOfSmsParts(TWO_PART_MESSAGE_LIMIT_UCS2 + "."));
 		assertEquals(3, FrontlineMessage.getExpectedNumberOfSmsParts(THREE_PART_MESSAGE_LIMIT_UCS2));
 		assertEquals(4, FrontlineMessage.getExpectedNumberOfSmsParts(THREE_PART_MESSAGE_LIMIT_UCS2 + "."));
+		
+		// Characters from the extension table of the GSM alphabet take two septets
+		StringBuilder bob = new StringBuilder();
+		while(bob.length() < FrontlineMessage.SMS_LENGTH_LIMIT / 2) bob.append('[');
+		String extensionCharacters = bob.toString();
+		assertEquals(1, FrontlineMessage.getExpectedNumberOfSmsParts(extensionCharacters));
+		assertEquals(2, FrontlineMessage.getExpectedNumberOfSmsParts(extensionCharacters + "\u20AC"));
+		assertEquals(2, createMessage(extensionCharacters + "\u20AC").getNumberOfSMS());
 	}
 }
@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link IncomingMessageJournal}.
+ */
+public class IncomingMessageJournalTest extends BaseTestCase {
+//> STATIC CONSTANTS
+	/** Number of messages to append during the benchmark */
+	private static final int BENCHMARK_MESSAGE_COUNT = 20000;
+
+//> INSTANCE PROPERTIES
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+	/** Directory the journal is kept in during each test */
+	private File directory;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) file.delete();
+		}
+		directory.delete();
+	}
+
+//> TESTS
+	/** Test that messages which have not been checkpointed are read back when the journal is reopened. */
+	public void testReopen() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 4096, 10);
+		long text = journal.append(1000, "+111", "+999", "Hello", null);
+		long saved = journal.append(2000, "+222", "+999", "Saved", null);
+		long binary = journal.append(3000, "+333", "+999", null, new byte[] { 1, 2, 3 });
+		journal.checkpoint(saved);
+		assertEquals(2, journal.getUncheckpointedCount());
+		journal.close();
+
+		IncomingMessageJournal reopened = new IncomingMessageJournal(directory, 4096, 10);
+		SortedMap<Long, FrontlineMessage> unsaved = reopened.getUncheckpointed();
+		assertEquals(2, unsaved.size());
+
+		FrontlineMessage textMessage = unsaved.get(text);
+		assertEquals(1000, textMessage.getDate());
+		assertEquals("+111", textMessage.getSenderMsisdn());
+		assertEquals("+999", textMessage.getRecipientMsisdn());
+		assertEquals("Hello", textMessage.getTextContent());
+
+		FrontlineMessage binaryMessage = unsaved.get(binary);
+		assertTrue(binaryMessage.isBinaryMessage());
+		assertEquals(3, binaryMessage.getBinaryContent().length);
+
+		// New messages should not reuse the sequence numbers of old ones
+		assertTrue(reopened.append(4000, "+444", "+999", "New", null) > binary);
+		reopened.close();
+	}
+
+	/** Test that the ids of saved messages are read back until the messages are checkpointed. */
+	public void testSaved() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 4096, 10);
+		long saved = journal.append(1000, "+111", "+999", "Saved", null);
+		long unsaved = journal.append(2000, "+222", "+999", "Unsaved", null);
+		long handled = journal.append(3000, "+333", "+999", "Handled", null);
+		journal.saved(saved, 42);
+		journal.saved(handled, 43);
+		journal.checkpoint(handled);
+		journal.close();
+
+		IncomingMessageJournal reopened = new IncomingMessageJournal(directory, 4096, 10);
+		assertEquals(2, reopened.getUncheckpointedCount());
+		Map<Long, Long> savedMessageIds = reopened.getSavedMessageIds();
+		assertEquals(1, savedMessageIds.size());
+		assertEquals(Long.valueOf(42), savedMessageIds.get(saved));
+		assertFalse(savedMessageIds.containsKey(unsaved));
+
+		reopened.checkpoint(saved);
+		reopened.close();
+		reopened = new IncomingMessageJournal(directory, 4096, 10);
+		assertEquals(1, reopened.getUncheckpointedCount());
+		assertTrue(reopened.getSavedMessageIds().isEmpty());
+		reopened.close();
+	}
+
+	/** Test that uncheckpointed messages are kept when the journal rolls over to its other segment. */
+	public void testRollOver() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 512, 10);
+		long kept = journal.append(1000, "+111", "+999", "Kept", null);
+		journal.saved(kept, 7);
+		long last = IncomingMessageJournal.NOT_JOURNALLED;
+		for(int i=0; i<100; ++i) {
+			last = journal.append(1000 + i, "+222", "+999", "Message " + i, null);
+			journal.checkpoint(last);
+		}
+		long unsaved = journal.append(5000, "+333", "+999", "Unsaved", null);
+		journal.close();
+
+		IncomingMessageJournal reopened = new IncomingMessageJournal(directory, 512, 10);
+		SortedMap<Long, FrontlineMessage> messages = reopened.getUncheckpointed();
+		assertEquals(2, messages.size());
+		assertEquals("Kept", messages.get(kept).getTextContent());
+		assertEquals("Unsaved", messages.get(unsaved).getTextContent());
+		assertEquals(Long.valueOf(7), reopened.getSavedMessageIds().get(kept));
+		assertFalse(reopened.getSavedMessageIds().containsKey(unsaved));
+		reopened.close();
+	}
+
+	/** Test that appending fails when uncheckpointed messages fill the journal. */
+	public void testFull() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 256, 10);
+		try {
+			for(int i=0; i<100; ++i) {
+				journal.append(1000, "+111", "+999", "Never saved", null);
+			}
+			fail("Journal should have been full.");
+		} catch(IOException ex) {
+			// expected
+		}
+		journal.close();
+	}
+
+	/** Test that a record which was only partly written is ignored when the journal is reopened. */
+	public void testIncompleteRecord() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 4096, 10);
+		journal.append(1000, "+111", "+999", "Complete", null);
+		journal.append(2000, "+222", "+999", "Incomplete", null);
+		journal.close();
+
+		// Corrupt the last byte of the second record's text
+		RandomAccessFile file = new RandomAccessFile(new File(directory, "incoming.0"), "rw");
+		try {
+			int position = 12;
+			file.seek(position);
+			position += 8 + file.readInt();
+			file.seek(position);
+			position += 8 + file.readInt() - 1;
+			file.seek(position);
+			file.write('X');
+		} finally {
+			file.close();
+		}
+
+		IncomingMessageJournal reopened = new IncomingMessageJournal(directory, 4096, 10);
+		SortedMap<Long, FrontlineMessage> messages = reopened.getUncheckpointed();
+		assertEquals(1, messages.size());
+		assertEquals("Complete", messages.get(messages.firstKey()).getTextContent());
+		reopened.close();
+	}
+
+	/** Measure the time taken to append and checkpoint messages. */
+	public void testBenchmark() throws IOException {
+		IncomingMessageJournal journal = new IncomingMessageJournal(directory, 4 * 1024 * 1024, 10);
+		long[] sequences = new long[BENCHMARK_MESSAGE_COUNT];
+
+		long appendStart = System.nanoTime();
+		for(int i=0; i<sequences.length; ++i) {
+			sequences[i] = journal.append(System.currentTimeMillis(), "+447890123456", "+447000000000", "Benchmark message number " + i, null);
+		}
+		long appendTime = System.nanoTime() - appendStart;
+
+		long checkpointStart = System.nanoTime();
+		for(long sequence : sequences) {
+			journal.checkpoint(sequence);
+		}
+		long checkpointTime = System.nanoTime() - checkpointStart;
+		journal.close();
+
+		assertEquals(0, journal.getUncheckpointedCount());
+		log.info("Journalled " + sequences.length + " messages." +
+				" Append: " + (appendTime / sequences.length) + "ns/message;" +
+				" Checkpoint: " + (checkpointTime / sequences.length) + "ns/message");
+	}
+}
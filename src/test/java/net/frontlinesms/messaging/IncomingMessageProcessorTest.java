@@ -5,23 +5,37 @@ package net.frontlinesms.messaging;
 
 import static org.mockito.Mockito.*;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.smslib.CIncomingMessage;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
 
+import net.frontlinesms.EmailServerHandler;
 import net.frontlinesms.FrontlineSMS;
 import net.frontlinesms.data.domain.Contact;
+import net.frontlinesms.data.domain.Email;
+import net.frontlinesms.data.domain.EmailAccount;
 import net.frontlinesms.data.domain.Group;
 import net.frontlinesms.data.domain.Keyword;
 import net.frontlinesms.data.domain.KeywordAction;
 import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.repository.ContactDao;
+import net.frontlinesms.data.repository.EmailDao;
 import net.frontlinesms.data.repository.KeywordActionDao;
 import net.frontlinesms.data.repository.KeywordDao;
 import net.frontlinesms.data.repository.MessageDao;
 import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
 import net.frontlinesms.listener.UIListener;
 import net.frontlinesms.messaging.IncomingMessageProcessor;
 import net.frontlinesms.messaging.sms.SmsService;
@@ -170,6 +184,303 @@ public class IncomingMessageProcessorTest extends BaseTestCase {
 		return mess;
 	}
 	
+	/** Test that messages from a single sender are processed in the order they were queued. */
+	public void testSingleSenderOrdering() {
+		SmsService receiver = mock(SmsService.class);
+		final int messageCount = 50;
+		for(int i=0; i<messageCount; ++i) {
+			imp.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, Integer.toString(i)));
+		}
+		for(int i=0; i<messageCount; ++i) {
+			assertEquals(Integer.toString(i), bimel.getIncomingMessage().getTextContent());
+		}
+	}
+	
+	/**
+	 * Test that each received message is handled in its own transaction, and that listeners are only notified
+	 * of a message once its transaction has been committed.
+	 */
+	public void testTransactionPerMessage() {
+		CountingTransactionManager transactionManager = new CountingTransactionManager();
+		when(frontline.getTransactionManager()).thenReturn(transactionManager);
+		IncomingMessageProcessor transactional = new IncomingMessageProcessor(frontline, 1, 10, 0);
+		BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+		transactional.setUiListener(listener);
+		
+		SmsService receiver = mock(SmsService.class);
+		final int messageCount = 3;
+		for(int i=0; i<messageCount; ++i) {
+			transactional.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, "message " + i));
+		}
+		transactional.start();
+		for(int i=0; i<messageCount; ++i) {
+			listener.getIncomingMessage();
+			// The listener is notified after the commit, so the message's transaction has finished by now
+			assertTrue(transactionManager.getCommitCount() >= i + 1);
+			// The single worker may already have begun the next message's transaction, but no more
+			assertTrue(transactionManager.getBeginCount() <= transactionManager.getCommitCount() + 1);
+		}
+		transactional.die();
+		
+		assertEquals(messageCount, transactionManager.getBeginCount());
+		assertEquals(messageCount, transactionManager.getCommitCount());
+		assertEquals(0, transactionManager.getRollbackCount());
+	}
+	
+	/** Test that stopping the processor waits for the workers to process the messages already queued. */
+	public void testDieWaitsForQueuedMessages() {
+		IncomingMessageProcessor stopping = new IncomingMessageProcessor(frontline, 2, 10, 0);
+		UIListener uiListener = mock(UIListener.class);
+		stopping.setUiListener(uiListener);
+		
+		SmsService receiver = mock(SmsService.class);
+		final int messageCount = 20;
+		for(int i=0; i<messageCount; ++i) {
+			stopping.queue(receiver, new CIncomingMessage("+" + i, "message " + i));
+		}
+		stopping.start();
+		stopping.die();
+		
+		verify(uiListener, times(messageCount)).incomingMessageEvent(any(FrontlineMessage.class));
+		int[] depths = stopping.getQueueDepths();
+		for(int depth : depths) {
+			assertEquals(0, depth);
+		}
+	}
+	
+	/** Test that a reply is only queued for sending once the changes made for the received message have been committed. */
+	public void testReplyQueuedAfterCommit() {
+		final CountingTransactionManager transactionManager = new CountingTransactionManager();
+		when(frontline.getTransactionManager()).thenReturn(transactionManager);
+		Keyword keyword = mock(Keyword.class);
+		when(keyword.getKeyword()).thenReturn("HELLO");
+		when(keywordDao.getFromMessageText(anyString())).thenReturn(keyword);
+		KeywordAction reply = KeywordAction.createReplyAction(keyword, "Thank you", 0, Long.MAX_VALUE);
+		when(keywordActionDao.getActions(keyword)).thenReturn(Arrays.asList(reply));
+		final int[] commitsWhenSent = { -1 };
+		when(frontline.sendTextMessage(anyString(), any(Contact.class), anyString(), any(Priority.class))).thenAnswer(new Answer<FrontlineMessage>() {
+			public FrontlineMessage answer(InvocationOnMock invocation) {
+				commitsWhenSent[0] = transactionManager.getCommitCount();
+				return null;
+			}
+		});
+		IncomingMessageProcessor transactional = new IncomingMessageProcessor(frontline, 1, 10, 0);
+		BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+		transactional.setUiListener(listener);
+		
+		transactional.queue(mock(SmsService.class), new CIncomingMessage(TEST_ORIGINATOR, "hello"));
+		transactional.start();
+		// The reply is queued before the listener is notified
+		listener.getIncomingMessage();
+		transactional.die();
+		
+		verify(frontline).sendTextMessage(eq(TEST_ORIGINATOR), any(Contact.class), eq("Thank you"), eq(Priority.HIGH));
+		assertEquals(1, commitsWhenSent[0]);
+	}
+	
+	/** Test that an e-mail is only sent once it has been saved, and the changes made for the received message committed. */
+	public void testEmailSentAfterCommit() {
+		final CountingTransactionManager transactionManager = new CountingTransactionManager();
+		when(frontline.getTransactionManager()).thenReturn(transactionManager);
+		EmailDao emailDao = mock(EmailDao.class);
+		when(frontline.getEmailDao()).thenReturn(emailDao);
+		EmailServerHandler emailServerHandler = mock(EmailServerHandler.class);
+		when(frontline.getEmailServerHandler()).thenReturn(emailServerHandler);
+		Keyword keyword = mock(Keyword.class);
+		when(keyword.getKeyword()).thenReturn("HELLO");
+		when(keywordDao.getFromMessageText(anyString())).thenReturn(keyword);
+		EmailAccount account = new EmailAccount("test", "smtp.example.com", 25, "", false, false, null);
+		KeywordAction email = KeywordAction.createEmailAction(keyword, "Received", account, "test@example.com", "Hello", 0, Long.MAX_VALUE);
+		when(keywordActionDao.getActions(keyword)).thenReturn(Arrays.asList(email));
+		final int[] commitsWhenSent = { -1 };
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				commitsWhenSent[0] = transactionManager.getCommitCount();
+				return null;
+			}
+		}).when(emailServerHandler).sendEmail(any(Email.class));
+		IncomingMessageProcessor transactional = new IncomingMessageProcessor(frontline, 1, 10, 0);
+		BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+		transactional.setUiListener(listener);
+		
+		transactional.queue(mock(SmsService.class), new CIncomingMessage(TEST_ORIGINATOR, "hello"));
+		transactional.start();
+		// The e-mail is sent before the listener is notified
+		listener.getIncomingMessage();
+		transactional.die();
+		
+		verify(emailDao).saveEmail(any(Email.class));
+		verify(emailServerHandler).sendEmail(any(Email.class));
+		assertEquals(1, commitsWhenSent[0]);
+	}
+	
+	/** Test that an action's execution is only counted once its message has been committed, and not for each attempt. */
+	public void testActionCountedAfterCommit() {
+		final CountingTransactionManager transactionManager = new CountingTransactionManager() {
+			private static final long serialVersionUID = 1L;
+			private boolean failed;
+			@Override
+			protected void doCommit(DefaultTransactionStatus status) {
+				if(!failed) {
+					failed = true;
+					throw new RuntimeException("Deadlock.");
+				}
+				super.doCommit(status);
+			}
+		};
+		when(frontline.getTransactionManager()).thenReturn(transactionManager);
+		Keyword keyword = mock(Keyword.class);
+		when(keywordDao.getFromMessageText(anyString())).thenReturn(keyword);
+		KeywordAction action = mockKeywordAction(true);
+		when(keywordActionDao.getActions(keyword)).thenReturn(Arrays.asList(action));
+		IncomingMessageProcessor retrying = new IncomingMessageProcessor(frontline, 1, 10, 0);
+		retrying.setRetryPolicy(10, 20, 3);
+		BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+		retrying.setUiListener(listener);
+		
+		retrying.queue(mock(SmsService.class), new CIncomingMessage(TEST_ORIGINATOR, "hello"));
+		retrying.start();
+		listener.getIncomingMessage();
+		retrying.die();
+		
+		// The action was executed in both attempts, but only the committed attempt is counted
+		verify(action, times(2)).getType();
+		verify(keywordActionDao, times(1)).incrementCounter(action);
+	}
+	
+	/**
+	 * Test that a message which fails to be processed does not hold up the messages queued after it, and
+	 * that it is dead-lettered after failing too many times and can then be replayed.
+	 */
+	public void testFailedMessageRetry() throws InterruptedException {
+		when(keywordDao.getFromMessageText("poison")).thenThrow(new RuntimeException("Poisoned message."));
+		IncomingMessageProcessor retrying = new IncomingMessageProcessor(frontline, 1, 10, 0);
+		retrying.setRetryPolicy(10, 20, 3);
+		BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+		retrying.setUiListener(listener);
+		
+		// Queue both messages before starting so that they are saved in the same batch
+		SmsService receiver = mock(SmsService.class);
+		retrying.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, "poison"));
+		retrying.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, "good"));
+		retrying.start();
+		assertEquals("good", listener.getIncomingMessage().getTextContent());
+		
+		long timeout = System.currentTimeMillis() + 5000;
+		while(retrying.getDeadLetters().isEmpty() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		List<FailedIncomingMessage> deadLetters = retrying.getDeadLetters();
+		assertEquals(1, deadLetters.size());
+		FailedIncomingMessage deadLetter = deadLetters.get(0);
+		assertEquals(3, deadLetter.getAttempts());
+		assertEquals(TEST_ORIGINATOR, deadLetter.getSenderMsisdn());
+		assertEquals("poison", deadLetter.getMessage().getTextContent());
+		assertEquals("Poisoned message.", deadLetter.getLastError().getMessage());
+		assertEquals(0, retrying.getRetryQueueSize());
+		
+		// Once the problem is fixed, replaying the message should handle it without saving it again
+		reset(keywordDao);
+		assertEquals(1, retrying.replayDeadLetters());
+		assertTrue(retrying.getDeadLetters().isEmpty());
+		assertEquals("poison", listener.getIncomingMessage().getTextContent());
+		verify(messageDao, times(1)).saveMessages(anyList());
+		retrying.die();
+	}
+	
+	/**
+	 * Test that a journalled message in the dead-letter store is handled, without being saved again, when the
+	 * processor is next started, and that a discarded dead letter is not.
+	 */
+	public void testDeadLettersJournalled() throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		try {
+			when(keywordDao.getFromMessageText("poison")).thenThrow(new RuntimeException("Poisoned message."));
+			when(keywordDao.getFromMessageText("discarded")).thenThrow(new RuntimeException("Poisoned message."));
+			doAnswer(new Answer<Object>() {
+				private long nextId = 1;
+				@SuppressWarnings("unchecked")
+				public Object answer(InvocationOnMock invocation) {
+					for(FrontlineMessage message : (List<FrontlineMessage>) invocation.getArguments()[0]) {
+						MessageTestUtils.setId(message, nextId++);
+					}
+					return null;
+				}
+			}).when(messageDao).saveMessages(anyList());
+			
+			IncomingMessageProcessor first = new IncomingMessageProcessor(frontline, 1, 1, 0);
+			first.setRetryPolicy(1, 1, 1);
+			first.setJournal(new IncomingMessageJournal(directory, 4096, 10));
+			first.start();
+			SmsService receiver = mock(SmsService.class);
+			first.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, "poison"));
+			first.queue(receiver, new CIncomingMessage(TEST_ORIGINATOR, "discarded"));
+			long timeout = System.currentTimeMillis() + 5000;
+			while(first.getDeadLetters().size() < 2 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+			List<FailedIncomingMessage> deadLetters = first.getDeadLetters();
+			assertEquals(2, deadLetters.size());
+			FrontlineMessage poison = deadLetters.get(0).getMessage();
+			assertEquals("poison", poison.getTextContent());
+			assertTrue(first.discardDeadLetter(deadLetters.get(1)));
+			first.die();
+			
+			// Once the problem is fixed, starting again should handle the message saved by the first run
+			reset(keywordDao);
+			when(messageDao.getMessage(poison.getId())).thenReturn(poison);
+			IncomingMessageProcessor second = new IncomingMessageProcessor(frontline, 1, 1, 0);
+			BlockingIncomingMessageEventListener listener = new BlockingIncomingMessageEventListener();
+			second.setUiListener(listener);
+			IncomingMessageJournal journal = new IncomingMessageJournal(directory, 4096, 10);
+			assertEquals(1, journal.getUncheckpointedCount());
+			second.setJournal(journal);
+			second.start();
+			assertSame(poison, listener.getIncomingMessage());
+			timeout = System.currentTimeMillis() + 5000;
+			while(journal.getUncheckpointedCount() > 0 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, journal.getUncheckpointedCount());
+			second.die();
+			verify(messageDao, times(2)).saveMessages(anyList());
+		} finally {
+			File[] files = directory.listFiles();
+			if(files != null) {
+				for(File file : files) file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	/** Test that messages are routed to partitions by sender, and that the depth of each partition is reported. */
+	public void testPartitioning() {
+		IncomingMessageProcessor unstarted = new IncomingMessageProcessor(frontline, 4);
+		assertEquals(4, unstarted.getPartitionCount());
+		
+		SmsService receiver = mock(SmsService.class);
+		String[] senders = { "+111", "+222", "+333", "+444", "+555", "+666" };
+		for(int i=0; i<senders.length; ++i) {
+			for(int j=0; j<=i; ++j) {
+				unstarted.queue(receiver, new CIncomingMessage(senders[i], "message"));
+			}
+		}
+		
+		int[] expectedDepths = new int[unstarted.getPartitionCount()];
+		for(int i=0; i<senders.length; ++i) {
+			int partition = unstarted.getPartition(senders[i]);
+			assertEquals(partition, unstarted.getPartition(senders[i]));
+			assertTrue(partition >= 0 && partition < unstarted.getPartitionCount());
+			expectedDepths[partition] += i + 1;
+		}
+		int[] depths = unstarted.getQueueDepths();
+		for(int i=0; i<depths.length; ++i) {
+			assertEquals(expectedDepths[i], depths[i]);
+			assertEquals(expectedDepths[i], unstarted.getQueueDepth(i));
+		}
+	}
+	
 	/**
 	 * Receive a {@link CIncomingMessage}, and return the corresponding {@link FrontlineMessage} 
 	 * @param message
@@ -181,7 +492,7 @@ public class IncomingMessageProcessorTest extends BaseTestCase {
 		
 		// Wait for the message to be processed, and then check that the expected steps were taken
 		FrontlineMessage mess = bimel.getIncomingMessage();
-		verify(messageDao).saveMessage(mess);
+		verify(messageDao).saveMessages(Arrays.asList(mess));
 		
 		return mess;
 	}
@@ -218,4 +529,40 @@ class BlockingIncomingMessageEventListener implements UIListener {
 			throw new RuntimeException("Unexpected interruption while queuing for message.", ex);
 		}
 	}
-}
\ No newline at end of file
+}
+
+/**
+ * Transaction manager which only counts the transactions begun, committed and rolled back.  Transaction
+ * synchronizations are run as they would be by a real transaction manager.
+ */
+class CountingTransactionManager extends AbstractPlatformTransactionManager {
+	private static final long serialVersionUID = 1L;
+	
+	private final AtomicInteger beginCount = new AtomicInteger();
+	private final AtomicInteger commitCount = new AtomicInteger();
+	private final AtomicInteger rollbackCount = new AtomicInteger();
+	
+	public int getBeginCount() { return beginCount.get(); }
+	public int getCommitCount() { return commitCount.get(); }
+	public int getRollbackCount() { return rollbackCount.get(); }
+
+	@Override
+	protected Object doGetTransaction() {
+		return new Object();
+	}
+
+	@Override
+	protected void doBegin(Object transaction, TransactionDefinition definition) {
+		beginCount.incrementAndGet();
+	}
+
+	@Override
+	protected void doCommit(DefaultTransactionStatus status) {
+		commitCount.incrementAndGet();
+	}
+
+	@Override
+	protected void doRollback(DefaultTransactionStatus status) {
+		rollbackCount.incrementAndGet();
+	}
+}
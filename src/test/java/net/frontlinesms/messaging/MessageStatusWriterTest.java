@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link MessageStatusWriter}.
+ */
+public class MessageStatusWriterTest extends BaseTestCase {
+	private MessageDao messageDao;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		messageDao = mock(MessageDao.class);
+	}
+
+//> TESTS
+	/** Test that several changes to the same message are written once. */
+	public void testChangesMerged() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		FrontlineMessage first = mockMessage(1);
+		FrontlineMessage second = mockMessage(2);
+		FrontlineMessage firstReloaded = mockMessage(1);
+
+		writer.statusChanged(first);
+		writer.statusChanged(second);
+		writer.statusChanged(first);
+		writer.statusChanged(firstReloaded);
+		assertEquals(2, writer.size());
+
+		assertEquals(2, writer.flush());
+		verify(messageDao).updateMessages(Arrays.asList(firstReloaded, second));
+		assertEquals(0, writer.size());
+		assertEquals(0, writer.flush());
+		verifyNoMoreInteractions(messageDao);
+	}
+
+	/** Test that large numbers of changes are written in batches. */
+	public void testBatches() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		for(int i=0; i<MessageStatusWriter.BATCH_SIZE * 2 + 1; ++i) {
+			writer.statusChanged(mockMessage(i + 1));
+		}
+		assertEquals(MessageStatusWriter.BATCH_SIZE * 2 + 1, writer.flush());
+		verify(messageDao, times(3)).updateMessages(anyList());
+	}
+
+	/** Test that messages in a batch which could not be written are written singly, and dropped if that fails too. */
+	public void testFailedBatchWrittenSingly() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		FrontlineMessage first = mockMessage(1);
+		FrontlineMessage bad = mockMessage(2);
+		FrontlineMessage third = mockMessage(3);
+		doThrow(new RuntimeException("Constraint violation")).when(messageDao).updateMessages(anyList());
+		doThrow(new RuntimeException("Constraint violation")).when(messageDao).updateMessage(bad);
+
+		writer.statusChanged(first);
+		writer.statusChanged(bad);
+		writer.statusChanged(third);
+		assertEquals(2, writer.flush());
+		verify(messageDao).updateMessage(first);
+		verify(messageDao).updateMessage(third);
+		assertEquals(0, writer.size());
+
+		// The dropped message is not retried
+		assertEquals(0, writer.flush());
+		verify(messageDao, times(1)).updateMessage(bad);
+	}
+
+	/** Test that messages which have not been saved are not queued. */
+	public void testUnsavedMessageIgnored() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		writer.statusChanged(mockMessage(0));
+		assertEquals(0, writer.size());
+		assertEquals(0, writer.flush());
+		verifyZeroInteractions(messageDao);
+	}
+
+	/** Test that a waiting message can be taken from the writer, and is then not written. */
+	public void testRemove() {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 60000);
+		FrontlineMessage first = mockMessage(1);
+		FrontlineMessage second = mockMessage(2);
+		writer.statusChanged(first);
+		writer.statusChanged(second);
+
+		assertEquals(first, writer.remove(1));
+		assertNull(writer.remove(1));
+		assertEquals(1, writer.size());
+		assertEquals(1, writer.flush());
+		verify(messageDao).updateMessages(Arrays.asList(second));
+	}
+
+	/** Test that changes are written in the background, and any left waiting are written when the writer stops. */
+	public void testBackgroundWrite() throws InterruptedException {
+		MessageStatusWriter writer = new MessageStatusWriter(messageDao, 10);
+		writer.start();
+		FrontlineMessage message = mockMessage(1);
+		writer.statusChanged(message);
+		for(int i=0; i<500 && writer.size() > 0; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, writer.size());
+		writer.stop();
+		// Written once by the background thread; there was nothing left to write when the writer stopped
+		verify(messageDao).updateMessages(Arrays.asList(message));
+
+		FrontlineMessage last = mockMessage(2);
+		writer.statusChanged(last);
+		assertEquals(1, writer.size());
+		writer.stop();
+		verify(messageDao).updateMessages(Arrays.asList(last));
+		assertEquals(0, writer.size());
+	}
+
+//> PRIVATE HELPER METHODS
+	private static FrontlineMessage mockMessage(long id) {
+		FrontlineMessage message = mock(FrontlineMessage.class);
+		when(message.getId()).thenReturn(id);
+		return message;
+	}
+}
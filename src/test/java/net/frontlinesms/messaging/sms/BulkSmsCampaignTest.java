@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import net.frontlinesms.data.domain.Contact;
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
+import net.frontlinesms.data.domain.Group;
+import net.frontlinesms.data.repository.GroupMembershipDao;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.listener.BulkSmsCampaignListener;
+import net.frontlinesms.messaging.MessageFormatter;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link BulkSmsCampaign}.
+ */
+public class BulkSmsCampaignTest extends BaseTestCase {
+	private GroupMembershipDao groupMembershipDao;
+	private MessageDao messageDao;
+	private SmsServiceManager manager;
+	private BulkSmsCampaignListener listener;
+	private Group group;
+	/** Members of the group, in id order */
+	private List<Contact> members;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		groupMembershipDao = mock(GroupMembershipDao.class);
+		messageDao = mock(MessageDao.class);
+		manager = mock(SmsServiceManager.class);
+		listener = mock(BulkSmsCampaignListener.class);
+		group = mock(Group.class);
+		when(group.getPath()).thenReturn("/Customers");
+
+		members = new ArrayList<Contact>();
+		for(int i=1; i<=5; ++i) {
+			Contact contact = mock(Contact.class);
+			when(contact.getId()).thenReturn((long) i);
+			when(contact.getDisplayName()).thenReturn("Contact " + i);
+			when(contact.getPhoneNumber()).thenReturn("+4477000000" + i);
+			members.add(contact);
+		}
+		when(groupMembershipDao.getFilteredMemberCount(group, null)).thenReturn(5);
+		when(groupMembershipDao.getMembersAfterId(group, null, 0L, 2)).thenReturn(members.subList(0, 2));
+		when(groupMembershipDao.getMembersAfterId(group, null, 2L, 2)).thenReturn(members.subList(2, 4));
+		when(groupMembershipDao.getMembersAfterId(group, null, 4L, 2)).thenReturn(members.subList(4, 5));
+	}
+
+//> TESTS
+	/** Test that every member is sent a personalised message, and that messages are saved a page at a time. */
+	@SuppressWarnings("unchecked")
+	public void testQueueMessages() {
+		BulkSmsCampaign campaign = createCampaign("Hello " + MessageFormatter.MARKER_RECIPIENT_NAME);
+		campaign.queueMessages();
+
+		ArgumentCaptor<List> saved = ArgumentCaptor.forClass(List.class);
+		verify(messageDao, times(3)).saveMessages(saved.capture());
+		assertEquals(2, saved.getAllValues().get(0).size());
+		assertEquals(1, saved.getAllValues().get(2).size());
+
+		ArgumentCaptor<FrontlineMessage> sent = ArgumentCaptor.forClass(FrontlineMessage.class);
+		verify(manager, times(5)).sendSMS(sent.capture());
+		for(int i=0; i<5; ++i) {
+			FrontlineMessage message = sent.getAllValues().get(i);
+			assertEquals("+4477000000" + (i + 1), message.getRecipientMsisdn());
+			assertEquals("Hello Contact " + (i + 1), message.getTextContent());
+			assertEquals(Priority.BULK, message.getPriority());
+		}
+
+		assertEquals(5, campaign.getRecipientCount());
+		assertEquals(5, campaign.getQueuedCount());
+		verify(listener, times(3)).campaignProgress(campaign);
+	}
+
+	/** Test that the next page is not loaded until the manager has fewer than a page of messages queued. */
+	public void testWaitForQueueSpace() {
+		when(manager.getQueuedMessageCount()).thenReturn(0, 2, 1, 0);
+		BulkSmsCampaign campaign = createCampaign("Hello");
+		campaign.queueMessages();
+
+		assertEquals(5, campaign.getQueuedCount());
+		// Checked once for the first page, twice for the second and once for the last
+		verify(manager, times(4)).getQueuedMessageCount();
+	}
+
+	/** Test that the time remaining is estimated from the rate messages have been queued. */
+	public void testEstimatedTimeRemaining() {
+		final long[] now = { 1000 };
+		BulkSmsCampaign campaign = new BulkSmsCampaign(groupMembershipDao, messageDao, manager, group, null, "Hello", Priority.BULK, 2, listener) {
+			@Override
+			long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		assertEquals(-1, campaign.getEstimatedTimeRemaining());
+
+		// Stop after the first page, with 2 of 5 messages queued in 4 seconds
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				now[0] += 4000;
+				((BulkSmsCampaign) invocation.getArguments()[0]).stopRunning();
+				return null;
+			}
+		}).when(listener).campaignProgress(any(BulkSmsCampaign.class));
+		campaign.queueMessages();
+
+		assertEquals(2, campaign.getQueuedCount());
+		assertEquals(6000, campaign.getEstimatedTimeRemaining());
+	}
+
+	/** Test that expensive characters are replaced in each message when an optimizer is set, and the parts saved are counted. */
+	public void testPartsSaved() {
+		BulkSmsCampaign campaign = createCampaign("Hello " + MessageFormatter.MARKER_RECIPIENT_NAME
+				+ ", it\u2019s time to renew your membership. Please reply YES to renew for another year.");
+		campaign.setEncodingOptimizer(new SmsEncodingOptimizer());
+		campaign.queueMessages();
+
+		ArgumentCaptor<FrontlineMessage> sent = ArgumentCaptor.forClass(FrontlineMessage.class);
+		verify(manager, times(5)).sendSMS(sent.capture());
+		for(FrontlineMessage message : sent.getAllValues()) {
+			assertTrue(message.getTextContent().contains("it's time"));
+			assertEquals(1, message.getSmsPartsCount());
+		}
+		assertEquals(5, campaign.getPartsSaved());
+	}
+
+	/** Test that no more messages are created once the campaign has been stopped, and the listener is told it finished. */
+	public void testStop() throws InterruptedException {
+		when(manager.getQueuedMessageCount()).thenReturn(10);
+		BulkSmsCampaign campaign = createCampaign("Hello");
+		campaign.start();
+		campaign.stopRunning();
+		campaign.join(5000);
+
+		assertFalse(campaign.isAlive());
+		assertTrue(campaign.isFinished());
+		verify(manager, never()).sendSMS(any(FrontlineMessage.class));
+		verify(messageDao, never()).saveMessages(anyList());
+		verify(listener).campaignFinished(campaign);
+	}
+
+//> PRIVATE HELPER METHODS
+	private BulkSmsCampaign createCampaign(String template) {
+		return new BulkSmsCampaign(groupMembershipDao, messageDao, manager, group, null, template, Priority.BULK, 2, listener);
+	}
+}
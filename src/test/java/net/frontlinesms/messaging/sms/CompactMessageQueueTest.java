@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link CompactMessageQueue}.
+ */
+public class CompactMessageQueueTest extends BaseTestCase {
+	/** Number of messages queued during the heap usage benchmark */
+	private static final int BENCHMARK_MESSAGE_COUNT = 50000;
+
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+
+//> TESTS
+	/** Test that ids are taken from the queue in the order they were added, across several chunks. */
+	public void testOrder() {
+		CompactMessageQueue queue = new CompactMessageQueue(3);
+		assertEquals(0, queue.poll());
+		for(long id=1; id<=10; ++id) {
+			queue.add(id);
+		}
+		assertEquals(10, queue.size());
+		for(long id=1; id<=4; ++id) {
+			assertEquals(id, queue.poll());
+		}
+		queue.add(11);
+		for(long id=5; id<=11; ++id) {
+			assertEquals(id, queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.poll());
+	}
+
+	/** Test that chunks are freed as the queue empties, and that one is kept for reuse. */
+	public void testAllocation() {
+		CompactMessageQueue queue = new CompactMessageQueue(4);
+		assertEquals(0, queue.getAllocatedBytes());
+		for(long id=1; id<=12; ++id) {
+			queue.add(id);
+		}
+		assertEquals(3 * 4 * 8, queue.getAllocatedBytes());
+		for(int i=0; i<8; ++i) {
+			queue.poll();
+		}
+		assertEquals(2 * 4 * 8, queue.getAllocatedBytes());
+
+		// An emptied queue keeps its last chunk, and reuses the spare one as it grows again
+		while(!queue.isEmpty()) queue.poll();
+		for(long id=13; id<=20; ++id) {
+			queue.add(id);
+		}
+		assertEquals(2 * 4 * 8, queue.getAllocatedBytes());
+		assertEquals(13, queue.poll());
+
+		queue.clear();
+		assertEquals(0, queue.getAllocatedBytes());
+		assertEquals(0, queue.size());
+	}
+
+	/** Test that only saved messages may be queued. */
+	public void testUnsavedMessage() {
+		try {
+			new CompactMessageQueue().add(0);
+			fail("Unsaved message should not have been queued.");
+		} catch(IllegalArgumentException ex) { /* expected */ }
+	}
+
+	/**
+	 * Benchmark comparing the heap used by a backlog of messages held in a {@link PriorityOutbox} with the
+	 * heap used by the same backlog held as ids in a {@link CompactMessageQueue}.
+	 */
+	public void testHeapUsage() {
+		long before = getUsedHeap();
+		PriorityOutbox outbox = new PriorityOutbox();
+		for(int i=0; i<BENCHMARK_MESSAGE_COUNT; ++i) {
+			outbox.add(FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+2547" + (10000000 + i),
+					"Reminder: the clinic at Kisumu will be open from 8am until 4pm on Saturday for vaccinations. Please bring your card."));
+		}
+		long outboxHeap = getUsedHeap() - before;
+
+		before = getUsedHeap();
+		CompactMessageQueue queue = new CompactMessageQueue();
+		for(int i=1; i<=BENCHMARK_MESSAGE_COUNT; ++i) {
+			queue.add(i);
+		}
+		long queueHeap = getUsedHeap() - before;
+
+		log.info("Queued " + BENCHMARK_MESSAGE_COUNT + " messages." +
+				" PriorityOutbox heap: " + (outboxHeap / 1024) + "KB;" +
+				" CompactMessageQueue heap: " + (queueHeap / 1024) + "KB, direct memory: " + (queue.getAllocatedBytes() / 1024) + "KB");
+		// Keep both backlogs reachable until they have been measured
+		assertEquals(BENCHMARK_MESSAGE_COUNT, outbox.size());
+		assertEquals(BENCHMARK_MESSAGE_COUNT, queue.size());
+		assertTrue("Compact queue used " + queueHeap + " bytes of heap; outbox used " + outboxHeap, queueHeap < outboxHeap / 20);
+	}
+
+//> PRIVATE HELPER METHODS
+	/** @return the number of bytes of heap in use after garbage collection */
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0; i<3; ++i) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
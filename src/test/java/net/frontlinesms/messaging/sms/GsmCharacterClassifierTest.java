@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import org.smslib.util.GsmAlphabet;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+import static net.frontlinesms.messaging.sms.GsmCharacterClassifier.*;
+
+/**
+ * Unit tests for {@link GsmCharacterClassifier}.
+ */
+public class GsmCharacterClassifierTest extends BaseTestCase {
+	/** Test that characters are classified according to the tables of the GSM default alphabet. */
+	public void testCharacterClass() {
+		assertEquals(BASIC, getCharacterClass('a'));
+		assertEquals(BASIC, getCharacterClass('@'));
+		assertEquals(BASIC, getCharacterClass('\n'));
+		assertEquals(BASIC, getCharacterClass('\u00E9')); // e acute
+		assertEquals(BASIC, getCharacterClass('\u03A9')); // capital omega
+		assertEquals(EXTENSION, getCharacterClass('['));
+		assertEquals(EXTENSION, getCharacterClass('\u20AC')); // euro sign
+		assertEquals(UNENCODABLE, getCharacterClass('`'));
+		assertEquals(UNENCODABLE, getCharacterClass('\u00E1')); // a acute
+		assertEquals(UNENCODABLE, getCharacterClass('\u2019')); // right single quote
+		assertEquals(UNENCODABLE, getCharacterClass('\u4E2D'));
+
+		assertTrue(isGsmEncodable("Caf\u00E9 [\u20AC5]"));
+		assertFalse(isGsmEncodable("It\u2019s"));
+	}
+
+	/** Test that GSM text is counted in septets, with extension characters counting twice. */
+	public void testCountParts_gsm() {
+		assertEquals(1, countParts(""));
+		assertEquals(1, countParts(repeat('a', 160)));
+		assertEquals(2, countParts(repeat('a', 161)));
+		assertEquals(1, countParts(repeat('[', 80)));
+		assertEquals(2, countParts(repeat('[', 81)));
+	}
+
+	/** Test that an extension character is not split between two parts. */
+	public void testCountParts_escapeNotSplit() {
+		int multipartLimit = net.frontlinesms.data.domain.FrontlineMessage.SMS_MULTIPART_LENGTH_LIMIT;
+		assertEquals(2, countParts(repeat('a', multipartLimit - 1) + "a" + repeat('a', multipartLimit)));
+		assertEquals(3, countParts(repeat('a', multipartLimit - 1) + "[" + repeat('a', multipartLimit - 1)));
+	}
+
+	/** Test that text containing a character outside the GSM alphabet is counted as UCS-2. */
+	public void testCountParts_ucs2() {
+		assertEquals(1, countParts(repeat('\u00E1', 70)));
+		assertEquals(2, countParts(repeat('\u00E1', 71)));
+		assertEquals(2, countParts(repeat('a', 100) + "\u2019"));
+	}
+
+	/**
+	 * Test that the classifier agrees with smslib about which characters are in the GSM alphabet, as smslib
+	 * chooses the encoding of messages sent through a modem.
+	 */
+	public void testAgreesWithSmslib() {
+		for(int c=Character.MIN_VALUE; c<=Character.MAX_VALUE; ++c) {
+			String text = String.valueOf((char) c);
+			assertEquals("Character " + Integer.toHexString(c), GsmAlphabet.areAllCharactersValidGSM(text), isGsmEncodable(text));
+		}
+	}
+
+//> PRIVATE HELPER METHODS
+	private static String repeat(char c, int count) {
+		StringBuilder bob = new StringBuilder(count);
+		while(--count >= 0) bob.append(c);
+		return bob.toString();
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link LeastLoadedSmsServiceBalancer}.
+ */
+public class LeastLoadedSmsServiceBalancerTest extends BaseTestCase {
+	private LeastLoadedSmsServiceBalancer balancer;
+	private SmsService first;
+	private SmsService second;
+	private List<SmsService> services;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		balancer = new LeastLoadedSmsServiceBalancer();
+		first = new DummySmsService("+111");
+		second = new DummySmsService("+222");
+		services = Arrays.asList(first, second);
+	}
+
+//> TESTS
+	/** Test that services which have not sent anything yet are sent equal numbers of messages. */
+	public void testEvenSpread() {
+		dispatch(10);
+		assertEquals(5, balancer.getInFlightCount(first));
+		assertEquals(5, balancer.getInFlightCount(second));
+	}
+
+	/** Test that services are sent messages in proportion to their weights. */
+	public void testWeights() {
+		balancer.setWeight(first, 3);
+		dispatch(8);
+		assertEquals(6, balancer.getInFlightCount(first));
+		assertEquals(2, balancer.getInFlightCount(second));
+
+		try {
+			balancer.setWeight(second, 0);
+			fail("A weight of zero should not be allowed.");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	/** Test that a service which has been sending messages quickly is sent more messages than a slow one. */
+	public void testThroughput() {
+		for(int i=0; i<20; ++i) {
+			FrontlineMessage message = createMessage();
+			balancer.messageDispatched(first, message);
+			balancer.messageSent(first, message);
+		}
+		dispatch(20);
+		assertEquals(20, balancer.getInFlightCount(first));
+		assertEquals(0, balancer.getInFlightCount(second));
+	}
+
+	/** Test that a service which has been failing to send messages is avoided. */
+	public void testFailures() {
+		for(int i=0; i<10; ++i) {
+			FrontlineMessage message = createMessage();
+			balancer.messageDispatched(first, message);
+			balancer.messageFailed(first, message);
+		}
+		dispatch(5);
+		assertEquals(0, balancer.getInFlightCount(first));
+		assertEquals(5, balancer.getInFlightCount(second));
+	}
+
+	/** Test that each in-flight message is only counted once, however many times its outcome is reported. */
+	public void testInFlightTracking() {
+		FrontlineMessage message = createMessage();
+		balancer.messageDispatched(first, message);
+		// Dispatching again, e.g. after a retry, moves the message to the new service
+		balancer.messageDispatched(second, message);
+		assertEquals(0, balancer.getInFlightCount(first));
+		assertEquals(1, balancer.getInFlightCount(second));
+
+		balancer.messageSent(second, message);
+		balancer.messageSent(second, message);
+		assertEquals(0, balancer.getInFlightCount(second));
+
+		balancer.messageDispatched(first, createMessage());
+		balancer.serviceRemoved(first);
+		assertEquals(0, balancer.getInFlightCount(first));
+	}
+
+//> PRIVATE HELPER METHODS
+	/** Dispatches messages to the services chosen by the balancer, without completing them. */
+	private void dispatch(int count) {
+		for(int i=0; i<count; ++i) {
+			FrontlineMessage message = createMessage();
+			balancer.messageDispatched(balancer.select(services, message), message);
+		}
+	}
+
+	private static FrontlineMessage createMessage() {
+		return FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "+999", "+123", "Hello");
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mockito.InOrder;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.domain.FrontlineMessage.Type;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link OutboxRecovery}.
+ */
+public class OutboxRecoveryTest extends BaseTestCase {
+	private MessageDao messageDao;
+	private SmsServiceManager manager;
+	/** Unsent messages in the database, in id order */
+	private List<FrontlineMessage> unsent;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		messageDao = mock(MessageDao.class);
+		manager = mock(SmsServiceManager.class);
+		unsent = new ArrayList<FrontlineMessage>();
+		for(int i=1; i<=5; ++i) {
+			FrontlineMessage message = mock(FrontlineMessage.class);
+			when(message.getId()).thenReturn((long) i);
+			unsent.add(message);
+		}
+		when(messageDao.getMessagesAfterId(eq(Type.OUTBOUND), any(Status[].class), eq(0L), anyLong(), eq(2))).thenReturn(unsent.subList(0, 2));
+		when(messageDao.getMessagesAfterId(eq(Type.OUTBOUND), any(Status[].class), eq(2L), anyLong(), eq(2))).thenReturn(unsent.subList(2, 4));
+		when(messageDao.getMessagesAfterId(eq(Type.OUTBOUND), any(Status[].class), eq(4L), anyLong(), eq(2))).thenReturn(unsent.subList(4, 5));
+	}
+
+//> TESTS
+	/** Test that every page of unsent messages is re-queued, in order. */
+	public void testRecoverAllPages() {
+		OutboxRecovery recovery = new OutboxRecovery(messageDao, manager, 2);
+		recovery.recover();
+
+		InOrder inOrder = inOrder(manager);
+		for(FrontlineMessage message : unsent) {
+			inOrder.verify(manager).sendSMS(message);
+		}
+		assertEquals(5, recovery.getRecoveredCount());
+		verify(messageDao, times(3)).getMessagesAfterId(any(Type.class), any(Status[].class), anyLong(), anyLong(), anyInt());
+	}
+
+	/** Test that the next page is not loaded until the manager has fewer than a page of messages queued. */
+	public void testWaitForQueueSpace() {
+		when(manager.getQueuedMessageCount()).thenReturn(0, 3, 2, 1);
+		OutboxRecovery recovery = new OutboxRecovery(messageDao, manager, 2);
+		recovery.recover();
+
+		assertEquals(5, recovery.getRecoveredCount());
+		// Checked once for the first page, three times for the second and once for the last
+		verify(manager, times(5)).getQueuedMessageCount();
+	}
+
+	/** Test that no more messages are loaded once the recovery has been stopped. */
+	public void testStop() throws InterruptedException {
+		when(manager.getQueuedMessageCount()).thenReturn(10);
+		OutboxRecovery recovery = new OutboxRecovery(messageDao, manager, 2);
+		recovery.start();
+		recovery.stopRunning();
+		recovery.join(5000);
+
+		assertFalse(recovery.isAlive());
+		verify(manager, never()).sendSMS(any(FrontlineMessage.class));
+		verifyZeroInteractions(messageDao);
+	}
+
+	/** Test that a batch size of zero is rejected. */
+	public void testInvalidBatchSize() {
+		try {
+			new OutboxRecovery(messageDao, manager, 0);
+			fail("A batch size of zero should not be allowed.");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
+
+/**
+ * Unit tests for {@link PriorityOutbox}.
+ */
+public class PriorityOutboxTest extends BaseTestCase {
+	/** Number of messages queued and cancelled in {@link #testCancelBenchmark()} */
+	private static final int BENCHMARK_MESSAGE_COUNT = 50000;
+	private final Logger log = Logger.getLogger(this.getClass());
+
+	/** Test that messages of a single priority are taken in the order they were added. */
+	public void testFifo() {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage[] messages = new FrontlineMessage[5];
+		for(int i=0; i<messages.length; ++i) {
+			messages[i] = createMessage(Priority.BULK, i);
+			outbox.add(messages[i]);
+		}
+		assertEquals(5, outbox.size());
+		for(FrontlineMessage message : messages) {
+			assertTrue(message == outbox.poll());
+		}
+		assertNull(outbox.poll());
+		assertTrue(outbox.isEmpty());
+	}
+
+	/** Test that each priority gets a share of the messages taken in proportion to its weight. */
+	public void testWeightedDraining() {
+		PriorityOutbox outbox = new PriorityOutbox();
+		int cycle = 0;
+		for(Priority priority : Priority.values()) {
+			cycle += priority.getWeight();
+		}
+		for(Priority priority : Priority.values()) {
+			for(int i=0; i<cycle * 2; ++i) {
+				outbox.add(createMessage(priority, i));
+			}
+		}
+
+		int[] taken = new int[Priority.values().length];
+		for(int i=0; i<cycle; ++i) {
+			++taken[outbox.poll().getPriority().ordinal()];
+		}
+		for(Priority priority : Priority.values()) {
+			assertEquals(priority.getWeight(), taken[priority.ordinal()]);
+		}
+	}
+
+	/** Test that a high priority message is not held up behind a large number of bulk messages. */
+	public void testBulkDoesNotDelayHighPriority() {
+		PriorityOutbox outbox = new PriorityOutbox();
+		for(int i=0; i<20000; ++i) {
+			outbox.add(createMessage(Priority.BULK, i));
+		}
+		for(int i=0; i<100; ++i) {
+			outbox.poll();
+		}
+		FrontlineMessage reply = createMessage(Priority.HIGH, 0);
+		outbox.add(reply);
+
+		int taken = 0;
+		while(outbox.poll() != reply) {
+			++taken;
+		}
+		assertTrue("Reply was sent after " + taken + " bulk messages.", taken <= Priority.BULK.getWeight());
+	}
+
+	/** Test removing messages and iterating over the outbox. */
+	public void testRemoveAndIterate() {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage bulk = createMessage(Priority.BULK, 0);
+		FrontlineMessage normal = createMessage(Priority.NORMAL, 1);
+		FrontlineMessage high = createMessage(Priority.HIGH, 2);
+		outbox.add(bulk);
+		outbox.add(normal);
+		outbox.add(high);
+		assertEquals(1, outbox.size(Priority.NORMAL));
+
+		Iterator<FrontlineMessage> messages = outbox.iterator();
+		assertTrue(high == messages.next());
+		assertTrue(normal == messages.next());
+		assertTrue(bulk == messages.next());
+		assertFalse(messages.hasNext());
+
+		assertTrue(outbox.remove(normal));
+		assertFalse(outbox.remove(normal));
+		assertEquals(0, outbox.size(Priority.NORMAL));
+		assertEquals(2, outbox.size());
+	}
+
+	/** Test that saved messages are found by id, so that a copy loaded from the database can be used to cancel them. */
+	public void testRemoveById() throws Exception {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage first = createSavedMessage(Priority.NORMAL, 1);
+		FrontlineMessage second = createSavedMessage(Priority.NORMAL, 2);
+		FrontlineMessage third = createSavedMessage(Priority.NORMAL, 3);
+		outbox.add(first);
+		outbox.add(second);
+		outbox.add(third);
+
+		FrontlineMessage secondReloaded = createSavedMessage(Priority.NORMAL, 2);
+		assertTrue(outbox.contains(secondReloaded));
+		assertFalse(outbox.add(secondReloaded));
+		assertTrue(outbox.remove(secondReloaded));
+		assertFalse(outbox.contains(second));
+		assertFalse(outbox.remove(second));
+
+		assertTrue(first == outbox.poll());
+		assertFalse(outbox.contains(first));
+		assertTrue(third == outbox.poll());
+		assertNull(outbox.poll());
+		assertTrue(outbox.isEmpty());
+	}
+
+	/** Test that unsaved messages are only matched by instance, even if they are equal. */
+	public void testUnsavedMessagesMatchedByInstance() {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage message = createMessage(Priority.NORMAL, 0);
+		FrontlineMessage copy = createMessage(Priority.NORMAL, 0);
+		assertTrue(outbox.add(message));
+		assertFalse(outbox.add(message));
+		assertTrue(outbox.add(copy));
+		assertEquals(2, outbox.size());
+
+		assertTrue(outbox.remove(copy));
+		assertTrue(outbox.contains(message));
+		assertFalse(outbox.contains(copy));
+		assertTrue(message == outbox.poll());
+	}
+
+	/** Test that changing the priority of a queued message moves it to the end of its new lane. */
+	public void testReprioritize() throws Exception {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage bulk = createSavedMessage(Priority.BULK, 1);
+		FrontlineMessage high = createSavedMessage(Priority.HIGH, 2);
+		FrontlineMessage promoted = createSavedMessage(Priority.BULK, 3);
+		outbox.add(bulk);
+		outbox.add(high);
+		outbox.add(promoted);
+
+		assertTrue(outbox.reprioritize(createSavedMessage(Priority.BULK, 3), Priority.HIGH));
+		assertEquals(Priority.HIGH, promoted.getPriority());
+		assertEquals(2, outbox.size(Priority.HIGH));
+		assertEquals(1, outbox.size(Priority.BULK));
+		assertFalse(outbox.reprioritize(createSavedMessage(Priority.BULK, 4), Priority.HIGH));
+
+		Iterator<FrontlineMessage> messages = outbox.iterator();
+		assertTrue(high == messages.next());
+		assertTrue(promoted == messages.next());
+		assertTrue(bulk == messages.next());
+		assertFalse(messages.hasNext());
+	}
+
+	/** Benchmark cancelling a large number of queued messages, as when a large selection is deleted from the UI. */
+	public void testCancelBenchmark() throws Exception {
+		PriorityOutbox outbox = new PriorityOutbox();
+		FrontlineMessage[] reloaded = new FrontlineMessage[BENCHMARK_MESSAGE_COUNT];
+		for(int i=0; i<BENCHMARK_MESSAGE_COUNT; ++i) {
+			outbox.add(createSavedMessage(Priority.BULK, i + 1));
+			reloaded[i] = createSavedMessage(Priority.BULK, i + 1);
+		}
+
+		// Cancel from the back of the queue, which was the slowest case for a linear search
+		long start = System.nanoTime();
+		for(int i=BENCHMARK_MESSAGE_COUNT-1; i>=0; --i) {
+			assertTrue(outbox.remove(reloaded[i]));
+		}
+		long elapsed = System.nanoTime() - start;
+		log.info("Cancelled " + BENCHMARK_MESSAGE_COUNT + " messages in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+		assertTrue(outbox.isEmpty());
+		// Searching the lanes for each message took minutes
+		assertTrue("Cancelling took " + elapsed + "ns", elapsed < TimeUnit.SECONDS.toNanos(5));
+	}
+
+//> PRIVATE HELPER METHODS
+	private static FrontlineMessage createMessage(Priority priority, int index) {
+		FrontlineMessage message = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+123", "Message " + index);
+		message.setPriority(priority);
+		return message;
+	}
+
+	/** Creates a message with the supplied id, as if it had been saved to the database. */
+	private static FrontlineMessage createSavedMessage(Priority priority, long id) {
+		return MessageTestUtils.setId(createMessage(priority, (int) id), id);
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link ScheduledMessageReleaser}.
+ */
+public class ScheduledMessageReleaserTest extends BaseTestCase {
+	private static final long WINDOW = 60 * 1000;
+	/** Start time of each releaser, at the start of a tick */
+	private static final long START_TIME = 1262304000000L;
+	private MessageDao messageDao;
+	private SmsServiceManager manager;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		messageDao = mock(MessageDao.class);
+		manager = mock(SmsServiceManager.class);
+		when(messageDao.updateMessageStatus(anyCollection(), eq(Status.SCHEDULED), eq(Status.OUTBOX))).thenReturn(1);
+	}
+
+//> TESTS
+	/** Test that loaded messages are queued once they are due, and overdue messages straight away. */
+	public void testLoadAndRelease() throws Exception {
+		FrontlineMessage overdue = createScheduledMessage(1, START_TIME - 5000);
+		FrontlineMessage later = createScheduledMessage(2, START_TIME + 2000);
+		when(messageDao.getScheduledMessages(eq(Long.MIN_VALUE), eq(0L), anyLong(), eq(2))).thenReturn(Arrays.asList(overdue, later));
+
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 6000, 100, 2, START_TIME);
+		releaser.tick(START_TIME);
+		assertEquals(2, releaser.getHeldCount());
+		// The second page is found after the last message of the first
+		verify(messageDao).getScheduledMessages(eq(START_TIME + 2000), eq(2L), anyLong(), eq(2));
+
+		releaser.tick(START_TIME + 1000);
+		verify(manager).sendSMS(overdue);
+		assertEquals(Status.OUTBOX, overdue.getStatus());
+		assertEquals(0, overdue.getScheduledTime());
+		verify(messageDao).updateMessage(overdue);
+		verify(manager, never()).sendSMS(later);
+
+		releaser.tick(START_TIME + 4000);
+		verify(manager).sendSMS(later);
+		assertEquals(2, releaser.getReleasedCount());
+		assertEquals(0, releaser.getHeldCount());
+	}
+
+	/** Test that no more than the capacity is loaded, and that loading resumes once messages have been queued. */
+	public void testCapacity() throws Exception {
+		FrontlineMessage first = createScheduledMessage(1, START_TIME - 1000);
+		FrontlineMessage second = createScheduledMessage(2, START_TIME - 1000);
+		FrontlineMessage third = createScheduledMessage(3, START_TIME + 1000);
+		when(messageDao.getScheduledMessages(eq(Long.MIN_VALUE), eq(0L), anyLong(), eq(2))).thenReturn(Arrays.asList(first, second));
+		when(messageDao.getScheduledMessages(eq(START_TIME - 1000), eq(2L), anyLong(), eq(2))).thenReturn(Arrays.asList(third));
+
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 6000, 2, 10, START_TIME);
+		releaser.tick(START_TIME);
+		assertEquals(2, releaser.getHeldCount());
+		verify(messageDao, times(1)).getScheduledMessages(anyLong(), anyLong(), anyLong(), anyInt());
+
+		releaser.tick(START_TIME + 1000);
+		verify(manager).sendSMS(first);
+		verify(manager).sendSMS(second);
+		releaser.tick(START_TIME + 2000);
+		assertEquals(1, releaser.getHeldCount());
+		releaser.tick(START_TIME + 3000);
+		verify(manager).sendSMS(third);
+	}
+
+	/** Test that due messages are queued no faster than the release rate. */
+	public void testRateLimit() throws Exception {
+		FrontlineMessage first = createScheduledMessage(1, START_TIME - 1000);
+		FrontlineMessage second = createScheduledMessage(2, START_TIME - 1000);
+		when(messageDao.getScheduledMessages(eq(Long.MIN_VALUE), eq(0L), anyLong(), anyInt())).thenReturn(Arrays.asList(first, second));
+
+		// One message a second
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 60, 100, 10, START_TIME);
+		releaser.tick(START_TIME);
+		releaser.tick(START_TIME + 1000);
+		verify(manager).sendSMS(first);
+		verify(manager, never()).sendSMS(second);
+		assertEquals(1, releaser.getHeldCount());
+	}
+
+	/** Test that a message is not queued if its status has already been changed, e.g. by another instance. */
+	public void testReleasedElsewhere() throws Exception {
+		FrontlineMessage message = createScheduledMessage(1, START_TIME - 1000);
+		when(messageDao.getScheduledMessages(eq(Long.MIN_VALUE), eq(0L), anyLong(), anyInt())).thenReturn(Arrays.asList(message));
+		when(messageDao.updateMessageStatus(anyCollection(), eq(Status.SCHEDULED), eq(Status.OUTBOX))).thenReturn(0);
+
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 6000, 100, 10, START_TIME);
+		releaser.tick(START_TIME);
+		releaser.tick(START_TIME + 1000);
+		verify(manager, never()).sendSMS(any(FrontlineMessage.class));
+		verify(messageDao, never()).updateMessage(message);
+		assertEquals(0, releaser.getReleasedCount());
+	}
+
+	/** Test that messages scheduled within the loaded window are held, and that scheduled messages can be cancelled. */
+	public void testScheduleAndCancel() throws Exception {
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 6000, 100, 10, START_TIME);
+		releaser.tick(START_TIME);
+
+		FrontlineMessage soon = FrontlineMessage.createOutgoingMessage(START_TIME, "", "+123", "Soon");
+		releaser.schedule(soon, START_TIME + 500);
+		verify(messageDao).saveMessage(soon);
+		assertEquals(Status.SCHEDULED, soon.getStatus());
+		assertEquals(START_TIME + 500, soon.getScheduledTime());
+		assertEquals(1, releaser.getHeldCount());
+
+		// Messages beyond the window are left in the database until the wheel turns towards them
+		FrontlineMessage later = FrontlineMessage.createOutgoingMessage(START_TIME, "", "+123", "Later");
+		releaser.schedule(later, START_TIME + 2 * WINDOW);
+		assertEquals(1, releaser.getHeldCount());
+
+		MessageTestUtils.setId(soon, 1);
+		when(messageDao.updateMessageStatus(Collections.singleton(1L), Status.SCHEDULED, Status.DRAFT)).thenReturn(1);
+		assertTrue(releaser.cancel(soon));
+		assertEquals(0, releaser.getHeldCount());
+		assertEquals(Status.DRAFT, soon.getStatus());
+		verify(messageDao).updateMessage(soon);
+		releaser.tick(START_TIME + 1000);
+		verify(manager, never()).sendSMS(any(FrontlineMessage.class));
+	}
+
+	/** Test that a message which has already been released, e.g. by another instance, is not cancelled. */
+	public void testCancelReleased() throws Exception {
+		FrontlineMessage message = createScheduledMessage(1, START_TIME + 500);
+		when(messageDao.updateMessageStatus(anyCollection(), eq(Status.SCHEDULED), eq(Status.DRAFT))).thenReturn(0);
+
+		ScheduledMessageReleaser releaser = new ScheduledMessageReleaser(messageDao, manager, WINDOW, 6000, 100, 10, START_TIME);
+		assertFalse(releaser.cancel(message));
+		assertEquals(Status.SCHEDULED, message.getStatus());
+		verify(messageDao, never()).updateMessage(message);
+	}
+
+//> PRIVATE HELPER METHODS
+	/**
+	 * Creates a scheduled message with the supplied id, as if it had been loaded from the database.  The text
+	 * includes the id, so that messages released at the same time are not equal.
+	 */
+	private static FrontlineMessage createScheduledMessage(long id, long scheduledTime) {
+		FrontlineMessage message = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+123", "Message " + id);
+		message.setStatus(Status.SCHEDULED);
+		message.setScheduledTime(scheduledTime);
+		return MessageTestUtils.setId(message, id);
+	}
+}
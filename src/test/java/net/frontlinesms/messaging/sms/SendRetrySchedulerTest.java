@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
+
+/**
+ * Unit tests for {@link SendRetryScheduler}.
+ */
+public class SendRetrySchedulerTest extends BaseTestCase {
+	/** Test that the retry delay doubles with each failure, up to the maximum. */
+	public void testBackoff() {
+		SendRetryScheduler scheduler = new SendRetryScheduler(1000, 5000, 0);
+		assertEquals(1000, scheduler.getRetryDelay(1));
+		assertEquals(2000, scheduler.getRetryDelay(2));
+		assertEquals(4000, scheduler.getRetryDelay(3));
+		assertEquals(5000, scheduler.getRetryDelay(4));
+		assertEquals(5000, scheduler.getRetryDelay(100));
+	}
+
+	/** Test that the retry delay is reduced by a random amount of up to the jitter percentage. */
+	public void testJitter() {
+		Random half = new Random() {
+			@Override
+			public double nextDouble() {
+				return 0.5;
+			}
+		};
+		assertEquals(900, new SendRetryScheduler(1000, 1000, 20, half).getRetryDelay(1));
+
+		SendRetryScheduler scheduler = new SendRetryScheduler(1000, 1000, 20);
+		for(int i=0; i<1000; ++i) {
+			long delay = scheduler.getRetryDelay(1);
+			assertTrue("Delay was " + delay, delay > 800 && delay <= 1000);
+		}
+	}
+
+	/** Test that messages are released once they are due, in the order they are due. */
+	public void testPollDue() {
+		SendRetryScheduler scheduler = new SendRetryScheduler(1000, 1000, 0);
+		FrontlineMessage late = createMessage(300);
+		FrontlineMessage early = createMessage(100);
+		FrontlineMessage sameTime = createMessage(100);
+		scheduler.schedule(late);
+		scheduler.schedule(early);
+		scheduler.schedule(sameTime);
+		assertEquals(3, scheduler.size());
+		assertEquals(50, scheduler.getWaitTime(50));
+
+		assertTrue(scheduler.pollDue(99).isEmpty());
+		assertEquals(Arrays.asList(early, sameTime), scheduler.pollDue(200));
+		assertEquals(100, scheduler.getWaitTime(200));
+		assertEquals(Arrays.asList(late), scheduler.pollDue(300));
+		assertEquals(Long.MAX_VALUE, scheduler.getWaitTime(300));
+		assertEquals(0, scheduler.size());
+	}
+
+	/** Test that a waiting message can be cancelled or rescheduled using a copy with the same id. */
+	public void testRemoveAndReschedule() throws Exception {
+		SendRetryScheduler scheduler = new SendRetryScheduler(1000, 1000, 0);
+		FrontlineMessage message = createSavedMessage(100, 1);
+		scheduler.schedule(message);
+		scheduler.schedule(createSavedMessage(200, 2));
+
+		FrontlineMessage rescheduled = createSavedMessage(300, 1);
+		scheduler.schedule(rescheduled);
+		assertEquals(2, scheduler.size());
+		assertTrue(scheduler.pollDue(100).isEmpty());
+
+		assertTrue(scheduler.remove(createSavedMessage(0, 2)));
+		assertFalse(scheduler.remove(createSavedMessage(0, 2)));
+		assertEquals(Arrays.asList(rescheduled), scheduler.pollDue(300));
+	}
+
+//> PRIVATE HELPER METHODS
+	private static FrontlineMessage createMessage(long retryTime) {
+		FrontlineMessage message = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+123", "Message");
+		message.setRetryTime(retryTime);
+		return message;
+	}
+
+	/** Creates a message with the supplied id, as if it had been saved to the database. */
+	private static FrontlineMessage createSavedMessage(long retryTime, long id) {
+		return MessageTestUtils.setId(createMessage(retryTime), id);
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Arrays;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link SharedOutboxClaimer}.
+ */
+public class SharedOutboxClaimerTest extends BaseTestCase {
+	private static final String OWNER = "gateway-a";
+	private static final long LEASE = 60 * 1000;
+	private MessageDao messageDao;
+	private SmsServiceManager manager;
+
+//> TEST META METHODS
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		messageDao = mock(MessageDao.class);
+		manager = mock(SmsServiceManager.class);
+	}
+
+//> TESTS
+	/** Test that new messages are claimed without the database, and saved messages with a compare-and-set update. */
+	public void testClaim() throws Exception {
+		SharedOutboxClaimer claimer = new SharedOutboxClaimer(messageDao, manager, OWNER, LEASE, 10);
+		FrontlineMessage unsaved = createMessage(0);
+		claimer.claimUnsaved(unsaved);
+		assertEquals(OWNER, unsaved.getClaimOwner());
+		assertTrue(unsaved.getClaimExpiry() > System.currentTimeMillis());
+		assertTrue(claimer.claim(unsaved));
+
+		FrontlineMessage mine = createMessage(1);
+		FrontlineMessage theirs = createMessage(2);
+		when(messageDao.claimMessage(eq(1L), eq(OWNER), anyLong(), anyLong())).thenReturn(true);
+		assertTrue(claimer.claim(mine));
+		assertEquals(OWNER, mine.getClaimOwner());
+		assertFalse(claimer.claim(theirs));
+		assertNull(theirs.getClaimOwner());
+
+		// Claims which are still held are not claimed again
+		assertTrue(claimer.claim(mine));
+		verify(messageDao, times(1)).claimMessage(eq(1L), anyString(), anyLong(), anyLong());
+	}
+
+	/** Test that a batch is only claimed when there is space in the queue, and that claimed messages are queued. */
+	public void testPoll() throws Exception {
+		FrontlineMessage first = createMessage(1);
+		FrontlineMessage second = createMessage(2);
+		when(messageDao.claimMessages(eq(OWNER), anyLong(), anyLong(), eq(2))).thenReturn(Arrays.asList(first, second));
+		when(manager.getQueuedMessageCount()).thenReturn(2, 1);
+
+		SharedOutboxClaimer claimer = new SharedOutboxClaimer(messageDao, manager, OWNER, LEASE, 2);
+		assertEquals(0, claimer.poll(System.currentTimeMillis()));
+		verify(messageDao, never()).claimMessages(anyString(), anyLong(), anyLong(), anyInt());
+
+		assertEquals(2, claimer.poll(System.currentTimeMillis()));
+		verify(manager).sendSMS(first);
+		verify(manager).sendSMS(second);
+		assertEquals(2, claimer.getClaimedCount());
+	}
+
+	/** Test that claims are renewed well before they expire, and only released once requested after the claimer has stopped. */
+	public void testRenewAndRelease() {
+		when(manager.getQueuedMessageCount()).thenReturn(100);
+		SharedOutboxClaimer claimer = new SharedOutboxClaimer(messageDao, manager, OWNER, LEASE, 2);
+		long now = System.currentTimeMillis();
+		claimer.poll(now + 1000);
+		verify(messageDao, never()).renewClaims(anyString(), anyLong());
+
+		claimer.poll(now + LEASE / 2);
+		verify(messageDao).renewClaims(OWNER, now + LEASE / 2 + LEASE);
+
+		claimer.stopRunning();
+		assertEquals(0, claimer.poll(now + LEASE));
+		verify(messageDao, never()).releaseClaims(anyString());
+		claimer.releaseClaims();
+		verify(messageDao).releaseClaims(OWNER);
+	}
+
+//> PRIVATE HELPER METHODS
+	/** Creates an outgoing message with the supplied id, as if it had been saved to the database. */
+	private static FrontlineMessage createMessage(long id) {
+		return MessageTestUtils.setId(FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+123", "Message " + id), id);
+	}
+}
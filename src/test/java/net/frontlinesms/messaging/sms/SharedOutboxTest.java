@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Required;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
+import net.frontlinesms.junit.HibernateTestCase;
+import net.frontlinesms.messaging.sms.internet.SmsInternetService;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests two instances, each with its own {@link SmsServiceManager} and {@link SharedOutboxClaimer}, sending
+ * messages from an outbox shared in one database.
+ */
+public class SharedOutboxTest extends HibernateTestCase {
+	private static final long LEASE = 60 * 1000;
+	private static final int BATCH_SIZE = 4;
+	private static final int MESSAGE_COUNT = 10;
+
+	/** Data access object shared by both instances */
+	private MessageDao messageDao;
+	/** Factory providing the session the test runs in */
+	private SessionFactory sessionFactory;
+
+//> TESTS
+	/**
+	 * Test that each message is sent by exactly one instance, including messages left by an instance which
+	 * stops, and that the status of a sent message is saved without overwriting claims.
+	 */
+	public void testTwoInstances() {
+		long now = System.currentTimeMillis();
+		List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>();
+		for(int i=0; i<MESSAGE_COUNT; ++i) {
+			FrontlineMessage message = FrontlineMessage.createOutgoingMessage(now, "", "+2547000000" + i, "Message " + i);
+			message.setStatus(Status.OUTBOX);
+			messageDao.saveMessage(message);
+			messages.add(message);
+		}
+
+		List<FrontlineMessage> sentByA = new ArrayList<FrontlineMessage>();
+		List<FrontlineMessage> sentByB = new ArrayList<FrontlineMessage>();
+		SmsServiceManager managerA = createManager(sentByA);
+		SmsServiceManager managerB = createManager(sentByB);
+		SharedOutboxClaimer claimerA = new SharedOutboxClaimer(messageDao, managerA, "a", LEASE, BATCH_SIZE);
+		SharedOutboxClaimer claimerB = new SharedOutboxClaimer(messageDao, managerB, "b", LEASE, BATCH_SIZE);
+		managerA.setOutboxClaimer(claimerA);
+		managerB.setOutboxClaimer(claimerB);
+
+		// Each instance claims a different batch, and sends it
+		assertEquals(BATCH_SIZE, claimerA.poll(now));
+		assertEquals(BATCH_SIZE, claimerB.poll(now));
+		managerA.doRun();
+		managerB.doRun();
+		assertEquals(BATCH_SIZE, sentByA.size());
+		assertEquals(BATCH_SIZE, sentByB.size());
+
+		// A claims the rest, but stops before sending them, and releases its claims once it has stopped
+		assertEquals(MESSAGE_COUNT - 2 * BATCH_SIZE, claimerA.poll(now + 1000));
+		claimerA.stopRunning();
+		claimerA.releaseClaims();
+		// Saving the messages, as when A's statuses are written after its claims are released, must not claim them again.
+		// The messages are detached, as they are when written by the MessageStatusWriter, so that the whole row is updated.
+		detachMessages();
+		for(FrontlineMessage message : messages.subList(2 * BATCH_SIZE, MESSAGE_COUNT)) {
+			assertEquals("a", message.getClaimOwner());
+			messageDao.updateMessage(message);
+		}
+		assertEquals(MESSAGE_COUNT - 2 * BATCH_SIZE, claimerB.poll(now + 2000));
+		managerB.doRun();
+
+		// Sent messages are not claimed again, even once their claims have expired
+		assertEquals(0, claimerB.poll(now + 3 * LEASE));
+		for(FrontlineMessage message : messages) {
+			assertFalse(messageDao.claimMessage(message.getId(), "c", now + 3 * LEASE, now + 4 * LEASE));
+		}
+
+		Set<FrontlineMessage> sent = new HashSet<FrontlineMessage>(sentByA);
+		for(FrontlineMessage message : sentByB) {
+			assertTrue("Message was sent by both instances: " + message.getTextContent(), sent.add(message));
+		}
+		assertEquals(new HashSet<FrontlineMessage>(messages), sent);
+	}
+
+//> PRIVATE HELPER METHODS
+	/** Writes changes to the messages in the current session to the database, and detaches them from the session. */
+	private void detachMessages() {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		session.clear();
+	}
+
+	/**
+	 * Creates a manager with one connected internet service, which saves each message it sends as
+	 * {@link Status#SENT}, as the {@link net.frontlinesms.messaging.MessageStatusWriter} does.
+	 * @param sent list the messages sent by the service are added to
+	 */
+	private SmsServiceManager createManager(final List<FrontlineMessage> sent) {
+		SmsInternetService service = mock(SmsInternetService.class);
+		when(service.isConnected()).thenReturn(true);
+		when(service.isUseForSending()).thenReturn(true);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				FrontlineMessage message = (FrontlineMessage) invocation.getArguments()[0];
+				message.setStatus(Status.SENT);
+				messageDao.updateMessage(message);
+				sent.add(message);
+				return null;
+			}
+		}).when(service).sendSMS(any(FrontlineMessage.class));
+
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.addSmsInternetService(service);
+		return manager;
+	}
+
+//> ACCESSORS
+	@Required
+	public void setMessageDao(MessageDao messageDao) {
+		this.messageDao = messageDao;
+	}
+
+	@Required
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+}
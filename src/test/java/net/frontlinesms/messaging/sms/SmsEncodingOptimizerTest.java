@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link SmsEncodingOptimizer}.
+ */
+public class SmsEncodingOptimizerTest extends BaseTestCase {
+	/** Text padded so that it fits in one GSM part, but not in one UCS-2 part */
+	private static final String PADDING = " Please reply to this message before the end of the week so that we can confirm your place.";
+
+	private final SmsEncodingOptimizer optimizer = new SmsEncodingOptimizer();
+
+	/** Test that characters forcing UCS-2 are replaced when that reduces the number of parts. */
+	public void testReplaceWhenPartsSaved() {
+		String text = "It\u2019s \u201Cfree\u201D \u2013 caf\u00E9 na\u00EFve\u2026" + PADDING;
+		assertEquals(2, GsmCharacterClassifier.countParts(text));
+		String optimized = optimizer.optimize(text);
+		assertEquals("It's \"free\" - caf\u00E9 naive..." + PADDING, optimized);
+		assertEquals(1, GsmCharacterClassifier.countParts(optimized));
+	}
+
+	/** Test that text is left as written when replacing characters would not reduce the number of parts. */
+	public void testUnchangedWhenNoPartsSaved() {
+		String shortText = "It\u2019s here";
+		assertSame(shortText, optimizer.optimize(shortText));
+
+		// A character with no replacement still forces UCS-2
+		String unmapped = "It\u2019s \u4E2D" + PADDING;
+		assertSame(unmapped, optimizer.optimize(unmapped));
+
+		String gsm = "Plain text" + PADDING;
+		assertSame(gsm, optimizer.optimize(gsm));
+		assertNull(optimizer.optimize((String) null));
+	}
+
+	/** Test that the default transliterations can be overridden. */
+	public void testOverrides() {
+		StringBuilder bob = new StringBuilder();
+		while(bob.length() < 159) bob.append('a');
+		String euro = bob + "\u20AC";
+		assertSame(euro, optimizer.optimize(euro));
+
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put("\u20AC", "E");
+		overrides.put("\u2019", "");
+		overrides.put("not a character", "x");
+		SmsEncodingOptimizer custom = SmsEncodingOptimizer.create(overrides);
+		assertEquals(bob + "E", custom.optimize(euro));
+		String quote = "It\u2019s" + PADDING;
+		assertSame(quote, custom.optimize(quote));
+	}
+
+	/** Test that a message's text and part count are updated, and the parts saved are reported. */
+	public void testOptimizeMessage() {
+		FrontlineMessage message = FrontlineMessage.createOutgoingMessage(0, "", "+123", "It\u2019s" + PADDING);
+		assertEquals(1, optimizer.optimize(message));
+		assertEquals("It's" + PADDING, message.getTextContent());
+		assertEquals(1, message.getSmsPartsCount());
+		assertEquals(0, optimizer.optimize(message));
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.messaging.sms.SmsRoutingTable.Route;
+
+/**
+ * Unit tests for {@link SmsRoutingTable}.
+ */
+public class SmsRoutingTableTest extends BaseTestCase {
+	/** Test that the route for the longest matching prefix is chosen. */
+	public void testLongestPrefix() {
+		SmsRoutingTable table = createTable(
+				"+254", "safaricom;clickatell",
+				"+2547", "airtel",
+				"+25473", "yu");
+		assertEquals(3, table.size());
+
+		assertTier(table, "+254712345678", "airtel", Route.PREFERRED);
+		assertTier(table, "+254732345678", "yu", Route.PREFERRED);
+		assertTier(table, "+254732345678", "airtel", Route.UNLISTED);
+		assertTier(table, "+254202345678", "safaricom", Route.PREFERRED);
+		assertTier(table, "+254202345678", "clickatell", Route.FALLBACK);
+		assertNull(table.getRoute("+447700900123"));
+		assertNull(table.getRoute("+25"));
+		assertNull(table.getRoute(null));
+	}
+
+	/** Test that characters other than digits are ignored in both prefixes and numbers. */
+	public void testNonDigits() {
+		SmsRoutingTable table = createTable("44 77", "modem1");
+		assertTier(table, "+44 7700-900123", "modem1", Route.PREFERRED);
+		assertTier(table, "447700900123", "modem1", Route.PREFERRED);
+		assertNull(table.getRoute("4478"));
+	}
+
+	/** Test that entries without a numeric prefix or without any services are ignored. */
+	public void testInvalidEntries() {
+		SmsRoutingTable table = createTable(
+				"+", "modem1",
+				"+1", " ; , ",
+				"+2", "modem2, modem3 ; modem4");
+		assertEquals(1, table.size());
+		assertNull(table.getRoute("+1555"));
+		assertTier(table, "+2555", "modem3", Route.PREFERRED);
+		assertTier(table, "+2555", "modem4", Route.FALLBACK);
+		assertEquals(0, SmsRoutingTable.EMPTY.size());
+		assertNull(SmsRoutingTable.EMPTY.getRoute("+2555"));
+	}
+
+	/** Test that a table with many routes is built and searched correctly. */
+	public void testManyRoutes() {
+		Map<String, String> entries = new HashMap<String, String>();
+		for(int i=0; i<1000; ++i) {
+			entries.put("+1" + i, "service" + i);
+		}
+		SmsRoutingTable table = SmsRoutingTable.create(entries);
+		assertEquals(1000, table.size());
+		assertTier(table, "+1999", "service999", Route.PREFERRED);
+		assertTier(table, "+15551234", "service555", Route.PREFERRED);
+		assertTier(table, "+11005", "service100", Route.PREFERRED);
+	}
+
+//> PRIVATE HELPER METHODS
+	/** Creates a routing table from pairs of prefixes and routes. */
+	private static SmsRoutingTable createTable(String... prefixesAndRoutes) {
+		Map<String, String> entries = new HashMap<String, String>();
+		for(int i=0; i<prefixesAndRoutes.length; i+=2) {
+			entries.put(prefixesAndRoutes[i], prefixesAndRoutes[i + 1]);
+		}
+		return SmsRoutingTable.create(entries);
+	}
+
+	private static void assertTier(SmsRoutingTable table, String msisdn, String routingId, int expectedTier) {
+		Route route = table.getRoute(msisdn);
+		assertNotNull("No route for " + msisdn, route);
+		assertEquals(expectedTier, route.getTier(routingId));
+	}
+}
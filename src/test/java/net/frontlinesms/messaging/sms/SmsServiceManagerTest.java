@@ -4,18 +4,26 @@
 package net.frontlinesms.messaging.sms;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import org.mockito.internal.verification.NoMoreInteractions;
 import org.mockito.internal.verification.Times;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.smslib.CIncomingMessage;
 
 import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.data.domain.FrontlineMessage.Priority;
 import net.frontlinesms.data.domain.FrontlineMessage.Status;
+import net.frontlinesms.data.repository.MessageDao;
 import net.frontlinesms.events.EventBus;
 import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
 import net.frontlinesms.messaging.sms.MessageType;
 import net.frontlinesms.messaging.sms.SmsServiceManager;
 import net.frontlinesms.messaging.sms.events.SmsServiceStatusNotification;
@@ -31,8 +39,8 @@ import static org.mockito.Mockito.*;
  */
 public class SmsServiceManagerTest extends BaseTestCase {
 	/**
-	 * Test that all messages sent will be given to the {@link SmsInternetService} in preference to
-	 * any {@link SmsModem}s available.
+	 * Test that text messages are shared between all {@link SmsInternetService}s and {@link SmsModem}s
+	 * which are available for sending.
 	 */
 	public void testMessageDispatchPriorities_text() {
 		SmsServiceManager manager = new SmsServiceManager();
@@ -53,17 +61,17 @@ public class SmsServiceManagerTest extends BaseTestCase {
 		
 		manager.doRun();
 		
-		// Check that all messages were sent with the TWO functioning internet services, and nothing else
-		verify(modem, never()).sendSMS(any(FrontlineMessage.class));
+		// Check that all messages were shared between the TWO functioning internet services and the modem, and nothing else
+		verify(modem, times(6)).sendSMS(any(FrontlineMessage.class));
 		verify(sisNoSend, never()).sendSMS(any(FrontlineMessage.class));
 		verify(sisNoSendNoBinary, never()).sendSMS(any(FrontlineMessage.class));
-		verify(sisBinary, times(10)).sendSMS(any(FrontlineMessage.class));
-		verify(sisNoBinary, times(10)).sendSMS(any(FrontlineMessage.class));
+		verify(sisBinary, times(7)).sendSMS(any(FrontlineMessage.class));
+		verify(sisNoBinary, times(7)).sendSMS(any(FrontlineMessage.class));
 	}
 	
 	/**
-	 * Test that all messages sent will be given to the {@link SmsInternetService} in preference to
-	 * any {@link SmsModem}s available.
+	 * Test that binary messages are shared between all {@link SmsInternetService}s and {@link SmsModem}s
+	 * which are available for sending and support binary messages.
 	 */
 	public void testMessageDispatchPriorities_binary() {
 		SmsServiceManager manager = new SmsServiceManager();
@@ -84,12 +92,262 @@ public class SmsServiceManagerTest extends BaseTestCase {
 		
 		manager.doRun();
 		
-		// Check that all messages were sent with the ONE internet services which is functioning and sends binary, and nothing else
-		verify(modem, never()).sendSMS(any(FrontlineMessage.class));
+		// Check that all messages were shared between the ONE internet service which is functioning and sends binary, and the modem
+		verify(modem, times(10)).sendSMS(any(FrontlineMessage.class));
 		verify(sisNoSend, never()).sendSMS(any(FrontlineMessage.class));
 		verify(sisNoSendNoBinary, never()).sendSMS(any(FrontlineMessage.class));
 		verify(sisNoBinary, never()).sendSMS(any(FrontlineMessage.class));
-		verify(sisBinary, times(20)).sendSMS(any(FrontlineMessage.class));
+		verify(sisBinary, times(10)).sendSMS(any(FrontlineMessage.class));
+	}
+	
+	/**
+	 * Test that a device is not given messages faster than its send rate allows, and that the messages it
+	 * cannot take are sent with other devices, or left in the outbox if no device can take them.
+	 */
+	public void testRateLimitedDispatch() {
+		SmsServiceManager manager = new SmsServiceManager();
+		
+		SmsInternetService limited = createMockSmsInternetService(true, true);
+		when(limited.getSendRateLimiter()).thenReturn(new TokenBucket(1, 2));
+		manager.addSmsInternetService(limited);
+		SmsModem unlimited = createMockModem(true, false, true, true);
+		addModem(manager, unlimited, "Unlimited");
+		
+		sendSms(manager, generateMessages(10, MessageType.GSM7BIT_TEXT));
+		manager.doRun();
+		
+		verify(limited, times(2)).sendSMS(any(FrontlineMessage.class));
+		verify(unlimited, times(8)).sendSMS(any(FrontlineMessage.class));
+		
+		// Once the unlimited modem stops sending, the limited service has no tokens left for new messages
+		when(unlimited.isUseForSending()).thenReturn(false);
+		Collection<FrontlineMessage> held = generateMessages(3, MessageType.GSM7BIT_TEXT);
+		sendSms(manager, held);
+		manager.doRun();
+		
+		verify(limited, times(2)).sendSMS(any(FrontlineMessage.class));
+		for(FrontlineMessage m : held) {
+			assertEquals(Status.OUTBOX, m.getStatus());
+		}
+	}
+	
+	/**
+	 * Test that a message which failed to send is held until its retry delay has passed, and is then
+	 * retried on a different device.
+	 */
+	public void testDelayedRetry() throws Exception {
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.getSendRetryScheduler().setRetryPolicy(100, 100, 0);
+		manager.setRetryOnOtherDevice(true);
+		SmsModem failing = createMockModem(true, false, true, true);
+		addModem(manager, failing, "Failing");
+		SmsModem other = createMockModem(false, false, true, true);
+		addModem(manager, other, "Other");
+		
+		FrontlineMessage m = MessageTestUtils.setId(generateMessages(1, MessageType.GSM7BIT_TEXT).iterator().next(), 1);
+		m.setRetriesRemaining(FrontlineMessage.MAX_RETRIES);
+		manager.sendSMS(m);
+		manager.doRun();
+		verify(failing).sendSMS(m);
+		
+		long failedAt = System.currentTimeMillis();
+		m.setStatus(Status.FAILED);
+		manager.outgoingMessageEvent(failing, m);
+		assertEquals(Status.OUTBOX, m.getStatus());
+		assertEquals(FrontlineMessage.MAX_RETRIES - 1, m.getRetriesRemaining());
+		assertTrue(m.getRetryTime() >= failedAt + 100);
+		assertEquals(1, manager.getQueuedMessageCount());
+		
+		// The message is not retried before it is due, even though a device is available
+		when(other.isUseForSending()).thenReturn(true);
+		manager.doRun();
+		verify(failing, times(1)).sendSMS(m);
+		verify(other, never()).sendSMS(m);
+		
+		Thread.sleep(150);
+		manager.doRun();
+		verify(failing, times(1)).sendSMS(m);
+		verify(other).sendSMS(m);
+		assertEquals(0, m.getRetryTime());
+	}
+	
+	/** Test that a message waiting to be retried can be removed from the outbox. */
+	public void testRemoveWaitingRetry() {
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.getSendRetryScheduler().setRetryPolicy(60000, 60000, 0);
+		FrontlineMessage m = generateMessages(1, MessageType.GSM7BIT_TEXT).iterator().next();
+		m.setRetriesRemaining(1);
+		m.setStatus(Status.FAILED);
+		manager.outgoingMessageEvent(null, m);
+		assertEquals(1, manager.getQueuedMessageCount());
+		
+		manager.removeFromOutbox(m);
+		assertEquals(0, manager.getQueuedMessageCount());
+	}
+	
+	/**
+	 * Test that saved messages queued beyond the memory limit are held as ids, and loaded as the messages in
+	 * memory are sent, dropping any which have been deleted.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testSpillSavedMessages() throws Exception {
+		SmsServiceManager manager = new SmsServiceManager();
+		final Map<Long, FrontlineMessage> saved = new HashMap<Long, FrontlineMessage>();
+		MessageDao messageDao = mock(MessageDao.class);
+		when(messageDao.getMessagesById(anyCollection())).thenAnswer(new Answer<List<FrontlineMessage>>() {
+			public List<FrontlineMessage> answer(InvocationOnMock invocation) {
+				List<FrontlineMessage> found = new ArrayList<FrontlineMessage>();
+				for(Long id : (Collection<Long>) invocation.getArguments()[0]) {
+					if(saved.containsKey(id)) found.add(saved.get(id));
+				}
+				return found;
+			}
+		});
+		manager.setMemoryQueueLimit(messageDao, 2);
+		
+		List<FrontlineMessage> messages = new ArrayList<FrontlineMessage>(generateMessages(6, MessageType.GSM7BIT_TEXT));
+		for(int i=0; i<5; ++i) {
+			saved.put(i + 1L, MessageTestUtils.setId(messages.get(i), i + 1));
+		}
+		messages.get(4).setPriority(Priority.HIGH);
+		FrontlineMessage unsaved = messages.get(5);
+		
+		// Unsaved and high priority messages are always held in memory
+		sendSms(manager, messages);
+		assertEquals(2, manager.getSpilledMessageCount());
+		assertEquals(6, manager.getQueuedMessageCount());
+		saved.remove(3L);
+		
+		SmsModem modem = createMockModem(true, false, true, true);
+		addModem(manager, modem, "Modem");
+		manager.doRun();
+		verify(modem, times(4)).sendSMS(any(FrontlineMessage.class));
+		verify(modem).sendSMS(unsaved);
+		verify(modem).sendSMS(messages.get(4));
+		verify(messageDao, never()).getMessagesById(anyCollection());
+		
+		manager.doRun();
+		verify(modem, times(5)).sendSMS(any(FrontlineMessage.class));
+		verify(modem).sendSMS(messages.get(3));
+		verify(modem, never()).sendSMS(messages.get(2));
+		assertEquals(0, manager.getSpilledMessageCount());
+		assertEquals(0, manager.getQueuedMessageCount());
+	}
+	
+	/**
+	 * Test that messages are sent with the devices preferred for their recipients, then with the fallback
+	 * devices, and that the routing table can be replaced between dispatch passes.
+	 */
+	public void testRouting() {
+		SmsServiceManager manager = new SmsServiceManager();
+		SmsModem cheap = createMockModem(true, false, true, true);
+		when(cheap.getSerial()).thenReturn("cheap");
+		addModem(manager, cheap, "Cheap");
+		SmsModem other = createMockModem(true, false, true, true);
+		when(other.getSerial()).thenReturn("other");
+		addModem(manager, other, "Other");
+		SmsInternetService aggregator = createMockSmsInternetService(true, true);
+		when(aggregator.getIdentifier()).thenReturn("aggregator");
+		manager.addSmsInternetService(aggregator);
+		
+		Map<String, String> routes = new HashMap<String, String>();
+		routes.put("+44", "cheap;aggregator");
+		routes.put("+1", "other");
+		manager.setRoutingTable(SmsRoutingTable.create(routes));
+		
+		FrontlineMessage uk = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+447700900123", "Hello");
+		FrontlineMessage us = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+15550100", "Hello");
+		manager.sendSMS(uk);
+		manager.sendSMS(us);
+		manager.doRun();
+		verify(cheap).sendSMS(uk);
+		verify(other).sendSMS(us);
+		
+		// Messages go to the fallback device while the preferred device is unavailable
+		when(cheap.isUseForSending()).thenReturn(false);
+		for(int i=0; i<5; ++i) {
+			manager.sendSMS(FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+44770090012" + i, "Hello"));
+		}
+		manager.doRun();
+		verify(aggregator, times(5)).sendSMS(any(FrontlineMessage.class));
+		verify(other, times(1)).sendSMS(any(FrontlineMessage.class));
+		// Each device's routing id is worked out once per pass, not once per message
+		verify(aggregator, times(2)).getIdentifier();
+		
+		// Without a route, any device may be used
+		manager.setRoutingTable(null);
+		sendSms(manager, generateMessages(20, MessageType.GSM7BIT_TEXT));
+		manager.doRun();
+		verify(other, atLeast(2)).sendSMS(any(FrontlineMessage.class));
+	}
+	
+	/**
+	 * Test that the waiting messages of a modem which has stopped sending are moved to an idle modem, and
+	 * that messages the idle modem cannot send are put back in the outbox.
+	 */
+	public void testStealFromStalledModem() {
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.setModemStallTimeout(1000);
+		SmsModem stalled = createMockModem(true, false, true, true);
+		addModem(manager, stalled, "Stalled");
+		SmsModem idle = createMockModem(true, false, false, true);
+		addModem(manager, idle, "Idle");
+		
+		List<FrontlineMessage> waiting = new ArrayList<FrontlineMessage>(generateMessages(2, MessageType.GSM7BIT_TEXT));
+		FrontlineMessage binary = generateMessages(1, MessageType.BINARY).iterator().next();
+		waiting.add(binary);
+		when(stalled.getOutboxSize()).thenReturn(3);
+		when(stalled.getTimeOfLastSend()).thenReturn(System.currentTimeMillis() - 2000);
+		when(stalled.stealMessages(3)).thenReturn(waiting);
+		manager.doRun();
+		
+		verify(idle).sendSMS(waiting.get(0));
+		verify(idle).sendSMS(waiting.get(1));
+		verify(idle, never()).sendSMS(binary);
+		assertEquals(Status.OUTBOX, binary.getStatus());
+	}
+	
+	/** Test that messages are not taken from a modem which has disconnected, as it fails the messages it holds. */
+	public void testNoStealFromDisconnectedModem() {
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.setModemStallTimeout(1000);
+		SmsModem disconnected = createMockModem(true, false, true, true);
+		when(disconnected.isConnected()).thenReturn(false);
+		addModem(manager, disconnected, "Disconnected");
+		SmsModem idle = createMockModem(true, false, true, true);
+		addModem(manager, idle, "Idle");
+		
+		when(disconnected.getOutboxSize()).thenReturn(3);
+		when(disconnected.getTimeOfLastSend()).thenReturn(System.currentTimeMillis() - 2000);
+		manager.doRun();
+		verify(disconnected, never()).stealMessages(anyInt());
+	}
+	
+	/**
+	 * Test that a modem which is still sending only has messages taken once its backlog is large enough,
+	 * and then shares the backlog evenly with the idle modems.
+	 */
+	public void testStealFromBackedUpModem() {
+		SmsServiceManager manager = new SmsServiceManager();
+		manager.setModemStallTimeout(60000);
+		SmsModem busy = createMockModem(true, false, true, true);
+		addModem(manager, busy, "Busy");
+		SmsModem idle1 = createMockModem(true, false, true, true);
+		addModem(manager, idle1, "Idle1");
+		SmsModem idle2 = createMockModem(true, false, true, true);
+		addModem(manager, idle2, "Idle2");
+		when(busy.getTimeOfLastSend()).thenReturn(System.currentTimeMillis());
+		
+		when(busy.getOutboxSize()).thenReturn(10);
+		manager.doRun();
+		verify(busy, never()).stealMessages(anyInt());
+		
+		List<FrontlineMessage> stolen = new ArrayList<FrontlineMessage>(generateMessages(20, MessageType.GSM7BIT_TEXT));
+		when(busy.getOutboxSize()).thenReturn(30);
+		when(busy.stealMessages(20)).thenReturn(stolen);
+		manager.doRun();
+		verify(idle1, times(10)).sendSMS(any(FrontlineMessage.class));
+		verify(idle2, times(10)).sendSMS(any(FrontlineMessage.class));
 	}
 	
 	/** Test that text messages are sent only with suitable modems. */
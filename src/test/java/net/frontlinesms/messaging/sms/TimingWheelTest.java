@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.junit.MessageTestUtils;
+
+/**
+ * Unit tests for {@link TimingWheel}.
+ */
+public class TimingWheelTest extends BaseTestCase {
+	/** Test that messages are released once the tick they are due in has passed, in the order of their ticks. */
+	public void testAdvance() {
+		TimingWheel wheel = new TimingWheel(100, 10, 1000);
+		FrontlineMessage late = createMessage();
+		FrontlineMessage early = createMessage();
+		FrontlineMessage sameTick = createMessage();
+		assertTrue(wheel.add(late, 1350));
+		assertTrue(wheel.add(early, 1150));
+		assertTrue(wheel.add(sameTick, 1100));
+		assertEquals(3, wheel.size());
+
+		assertTrue(wheel.advance(1199).isEmpty());
+		assertEquals(Arrays.asList(early, sameTick), wheel.advance(1200));
+		assertTrue(wheel.advance(1399).isEmpty());
+		assertEquals(Arrays.asList(late), wheel.advance(1400));
+		assertEquals(0, wheel.size());
+	}
+
+	/** Test that only messages before the horizon are held, and that the horizon moves as the wheel turns. */
+	public void testHorizon() {
+		TimingWheel wheel = new TimingWheel(100, 10, 1000);
+		assertEquals(2000, wheel.getHorizon());
+		assertTrue(wheel.add(createMessage(), 1999));
+		assertFalse(wheel.add(createMessage(), 2000));
+
+		wheel.advance(1500);
+		assertEquals(2500, wheel.getHorizon());
+		FrontlineMessage message = createMessage();
+		assertTrue(wheel.add(message, 2400));
+		// The slot reused for this message's tick must not still hold the earlier message
+		assertEquals(1, wheel.advance(2000).size());
+		assertEquals(Arrays.asList(message), wheel.advance(2500));
+	}
+
+	/** Test that overdue messages are released by the next turn, and that a long pause releases every message. */
+	public void testOverdueAndLongPause() {
+		TimingWheel wheel = new TimingWheel(100, 10, 1000);
+		FrontlineMessage overdue = createMessage();
+		assertTrue(wheel.add(overdue, 0));
+		assertEquals(Arrays.asList(overdue), wheel.advance(1100));
+
+		for(int i=0; i<10; ++i) {
+			wheel.add(createMessage(), 1100 + i * 100);
+		}
+		List<FrontlineMessage> due = wheel.advance(100000);
+		assertEquals(10, due.size());
+		assertEquals(100000 + 1000, wheel.getHorizon());
+	}
+
+	/** Test that a held message can be removed or rescheduled using a copy with the same id. */
+	public void testRemoveAndReschedule() throws Exception {
+		TimingWheel wheel = new TimingWheel(100, 10, 1000);
+		wheel.add(createSavedMessage(1), 1100);
+		wheel.add(createSavedMessage(2), 1100);
+		FrontlineMessage rescheduled = createSavedMessage(1);
+		assertTrue(wheel.add(rescheduled, 1500));
+		assertEquals(2, wheel.size());
+
+		assertTrue(wheel.remove(createSavedMessage(2)));
+		assertFalse(wheel.remove(createSavedMessage(2)));
+		assertTrue(wheel.advance(1200).isEmpty());
+		assertEquals(Arrays.asList(rescheduled), wheel.advance(1600));
+	}
+
+//> PRIVATE HELPER METHODS
+	private static FrontlineMessage createMessage() {
+		return FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+123", "Message");
+	}
+
+	/** Creates a message with the supplied id, as if it had been saved to the database. */
+	private static FrontlineMessage createSavedMessage(long id) {
+		return MessageTestUtils.setId(createMessage(), id);
+	}
+}
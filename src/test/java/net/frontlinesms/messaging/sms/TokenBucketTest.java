@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link TokenBucket}.
+ */
+public class TokenBucketTest extends BaseTestCase {
+	/** Test that a new bucket allows a burst of messages, and then no more. */
+	public void testBurst() {
+		TestTokenBucket bucket = new TestTokenBucket(60, 3);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.hasToken());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.hasToken());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	/** Test that tokens are added at the configured rate, and no more than the burst size are kept. */
+	public void testRefill() {
+		TestTokenBucket bucket = new TestTokenBucket(120, 2);
+		bucket.tryAcquire();
+		bucket.tryAcquire();
+		assertEquals(500, bucket.getWaitTime());
+
+		bucket.now += 250;
+		assertFalse(bucket.tryAcquire());
+		assertEquals(250, bucket.getWaitTime());
+
+		bucket.now += 250;
+		assertEquals(0, bucket.getWaitTime());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+
+		// A long idle period only fills the bucket up to the burst size
+		bucket.now += 60 * 1000;
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	/** Test that invalid settings are rejected or corrected. */
+	public void testSettings() {
+		try {
+			new TokenBucket(0, 1);
+			fail("A rate of zero should not be allowed.");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+		assertEquals(1, new TokenBucket(10, 0).getBurst());
+	}
+
+//> INNER CLASSES
+	/** {@link TokenBucket} whose clock is controlled by the test */
+	private static class TestTokenBucket extends TokenBucket {
+		/** The current time, in millis */
+		private long now;
+
+		TestTokenBucket(int rate, int burst) {
+			super(rate, burst);
+		}
+
+		@Override
+		long currentTimeMillis() {
+			return now;
+		}
+	}
+}
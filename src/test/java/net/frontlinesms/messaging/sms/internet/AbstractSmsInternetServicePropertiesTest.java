@@ -5,8 +5,10 @@ package net.frontlinesms.messaging.sms.internet;
 
 import java.util.*;
 
+import net.frontlinesms.data.domain.SmsInternetServiceSettings;
 import net.frontlinesms.data.domain.SmsInternetServiceSettingsTest.Test;
 import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.messaging.sms.TokenBucket;
 import net.frontlinesms.messaging.sms.internet.AbstractSmsInternetService;
 import net.frontlinesms.messaging.sms.properties.OptionalRadioSection;
 import net.frontlinesms.messaging.sms.properties.OptionalSection;
@@ -90,6 +92,30 @@ public class AbstractSmsInternetServicePropertiesTest extends BaseTestCase {
 		assertNull("Checking get value from null map", AbstractSmsInternetService.getValue(invalidKey, defaultSettings));
 	}
 	
+	/**
+	 * Test that the send rate limiter is built from the settings when they are set, and only replaced when
+	 * the rate or burst changes.
+	 */
+	public void testSendRateLimiter() {
+		ClickatellInternetService service = new ClickatellInternetService();
+		assertNull(service.getSendRateLimiter());
+		
+		SmsInternetServiceSettings settings = new SmsInternetServiceSettings(service);
+		service.setSettings(settings);
+		TokenBucket limiter = service.getSendRateLimiter();
+		assertEquals(1800, limiter.getRate());
+		assertEquals(30, limiter.getBurst());
+		service.setSettings(settings);
+		assertSame(limiter, service.getSendRateLimiter());
+		
+		settings.set(AbstractSmsInternetService.PROPERTY_MAX_SEND_RATE, 60);
+		service.setSettings(settings);
+		assertEquals(60, service.getSendRateLimiter().getRate());
+		
+		service.setProperty(AbstractSmsInternetService.PROPERTY_MAX_SEND_RATE, 0);
+		assertNull(service.getSendRateLimiter());
+	}
+	
 	@Override
 	protected void tearDown() throws Exception {
 		defaultSettings.clear();
@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package net.frontlinesms.messaging.sms.modem;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.smslib.CIncomingMessage;
+import org.smslib.COutgoingMessage;
+import org.smslib.CService;
+import org.smslib.CService.MessageClass;
+
+import net.frontlinesms.data.domain.FrontlineMessage;
+import net.frontlinesms.junit.BaseTestCase;
+import net.frontlinesms.listener.SmsListener;
+import net.frontlinesms.messaging.sms.SmsService;
+import net.frontlinesms.messaging.sms.SmsServiceManager;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests an {@link SmsModem} running on its own thread with a {@link SmsServiceManager}, with the phone
+ * simulated by a mock {@link CService}.
+ */
+public class SmsModemTest extends BaseTestCase {
+	/** Number of messages sent during the dispatch latency benchmark */
+	private static final int BENCHMARK_MESSAGE_COUNT = 200;
+	/** Time, in seconds, to wait for a message to reach the phone or the manager's listener before failing a test */
+	private static final long TEST_TIMEOUT = 5;
+
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+
+	private SmsServiceManager manager;
+	private SmsModem modem;
+
+//> TEST META METHODS
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if(modem != null) modem.disconnect();
+		if(manager != null) {
+			manager.stopRunning();
+			manager.join(5000);
+		}
+	}
+
+//> TESTS
+	/**
+	 * Measure the time between a message being queued with the manager and the modem passing it to the
+	 * phone, when the manager and the modem are running on their own threads.
+	 */
+	public void testDispatchLatency() throws Exception {
+		CService cService = mock(CService.class);
+		final CountDownLatch[] sent = new CountDownLatch[1];
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				sent[0].countDown();
+				return null;
+			}
+		}).when(cService).sendMessage(any(COutgoingMessage.class));
+		createModem(cService, mock(SmsListener.class));
+		modem.setUseForSending(true);
+		start();
+
+		long totalLatency = 0;
+		long maxLatency = 0;
+		for(int i=0; i<BENCHMARK_MESSAGE_COUNT; ++i) {
+			FrontlineMessage m = FrontlineMessage.createOutgoingMessage(System.currentTimeMillis(), "", "+2547" + (10000000 + i), "Message " + i);
+			// The phone does not give the message a reference, so it will be failed; it must not be retried
+			m.setRetriesRemaining(0);
+			sent[0] = new CountDownLatch(1);
+			long start = System.nanoTime();
+			manager.sendSMS(m);
+			assertTrue("Message was not passed to the phone.", sent[0].await(TEST_TIMEOUT, TimeUnit.SECONDS));
+			long latency = System.nanoTime() - start;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+		long averageLatency = totalLatency / BENCHMARK_MESSAGE_COUNT;
+		log.info("Sent " + BENCHMARK_MESSAGE_COUNT + " messages." +
+				" Average latency: " + TimeUnit.NANOSECONDS.toMicros(averageLatency) + "us;" +
+				" Max latency: " + TimeUnit.NANOSECONDS.toMicros(maxLatency) + "us");
+		// Polling once a second in the manager, and every 5 seconds in the modem, gave an average latency of seconds
+		assertTrue("Average send latency was " + averageLatency + "ns", averageLatency < TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	/**
+	 * Test that messages received by the modem are collected by the manager straight away, rather than when
+	 * the manager next polls.
+	 */
+	public void testReceivedMessagesCollected() throws Exception {
+		CService cService = mock(CService.class);
+		when(cService.supportsReceive()).thenReturn(true);
+		final CIncomingMessage received = new CIncomingMessage("+254700000001", "Hello");
+		doAnswer(new Answer<Object>() {
+			private boolean read;
+			@SuppressWarnings("unchecked")
+			public Object answer(InvocationOnMock invocation) {
+				if(!read) {
+					((List<CIncomingMessage>) invocation.getArguments()[0]).add(received);
+					read = true;
+				}
+				return null;
+			}
+		}).when(cService).readMessages(anyList(), any(MessageClass.class));
+		final CountDownLatch collected = new CountDownLatch(1);
+		SmsListener listener = mock(SmsListener.class);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				collected.countDown();
+				return null;
+			}
+		}).when(listener).incomingMessageEvent(any(SmsService.class), eq(received));
+
+		createModem(cService, listener);
+		modem.setUseForReceiving(true);
+		start();
+		assertTrue("Received message was not collected.", collected.await(TEST_TIMEOUT, TimeUnit.SECONDS));
+	}
+
+//> TEST HELPER METHODS
+	/**
+	 * Creates {@link #manager}, and {@link #modem} connected through the supplied service.
+	 * @param cService the mock service simulating the phone
+	 * @param listener the listener notified of the manager's events
+	 */
+	@SuppressWarnings("unchecked")
+	private void createModem(CService cService, SmsListener listener) throws Exception {
+		manager = new SmsServiceManager();
+		manager.setSmsListener(listener);
+		modem = new SmsModem("Simulated", manager, cService);
+		Field handlerField = SmsServiceManager.class.getDeclaredField("phoneHandlers");
+		handlerField.setAccessible(true);
+		((Map<String, SmsModem>) handlerField.get(manager)).put("Simulated", modem);
+	}
+
+	/** Starts the threads of {@link #manager} and {@link #modem}. */
+	private void start() {
+		manager.start();
+		modem.start();
+	}
+}